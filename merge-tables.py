@@ -19,6 +19,108 @@ def compute_checksum(file_path, algorithm="sha256"):
             hash_func.update(chunk)
     return hash_func.hexdigest()
 
+# Row files are written in the binary row format (see Row.toBinaryByteArray): a zero byte, the version, and the
+# varint length of a body holding the key, the number of columns and each column name and value, all prefixed
+# with varint lengths. Since version 2, each value starts with its codec byte. Older files are in the text
+# format, "key column length value ...", which the workers still read.
+BINARY_MAGIC = 0
+BINARY_VERSION = 2
+CODEC_RAW = 0
+CODEC_DEFLATE = 1
+
+def read_varint(data, pos):
+    value = 0
+    shift = 0
+    while True:
+        b = data[pos]
+        pos += 1
+        value |= (b & 0x7f) << shift
+        if (b & 0x80) == 0:
+            return value, pos
+        shift += 7
+
+def write_varint(out, value):
+    while (value & ~0x7f) != 0:
+        out.append((value & 0x7f) | 0x80)
+        value >>= 7
+    out.append(value)
+
+def read_row(file_path):
+    """
+    Read a row file in either format.
+    :return: the key and a dict from each column to a (codec, value bytes) pair
+    """
+    with open(file_path, "rb") as f:
+        data = f.read()
+    columns = {}
+
+    if len(data) > 0 and data[0] == BINARY_MAGIC:
+        version = data[1]
+        if version < 1 or version > BINARY_VERSION:
+            raise ValueError(f"Unsupported binary row version {version} in {file_path}")
+        length, pos = read_varint(data, 2)
+        key_length, pos = read_varint(data, pos)
+        key = data[pos:pos + key_length].decode("utf-8")
+        pos += key_length
+        num_columns, pos = read_varint(data, pos)
+        for _ in range(num_columns):
+            name_length, pos = read_varint(data, pos)
+            name = data[pos:pos + name_length].decode("utf-8")
+            pos += name_length
+            value_length, pos = read_varint(data, pos)
+            codec = CODEC_RAW
+            if version >= 2:
+                codec = data[pos]
+                pos += 1
+                value_length -= 1
+            columns[name] = (codec, data[pos:pos + value_length])
+            pos += value_length
+        return key, columns
+
+    # EX: acgoqkfofgrieoyecofgvaqmimpipiggcqxijocg rank 19 0.15099369888172004
+    pos = data.index(b" ")
+    key = data[:pos].decode("utf-8")
+    pos += 1
+    while pos < len(data) and data[pos:pos + 1] not in (b"\n", b""):
+        name_end = data.index(b" ", pos)
+        length_end = data.index(b" ", name_end + 1)
+        value_length = int(data[name_end + 1:length_end])
+        columns[data[pos:name_end].decode("utf-8")] = (CODEC_RAW, data[length_end + 1:length_end + 1 + value_length])
+        pos = length_end + 2 + value_length
+    return key, columns
+
+def write_row(file_path, key, columns):
+    """
+    Write a row file in the binary format, keeping each value in the codec it was read with.
+    :param columns: dict from each column to a (codec, value bytes) pair
+    """
+    body = bytearray()
+    key_bytes = key.encode("utf-8")
+    write_varint(body, len(key_bytes))
+    body += key_bytes
+    write_varint(body, len(columns))
+    for name, (codec, value) in columns.items():
+        name_bytes = name.encode("utf-8")
+        write_varint(body, len(name_bytes))
+        body += name_bytes
+        write_varint(body, len(value) + 1)
+        body.append(codec)
+        body += value
+
+    row = bytearray([BINARY_MAGIC, BINARY_VERSION])
+    write_varint(row, len(body))
+    row += body
+    with open(file_path, "wb") as f:
+        f.write(row)
+
+def value_length(codec, value):
+    """
+    Get the uncompressed length of a value; compressed values start with it as a varint.
+    """
+    if codec == CODEC_DEFLATE:
+        return read_varint(value, 0)[0]
+    return len(value)
+
 def merge_final_tables(table1_path, table2_path, merged_table_path, table_name, identicalKeyConflictResolver):
     """
     Merge two tables from given paths into one table.
@@ -301,28 +403,23 @@ def process_worker(worker_folder_dir, table1_path, table2_path, merged_table_pat
 
 def identical_file_resolver_crawl(table1_path, table2_path, file_path_in_1, file_path_in_2, target_worker_folder, table_name, d, f):
 
-    # print the file contents
-    with open(file_path_in_1, "r", encoding="ISO-8859-1") as f:
-        file1_contents = f.readlines()
-    with open(file_path_in_2, "r", encoding="ISO-8859-1") as f:
-        file2_contents = f.readlines()
-    # print("File 1 contents: ", file1_contents)
-    # print("File 2 contents: ", file2_contents)
+    key1, columns1 = read_row(file_path_in_1)
+    key2, columns2 = read_row(file_path_in_2)
 
-    # print how similar the files are to each other
-    similarity_score = difflib.SequenceMatcher(None, file1_contents, file2_contents).ratio()
+    # print how similar the rows are to each other; compressed values only match if they are identical
+    similarity_score = difflib.SequenceMatcher(None, sorted(columns1.items()), sorted(columns2.items())).ratio()
     # print("Similarity: ", similarity_score)
 
     if similarity_score < 0.7:
         print("Warning: Similarity score is < 0.7")
         print("Similarity score was: ", similarity_score)
-        # print("File 1 contents: ", file1_contents)
-        # print("File 2 contents: ", file2_contents)
 
     # Copy the file which has the most recent timestamp
 
     # Copy the file which has more content
-    if len(file1_contents) > len(file2_contents):
+    size1 = sum(value_length(codec, value) for codec, value in columns1.values())
+    size2 = sum(value_length(codec, value) for codec, value in columns2.values())
+    if size1 > size2:
         file = os.path.basename(file_path_in_1)
         target_file_path = target_worker_folder + "/" + table_name + "/" + d + "/" + file
         target_file = os.path.join(target_file_path)
@@ -336,62 +433,37 @@ def identical_file_resolver_crawl(table1_path, table2_path, file_path_in_1, file
         if not os.path.exists(target_file):
             shutil.copy(file_path_in_2, target_file)
             print("Copied file " + file + " from " + os.path.basename(table2_path) + " to the merged table because it has content")
-    
-def parseFileContents(file_contents):
-    # EX: acgoqkfofgrieoyecofgvaqmimpipiggcqxijocg rank 19 0.15099369888172004
-    # Split by space
-    file_contents = file_contents[0].split(" ")
-    return file_contents
 
 def identical_file_resolver_pagerank(table1_path, table2_path, file_path_in_1, file_path_in_2, target_worker_folder, table_name, d, f):
-    # EX: acgoqkfofgrieoyecofgvaqmimpipiggcqxijocg rank 19 0.15099369888172004
+    # EX: acgoqkfofgrieoyecofgvaqmimpipiggcqxijocg with a rank column of 0.15099369888172004
 
-    # TODO:
     # Parse each file
     # Combine their ranks: SUM them together
     # Write new rank to file
 
-    # Get the file contents of file_path_in_1
-    with open(file_path_in_1, "r") as f1:
-        file1_contents = f1.readlines()
-        
-    # Get the file contents of file_path_in_2
-    with open(file_path_in_2, "r") as f2:
-        file2_contents = f2.readlines()
-
-    print("File 1 contents: ", file1_contents)
-    print("File 2 contents: ", file2_contents)
+    url1, columns1 = read_row(file_path_in_1)
+    url2, columns2 = read_row(file_path_in_2)
 
-    # Parse the file contents
-    pageranks = parseFileContents(file1_contents)
-    pageranks2 = parseFileContents(file2_contents)
+    print("Parsed file 1 contents: ", url1, columns1)
+    print("Parsed file 2 contents: ", url2, columns2)
 
-    print("Parsed file 1 contents: ", pageranks)
-    print("Parsed file 2 contents: ", pageranks2)
+    if url1 != url2:
+        print("Failed to merge file because the URLs in the file don't match despite having the same KEY")
+        return
 
-    url1 = pageranks[0]
-    url2 = pageranks2[0]
     rank = "rank"
-    length1 = pageranks[2]
-    length2 = pageranks2[2]
-    new_rank1 = pageranks[3]
-    new_rank2 = pageranks2[3]
-
-    # combine the two newranks by parsing string as double and adding them together
-    new_rank = float(new_rank1) + float(new_rank2)
+    if rank not in columns1 or rank not in columns2:
+        print(f"Failed to merge file because {file_path_in_1} or {file_path_in_2} has no {rank} column")
+        return
 
-    # set new_length to be the length of the new_rank as a string
-    new_length = str(len(str(new_rank)))
+    # combine the two ranks by parsing them as doubles and adding them together
+    new_rank = float(columns1[rank][1].decode("utf-8")) + float(columns2[rank][1].decode("utf-8"))
 
-    if url1 != url2:
-        print("Failed to merge file because the URLs in the file don't match despite having the same KEY")
-        return
-    
-    # Write the new rank to the file
-    with open(os.path.join(target_worker_folder, table_name, d, f), "w") as f:
-        new_contents = url1 + " " + rank + " " + new_length + " " + str(new_rank)
-        f.write(new_contents)
-        print(f"Combined pageranks for {url1} and wrote \"{new_contents}\" to the merged table")
+    # Write the new rank to the file, in the format the workers write
+    columns = dict(columns1)
+    columns[rank] = (CODEC_RAW, str(new_rank).encode("utf-8"))
+    write_row(os.path.join(target_worker_folder, table_name, d, f), url1, columns)
+    print(f"Combined pageranks for {url1} and wrote rank {new_rank} to the merged table")
 
 def get_table_size(table_path):
     """
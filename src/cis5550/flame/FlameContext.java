@@ -4,6 +4,7 @@ import java.util.*;
 import java.io.*;
 import cis5550.kvs.Row;
 import cis5550.kvs.KVSClient;
+import cis5550.kvs.ScanFilter;
 import cis5550.flame.FlamePair;
 
 public interface FlameContext {
@@ -42,4 +43,11 @@ public interface FlameContext {
   public FlameRDD fromTable(String tableName, RowToString lambda) throws Exception;
 
   public FlamePairRDD pairFromTable(String tableName, RowToPair lambda) throws Exception;
+
+  // These variants have the KVS workers apply the filter before sending the rows, so the
+  // lambda only sees the rows that pass it, with only the columns it projects.
+
+  public FlameRDD fromTable(String tableName, ScanFilter filter, RowToString lambda) throws Exception;
+
+  public FlamePairRDD pairFromTable(String tableName, ScanFilter filter, RowToPair lambda) throws Exception;
 }
@@ -1,12 +1,14 @@
 package cis5550.flame;
 
 import cis5550.kvs.KVSClient;
+import cis5550.kvs.ScanFilter;
 import cis5550.tools.*;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Vector;
@@ -54,8 +56,13 @@ public class FlameContextImpl implements FlameContext, Serializable {
 
     @Override
     public FlameRDD fromTable(String tableName, RowToString lambda) throws Exception {
-        String myOutputTable =
-                invokeOperation(tableName, FlameOperation.FROM_TABLE, Serializer.objectToByteArray(lambda));
+        return fromTable(tableName, ScanFilter.NONE, lambda);
+    }
+
+    @Override
+    public FlameRDD fromTable(String tableName, ScanFilter filter, RowToString lambda) throws Exception {
+        String myOutputTable = invokeOperation(
+                tableName, FlameOperation.FROM_TABLE, Serializer.objectToByteArray(lambda), null, null, filter);
         if (myOutputTable == null) {
             throw new Exception("Failed to invoke fromTable operation");
         }
@@ -63,8 +70,13 @@ public class FlameContextImpl implements FlameContext, Serializable {
     }
 
     public FlamePairRDD pairFromTable(String tableName, RowToPair lambda) throws Exception {
-        String myOutputTable =
-                invokeOperation(tableName, FlameOperation.PAIR_FROM_TABLE, Serializer.objectToByteArray(lambda));
+        return pairFromTable(tableName, ScanFilter.NONE, lambda);
+    }
+
+    @Override
+    public FlamePairRDD pairFromTable(String tableName, ScanFilter filter, RowToPair lambda) throws Exception {
+        String myOutputTable = invokeOperation(
+                tableName, FlameOperation.PAIR_FROM_TABLE, Serializer.objectToByteArray(lambda), null, null, filter);
         if (myOutputTable == null) {
             throw new Exception("Failed to invoke fromTable operation");
         }
@@ -80,6 +92,15 @@ public class FlameContextImpl implements FlameContext, Serializable {
 
     public String invokeOperation(
             String aInputTable, FlameOperation aFlameOperation, byte[] aLambda, String aZeroElement, String aOutputTable) {
+        return invokeOperation(aInputTable, aFlameOperation, aLambda, aZeroElement, aOutputTable, ScanFilter.NONE);
+    }
+
+    /**
+     * Runs the operation on every partition of the input table, with the workers scanning the table through the
+     * filter.
+     */
+    public String invokeOperation(String aInputTable, FlameOperation aFlameOperation, byte[] aLambda,
+                                  String aZeroElement, String aOutputTable, ScanFilter aScanFilter) {
         LOGGER.debug("Invoking operation " + aFlameOperation + " on table " + aInputTable);
         String myOutputTable = aOutputTable == null ? getNewTableName() : aOutputTable;
 
@@ -96,6 +117,7 @@ public class FlameContextImpl implements FlameContext, Serializable {
                     myOutputTable,
                     myPartition,
                     aZeroElement,
+                    aScanFilter,
                     myResponses);
             myThreads.add(myThread);
             myThread.start();
@@ -151,6 +173,7 @@ public class FlameContextImpl implements FlameContext, Serializable {
                     "",
                     myPartition,
                     aZeroElement,
+                    ScanFilter.NONE,
                     myResponses);
             myThreads.add(myThread);
             myThread.start();
@@ -198,6 +221,7 @@ public class FlameContextImpl implements FlameContext, Serializable {
                     "",
                     myPartition,
                     aZeroElement,
+                    ScanFilter.NONE,
                     myResponses);
             myThreads.add(myThread);
             myThread.start();
@@ -237,6 +261,7 @@ public class FlameContextImpl implements FlameContext, Serializable {
             String aOutputTable,
             Partitioner.Partition aPartition,
             String aZeroElement,
+            ScanFilter aScanFilter,
             ConcurrentLinkedDeque<HTTP.Response> myResponses) {
         return new Thread(() -> {
             try {
@@ -265,12 +290,19 @@ public class FlameContextImpl implements FlameContext, Serializable {
                             .append("toKeyExclusive=")
                             .append(URLEncoder.encode(aPartition.toKeyExclusive, StandardCharsets.UTF_8));
                 }
+                if (aPartition.ranges != null && aPartition.ranges.size() > 1) {
+                    myWorkerQuery.append("&");
+                    myWorkerQuery
+                            .append("ranges=")
+                            .append(URLEncoder.encode(Partitioner.encodeRanges(aPartition.ranges), StandardCharsets.UTF_8));
+                }
                 if (aZeroElement != null) {
                     myWorkerQuery.append("&");
                     myWorkerQuery
                             .append("zeroElement=")
                             .append(URLEncoder.encode(aZeroElement, StandardCharsets.UTF_8));
                 }
+                myWorkerQuery.append(aScanFilter.toQuery());
                 myResponses.add(HTTP.doRequest("POST", myWorkerQuery.toString(), aLambda));
             } catch (IOException e) {
                 LOGGER.error("Failed to send operation to worker", e);
@@ -281,30 +313,16 @@ public class FlameContextImpl implements FlameContext, Serializable {
     private Vector<Partitioner.Partition> generatePartitions() {
         Partitioner myPartitioner = new Partitioner();
 
-        List<String> myKVSWorkerIDs = new LinkedList<>();
-        List<String> myKVSWorkerAddresses = new LinkedList<>();
-
         try {
-            int myNumKVSWorkers = getKVS().numWorkers();
-            for (int i = 0; i < myNumKVSWorkers; i++) {
-                myKVSWorkerIDs.add(getKVS().getWorkerID(i));
+            List<String> myKVSWorkerAddresses = new ArrayList<>();
+            for (int i = 0; i < getKVS().numWorkers(); i++) {
                 myKVSWorkerAddresses.add(getKVS().getWorkerAddress(i));
             }
+            myPartitioner.addKVSRing(getKVS().ring(), myKVSWorkerAddresses);
         } catch (IOException e) {
             LOGGER.error("Failed to get KVS workers", e);
         }
 
-        for (int i = 0; i < myKVSWorkerIDs.size(); i++) {
-            myPartitioner.addKVSWorker(
-                    myKVSWorkerAddresses.get(i),
-                    myKVSWorkerIDs.get(i),
-                    i < myKVSWorkerIDs.size() - 1 ? myKVSWorkerIDs.get(i + 1) : null);
-
-            if (i == myKVSWorkerIDs.size() - 1) {
-                myPartitioner.addKVSWorker(myKVSWorkerAddresses.get(i), null, myKVSWorkerIDs.get(0));
-            }
-        }
-
         Vector<String> myFlameWorkers = getFlameWorkers();
         myFlameWorkers.forEach(myPartitioner::addFlameWorker);
 
@@ -4,6 +4,7 @@ public enum FlameOperation {
     FLATMAP("/rdd/flatMap"),
     MAP_TO_PAIR("/rdd/mapToPair"),
     FOLD_BY_KEY("/pairRDD/foldByKey"),
+    SUM_BY_KEY("/pairRDD/sumByKey"),
     GROUP_BY("/rdd/groupBy"),
     SAMPLE("/rdd/sample"),
     INTERSECTION("/rdd/intersection"),
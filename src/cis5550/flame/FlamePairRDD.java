@@ -38,6 +38,12 @@ public interface FlamePairRDD {
 
 	public FlamePairRDD foldByKey(String zeroElement, TwoStringsToString lambda) throws Exception;
 
+  // sumByKey() is foldByKey() with a lambda that adds up the values as numbers. The
+  // KVS workers compute the sums, so the values never leave the storage nodes. Values
+  // that are not numbers are ignored, and keys without any numeric values are dropped.
+
+  public FlamePairRDD sumByKey() throws Exception;
+
   // saveAsTable() should cause a table with the specified name to appear 
   // in the KVS that contains the data from this PairRDD. The table should 
   // have a row for each unique key in the PairRDD, and the different values
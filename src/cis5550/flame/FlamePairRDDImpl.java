@@ -22,7 +22,8 @@ public class FlamePairRDDImpl implements FlamePairRDD {
 
     @Override
     public List<FlamePair> collect() throws Exception {
-        Iterator<Row> myRows = theKVSClient.scan(theTableName);
+        // Fetches from all workers at once, in the same order as a sequential scan
+        Iterator<Row> myRows = theKVSClient.parallelScan(theTableName, null, null, true);
 
         List<FlamePair> myResults = new LinkedList<>();
 
@@ -49,6 +50,15 @@ public class FlamePairRDDImpl implements FlamePairRDD {
         return new FlamePairRDDImpl(myOutputTable, theKVSClient, theFlameContext);
     }
 
+    @Override
+    public FlamePairRDD sumByKey() throws Exception {
+        String myOutputTable = theFlameContext.invokeOperation(theTableName, FlameOperation.SUM_BY_KEY, new byte[]{});
+        if (myOutputTable == null) {
+            throw new Exception("Failed to invoke sumByKey operation");
+        }
+        return new FlamePairRDDImpl(myOutputTable, theKVSClient, theFlameContext);
+    }
+
     @Override
     public void saveAsTable(String tableNameArg) throws Exception {
         if (!theKVSClient.rename(theTableName, tableNameArg)) {
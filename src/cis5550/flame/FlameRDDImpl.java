@@ -23,7 +23,8 @@ public class FlameRDDImpl implements FlameRDD {
 
     @Override
     public List<String> collect() throws Exception {
-        Iterator<Row> myRows = theKVSClient.scan(theTableName);
+        // Fetches from all workers at once, in the same order as a sequential scan
+        Iterator<Row> myRows = theKVSClient.parallelScan(theTableName, null, null, true);
 
         List<String> myResults = new LinkedList<>();
 
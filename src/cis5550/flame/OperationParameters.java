@@ -1,5 +1,7 @@
 package cis5550.flame;
 
+import cis5550.kvs.HashRing;
+import cis5550.kvs.ScanFilter;
 import cis5550.tools.Serializer;
 import cis5550.webserver.Request;
 
@@ -8,6 +10,7 @@ import static cis5550.utils.StringUtils.isNullOrEmpty;
 import java.io.File;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 public record OperationParameters(
         String inputTable,
@@ -16,7 +19,9 @@ public record OperationParameters(
         String toKeyExclusive,
         String kvsCoordinator,
         Object lambda,
-        String zeroElement) {
+        String zeroElement,
+        ScanFilter scanFilter,
+        List<HashRing.Range> keyRanges) {
     public static OperationParameters fromRequest(Request request, File aJarFile) {
         String myInputTable = request.queryParams("inputTable");
         String myOutputTable = request.queryParams("outputTable");
@@ -24,14 +29,28 @@ public record OperationParameters(
         String myToKeyExclusive = request.queryParams("toKeyExclusive");
         String myKvsCoordinator = request.queryParams("kvsCoordinator");
         String myZeroElement = request.queryParams("zeroElement");
+        String myRanges = request.queryParams("ranges");
+        String myDecodedFromKey = !isNullOrEmpty(myFromKey) ? URLDecoder.decode(myFromKey, StandardCharsets.UTF_8) : null;
+        String myDecodedToKey = !isNullOrEmpty(myToKeyExclusive) ? URLDecoder.decode(myToKeyExclusive, StandardCharsets.UTF_8) : null;
+
+        // A partition of several key ranges lists them all; malformed ones leave none, for the request to fail
+        List<HashRing.Range> myKeyRanges;
+        try {
+            myKeyRanges = !isNullOrEmpty(myRanges) ? Partitioner.decodeRanges(myRanges)
+                    : List.of(new HashRing.Range(-1, myDecodedFromKey, myDecodedToKey));
+        } catch (IllegalArgumentException e) {
+            myKeyRanges = null;
+        }
 
         return new OperationParameters(
                 !isNullOrEmpty(myInputTable) ? URLDecoder.decode(myInputTable, StandardCharsets.UTF_8) : null,
                 !isNullOrEmpty(myOutputTable) ? URLDecoder.decode(myOutputTable, StandardCharsets.UTF_8) : null,
-                !isNullOrEmpty(myFromKey) ? URLDecoder.decode(myFromKey, StandardCharsets.UTF_8) : null,
-                !isNullOrEmpty(myToKeyExclusive) ? URLDecoder.decode(myToKeyExclusive, StandardCharsets.UTF_8) : null,
+                myDecodedFromKey,
+                myDecodedToKey,
                 !isNullOrEmpty(myKvsCoordinator) ? URLDecoder.decode(myKvsCoordinator, StandardCharsets.UTF_8) : null,
                 !isNullOrEmpty(request.bodyAsBytes()) ? Serializer.byteArrayToObject(request.bodyAsBytes(), aJarFile) : null,
-                myZeroElement != null ? URLDecoder.decode(myZeroElement, StandardCharsets.UTF_8) : null);
+                myZeroElement != null ? URLDecoder.decode(myZeroElement, StandardCharsets.UTF_8) : null,
+                ScanFilter.fromParams(request::queryParams),
+                myKeyRanges);
     }
 }
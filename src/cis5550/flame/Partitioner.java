@@ -1,5 +1,10 @@
 package cis5550.flame;
 
+import cis5550.kvs.HashRing;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class Partitioner {
@@ -9,6 +14,8 @@ public class Partitioner {
         public String fromKey;
         public String toKeyExclusive;
         public String assignedFlameWorker;
+        // All key ranges of a partition made of several, in key order; fromKey and toKeyExclusive bound the first
+        public List<HashRing.Range> ranges;
 
         Partition(String kvsWorkerArg, String fromKeyArg, String toKeyExclusiveArg, String assignedFlameWorkerArg) {
             kvsWorker = kvsWorkerArg;
@@ -24,9 +31,16 @@ public class Partitioner {
             assignedFlameWorker = null;
         }
 
+        Partition(String kvsWorkerArg, List<HashRing.Range> rangesArg) {
+            this(kvsWorkerArg, rangesArg.getFirst().fromKey(), rangesArg.getFirst().toKeyExclusive());
+            ranges = rangesArg;
+        }
+
         public String toString() {
             return "[kvs:" + kvsWorker + ", keys: " + (fromKey == null ? "" : fromKey) + "-"
-                    + (toKeyExclusive == null ? "" : toKeyExclusive) + ", flame: " + assignedFlameWorker + "]";
+                    + (toKeyExclusive == null ? "" : toKeyExclusive)
+                    + (ranges != null && ranges.size() > 1 ? " and " + (ranges.size() - 1) + " more ranges" : "")
+                    + ", flame: " + assignedFlameWorker + "]";
         }
     };
 
@@ -56,6 +70,51 @@ public class Partitioner {
         partitions.add(new Partition(kvsWorker, fromKeyOrNull, toKeyOrNull));
     }
 
+    /**
+     * Adds a partition per KVS worker with all of the worker's ranges on the hash ring, so that each partition
+     * is read from the worker that holds it. kvsWorkers lists the worker addresses in the order of the ring's
+     * worker indexes.
+     */
+    public void addKVSRing(HashRing ring, List<String> kvsWorkers) {
+        TreeMap<Integer, List<HashRing.Range>> byWorker = new TreeMap<>();
+        for (HashRing.Range range : ring.ranges(null, null)) {
+            byWorker.computeIfAbsent(range.worker(), k -> new ArrayList<>()).add(range);
+        }
+        for (Map.Entry<Integer, List<HashRing.Range>> entry : byWorker.entrySet()) {
+            partitions.add(new Partition(kvsWorkers.get(entry.getKey()), entry.getValue()));
+        }
+    }
+
+    /**
+     * Encodes the key ranges for a query parameter, as the worker index and the URL-encoded bounds of each,
+     * separated by commas. Null bounds are empty.
+     */
+    public static String encodeRanges(List<HashRing.Range> ranges) {
+        StringBuilder result = new StringBuilder();
+        for (HashRing.Range range : ranges) {
+            if (!result.isEmpty())
+                result.append(",");
+            result.append(range.worker()).append(",")
+                    .append(range.fromKey() == null ? "" : URLEncoder.encode(range.fromKey(), StandardCharsets.UTF_8))
+                    .append(",")
+                    .append(range.toKeyExclusive() == null ? "" : URLEncoder.encode(range.toKeyExclusive(), StandardCharsets.UTF_8));
+        }
+        return result.toString();
+    }
+
+    public static List<HashRing.Range> decodeRanges(String encoded) {
+        String[] parts = encoded.split(",", -1);
+        if (parts.length % 3 != 0)
+            throw new IllegalArgumentException("Malformed key ranges: " + encoded);
+        List<HashRing.Range> ranges = new ArrayList<>();
+        for (int i = 0; i < parts.length; i += 3) {
+            ranges.add(new HashRing.Range(Integer.parseInt(parts[i]),
+                    parts[i + 1].isEmpty() ? null : URLDecoder.decode(parts[i + 1], StandardCharsets.UTF_8),
+                    parts[i + 2].isEmpty() ? null : URLDecoder.decode(parts[i + 2], StandardCharsets.UTF_8)));
+        }
+        return ranges;
+    }
+
     public void addFlameWorker(String worker) {
         flameWorkers.add(worker);
     }
@@ -99,6 +158,15 @@ public class Partitioner {
 
             for (int i = 0; i < partitions.size(); i++) {
                 Partition p = partitions.get(i);
+                // A partition of several ranges is split between its ranges
+                if (p.ranges != null && p.ranges.size() > 1) {
+                    int pieces = Math.min(additionalSplitsNeededPerOriginalPartition + 1, p.ranges.size());
+                    for (int j = 0; j < pieces; j++) {
+                        allPartitions.add(new Partition(p.kvsWorker, new ArrayList<>(
+                                p.ranges.subList(j * p.ranges.size() / pieces, (j + 1) * p.ranges.size() / pieces))));
+                    }
+                    continue;
+                }
                 int count = 0;
                 String fromKey = p.fromKey;
                 String toKeyExclusive = p.toKeyExclusive;
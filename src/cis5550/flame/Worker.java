@@ -62,7 +62,7 @@ class Worker extends cis5550.generic.Worker {
             LOGGER.debug("Getting KVS client and scanning rows");
 
             try {
-                myRows = myKVS.scan(myParams.inputTable(), myParams.fromKey(), myParams.toKeyExclusive());
+                myRows = scan(myKVS, myParams.inputTable(), myParams.keyRanges(), ScanFilter.NONE);
             } catch (IOException e) {
                 LOGGER.debug("Failed to scan rows", e);
                 setResponseStatus(response, INTERNAL_SERVER_ERROR);
@@ -107,7 +107,7 @@ class Worker extends cis5550.generic.Worker {
             Iterator<Row> myRows;
 
             try {
-                myRows = myKVS.scan(myParams.inputTable(), myParams.fromKey(), myParams.toKeyExclusive());
+                myRows = scan(myKVS, myParams.inputTable(), myParams.keyRanges(), ScanFilter.NONE);
             } catch (IOException e) {
                 LOGGER.debug("Failed to scan rows", e);
                 setResponseStatus(response, INTERNAL_SERVER_ERROR);
@@ -145,7 +145,7 @@ class Worker extends cis5550.generic.Worker {
             Iterator<Row> myRows;
 
             try {
-                myRows = myKVS.scan(myParams.inputTable(), myParams.fromKey(), myParams.toKeyExclusive());
+                myRows = scan(myKVS, myParams.inputTable(), myParams.keyRanges(), ScanFilter.NONE);
             } catch (IOException e) {
                 LOGGER.debug("Failed to scan rows", e);
                 setResponseStatus(response, INTERNAL_SERVER_ERROR);
@@ -181,6 +181,44 @@ class Worker extends cis5550.generic.Worker {
             return "OK";
         });
 
+        post(FlameOperation.SUM_BY_KEY.getPath(), (request, response) -> {
+            OperationParameters myParams = getAndValidateParams(request, myJAR);
+
+            if (myParams == null) {
+                setResponseStatus(response, BAD_REQUEST);
+                return "Bad request";
+            }
+
+            KVSClient myKVS = new KVSClient(myParams.kvsCoordinator());
+            Iterator<Map.Entry<String, Aggregate>> mySums;
+
+            try {
+                mySums = inRanges(myParams.keyRanges(), aRange -> myKVS.aggregateRows(
+                        myParams.inputTable(), null, aRange.fromKey(), aRange.toKeyExclusive(), myParams.scanFilter()));
+            } catch (IOException e) {
+                LOGGER.debug("Failed to aggregate rows", e);
+                setResponseStatus(response, INTERNAL_SERVER_ERROR);
+                return "Internal error";
+            }
+
+            List<RowColumnValueTuple> myRowColValueList = new ArrayList<>();
+            while (mySums.hasNext()) {
+                Map.Entry<String, Aggregate> mySum = mySums.next();
+                myRowColValueList.add(
+                        new RowColumnValueTuple(mySum.getKey(), COLUMN_NAME, String.valueOf(mySum.getValue().sum())));
+                if (myRowColValueList.size() > BATCH_SIZE) {
+                    myKVS.batchPut(myParams.outputTable(), myRowColValueList);
+                    myRowColValueList.clear();
+                }
+            }
+
+            if (!myRowColValueList.isEmpty()) {
+                myKVS.batchPut(myParams.outputTable(), myRowColValueList);
+            }
+            setResponseStatus(response, OK);
+            return "OK";
+        });
+
         post(FlameOperation.GROUP_BY.getPath(), (request, response) -> {
             OperationParameters myParams = getAndValidateParams(request, myJAR);
 
@@ -193,7 +231,7 @@ class Worker extends cis5550.generic.Worker {
             Iterator<Row> myRows;
 
             try {
-                myRows = myKVS.scan(myParams.inputTable(), myParams.fromKey(), myParams.toKeyExclusive());
+                myRows = scan(myKVS, myParams.inputTable(), myParams.keyRanges(), ScanFilter.NONE);
             } catch (IOException e) {
                 LOGGER.debug("Failed to scan rows", e);
                 setResponseStatus(response, INTERNAL_SERVER_ERROR);
@@ -232,7 +270,7 @@ class Worker extends cis5550.generic.Worker {
             double myF = (double) myParams.lambda();
 
             try {
-                myRows = myKVS.scan(myParams.inputTable(), myParams.fromKey(), myParams.toKeyExclusive());
+                myRows = scan(myKVS, myParams.inputTable(), myParams.keyRanges(), ScanFilter.NONE);
             } catch (IOException e) {
                 LOGGER.debug("Failed to scan rows", e);
                 setResponseStatus(response, INTERNAL_SERVER_ERROR);
@@ -266,8 +304,8 @@ class Worker extends cis5550.generic.Worker {
             Iterator<Row> myOtherRows;
 
             try {
-                myRows = myKVS.scan(myParams.inputTable(), myParams.fromKey(), myParams.toKeyExclusive());
-                myOtherRows = myKVS.scan((String) myParams.lambda(), myParams.fromKey(), myParams.toKeyExclusive());
+                myRows = scan(myKVS, myParams.inputTable(), myParams.keyRanges(), ScanFilter.NONE);
+                myOtherRows = scan(myKVS, (String) myParams.lambda(), myParams.keyRanges(), ScanFilter.NONE);
             } catch (IOException e) {
                 LOGGER.debug("Failed to scan rows", e);
                 setResponseStatus(response, INTERNAL_SERVER_ERROR);
@@ -307,7 +345,7 @@ class Worker extends cis5550.generic.Worker {
             Iterator<Row> myRows;
 
             try {
-                myRows = myKVS.scan(myParams.inputTable(), myParams.fromKey(), myParams.toKeyExclusive());
+                myRows = scan(myKVS, myParams.inputTable(), myParams.keyRanges(), ScanFilter.NONE);
             } catch (IOException e) {
                 LOGGER.debug("Failed to scan rows", e);
                 setResponseStatus(response, INTERNAL_SERVER_ERROR);
@@ -343,7 +381,7 @@ class Worker extends cis5550.generic.Worker {
             Iterator<Row> myRows;
 
             try {
-                myRows = myKVS.scan(myParams.inputTable(), myParams.fromKey(), myParams.toKeyExclusive());
+                myRows = scan(myKVS, myParams.inputTable(), myParams.keyRanges(), myParams.scanFilter());
             } catch (IOException e) {
                 LOGGER.debug("Failed to scan rows", e);
                 setResponseStatus(response, INTERNAL_SERVER_ERROR);
@@ -380,7 +418,7 @@ class Worker extends cis5550.generic.Worker {
             Iterator<Row> myRows;
 
             try {
-                myRows = myKVS.scan(myParams.inputTable(), myParams.fromKey(), myParams.toKeyExclusive());
+                myRows = scan(myKVS, myParams.inputTable(), myParams.keyRanges(), myParams.scanFilter());
             } catch (IOException e) {
                 LOGGER.debug("Failed to scan rows", e);
                 setResponseStatus(response, INTERNAL_SERVER_ERROR);
@@ -415,7 +453,7 @@ class Worker extends cis5550.generic.Worker {
             Iterator<Row> myRows;
 
             try {
-                myRows = myKVS.scan(myParams.inputTable(), myParams.fromKey(), myParams.toKeyExclusive());
+                myRows = scan(myKVS, myParams.inputTable(), myParams.keyRanges(), ScanFilter.NONE);
             } catch (IOException e) {
                 LOGGER.debug("Failed to scan rows", e);
                 setResponseStatus(response, INTERNAL_SERVER_ERROR);
@@ -459,7 +497,7 @@ class Worker extends cis5550.generic.Worker {
             Iterator<Row> myRows;
 
             try {
-                myRows = myKVS.scan(myParams.inputTable(), myParams.fromKey(), myParams.toKeyExclusive());
+                myRows = scan(myKVS, myParams.inputTable(), myParams.keyRanges(), ScanFilter.NONE);
             } catch (IOException e) {
                 LOGGER.debug("Failed to scan rows", e);
                 setResponseStatus(response, INTERNAL_SERVER_ERROR);
@@ -502,7 +540,7 @@ class Worker extends cis5550.generic.Worker {
             Iterator<Row> myRows;
 
             try {
-                myRows = myKVS.scan(myParams.inputTable(), myParams.fromKey(), myParams.toKeyExclusive());
+                myRows = scan(myKVS, myParams.inputTable(), myParams.keyRanges(), ScanFilter.NONE);
             } catch (IOException e) {
                 LOGGER.debug("Failed to scan rows", e);
                 setResponseStatus(response, INTERNAL_SERVER_ERROR);
@@ -554,7 +592,7 @@ class Worker extends cis5550.generic.Worker {
             Iterator<Row> myRows;
 
             try {
-                myRows = myKVS.scan(myParams.inputTable(), myParams.fromKey(), myParams.toKeyExclusive());
+                myRows = scan(myKVS, myParams.inputTable(), myParams.keyRanges(), ScanFilter.NONE);
             } catch (IOException e) {
                 LOGGER.debug("Failed to scan rows", e);
                 setResponseStatus(response, INTERNAL_SERVER_ERROR);
@@ -607,7 +645,7 @@ class Worker extends cis5550.generic.Worker {
             Iterator<Row> myRows;
 
             try {
-                myRows = myKVS.scan(myParams.inputTable(), myParams.fromKey(), myParams.toKeyExclusive());
+                myRows = scan(myKVS, myParams.inputTable(), myParams.keyRanges(), ScanFilter.NONE);
             } catch (IOException e) {
                 LOGGER.debug("Failed to scan rows", e);
                 setResponseStatus(response, INTERNAL_SERVER_ERROR);
@@ -654,7 +692,7 @@ class Worker extends cis5550.generic.Worker {
             Iterator<Row> myRows;
 
             try {
-                myRows = myKVS.scan(myParams.inputTable(), myParams.fromKey(), myParams.toKeyExclusive());
+                myRows = scan(myKVS, myParams.inputTable(), myParams.keyRanges(), ScanFilter.NONE);
             } catch (IOException e) {
                 LOGGER.debug("Failed to scan rows", e);
                 setResponseStatus(response, INTERNAL_SERVER_ERROR);
@@ -686,7 +724,7 @@ class Worker extends cis5550.generic.Worker {
             Iterator<Row> myRows;
 
             try {
-                myRows = myKVS.scan(myParams.inputTable(), myParams.fromKey(), myParams.toKeyExclusive());
+                myRows = scan(myKVS, myParams.inputTable(), myParams.keyRanges(), ScanFilter.NONE);
             } catch (IOException e) {
                 LOGGER.debug("Failed to scan rows", e);
                 setResponseStatus(response, INTERNAL_SERVER_ERROR);
@@ -721,7 +759,7 @@ class Worker extends cis5550.generic.Worker {
             FlameRDD.StringToBoolean myLambda = (FlameRDD.StringToBoolean) myParams.lambda();
 
             try {
-                myRows = myKVS.scan(myParams.inputTable(), myParams.fromKey(), myParams.toKeyExclusive());
+                myRows = scan(myKVS, myParams.inputTable(), myParams.keyRanges(), ScanFilter.NONE);
             } catch (IOException e) {
                 LOGGER.debug("Failed to scan rows", e);
                 setResponseStatus(response, INTERNAL_SERVER_ERROR);
@@ -756,7 +794,7 @@ class Worker extends cis5550.generic.Worker {
             FlameRDD.IteratorToIterator myLambda = (FlameRDD.IteratorToIterator) myParams.lambda();
 
             try {
-                myRows = myKVS.scan(myParams.inputTable(), myParams.fromKey(), myParams.toKeyExclusive());
+                myRows = scan(myKVS, myParams.inputTable(), myParams.keyRanges(), ScanFilter.NONE);
             } catch (IOException e) {
                 LOGGER.debug("Failed to scan rows", e);
                 setResponseStatus(response, INTERNAL_SERVER_ERROR);
@@ -798,7 +836,7 @@ class Worker extends cis5550.generic.Worker {
             Iterator<Row> myRows;
 
             try {
-                myRows = myKVS.scan(myParams.inputTable(), myParams.fromKey(), myParams.toKeyExclusive());
+                myRows = scan(myKVS, myParams.inputTable(), myParams.keyRanges(), ScanFilter.NONE);
             } catch (IOException e) {
                 LOGGER.debug("Failed to scan rows", e);
                 setResponseStatus(response, INTERNAL_SERVER_ERROR);
@@ -842,7 +880,7 @@ class Worker extends cis5550.generic.Worker {
     private static OperationParameters getAndValidateParams(Request aRequest, File aJar) {
         OperationParameters myParams = OperationParameters.fromRequest(aRequest, aJar);
 
-        if (myParams.kvsCoordinator() == null) {
+        if (myParams.kvsCoordinator() == null || myParams.keyRanges() == null) {
             return null;
         }
 
@@ -856,7 +894,7 @@ class Worker extends cis5550.generic.Worker {
     private static OperationParameters getAndValidateFoldParams(Request aRequest, File aJar) {
         OperationParameters myParams = OperationParameters.fromRequest(aRequest, aJar);
 
-        if (myParams.kvsCoordinator() == null) {
+        if (myParams.kvsCoordinator() == null || myParams.keyRanges() == null) {
             return null;
         }
 
@@ -867,6 +905,49 @@ class Worker extends cis5550.generic.Worker {
         return myParams;
     }
 
+    private interface RangeReader<T> {
+        Iterator<T> read(HashRing.Range aRange) throws IOException;
+    }
+
+    /**
+     * Scans the key ranges of the partition one after another, as a partition holds all of a KVS worker's ranges
+     * on the hash ring.
+     */
+    private static Iterator<Row> scan(KVSClient aKVS, String aTable, List<HashRing.Range> aRanges, ScanFilter aFilter) throws IOException {
+        return inRanges(aRanges, aRange -> aKVS.scan(aTable, aRange.fromKey(), aRange.toKeyExclusive(), aFilter));
+    }
+
+    /**
+     * Reads the ranges in order, starting to read each once the one before it is used up.
+     */
+    private static <T> Iterator<T> inRanges(List<HashRing.Range> aRanges, RangeReader<T> aReader) throws IOException {
+        Iterator<T> myFirst = aReader.read(aRanges.getFirst());
+        return new Iterator<>() {
+            private Iterator<T> theCurrent = myFirst;
+            private int theNext = 1;
+
+            @Override
+            public boolean hasNext() {
+                while (!theCurrent.hasNext() && theNext < aRanges.size()) {
+                    try {
+                        theCurrent = aReader.read(aRanges.get(theNext++));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return theCurrent.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return theCurrent.next();
+            }
+        };
+    }
+
     private static String createUniqueRowKey(String aOriginalRowKey, int aI) {
         return Hasher.hash(aOriginalRowKey+ "!" + aI);
     }
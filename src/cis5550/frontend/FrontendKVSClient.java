@@ -4,6 +4,7 @@ import cis5550.jobs.datamodels.TableColumns;
 import cis5550.tools.HTMLParser;
 import cis5550.utils.CollectionsUtils;
 import cis5550.kvs.KVSClient;
+import cis5550.kvs.ReadPolicy;
 import cis5550.kvs.Row;
 import cis5550.tools.Hasher;
 import cis5550.tools.Logger;
@@ -26,6 +27,12 @@ public class FrontendKVSClient {
 
     private static final String KVS_COORDINATOR = "localhost:8000";
     private static final KVSClient KVS_CLIENT = new KVSClient(KVS_COORDINATOR);
+    private static final double HEDGE_PERCENTILE = 95;
+
+    static {
+        // Queries read tables the jobs wrote earlier, so replicas have them too and can take over for slow workers
+        KVS_CLIENT.setReadPolicy(ReadPolicy.hedged(HEDGE_PERCENTILE));
+    }
 
     private static final String COLON = ":";
     private static final String COMMA = ",";
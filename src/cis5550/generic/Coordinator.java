@@ -4,12 +4,14 @@ import cis5550.tools.Logger;
 
 import java.util.List;
 import java.util.Vector;
+import java.util.function.Supplier;
 
 import static cis5550.webserver.Server.after;
 import static cis5550.webserver.Server.get;
 
 public class Coordinator {
     private static final WorkerTable<String> theWorkerTable = new WorkerTable<>();
+    private static Membership theMembership;
 
     public static String getWorkers() {
         return theWorkerTable.getWorkers();
@@ -19,11 +21,41 @@ public class Coordinator {
         return theWorkerTable.getWorkersList();
     }
 
+    public static List<String> getWorkerIds() {
+        return theWorkerTable.getIds();
+    }
+
+    public static String getWorkerAddress(String aId) {
+        return theWorkerTable.getAddress(aId);
+    }
+
     public static String workerTable() {
         return theWorkerTable.buildWorkerTable();
     }
 
+    /**
+     * Starts a new version of the view if the workers listed changed, for lists the coordinator changes itself.
+     */
+    public static void viewChanged() {
+        if (theMembership != null) {
+            theMembership.refresh();
+        }
+    }
+
     public static void registerRoutes() {
+        registerRoutes(Coordinator::getWorkers);
+    }
+
+    /**
+     * Registers the routes, with /workers listing what the supplier returns instead of every worker that pings.
+     * The /view route waits for the version after the one given, up to the wait in milliseconds, and answers with
+     * the version and the workers (see {@link Membership}).
+     */
+    public static void registerRoutes(Supplier<String> aWorkers) {
+        theMembership = new Membership(theWorkerTable, aWorkers);
+        theMembership.refresh();
+        theMembership.startFailureDetector();
+
         get("/ping", (req, res) -> {
             String myID = req.queryParams("id");
             String myPort = req.queryParams("port");
@@ -41,12 +73,26 @@ public class Coordinator {
                 return null;
             }
 
-            theWorkerTable.addOrUpdate(myID, myIP, Integer.parseInt(myPort));
+            if (theWorkerTable.addOrUpdate(myID, myIP, Integer.parseInt(myPort))) {
+                theMembership.refresh();
+            }
             res.status(200, "OK");
             return "OK";
         });
         get("/workers", (req, res) -> {
-            return getWorkers();
+            return aWorkers.get();
+        });
+        get("/view", (req, res) -> {
+            long myVersion;
+            long myWait;
+            try {
+                myVersion = req.queryParams("version") == null ? -1 : Long.parseLong(req.queryParams("version"));
+                myWait = req.queryParams("wait") == null ? 0 : Long.parseLong(req.queryParams("wait"));
+            } catch (NumberFormatException e) {
+                res.status(400, "Bad Request");
+                return null;
+            }
+            return theMembership.await(myVersion, myWait);
         });
     }
 
@@ -0,0 +1,94 @@
+package cis5550.generic;
+
+import cis5550.tools.Logger;
+
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * The coordinator's view of its workers, numbered by a version that grows with every change, so that workers and
+ * clients can wait for the next change instead of polling (see {@link MembershipWatcher}).
+ * <p>
+ * The view lists the workers as the /workers route does, each marked down if it has missed its heartbeats
+ * (see {@link WorkerTable}). Workers listed because they ping drop out of the view when they die; a list that
+ * keeps workers for other reasons, such as the KVS ring, keeps them but marked down. Versions follow the clock,
+ * so those of a restarted coordinator still come after the ones its watchers know.
+ */
+public class Membership {
+    public static final Logger LOGGER = Logger.getLogger(Membership.class);
+    public static final long MAX_WAIT_MILLIS = 30000;
+    public static final String DOWN = "down";
+
+    private final WorkerTable<String> theTable;
+    private final Supplier<String> theWorkers;
+    private long theVersion;
+    private String theView;
+
+    public Membership(WorkerTable<String> aTable, Supplier<String> aWorkers) {
+        theTable = aTable;
+        theWorkers = aWorkers;
+        theView = "";
+    }
+
+    /**
+     * Checks for dead workers once per heartbeat.
+     */
+    public void startFailureDetector() {
+        Thread myThread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(Worker.PING_INTERVAL);
+                    Set<String> myExpired = theTable.removeExpired();
+                    if (!myExpired.isEmpty()) {
+                        LOGGER.info("Workers " + myExpired + " missed " + WorkerTable.MISSED_HEARTBEATS + " heartbeats");
+                    }
+                    refresh();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    LOGGER.error("Failure detection failed", e);
+                }
+            }
+        }, "failure-detector");
+        myThread.setDaemon(true);
+        myThread.start();
+    }
+
+    /**
+     * Lists the workers again, and starts a new version if that changed the view.
+     */
+    public synchronized void refresh() {
+        String myView = markDown(theWorkers.get());
+        if (!myView.equals(theView)) {
+            theVersion = Math.max(theVersion + 1, System.currentTimeMillis());
+            theView = myView;
+            LOGGER.info("View " + theVersion + ":\n" + myView);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the version and the view once the version is another than the given one, or after the wait, up to
+     * {@link #MAX_WAIT_MILLIS}. The version is on the first line.
+     */
+    public synchronized String await(long aVersion, long aWaitMillis) throws InterruptedException {
+        long myDeadline = System.currentTimeMillis() + Math.min(aWaitMillis, MAX_WAIT_MILLIS);
+        long myRemaining = myDeadline - System.currentTimeMillis();
+        while (theVersion == aVersion && myRemaining > 0) {
+            wait(myRemaining);
+            myRemaining = myDeadline - System.currentTimeMillis();
+        }
+        return theVersion + "\n" + theView;
+    }
+
+    private String markDown(String aWorkers) {
+        String[] myLines = aWorkers.split("\n");
+        StringBuilder myBuilder = new StringBuilder(myLines[0]).append("\n");
+        for (int i = 1; i < myLines.length; i++) {
+            int myComma = myLines[i].indexOf(',');
+            boolean myDown = myComma > 0 && !theTable.isLive(myLines[i].substring(0, myComma));
+            myBuilder.append(myLines[i]).append(myDown ? "," + DOWN : "").append("\n");
+        }
+        return myBuilder.toString();
+    }
+}
@@ -0,0 +1,34 @@
+package cis5550.generic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A version of the coordinator's view of its workers, sorted by ID, as the /view route sends it.
+ */
+public record MembershipView(long version, List<Member> members) {
+    /**
+     * A worker, with the ip:port it pings from, and whether it missed its heartbeats.
+     */
+    public record Member(String id, String address, boolean down) {
+    }
+
+    /**
+     * Parses the version on the first line followed by the workers as the /workers route lists them, each
+     * possibly marked down.
+     */
+    public static MembershipView parse(String aBody) {
+        String[] myLines = aBody.split("\n");
+        long myVersion = Long.parseLong(myLines[0].trim());
+        int myCount = Integer.parseInt(myLines[1].trim());
+        if (myLines.length != myCount + 2) {
+            throw new IllegalArgumentException("Truncated view of " + myCount + " workers");
+        }
+        List<Member> myMembers = new ArrayList<>();
+        for (int i = 2; i < myLines.length; i++) {
+            String[] myParts = myLines[i].split(",");
+            myMembers.add(new Member(myParts[0], myParts[1], myParts.length > 2 && myParts[2].equals(Membership.DOWN)));
+        }
+        return new MembershipView(myVersion, List.copyOf(myMembers));
+    }
+}
@@ -0,0 +1,115 @@
+package cis5550.generic;
+
+import cis5550.tools.HTTP;
+import cis5550.tools.Logger;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the latest {@link MembershipView} of a coordinator, with one thread per coordinator and process that
+ * waits on the coordinator's /view route for the next version, so that every client and service in the process
+ * shares one request outstanding instead of each polling.
+ */
+public class MembershipWatcher {
+    public static final Logger LOGGER = Logger.getLogger(MembershipWatcher.class);
+    public static final long WAIT_MILLIS = 25000;
+    public static final int TIMEOUT_MARGIN_MILLIS = 5000;
+    public static final long RETRY_DELAY_MILLIS = 1000;
+
+    private static final Map<String, MembershipWatcher> theWatchers = new ConcurrentHashMap<>();
+
+    private final String theCoordinator;
+    private final List<Consumer<MembershipView>> theListeners;
+    private volatile MembershipView theView;
+
+    private MembershipWatcher(String aCoordinator) {
+        theCoordinator = aCoordinator;
+        theListeners = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Returns the watcher of the coordinator at the ip:port, which starts watching when first asked for.
+     */
+    public static MembershipWatcher forCoordinator(String aCoordinator) {
+        return theWatchers.computeIfAbsent(aCoordinator, aAddress -> {
+            MembershipWatcher myWatcher = new MembershipWatcher(aAddress);
+            myWatcher.start();
+            return myWatcher;
+        });
+    }
+
+    /**
+     * Returns the latest view, asking the coordinator if there is none yet.
+     */
+    public MembershipView view() throws IOException {
+        MembershipView myView = theView;
+        return myView != null ? myView : refresh();
+    }
+
+    /**
+     * Asks the coordinator for its view now, for callers that found out the one they have is stale.
+     */
+    public MembershipView refresh() throws IOException {
+        update(fetch(-1, 0));
+        return theView;
+    }
+
+    /**
+     * Calls the listener with every new view from now on, and with the current one if there is one.
+     */
+    public synchronized void addListener(Consumer<MembershipView> aListener) {
+        theListeners.add(aListener);
+        if (theView != null) {
+            aListener.accept(theView);
+        }
+    }
+
+    private void start() {
+        Thread myThread = new Thread(() -> {
+            while (true) {
+                try {
+                    MembershipView myView = theView;
+                    update(fetch(myView == null ? -1 : myView.version(), WAIT_MILLIS));
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.debug("Failed to watch the view of " + theCoordinator + ": " + e.getMessage());
+                    try {
+                        Thread.sleep(RETRY_DELAY_MILLIS);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }, "membership-" + theCoordinator);
+        myThread.setDaemon(true);
+        myThread.start();
+    }
+
+    private MembershipView fetch(long aVersion, long aWaitMillis) throws IOException {
+        HTTP.Response myResponse = HTTP.doRequestWithTimeout("GET", "http://" + theCoordinator + "/view?version="
+                + aVersion + "&wait=" + aWaitMillis, null, (int) aWaitMillis + TIMEOUT_MARGIN_MILLIS, false);
+        if (myResponse == null || myResponse.statusCode() != 200) {
+            throw new IOException("Status " + (myResponse == null ? "none" : myResponse.statusCode())
+                    + " for the view of " + theCoordinator);
+        }
+        return MembershipView.parse(new String(myResponse.body()));
+    }
+
+    private synchronized void update(MembershipView aView) {
+        if (theView != null && aView.version() <= theView.version()) {
+            return;
+        }
+        theView = aView;
+        for (Consumer<MembershipView> myListener : theListeners) {
+            try {
+                myListener.accept(aView);
+            } catch (RuntimeException e) {
+                LOGGER.error("A listener failed on view " + aView.version(), e);
+            }
+        }
+    }
+}
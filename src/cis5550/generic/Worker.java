@@ -1,26 +1,33 @@
 package cis5550.generic;
 
+import cis5550.tools.HTTP;
+import cis5550.tools.Logger;
+
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
 
 public class Worker {
-    public static final long PING_INTERVAL = 5000;
+    public static final Logger LOGGER = Logger.getLogger(Worker.class);
+    public static final long PING_INTERVAL = 1000;
+    public static final int PING_TIMEOUT_MILLIS = 5000;
 
+    /**
+     * Pings the coordinator once per {@link #PING_INTERVAL} as a heartbeat, over a connection that stays open
+     * between pings.
+     */
     public static void startPingThread(String aId, int aPort, String aCoordinatorIPPort) {
         Thread myPingThread = new Thread(() -> {
+            String myPingURL = "http://" + aCoordinatorIPPort + "/ping?id=" + aId + "&port=" + aPort;
             while (true) {
                 try {
                     Thread.sleep(PING_INTERVAL);
-                    String myPingURL = "http://" + aCoordinatorIPPort + "/ping?id=" + aId + "&port=" + aPort;
-                    URL myURL = new URL(myPingURL);
-                    myURL.getContent();
-
-                } catch (InterruptedException | IOException e) {
-                    e.printStackTrace();
+                    HTTP.doRequestWithTimeout("GET", myPingURL, null, PING_TIMEOUT_MILLIS, false);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to ping the coordinator at " + aCoordinatorIPPort + ": " + e.getMessage());
                 }
             }
-        });
+        }, "ping");
         myPingThread.start();
     }
 }
@@ -2,29 +2,64 @@ package cis5550.generic;
 
 import cis5550.kvs.datamodels.IPPort;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentSkipListMap;
 
+/**
+ * The workers that ping the coordinator. A worker that misses {@link #MISSED_HEARTBEATS} pings in a row is taken
+ * for dead and no longer listed until it pings again, but its address is still known.
+ * <p>
+ * Dropping a worker starts a new view and hands its ranges off, so by default a worker is only dropped after
+ * {@value #DEFAULT_MISSED_HEARTBEATS} missed pings, half a minute: longer than a full GC of a large heap or a saturated
+ * disk stalls it. Set {@link #MISSED_HEARTBEATS_PROPERTY} to change that.
+ */
 public class WorkerTable<K extends Comparable<K>> {
-    private static final long MAX_DURATION_MILLIS = 15000;
+    public static final String MISSED_HEARTBEATS_PROPERTY = "coordinator.missedHeartbeats";
+    public static final int DEFAULT_MISSED_HEARTBEATS = 30;
+    public static final int MISSED_HEARTBEATS = Integer.getInteger(MISSED_HEARTBEATS_PROPERTY, DEFAULT_MISSED_HEARTBEATS);
+    private static final long MAX_DURATION_MILLIS = (long) MISSED_HEARTBEATS * Worker.PING_INTERVAL;
     private final ConcurrentSkipListMap<K, IPPort> theWorkerMap;
+    private final ConcurrentSkipListMap<K, IPPort> theAddresses;
     private final ConcurrentSkipListMap<K, Long> theLastPing;
 
     public WorkerTable() {
         theWorkerMap = new ConcurrentSkipListMap<>();
+        theAddresses = new ConcurrentSkipListMap<>();
         theLastPing = new ConcurrentSkipListMap<>();
     }
 
-    public void addOrUpdate(K aKey, String aIP, int aPort) {
+    /**
+     * Records a ping, and returns whether the worker is new, back or at another address.
+     */
+    public synchronized boolean addOrUpdate(K aKey, String aIP, int aPort) {
+        IPPort myIPPort = new IPPort(aIP, aPort);
         theLastPing.put(aKey, System.currentTimeMillis());
-        theWorkerMap.put(aKey, new IPPort(aIP, aPort));
+        theAddresses.put(aKey, myIPPort);
+        return !myIPPort.equals(theWorkerMap.put(aKey, myIPPort));
+    }
+
+    public boolean isLive(K aKey) {
+        return theWorkerMap.containsKey(aKey);
+    }
+
+    public List<K> getIds() {
+        return new ArrayList<>(theWorkerMap.keySet());
+    }
+
+    /**
+     * Returns the ip:port the worker last pinged from, even if it is dead, or null if it never pinged.
+     */
+    public String getAddress(K aKey) {
+        IPPort myIPPort = theAddresses.get(aKey);
+        return myIPPort == null ? null : myIPPort.ip() + ":" + myIPPort.port();
     }
 
     public String getWorkers() {
         StringBuilder myStringBuilder = new StringBuilder();
-        // removeExpired();
         myStringBuilder.append(theWorkerMap.size()).append("\n");
         for (K myId : theWorkerMap.keySet()) {
             IPPort myIPPort = theWorkerMap.get(myId);
@@ -41,7 +76,6 @@ public class WorkerTable<K extends Comparable<K>> {
 
     public Vector<String> getWorkersList() {
         Vector<String> myVector = new Vector<>();
-        // removeExpired();
         for (K myId : theWorkerMap.keySet()) {
             IPPort myIPPort = theWorkerMap.get(myId);
             myVector.add(myIPPort.ip() + ":" + myIPPort.port());
@@ -51,7 +85,6 @@ public class WorkerTable<K extends Comparable<K>> {
 
     public String buildWorkerTable() {
         StringBuilder myStringBuilder = new StringBuilder();
-        // removeExpired();
 
         myStringBuilder.append("""
         <style>
@@ -105,7 +138,10 @@ public class WorkerTable<K extends Comparable<K>> {
         return myStringBuilder.toString();
     }
 
-    private synchronized void removeExpired() {
+    /**
+     * Stops listing the workers that missed too many pings, and returns them.
+     */
+    public synchronized Set<K> removeExpired() {
         long myCurrentTime = System.currentTimeMillis();
         Set<K> myKeysToRemove = new TreeSet<>();
         theLastPing.forEach((myId, myTime) -> {
@@ -115,5 +151,6 @@ public class WorkerTable<K extends Comparable<K>> {
             }
         });
         myKeysToRemove.forEach(theLastPing::remove);
+        return myKeysToRemove;
     }
 }
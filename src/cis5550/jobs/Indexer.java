@@ -62,7 +62,10 @@ public class Indexer {
 				return null;
 			};
 
-			FlamePairRDD myPairs = context.pairFromTable(CRAWL_TABLE, lambda1);
+			ScanFilter myCrawlFilter = ScanFilter.NONE
+					.withColumns(URL_REF, PAGE_REF)
+					.withRequiredColumns(URL_REF, PAGE_REF);
+			FlamePairRDD myPairs = context.pairFromTable(CRAWL_TABLE, myCrawlFilter, lambda1);
 			PairToPairIterable lambda3 = (FlamePair f) -> {
 				String removedTags = f._2().replaceAll("<[^>]*>", " ");
 				removedTags = removedTags.toLowerCase().replaceAll("[^a-z0-9\\s]", " ");
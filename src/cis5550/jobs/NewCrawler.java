@@ -97,14 +97,7 @@ public class NewCrawler {
                     return Collections.emptyList();
                 }
 
-                if (hasPassedTime(aContext, crawlDelay, myUrlParts[1])) {
-                    aContext.getKVS()
-                            .put(
-                                    HOSTS_TABLE,
-                                    Hasher.hash(myUrlParts[1]),
-                                    TableColumns.TIMESTAMP.value(),
-                                    String.valueOf(System.currentTimeMillis()));
-                } else {
+                if (!claimAccess(aContext, crawlDelay, myUrlParts[1])) {
                     return List.of(myURLString);
                 }
 
@@ -296,14 +289,21 @@ public class NewCrawler {
         aContext.getKVS().putRow(CRAWL_TABLE, row);
     }
 
-    private static boolean hasPassedTime(FlameContext aContext, long aDelay, String aHost) throws Exception {
-        byte[] myLastAccessedTimeRaw =
-                aContext.getKVS().get(HOSTS_TABLE, Hasher.hash(aHost), TableColumns.TIMESTAMP.value());
-        if (myLastAccessedTimeRaw == null || myLastAccessedTimeRaw.length == 0) {
-            return true;
+    /**
+     * Records an access to the host if its crawl delay has passed since the last one. The timestamp is replaced
+     * with a compare-and-set, so of several workers racing for the same host only one gets to crawl it.
+     */
+    private static boolean claimAccess(FlameContext aContext, long aDelay, String aHost) throws Exception {
+        String myHostKey = Hasher.hash(aHost);
+        byte[] myLastAccessedTimeRaw = aContext.getKVS().get(HOSTS_TABLE, myHostKey, TableColumns.TIMESTAMP.value());
+        String myLastAccessedTime = myLastAccessedTimeRaw == null ? null : new String(myLastAccessedTimeRaw);
+        long myNow = System.currentTimeMillis();
+        if (myLastAccessedTime != null && !myLastAccessedTime.isEmpty()
+                && myNow - Long.parseLong(myLastAccessedTime) <= aDelay) {
+            return false;
         }
-        long myLastAccessedTime = Long.valueOf(new String(myLastAccessedTimeRaw));
-        return System.currentTimeMillis() - myLastAccessedTime > aDelay;
+        return aContext.getKVS().compareAndSet(
+                HOSTS_TABLE, myHostKey, TableColumns.TIMESTAMP.value(), myLastAccessedTime, String.valueOf(myNow));
     }
 }
 
@@ -4,6 +4,7 @@ import cis5550.flame.FlameContext;
 import cis5550.flame.FlamePair;
 import cis5550.flame.FlamePairRDD;
 import cis5550.jobs.datamodels.TableColumns;
+import cis5550.kvs.ScanFilter;
 import cis5550.tools.Hasher;
 import cis5550.tools.Logger;
 
@@ -67,7 +68,10 @@ public class NewPageRank {
 
     private static FlamePairRDD prepareInitPagerankTable(FlameContext aContext) throws Exception {
         LOGGER.debug("Preparing Pagerank Table");
-        return aContext.pairFromTable(CRAWL_TABLE, myRow -> {
+        ScanFilter myCrawlFilter = ScanFilter.NONE
+                .withColumns(TableColumns.URL.value(), TableColumns.PAGE.value())
+                .withRequiredColumns(TableColumns.URL.value(), TableColumns.PAGE.value());
+        return aContext.pairFromTable(CRAWL_TABLE, myCrawlFilter, myRow -> {
             try {
                 String myUrl = myRow.get(TableColumns.URL.value());
                 String myPage = myRow.get(TableColumns.PAGE.value());
@@ -110,14 +114,8 @@ public class NewPageRank {
                     return myResults;
                 });
 
-        FlamePairRDD myTransferTable = myPageRankCalculations
-                .foldByKey("", (a, b) -> {
-                    if (a.isEmpty()) {
-                        return b;
-                    }
-                    double myPageRank = Double.parseDouble(a) + Double.parseDouble(b);
-                    return String.valueOf(myPageRank);
-                });
+        // The KVS workers add up the transferred ranks, so they are never shipped to the Flame workers
+        FlamePairRDD myTransferTable = myPageRankCalculations.sumByKey();
 
         myPageRankCalculations.destroy();
 
@@ -0,0 +1,52 @@
+package cis5550.kvs;
+
+/**
+ * The count, sum, minimum and maximum of a set of numbers, as computed by a KVS worker over the rows it holds.
+ * Aggregates of disjoint sets combine into the aggregate of their union, so the client can merge the results of
+ * all workers. Only the count is meaningful when rows rather than values are counted.
+ */
+public record Aggregate(long count, double sum, double min, double max) {
+    public static final Aggregate EMPTY = new Aggregate(0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY);
+
+    public static final String COLUMN_PARAMETER = "column";
+    public static final String LOWER_BOUND_PARAMETER = "lowerBound";
+    public static final String UPPER_BOUND_PARAMETER = "upperBound";
+    public static final String PER_ROW_PARAMETER = "perRow";
+
+    private static final String SEPARATOR = ",";
+
+    public Aggregate add(double aValue) {
+        return new Aggregate(count + 1, sum + aValue, Math.min(min, aValue), Math.max(max, aValue));
+    }
+
+    public Aggregate addRow() {
+        return new Aggregate(count + 1, sum, min, max);
+    }
+
+    public Aggregate combine(Aggregate aOther) {
+        return new Aggregate(count + aOther.count, sum + aOther.sum, Math.min(min, aOther.min), Math.max(max, aOther.max));
+    }
+
+    public double mean() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    /**
+     * Encodes the aggregate as the comma-separated count, sum, minimum and maximum.
+     */
+    public String encode() {
+        return count + SEPARATOR + sum + SEPARATOR + min + SEPARATOR + max;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the text was not produced by encode()
+     */
+    public static Aggregate decode(String aText) {
+        String[] myParts = aText.trim().split(SEPARATOR);
+        if (myParts.length != 4) {
+            throw new IllegalArgumentException("Malformed aggregate '" + aText + "'");
+        }
+        return new Aggregate(Long.parseLong(myParts[0]), Double.parseDouble(myParts[1]),
+                Double.parseDouble(myParts[2]), Double.parseDouble(myParts[3]));
+    }
+}
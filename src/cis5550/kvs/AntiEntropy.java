@@ -0,0 +1,276 @@
+package cis5550.kvs;
+
+import cis5550.kvs.datastore.Datastore;
+import cis5550.kvs.datastore.ReplicationLog;
+import cis5550.tools.HTTP;
+import cis5550.tools.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Finds and repairs what a leader's replicas missed, such as writes lost with a replica's disk or applied twice
+ * by a bug, which shipping the log alone never notices.
+ * <p>
+ * Every {@link #INTERVAL_PROPERTY} the leader brings a {@link MerkleTree} per table up to date, marking the
+ * leaves its log says were written to, and compares it with the replica's tree of the same boundaries: first
+ * the inner hashes, then the leaves under those that differ, then the hashes of the rows in the leaves that
+ * differ. Rows that differ are logged again, so the replica gets them as the leader has them, in order with
+ * every other write, and rows the leader does not have are deleted. Tables the leader does not have are dropped.
+ */
+public class AntiEntropy {
+    public static final Logger LOGGER = Logger.getLogger(AntiEntropy.class);
+    public static final String INTERVAL_PROPERTY = "kvs.antiEntropy.intervalMillis";
+    public static final long DEFAULT_INTERVAL_MILLIS = 60000;
+    public static final int READ_ENTRIES = 10000;
+
+    private final String theName;
+    private final Datastore theData;
+    private final ReplicationLog theLog;
+    private final Supplier<Map<String, String>> theReplicas;
+    private final Map<String, MerkleTree> theTrees;
+    private long theOffset;
+    private long theVersions;
+
+    /**
+     * The supplier gives the address of each replica by ID.
+     */
+    public AntiEntropy(String aName, Datastore aData, ReplicationLog aLog, Supplier<Map<String, String>> aReplicas) {
+        theName = aName;
+        theData = aData;
+        theLog = aLog;
+        theReplicas = aReplicas;
+        theTrees = new HashMap<>();
+        theOffset = aLog.startOffset();
+    }
+
+    public void start() {
+        long myInterval = Long.getLong(INTERVAL_PROPERTY, DEFAULT_INTERVAL_MILLIS);
+        if (myInterval <= 0) {
+            return;
+        }
+        Thread myThread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(myInterval);
+                    repair();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    LOGGER.error("Anti-entropy failed", e);
+                }
+            }
+        }, "anti-entropy");
+        myThread.setDaemon(true);
+        myThread.start();
+    }
+
+    /**
+     * Compares every table with every replica that has applied the log up to now, and repairs what differs.
+     */
+    private void repair() throws InterruptedException {
+        long myOffset = theLog.endOffset();
+        markWrites(myOffset);
+        Set<String> myTables = new TreeSet<>(theData.getTables().keySet());
+        theTrees.keySet().retainAll(myTables);
+        for (String myTable : myTables) {
+            MerkleTree myTree = theTrees.get(myTable);
+            if (myTree == null || myTree.isUnbalanced()) {
+                myTree = MerkleTree.build(theLog.generation() + "-" + ++theVersions, theData, myTable);
+                if (myTree == null) {
+                    continue;
+                }
+                theTrees.put(myTable, myTree);
+            } else {
+                myTree.refresh(theData, myTable);
+            }
+        }
+
+        theReplicas.get().forEach((aReplica, aAddress) -> {
+            if (theLog.acknowledged(aReplica) < myOffset) {
+                // Its copy is behind or incomplete, and differs for that alone
+                LOGGER.debug("Replica " + aReplica + " is not caught up; comparing it next time");
+                return;
+            }
+            try {
+                long myRepaired = dropStaleTables(aAddress);
+                for (Map.Entry<String, MerkleTree> myEntry : theTrees.entrySet()) {
+                    myRepaired += compare(aAddress, myEntry.getKey(), myEntry.getValue());
+                }
+                if (myRepaired > 0) {
+                    LOGGER.info("Repairing " + myRepaired + " rows and tables of replica " + aReplica);
+                }
+            } catch (Exception e) {
+                LOGGER.warn("Failed to compare with replica " + aReplica + " at " + aAddress + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Marks the leaves of the rows logged up to the offset dirty. If the log no longer has them all, every leaf
+     * is.
+     */
+    private void markWrites(long aOffset) throws InterruptedException {
+        while (theOffset < aOffset) {
+            List<ReplicationLog.Entry> myEntries = theLog.read(theOffset, READ_ENTRIES, 0);
+            if (myEntries == null) {
+                theTrees.values().forEach(aTree -> aTree.markDirty(null, null));
+                theOffset = aOffset;
+                return;
+            }
+            for (ReplicationLog.Entry myEntry : myEntries) {
+                if (myEntry.offset() >= aOffset) {
+                    break;
+                }
+                MerkleTree myTree = theTrees.get(myEntry.table());
+                switch (myEntry.kind()) {
+                    case ROW -> {
+                        if (myTree != null) {
+                            myTree.markDirty(myEntry.key());
+                        }
+                    }
+                    case RANGE -> {
+                        if (myTree != null) {
+                            myTree.markDirty(myEntry.key(), myEntry.argument());
+                        }
+                    }
+                    case DROP -> theTrees.remove(myEntry.table());
+                    case RENAME -> {
+                        theTrees.remove(myEntry.table());
+                        theTrees.remove(myEntry.argument());
+                    }
+                }
+                theOffset = myEntry.offset() + 1;
+            }
+        }
+    }
+
+    private long dropStaleTables(String aAddress) throws IOException {
+        HTTP.Response myResponse = HTTP.doRequest("GET",
+                "http://" + aAddress + "/replication/merkle/tables?leader=" + theName, null);
+        check(myResponse, "its tables");
+        long myDropped = 0;
+        for (String myTable : new String(myResponse.body(), StandardCharsets.UTF_8).split("\n")) {
+            if (!myTable.isEmpty() && theData.count(myTable) < 0) {
+                theLog.append(ReplicationLog.Kind.DROP, myTable, null, null);
+                myDropped++;
+            }
+        }
+        return myDropped;
+    }
+
+    /**
+     * Compares the table with the replica's copy from the root down, and logs the rows that differ again.
+     * Returns how many it logged.
+     */
+    private long compare(String aAddress, String aTable, MerkleTree aTree) throws Exception {
+        String myQuery = "leader=" + theName + "&table=" + encode(aTable) + "&version=" + encode(aTree.version());
+        long[] myTheirs = hashes(aAddress, myQuery, -1);
+        if (myTheirs == null) {
+            BatchFrames.Writer myBoundaries = new BatchFrames.Writer();
+            for (String myBoundary : aTree.boundaries()) {
+                myBoundaries.string(myBoundary).endRecord();
+            }
+            check(HTTP.doRequest("POST", "http://" + aAddress + "/replication/merkle/tree?" + myQuery,
+                    myBoundaries.toByteArray()), "the boundaries of " + aTable);
+            myTheirs = hashes(aAddress, myQuery, -1);
+            if (myTheirs == null) {
+                throw new IOException("No tree for " + aTable + " after sending it");
+            }
+        }
+
+        long[] myInner = aTree.innerHashes();
+        if (myTheirs.length != myInner.length) {
+            throw new IOException("The tree for " + aTable + " has " + myTheirs.length + " inner nodes");
+        }
+        long myRepaired = 0;
+        for (int i = 0; i < myInner.length; i++) {
+            if (myInner[i] == myTheirs[i]) {
+                continue;
+            }
+            long[] myLeaves = aTree.leafHashes(i);
+            long[] myTheirLeaves = hashes(aAddress, myQuery, i);
+            if (myTheirLeaves == null) {
+                throw new IOException("No tree for " + aTable);
+            }
+            for (int j = 0; j < myLeaves.length; j++) {
+                if (myLeaves[j] != myTheirLeaves[j]) {
+                    int myLeaf = i * MerkleTree.FANOUT + j;
+                    myRepaired += repairRange(aAddress, aTable, aTree.fromKey(myLeaf), aTree.toKeyExclusive(myLeaf));
+                }
+            }
+        }
+        return myRepaired;
+    }
+
+    /**
+     * Returns the replica's inner hashes, or the hashes of the leaves under the inner node if it is not negative,
+     * or null if the replica has no tree of this version.
+     */
+    private static long[] hashes(String aAddress, String aQuery, int aInnerNode) throws IOException {
+        HTTP.Response myResponse = HTTP.doRequest("GET", "http://" + aAddress + "/replication/merkle?" + aQuery
+                + (aInnerNode < 0 ? "" : "&node=" + aInnerNode), null);
+        if (myResponse.statusCode() == 404) {
+            return null;
+        }
+        check(myResponse, "its hashes");
+        String myBody = new String(myResponse.body(), StandardCharsets.UTF_8).trim();
+        return myBody.isEmpty() ? new long[0]
+                : Arrays.stream(myBody.split("\n")).mapToLong(Long::parseLong).toArray();
+    }
+
+    private long repairRange(String aAddress, String aTable, String aFromKey, String aToKeyExclusive)
+            throws Exception {
+        BatchFrames.Writer myRange = new BatchFrames.Writer();
+        myRange.nullableBytes(bytes(aFromKey)).nullableBytes(bytes(aToKeyExclusive)).endRecord();
+        HTTP.Response myResponse = HTTP.doRequest("POST", "http://" + aAddress + "/replication/merkle/rows?leader="
+                + theName + "&table=" + encode(aTable), myRange.toByteArray());
+        check(myResponse, "its rows of " + aTable);
+        Map<String, Long> myTheirs = new HashMap<>();
+        BatchFrames.Reader myReader = new BatchFrames.Reader(new ByteArrayInputStream(myResponse.body()));
+        while (myReader.hasNext()) {
+            myTheirs.put(myReader.string(), Long.parseLong(myReader.string()));
+        }
+
+        long myRepaired = 0;
+        Stream<Row> myStream = theData.getRowDataStream(aTable, aFromKey, aToKeyExclusive);
+        if (myStream != null) {
+            try (myStream) {
+                Iterator<Row> myIterator = myStream.iterator();
+                while (myIterator.hasNext()) {
+                    Row myRow = myIterator.next();
+                    Long myTheirHash = myTheirs.remove(myRow.key());
+                    if (myTheirHash == null || myTheirHash != MerkleTree.hash(myRow)) {
+                        theLog.append(ReplicationLog.Kind.ROW, aTable, myRow.key(), null);
+                        myRepaired++;
+                    }
+                }
+            }
+        }
+        // Logged rows that are gone ship as deletes
+        for (String myKey : myTheirs.keySet()) {
+            theLog.append(ReplicationLog.Kind.ROW, aTable, myKey, null);
+            myRepaired++;
+        }
+        return myRepaired;
+    }
+
+    private static void check(HTTP.Response aResponse, String aWhat) throws IOException {
+        if (aResponse.statusCode() != 200) {
+            throw new IOException("Status " + aResponse.statusCode() + " for " + aWhat);
+        }
+    }
+
+    private static String encode(String aValue) {
+        return URLEncoder.encode(aValue, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String aValue) {
+        return aValue == null ? null : aValue.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,455 @@
+package cis5550.kvs;
+
+import cis5550.tools.HTTP;
+import cis5550.tools.RowColumnValueTuple;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static cis5550.kvs.Worker.NULL_RETURN;
+
+/**
+ * A KVS client whose calls return futures instead of waiting for the worker. Requests to a worker go through its
+ * {@link WorkerConnectionPool}, which every client in the process shares, so many of them can be outstanding at
+ * once, and batch calls go to all workers in parallel. Failures complete the futures exceptionally with the IOException or RuntimeException the blocking
+ * {@link KVSClient} would have thrown. The client is thread-safe.
+ * <p>
+ * Reads of rows and cells go where the {@link ReadPolicy} of the blocking client says, and may be hedged.
+ */
+public class AsyncKVSClient {
+    public static final int BATCH_LIMIT = 50000;
+    public static final int BATCH_MAX_BYTES = 4 << 20;
+
+    private final KVSClient theClient;
+    private final LatencyTracker theLatencies;
+
+    /**
+     * A worker to read from, the owner whose copy it reads, or null if it is the owner, and whether it is down.
+     */
+    private record ReadTarget(String address, String leader, boolean down) {
+    }
+
+    public AsyncKVSClient(KVSClient aClient) {
+        theClient = aClient;
+        theLatencies = new LatencyTracker();
+    }
+
+    public CompletableFuture<Void> put(String aTable, String aRow, String aColumn, byte[] aValue) {
+        return send(aRow, "PUT", "/data/" + aTable + "/" + encode(aRow) + "/" + encode(aColumn), aValue)
+                .thenAccept(aResponse -> expectOk(aResponse, "PUT"));
+    }
+
+    public CompletableFuture<Void> putRow(String aTable, Row aRow) {
+        return send(aRow.key(), "PUT", "/data/" + aTable, aRow.toBinaryByteArray())
+                .thenAccept(aResponse -> expectOk(aResponse, "PUT"));
+    }
+
+    public CompletableFuture<Void> appendToRow(String aTable, String aRow, String aColumn, byte[] aValue, String aDelimiter) {
+        return send(aRow, "PUT", "/append/" + aTable + "/" + encode(aRow) + "/" + encode(aColumn)
+                + "?delimiter=" + encode(aDelimiter), aValue)
+                .thenAccept(aResponse -> expectOk(aResponse, "PUT"));
+    }
+
+    /**
+     * Completes with the row, or with null if the table has no such row.
+     */
+    public CompletableFuture<Row> getRow(String aTable, String aRow) {
+        return read(aRow, "/data/" + aTable + "/" + encode(aRow)
+                + "?" + Row.FORMAT_PARAMETER + "=" + Row.BINARY_FORMAT, 0)
+                .thenApply(aResponse -> {
+                    if (aResponse.statusCode() == 404) {
+                        return null;
+                    }
+                    try {
+                        return Row.readFrom(new ByteArrayInputStream(aResponse.body()));
+                    } catch (Exception e) {
+                        throw new RuntimeException("Decoding error while reading Row from getRow() URL");
+                    }
+                });
+    }
+
+    /**
+     * Completes with the value of the cell, or with null if it does not exist.
+     */
+    public CompletableFuture<byte[]> get(String aTable, String aRow, String aColumn) {
+        return read(aRow, "/data/" + aTable + "/" + encode(aRow) + "/" + encode(aColumn), 0)
+                .thenApply(aResponse -> aResponse.statusCode() == 200 ? aResponse.body() : null);
+    }
+
+    public CompletableFuture<Boolean> existsRow(String aTable, String aRow) {
+        return read(aRow, "/data/" + aTable + "/" + encode(aRow), 0)
+                .thenApply(aResponse -> aResponse.statusCode() == 200);
+    }
+
+    public CompletableFuture<Void> batchPut(String aTable, List<RowColumnValueTuple> aRowsColsAndValues) {
+        return sendBatches("/batch/put/" + aTable, null, aRowsColsAndValues);
+    }
+
+    public CompletableFuture<Void> batchAppendToRow(String aTable, String aColumn, List<RowColumnValueTuple> aRowsColsAndValues) {
+        return sendBatches("/batch/append/" + aTable + "?delimiter=" + encode(","), aColumn, aRowsColsAndValues);
+    }
+
+    /**
+     * Completes with the value of the column for each row, in the order of the rows, with NULL_RETURN for rows
+     * that do not exist or could not be read.
+     */
+    public CompletableFuture<List<String>> batchGetColValue(String aTable, String aColumn, List<String> aRows) {
+        return batchGetColValue(aTable, aColumn, aRows, 0);
+    }
+
+    private CompletableFuture<List<String>> batchGetColValue(String aTable, String aColumn, List<String> aRows, int aAttempt) {
+        Map<String, List<Integer>> myIndexesByWorker = new HashMap<>();
+        try {
+            for (int i = 0; i < aRows.size(); i++) {
+                myIndexesByWorker.computeIfAbsent(workerFor(aRows.get(i)), aWorker -> new ArrayList<>()).add(i);
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        List<String> myResult = new ArrayList<>(Collections.nCopies(aRows.size(), NULL_RETURN));
+        List<CompletableFuture<Void>> myRequests = new ArrayList<>();
+        myIndexesByWorker.forEach((aWorker, aIndexes) -> {
+            for (int myStart = 0; myStart < aIndexes.size(); myStart += BATCH_LIMIT) {
+                List<Integer> myIndexes = aIndexes.subList(myStart, Math.min(myStart + BATCH_LIMIT, aIndexes.size()));
+                BatchFrames.Writer myRequest = new BatchFrames.Writer();
+                myIndexes.forEach(aIndex -> myRequest.string(aRows.get(aIndex)).endRecord());
+
+                myRequests.add(readBatch(aWorker, aRows.get(myIndexes.getFirst()),
+                        "/batch/get/" + aTable + "/" + encode(aColumn), myRequest.toByteArray())
+                        .thenCompose(aResponse -> {
+                            if (aResponse.statusCode() != 421 || aAttempt >= KVSClient.MAX_REROUTES) {
+                                return CompletableFuture.completedFuture(aResponse);
+                            }
+                            // The rows moved to another worker, so read them again wherever they are now
+                            List<String> myMovedRows = myIndexes.stream().map(aRows::get).toList();
+                            return reroute(aAttempt)
+                                    .thenCompose(aIgnored -> batchGetColValue(aTable, aColumn, myMovedRows, aAttempt + 1))
+                                    .thenApply(aValues -> {
+                                        synchronized (myResult) {
+                                            for (int i = 0; i < myIndexes.size(); i++) {
+                                                myResult.set(myIndexes.get(i), aValues.get(i));
+                                            }
+                                        }
+                                        return null;
+                                    });
+                        })
+                        .thenAccept(aResponse -> {
+                            if (aResponse == null || aResponse.statusCode() != 200) {
+                                return;
+                            }
+                            BatchFrames.Reader myReader = new BatchFrames.Reader(new ByteArrayInputStream(aResponse.body()));
+                            try {
+                                for (int myIndex : myIndexes) {
+                                    byte[] myValue = myReader.nullableBytes();
+                                    if (myValue != null) {
+                                        synchronized (myResult) {
+                                            myResult.set(myIndex, new String(myValue, StandardCharsets.UTF_8));
+                                        }
+                                    }
+                                }
+                            } catch (Exception e) {
+                                throw new UncheckedIOException(new IOException("Malformed batch response from " + aWorker, e));
+                            }
+                        }));
+            }
+        });
+        return CompletableFuture.allOf(myRequests.toArray(new CompletableFuture<?>[0])).thenApply(aIgnored -> myResult);
+    }
+
+    /**
+     * Sends the cells to the workers that own their rows, all workers at once, in batches of at most
+     * BATCH_LIMIT cells or BATCH_MAX_BYTES bytes. A column of null stands for each cell's own column.
+     */
+    private CompletableFuture<Void> sendBatches(String aPath, String aColumnOrNull, List<RowColumnValueTuple> aRowsColsAndValues) {
+        return sendBatches(aPath, aColumnOrNull, aRowsColsAndValues, 0);
+    }
+
+    private CompletableFuture<Void> sendBatches(String aPath, String aColumnOrNull, List<RowColumnValueTuple> aRowsColsAndValues,
+                                                int aAttempt) {
+        Map<String, BatchFrames.Writer> myBatches = new HashMap<>();
+        Map<String, List<RowColumnValueTuple>> myCells = new HashMap<>();
+        List<CompletableFuture<Void>> myRequests = new ArrayList<>();
+        try {
+            for (RowColumnValueTuple myCell : aRowsColsAndValues) {
+                String myWorker = workerFor(myCell.getRow());
+                BatchFrames.Writer myBatch = myBatches.computeIfAbsent(myWorker, aWorker -> new BatchFrames.Writer());
+                myBatch.string(myCell.getRow())
+                        .string(aColumnOrNull == null ? myCell.getColumn() : aColumnOrNull)
+                        .string(myCell.getValue())
+                        .endRecord();
+                myCells.computeIfAbsent(myWorker, aWorker -> new ArrayList<>()).add(myCell);
+                if (myBatch.records() >= BATCH_LIMIT || myBatch.size() >= BATCH_MAX_BYTES) {
+                    myRequests.add(sendBatch(myWorker, aPath, myBatch.toByteArray(), aColumnOrNull,
+                            myCells.remove(myWorker), aAttempt));
+                    myBatch.reset();
+                }
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        myBatches.forEach((aWorker, aBatch) -> {
+            if (aBatch.records() > 0) {
+                myRequests.add(sendBatch(aWorker, aPath, aBatch.toByteArray(), aColumnOrNull, myCells.get(aWorker), aAttempt));
+            }
+        });
+        return CompletableFuture.allOf(myRequests.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Sends a batch to a worker. Workers turn away a batch with rows they do not own before writing any of it,
+     * so after a rebalance the cells of the batch are split up again among the current workers.
+     */
+    private CompletableFuture<Void> sendBatch(String aWorker, String aPath, byte[] aBody, String aColumnOrNull,
+                                              List<RowColumnValueTuple> aCells, int aAttempt) {
+        return pool(aWorker).send("PUT", theClient.withAcks(aPath), aBody)
+                .thenCompose(aResponse -> {
+                    if (aResponse.statusCode() == 421 && aAttempt < KVSClient.MAX_REROUTES) {
+                        return reroute(aAttempt).thenCompose(aIgnored -> sendBatches(aPath, aColumnOrNull, aCells, aAttempt + 1));
+                    }
+                    expectOk(aResponse, "PUT", "http://" + aWorker + aPath);
+                    return CompletableFuture.completedFuture(null);
+                });
+    }
+
+    private CompletableFuture<HTTP.Response> send(String aRow, String aMethod, String aPath, byte[] aBody) {
+        return send(aRow, aMethod, aPath, aBody, 0);
+    }
+
+    /**
+     * Sends a request to the worker that owns the row, and again to the new owner if the row moved.
+     */
+    private CompletableFuture<HTTP.Response> send(String aRow, String aMethod, String aPath, byte[] aBody, int aAttempt) {
+        CompletableFuture<HTTP.Response> myResponse;
+        try {
+            myResponse = pool(workerFor(aRow)).send(aMethod, aMethod.equals("GET") ? aPath : theClient.withAcks(aPath), aBody);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return myResponse.thenCompose(aResponse -> aResponse.statusCode() == 421 && aAttempt < KVSClient.MAX_REROUTES
+                ? reroute(aAttempt).thenCompose(aIgnored -> send(aRow, aMethod, aPath, aBody, aAttempt + 1))
+                : CompletableFuture.completedFuture(aResponse));
+    }
+
+    /**
+     * Reads from the workers the read policy picks among those with the row, and from the owner if the row
+     * moved.
+     */
+    private CompletableFuture<HTTP.Response> read(String aRow, String aPath, int aAttempt) {
+        ReadPolicy myPolicy = theClient.readPolicy;
+        List<ReadTarget> myTargets;
+        try {
+            if (!myPolicy.usesReplicas() && !ownerDown(aRow)) {
+                return send(aRow, "GET", aPath, null, aAttempt);
+            }
+            myTargets = readTargets(aRow, myPolicy);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return new HedgedRead(myTargets, "GET", aPath, null, false).start(myPolicy)
+                .thenCompose(aResponse -> aResponse.statusCode() == 421 && aAttempt < KVSClient.MAX_REROUTES
+                        ? reroute(aAttempt).thenCompose(aIgnored -> read(aRow, aPath, aAttempt + 1))
+                        : CompletableFuture.completedFuture(aResponse));
+    }
+
+    /**
+     * Sends a batch read of rows the worker owns, to the worker or, as the read policy says, to its replicas.
+     * The worker streams the values and closes the connection, so this cannot share a pipeline.
+     */
+    private CompletableFuture<HTTP.Response> readBatch(String aWorker, String aAnyRow, String aPath, byte[] aBody) {
+        ReadPolicy myPolicy = theClient.readPolicy;
+        try {
+            if (!myPolicy.usesReplicas() && !ownerDown(aAnyRow)) {
+                return pool(aWorker).sendAlone("POST", aPath, aBody);
+            }
+            return new HedgedRead(readTargets(aAnyRow, myPolicy), "POST", aPath, aBody, true).start(myPolicy);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Returns the owner of the row and its replicas in the order to try them: starting from a random one if the
+     * policy spreads reads, or from the owner, and with workers that missed their heartbeats last. A policy that
+     * reads from the owner only still reads from the replicas while the owner is down.
+     */
+    private List<ReadTarget> readTargets(String aRow, ReadPolicy aPolicy) throws IOException {
+        List<KVSClient.WorkerEntry> myWorkers;
+        synchronized (theClient) {
+            theClient.ensureWorkers();
+            myWorkers = theClient.workersWithKey(aRow,
+                    aPolicy.replicas() > 0 ? aPolicy.replicas() : WorkerReplicationManager.replicaCount());
+        }
+        List<ReadTarget> myTargets = new ArrayList<>();
+        for (int i = 0; i < myWorkers.size(); i++) {
+            KVSClient.WorkerEntry myWorker = myWorkers.get(i);
+            myTargets.add(new ReadTarget(myWorker.address, i == 0 ? null : myWorkers.getFirst().id, myWorker.down));
+        }
+        if (aPolicy.spread()) {
+            Collections.rotate(myTargets, ThreadLocalRandom.current().nextInt(myTargets.size()));
+        }
+        myTargets.sort(Comparator.comparing(ReadTarget::down));
+        return myTargets;
+    }
+
+    private boolean ownerDown(String aRow) throws IOException {
+        synchronized (theClient) {
+            theClient.ensureWorkers();
+            return theClient.ownerDown(aRow);
+        }
+    }
+
+    /**
+     * A read sent to one target after another: to the next when one fails, when a replica answers 421 because
+     * it has no complete copy, or once the hedge delay passes without an answer. Completes with the first answer
+     * that is none of these, or else with the owner's. An owner that answers 421 no longer owns the rows, and
+     * neither do its copies, so that answer completes the read at once for callers to reroute.
+     */
+    private class HedgedRead {
+        private final List<ReadTarget> theTargets;
+        private final String theMethod;
+        private final String thePath;
+        private final byte[] theBody;
+        private final boolean theAlone;
+        private final CompletableFuture<HTTP.Response> theResult;
+        private int theSent;
+        private int theFailed;
+        private HTTP.Response theOwnerResponse;
+        private Throwable theFailure;
+
+        HedgedRead(List<ReadTarget> aTargets, String aMethod, String aPath, byte[] aBody, boolean aAlone) {
+            theTargets = aTargets;
+            theMethod = aMethod;
+            thePath = aPath;
+            theBody = aBody;
+            theAlone = aAlone;
+            theResult = new CompletableFuture<>();
+        }
+
+        CompletableFuture<HTTP.Response> start(ReadPolicy aPolicy) {
+            sendNext();
+            if (aPolicy.hedgePercentile() > 0 && theTargets.size() > 1) {
+                long myDelay = Math.max(aPolicy.minHedgeDelayMillis(), theLatencies.percentileMillis(aPolicy.hedgePercentile()));
+                CompletableFuture.delayedExecutor(myDelay, TimeUnit.MILLISECONDS).execute(this::sendNext);
+            }
+            return theResult;
+        }
+
+        private void sendNext() {
+            ReadTarget myTarget;
+            synchronized (this) {
+                if (theResult.isDone() || theSent == theTargets.size()) {
+                    return;
+                }
+                myTarget = theTargets.get(theSent++);
+            }
+            String myPath = myTarget.leader() == null ? thePath : thePath + (thePath.contains("?") ? "&" : "?")
+                    + WorkerReplicationManager.LEADER_PARAMETER + "=" + myTarget.leader();
+            WorkerConnectionPool myPool = pool(myTarget.address());
+            long myStart = System.nanoTime();
+            (theAlone ? myPool.sendAlone(theMethod, myPath, theBody) : myPool.send(theMethod, myPath, theBody))
+                    .whenComplete((aResponse, aFailure) -> answered(myTarget, aResponse, aFailure, myStart));
+        }
+
+        private void answered(ReadTarget aTarget, HTTP.Response aResponse, Throwable aFailure, long aStartNanos) {
+            if (aFailure == null && aResponse.statusCode() != 421 && aResponse.statusCode() < 500) {
+                theLatencies.record(System.nanoTime() - aStartNanos);
+                theResult.complete(aResponse);
+                return;
+            }
+            if (aFailure == null && aResponse.statusCode() == 421 && aTarget.leader() == null) {
+                theResult.complete(aResponse);
+                return;
+            }
+
+            boolean myAllFailed;
+            synchronized (this) {
+                if (aTarget.leader() == null && aResponse != null) {
+                    theOwnerResponse = aResponse;
+                }
+                if (aFailure != null) {
+                    theFailure = aFailure;
+                }
+                myAllFailed = ++theFailed == theTargets.size();
+            }
+            if (!myAllFailed) {
+                sendNext();
+            } else if (theOwnerResponse != null) {
+                theResult.complete(theOwnerResponse);
+            } else if (theFailure != null) {
+                theResult.completeExceptionally(theFailure);
+            } else {
+                theResult.complete(aResponse);
+            }
+        }
+    }
+
+    /**
+     * Lists the workers again after a delay that grows with the attempt, giving a rebalance time to finish.
+     */
+    private CompletableFuture<Void> reroute(int aAttempt) {
+        return CompletableFuture.runAsync(() -> {
+            synchronized (theClient) {
+                try {
+                    theClient.downloadWorkers();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }, CompletableFuture.delayedExecutor(KVSClient.rerouteDelayMillis(aAttempt), TimeUnit.MILLISECONDS));
+    }
+
+    private WorkerConnectionPool pool(String aWorker) {
+        return WorkerConnectionPool.forWorker(aWorker);
+    }
+
+    private String workerFor(String aRow) throws IOException {
+        synchronized (theClient) {
+            theClient.ensureWorkers();
+            return theClient.workerAddressForKey(aRow);
+        }
+    }
+
+    private static void expectOk(HTTP.Response aResponse, String aMethod) {
+        expectOk(aResponse, aMethod, null);
+    }
+
+    private static void expectOk(HTTP.Response aResponse, String aMethod, String aTargetOrNull) {
+        String myResult = new String(aResponse.body());
+        if (!myResult.equals("OK")) {
+            throw new RuntimeException(aMethod + " returned something other than OK: " + myResult
+                    + (aTargetOrNull == null ? "" : "(" + aTargetOrNull + ")"));
+        }
+    }
+
+    private static String encode(String aValue) {
+        return URLEncoder.encode(aValue, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Waits for a future and rethrows its failure as the blocking client would have thrown it.
+     */
+    static <T> T await(CompletableFuture<T> aFuture) throws IOException {
+        try {
+            return aFuture.join();
+        } catch (CompletionException e) {
+            Throwable myCause = e.getCause() instanceof UncheckedIOException myUnchecked ? myUnchecked.getCause() : e.getCause();
+            if (myCause instanceof IOException myIOException) {
+                throw myIOException;
+            }
+            if (myCause instanceof RuntimeException myRuntimeException) {
+                throw myRuntimeException;
+            }
+            throw e;
+        }
+    }
+}
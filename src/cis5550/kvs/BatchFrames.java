@@ -0,0 +1,111 @@
+package cis5550.kvs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The body format of the batch endpoints: a sequence of fields, each a varint length followed by that many
+ * bytes, so keys and values may hold any bytes and are read without searching for separators. A nullable field
+ * stores its length plus one, with zero standing for a missing value.
+ */
+public class BatchFrames {
+    public static final String CONTENT_TYPE = "application/octet-stream";
+
+    public static class Writer {
+        private final ByteArrayOutputStream theOut;
+        private int theRecords;
+
+        public Writer() {
+            theOut = new ByteArrayOutputStream();
+        }
+
+        public Writer string(String aValue) {
+            return bytes(aValue.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public Writer bytes(byte[] aValue) {
+            Row.writeVarintBytes(theOut, aValue);
+            return this;
+        }
+
+        public Writer nullableBytes(byte[] aValue) {
+            if (aValue == null) {
+                Row.writeVarint(theOut, 0);
+            } else {
+                Row.writeVarint(theOut, aValue.length + 1);
+                theOut.write(aValue, 0, aValue.length);
+            }
+            return this;
+        }
+
+        /**
+         * Marks the end of a record, which only serves to count them.
+         */
+        public void endRecord() {
+            theRecords++;
+        }
+
+        public int records() {
+            return theRecords;
+        }
+
+        public int size() {
+            return theOut.size();
+        }
+
+        public byte[] toByteArray() {
+            return theOut.toByteArray();
+        }
+
+        public void writeTo(OutputStream aOut) throws IOException {
+            theOut.writeTo(aOut);
+        }
+
+        public void reset() {
+            theOut.reset();
+            theRecords = 0;
+        }
+    }
+
+    public static class Reader {
+        private final PushbackInputStream theIn;
+
+        public Reader(InputStream aIn) {
+            theIn = new PushbackInputStream(aIn);
+        }
+
+        public boolean hasNext() throws IOException {
+            int myByte = theIn.read();
+            if (myByte < 0) {
+                return false;
+            }
+            theIn.unread(myByte);
+            return true;
+        }
+
+        public String string() throws Exception {
+            return new String(bytes(), StandardCharsets.UTF_8);
+        }
+
+        public byte[] bytes() throws Exception {
+            return read(Row.readVarint(theIn));
+        }
+
+        public byte[] nullableBytes() throws Exception {
+            int myLength = Row.readVarint(theIn);
+            return myLength == 0 ? null : read(myLength - 1);
+        }
+
+        private byte[] read(int aLength) throws Exception {
+            byte[] myValue = theIn.readNBytes(aLength);
+            if (myValue.length != aLength) {
+                throw new Exception("Premature end of batch (read " + myValue.length + " of " + aLength + " bytes)");
+            }
+            return myValue;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package cis5550.kvs;
+
+import cis5550.kvs.datastore.ColumnCompression;
+import cis5550.kvs.datastore.Datastore;
+import cis5550.kvs.datastore.DatastoreContainer;
+import cis5550.kvs.datastore.DatastoreType;
+import cis5550.kvs.datastore.lsm.LogStructuredTable;
+import cis5550.kvs.datastore.lsm.MergingIterator;
+import cis5550.kvs.datastore.lsm.RowFragment;
+import cis5550.kvs.datastore.lsm.Segment;
+import cis5550.kvs.datastore.lsm.SegmentWriter;
+import cis5550.tools.Logger;
+import cis5550.utils.BloomFilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Builds a log-structured table offline, for KVS workers to attach instead of having its rows put one by one.
+ * Reads the rows of a table from worker directories, such as those of partitioned crawls or of Flame jobs,
+ * splits them by the worker that owns them on the ring of the given workers, and writes each worker's share as
+ * sorted segment files to output/worker ID/table. POST /bulk/attach/table on a worker, with the path of its
+ * directory as the body, attaches them; its replicas attach the same files with the leader parameter.
+ * <p>
+ * Rows with the same key in several directories are merged column by column, with the later directories
+ * winning. Each worker's share is sorted by writing sorted runs of at most {@link #RUN_MB_PROPERTY} megabytes
+ * and merging them, so that neither the input nor the output has to fit in memory.
+ */
+public class BulkLoad {
+    public static final Logger LOGGER = Logger.getLogger(BulkLoad.class);
+    public static final String RUN_MB_PROPERTY = "kvs.bulk.runMB";
+    public static final long DEFAULT_RUN_MB = 256;
+    static final String RUNS_DIRECTORY = "__runs";
+
+    private final String theTable;
+    private final File theOutput;
+    private final List<String> theWorkers;
+    private final HashRing theRing;
+    private final long theRunBytes;
+    private final List<TreeMap<String, RowFragment>> theBuffers;
+    private final List<List<Segment>> theRuns;
+    private long theBufferedBytes;
+    private long theRowsRead;
+    private int theRunCount;
+
+    public BulkLoad(String aTable, File aOutput, List<String> aWorkers) {
+        theTable = aTable;
+        theOutput = aOutput;
+        theWorkers = aWorkers;
+        theRing = HashRing.forWorkers(aWorkers);
+        theRunBytes = Long.getLong(RUN_MB_PROPERTY, DEFAULT_RUN_MB) << 20;
+        theBuffers = new ArrayList<>();
+        theRuns = new ArrayList<>();
+        for (int i = 0; i < aWorkers.size(); i++) {
+            theBuffers.add(new TreeMap<>());
+            theRuns.add(new ArrayList<>());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 5) {
+            System.err.println("Usage: BulkLoad <source table> <target table> <output directory> "
+                    + "<coordinator ip:port | worker IDs separated by commas> <worker directory>...");
+            System.exit(1);
+        }
+
+        String mySourceTable = args[0];
+        String myTargetTable = args[1];
+        if (DatastoreType.fromName(myTargetTable) != DatastoreType.LOG_STRUCTURED) {
+            System.err.println("The target table must be log-structured, with the prefix "
+                    + DatastoreType.LOG_STRUCTURED.prefix());
+            System.exit(1);
+        }
+
+        List<String> myWorkers = new ArrayList<>();
+        if (args[3].contains(":")) {
+            KVSClient myClient = new KVSClient(args[3]);
+            for (int i = 0; i < myClient.numWorkers(); i++) {
+                myWorkers.add(myClient.getWorkerID(i));
+            }
+        } else {
+            myWorkers.addAll(Arrays.asList(args[3].split(",")));
+        }
+        Collections.sort(myWorkers);
+
+        BulkLoad myLoad = new BulkLoad(myTargetTable, new File(args[2]), myWorkers);
+        for (int i = 4; i < args.length; i++) {
+            myLoad.read(new DatastoreContainer(args[i]), mySourceTable);
+            LOGGER.info("Read " + myLoad.theRowsRead + " rows after " + args[i]);
+        }
+        myLoad.finish();
+
+        int myReplicas = WorkerReplicationManager.replicaCount();
+        for (int i = 0; i < myWorkers.size(); i++) {
+            List<String> myCopies = new ArrayList<>();
+            for (int j = 1; j <= Math.min(myReplicas, myWorkers.size() - 1); j++) {
+                myCopies.add(myWorkers.get((i + j) % myWorkers.size()));
+            }
+            System.out.println("Attach " + new File(new File(args[2], myWorkers.get(i)), myTargetTable)
+                    + " on " + myWorkers.get(i) + (myCopies.isEmpty() ? "" : ", and with leader="
+                    + myWorkers.get(i) + " on " + String.join(", ", myCopies)));
+        }
+        // The datastores keep background threads
+        System.exit(0);
+    }
+
+    /**
+     * Adds the rows of the table in the datastore; rows read later win over those read earlier.
+     */
+    public void read(Datastore aData, String aTable) throws IOException {
+        Stream<Row> myRows = aData.getRowDataStream(aTable, null, null);
+        if (myRows == null) {
+            LOGGER.warn("No table " + aTable + " to read");
+            return;
+        }
+        try (myRows) {
+            Iterator<Row> myIterator = myRows.iterator();
+            while (myIterator.hasNext()) {
+                add(myIterator.next());
+            }
+        }
+    }
+
+    private void add(Row aRow) throws IOException {
+        if (aRow.columns().isEmpty()) {
+            return;
+        }
+        // Fragments that are not complete are merged with older ones column by column
+        RowFragment myFragment = new RowFragment(aRow, false);
+        TreeMap<String, RowFragment> myBuffer = theBuffers.get(theRing.workerForKey(aRow.key()));
+        RowFragment myOlder = myBuffer.put(aRow.key(), myFragment);
+        if (myOlder != null) {
+            myBuffer.put(aRow.key(), myFragment.mergeOlder(myOlder));
+        }
+        theBufferedBytes += myFragment.sizeInBytes();
+        theRowsRead++;
+        if (theBufferedBytes >= theRunBytes) {
+            spill();
+        }
+    }
+
+    private void spill() throws IOException {
+        for (int i = 0; i < theWorkers.size(); i++) {
+            TreeMap<String, RowFragment> myBuffer = theBuffers.get(i);
+            if (myBuffer.isEmpty()) {
+                continue;
+            }
+            File myRuns = new File(new File(theOutput, theWorkers.get(i)), RUNS_DIRECTORY);
+            if (!myRuns.exists() && !myRuns.mkdirs()) {
+                throw new IOException("Failed to create directory " + myRuns);
+            }
+            theRuns.get(i).add(SegmentWriter.write(new File(myRuns, Segment.fileName(theRunCount, theRunCount)),
+                    myBuffer.entrySet().iterator(), false, myBuffer.size()));
+            myBuffer.clear();
+        }
+        theRunCount++;
+        theBufferedBytes = 0;
+    }
+
+    /**
+     * Merges each worker's runs into its segment files, starting a new file whenever one reaches
+     * {@link LogStructuredTable#MAX_SEGMENT_SIZE}, and deletes the runs.
+     */
+    public void finish() throws IOException {
+        spill();
+        Predicate<String> myCompressedColumns = ColumnCompression.forTable(theTable);
+        for (int i = 0; i < theWorkers.size(); i++) {
+            List<Segment> myRuns = theRuns.get(i);
+            File myDirectory = new File(new File(theOutput, theWorkers.get(i)), theTable);
+            if (!myDirectory.exists() && !myDirectory.mkdirs()) {
+                throw new IOException("Failed to create directory " + myDirectory);
+            }
+
+            List<Iterator<Map.Entry<String, RowFragment>>> mySources = new ArrayList<>();
+            long myExpectedKeys = 0;
+            for (int j = myRuns.size() - 1; j >= 0; j--) {
+                mySources.add(myRuns.get(j).iterator(null, null));
+                myExpectedKeys += myRuns.get(j).recordCount();
+            }
+
+            MergingIterator myRows = new MergingIterator(mySources);
+            int myFiles = 0;
+            long myRowsWritten = 0;
+            while (myRows.hasNext()) {
+                myFiles++;
+                try (SegmentWriter myWriter = new SegmentWriter(new File(myDirectory, Segment.fileName(myFiles, myFiles)),
+                        myExpectedKeys - myRowsWritten, BloomFilter.DEFAULT_FALSE_POSITIVE_RATE, myCompressedColumns)) {
+                    while (myRows.hasNext() && myWriter.sizeInBytes() < LogStructuredTable.MAX_SEGMENT_SIZE) {
+                        Map.Entry<String, RowFragment> myEntry = myRows.next();
+                        myWriter.add(myEntry.getKey(), new RowFragment(myEntry.getValue().resolve(), true));
+                        myRowsWritten++;
+                    }
+                    myWriter.finish();
+                }
+            }
+            myRuns.forEach(Segment::delete);
+            new File(new File(theOutput, theWorkers.get(i)), RUNS_DIRECTORY).delete();
+            LOGGER.info("Wrote " + myRowsWritten + " rows of " + theTable + " for " + theWorkers.get(i) + " in "
+                    + myFiles + " segments");
+        }
+    }
+}
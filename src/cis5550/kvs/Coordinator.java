@@ -2,8 +2,11 @@ package cis5550.kvs;
 
 import cis5550.tools.Logger;
 
+import static cis5550.utils.HTTPStatus.BAD_REQUEST;
+import static cis5550.utils.HTTPStatus.setResponseStatus;
 import static cis5550.webserver.Server.get;
 import static cis5550.webserver.Server.port;
+import static cis5550.webserver.Server.post;
 
 public class Coordinator extends cis5550.generic.Coordinator {
     public static Logger LOGGER = Logger.getLogger(Coordinator.class);
@@ -18,7 +21,28 @@ public class Coordinator extends cis5550.generic.Coordinator {
 
         int myPort = Integer.parseInt(args[0]);
         port(myPort);
-        registerRoutes();
+        Rebalancer myRebalancer = new Rebalancer();
+        registerRoutes(myRebalancer::workers);
+        get("/rebalance", (req, res) -> myRebalancer.status());
+        post("/rebalance/leave", (req, res) -> {
+            String myID = req.queryParams("id");
+            if (myID == null) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+            myRebalancer.leave(myID);
+            return "OK";
+        });
+        post("/rebalance/join", (req, res) -> {
+            String myID = req.queryParams("id");
+            if (myID == null) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+            myRebalancer.join(myID);
+            return "OK";
+        });
+        myRebalancer.start();
         get("/", (req, res) -> {
             String myWorkerTable = workerTable();
             return "<html><h1>Welcome to the KVS Coordinator</h1>" + myWorkerTable + "</html>";
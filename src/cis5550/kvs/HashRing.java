@@ -0,0 +1,132 @@
+package cis5550.kvs;
+
+import cis5550.tools.Hasher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Places row keys on KVS workers. Every worker owns {@link #VIRTUAL_NODES_PROPERTY} tokens, the hashes of its ID
+ * and the token's number, and with them the keys from each token up to the next one; the keys below the first
+ * token wrap around to the owner of the last. Tokens are hashed like the row keys most tables use, so each
+ * worker's share of the keys is close to even, and adding or removing a worker only moves the keys next to its
+ * own tokens.
+ * <p>
+ * The ring is ordered by key, so a key range still maps to a list of contiguous ranges on the workers. Every
+ * client and worker of a KVS must use the same number of virtual nodes.
+ */
+public class HashRing {
+    public static final String VIRTUAL_NODES_PROPERTY = "kvs.virtualNodes";
+    public static final int DEFAULT_VIRTUAL_NODES = 64;
+
+    private static final String TOKEN_SEPARATOR = "#";
+
+    /**
+     * A key range owned by one worker, given by its index in the list of worker IDs. Null bounds are open.
+     */
+    public record Range(int worker, String fromKey, String toKeyExclusive) {
+    }
+
+    private final String[] theTokens;
+    private final int[] theOwners;
+
+    public HashRing(List<String> aWorkerIds, int aVirtualNodes) {
+        if (aWorkerIds.isEmpty() || aVirtualNodes < 1) {
+            throw new IllegalArgumentException("A ring needs at least one worker and one virtual node per worker");
+        }
+
+        TreeMap<String, Integer> myTokens = new TreeMap<>();
+        for (int i = 0; i < aWorkerIds.size(); i++) {
+            for (int j = 0; j < aVirtualNodes; j++) {
+                myTokens.put(token(aWorkerIds.get(i), j), i);
+            }
+        }
+
+        theTokens = new String[myTokens.size()];
+        theOwners = new int[myTokens.size()];
+        int myIndex = 0;
+        for (Map.Entry<String, Integer> myEntry : myTokens.entrySet()) {
+            theTokens[myIndex] = myEntry.getKey();
+            theOwners[myIndex] = myEntry.getValue();
+            myIndex++;
+        }
+    }
+
+    /**
+     * Returns a ring with the number of virtual nodes set by {@link #VIRTUAL_NODES_PROPERTY}.
+     */
+    public static HashRing forWorkers(List<String> aWorkerIds) {
+        return new HashRing(aWorkerIds, Integer.getInteger(VIRTUAL_NODES_PROPERTY, DEFAULT_VIRTUAL_NODES));
+    }
+
+    public static String token(String aWorkerId, int aVirtualNode) {
+        return Hasher.hash(aWorkerId + TOKEN_SEPARATOR + aVirtualNode);
+    }
+
+    /**
+     * Returns the index of the worker owning the key. A null key belongs to the owner of the lowest keys.
+     */
+    public int workerForKey(String aKey) {
+        return theOwners[Math.floorMod(floorToken(aKey), theTokens.length)];
+    }
+
+    /**
+     * Returns the ranges that make up the keys from the start row up to the end row, in key order, with
+     * neighbouring ranges of the same worker joined. Either bound may be null.
+     */
+    public List<Range> ranges(String aStartRow, String aEndRowExclusive) {
+        List<Range> myRanges = new ArrayList<>();
+        if (aStartRow != null && aEndRowExclusive != null && aStartRow.compareTo(aEndRowExclusive) >= 0) {
+            return myRanges;
+        }
+
+        // Segment i runs from token i - 1 to token i, segment 0 from the lowest key to the first token
+        for (int i = floorToken(aStartRow) + 1; i <= theTokens.length; i++) {
+            String myFrom = i == 0 ? null : theTokens[i - 1];
+            String myTo = i == theTokens.length ? null : theTokens[i];
+            if (aEndRowExclusive != null && myFrom != null && myFrom.compareTo(aEndRowExclusive) >= 0) {
+                break;
+            }
+
+            int myOwner = theOwners[Math.floorMod(i - 1, theTokens.length)];
+            if (aStartRow != null && (myFrom == null || myFrom.compareTo(aStartRow) < 0)) {
+                myFrom = aStartRow;
+            }
+            if (aEndRowExclusive != null && (myTo == null || myTo.compareTo(aEndRowExclusive) > 0)) {
+                myTo = aEndRowExclusive;
+            }
+
+            Range myLast = myRanges.isEmpty() ? null : myRanges.getLast();
+            if (myLast != null && myLast.worker() == myOwner) {
+                myRanges.set(myRanges.size() - 1, new Range(myOwner, myLast.fromKey(), myTo));
+            } else {
+                myRanges.add(new Range(myOwner, myFrom, myTo));
+            }
+        }
+        return myRanges;
+    }
+
+    /**
+     * Returns the index of the greatest token not above the key, or -1 if the key is below all tokens or null.
+     */
+    private int floorToken(String aKey) {
+        if (aKey == null) {
+            return -1;
+        }
+        int myLow = 0;
+        int myHigh = theTokens.length - 1;
+        int myResult = -1;
+        while (myLow <= myHigh) {
+            int myMid = (myLow + myHigh) >>> 1;
+            if (theTokens[myMid].compareTo(aKey) <= 0) {
+                myResult = myMid;
+                myLow = myMid + 1;
+            } else {
+                myHigh = myMid - 1;
+            }
+        }
+        return myResult;
+    }
+}
@@ -2,10 +2,13 @@ package cis5550.kvs;
 
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.net.*;
 import java.io.*;
 
 import cis5550.flame.Partitioner;
+import cis5550.generic.MembershipView;
+import cis5550.generic.MembershipWatcher;
 import cis5550.tools.HTTP;
 import cis5550.tools.Logger;
 import cis5550.tools.RowColumnValueTuple;
@@ -15,13 +18,18 @@ import static cis5550.kvs.Worker.*;
 public class KVSClient implements KVS {
 
     private static Logger LOGGER = Logger.getLogger(KVSClient.class);
-    private static int BATCH_LIMIT = 50000;
+
+    static final int MAX_REROUTES = 8;
+    static final long REROUTE_DELAY_MILLIS = 100;
+    static final long MAX_REROUTE_DELAY_MILLIS = 1000;
+    static final int READ_TIMEOUT_MILLIS = 2000;
 
     String coordinator;
 
     static class WorkerEntry implements Comparable<WorkerEntry> {
         String address;
         String id;
+        boolean down;
 
         WorkerEntry(String addressArg, String idArg) {
             address = addressArg;
@@ -34,11 +42,49 @@ public class KVSClient implements KVS {
     }
 
     Vector<WorkerEntry> workers;
+    HashRing ring;
     boolean haveWorkers;
+    long viewVersion;
+    AsyncKVSClient asyncClient;
+    volatile String acks;
+    volatile ReadPolicy readPolicy = ReadPolicy.fromProperties();
+
+    /**
+     * Returns a client for the same KVS whose calls return futures, and which is safe to share between threads.
+     */
+    public synchronized AsyncKVSClient async() {
+        if (asyncClient == null)
+            asyncClient = new AsyncKVSClient(this);
+        return asyncClient;
+    }
+
+    /**
+     * Sets how many replicas must have a write before the worker answers: "leader", "one" or "all", or null
+     * for the workers' default.
+     */
+    public void setAcks(String acksArg) {
+        acks = acksArg;
+    }
+
+    /**
+     * Sets where getRow, get and batchGetColValue read from, on this client and its async one.
+     */
+    public void setReadPolicy(ReadPolicy readPolicyArg) {
+        readPolicy = readPolicyArg;
+    }
+
+    /**
+     * Adds the acks parameter, if one is set, to the path of a write.
+     */
+    String withAcks(String pathAndQuery) {
+        String acksNow = acks;
+        if (acksNow == null)
+            return pathAndQuery;
+        return pathAndQuery + (pathAndQuery.contains("?") ? "&" : "?") + WorkerReplicationManager.ACKS_PARAMETER + "=" + acksNow;
+    }
 
     public int numWorkers() throws IOException {
-        if (!haveWorkers)
-            downloadWorkers();
+        ensureWorkers();
         return workers.size();
     }
 
@@ -51,14 +97,12 @@ public class KVSClient implements KVS {
     }
 
     public String getWorkerAddress(int idx) throws IOException {
-        if (!haveWorkers)
-            downloadWorkers();
+        ensureWorkers();
         return workers.elementAt(idx).address;
     }
 
     public String getWorkerID(int idx) throws IOException {
-        if (!haveWorkers)
-            downloadWorkers();
+        ensureWorkers();
         return workers.elementAt(idx).id;
     }
 
@@ -70,41 +114,26 @@ public class KVSClient implements KVS {
         String endRowExclusive;
         String startRow;
         String tableName;
+        ScanFilter filter;
         Vector<String> ranges;
+        String lastKey;
+        int reroutes;
 
-        KVSIterator(String tableNameArg, String startRowArg, String endRowExclusiveArg) throws IOException {
+        KVSIterator(String tableNameArg, String startRowArg, String endRowExclusiveArg, ScanFilter filterArg) throws IOException {
             in = null;
             currentRangeIndex = 0;
             atEnd = false;
             endRowExclusive = endRowExclusiveArg;
             tableName = tableNameArg;
             startRow = startRowArg;
-            ranges = new Vector<String>();
-            if ((startRowArg == null) || (startRowArg.compareTo(getWorkerID(0)) < 0)) {
-                String url = getURL(tableNameArg, numWorkers() - 1, startRowArg, ((endRowExclusiveArg != null) && (endRowExclusiveArg.compareTo(getWorkerID(0)) < 0)) ? endRowExclusiveArg : getWorkerID(0));
-                ranges.add(url);
-            }
-            for (int i = 0; i < numWorkers(); i++) {
-                if ((startRowArg == null) || (i == numWorkers() - 1) || (startRowArg.compareTo(getWorkerID(i + 1)) < 0)) {
-                    if ((endRowExclusiveArg == null) || (endRowExclusiveArg.compareTo(getWorkerID(i)) > 0)) {
-                        boolean useActualStartRow = (startRowArg != null) && (startRowArg.compareTo(getWorkerID(i)) > 0);
-                        boolean useActualEndRow = (endRowExclusiveArg != null) && ((i == (numWorkers() - 1)) || (endRowExclusiveArg.compareTo(getWorkerID(i + 1)) < 0));
-                        String url = getURL(tableNameArg, i, useActualStartRow ? startRowArg : getWorkerID(i), useActualEndRow ? endRowExclusiveArg : ((i < numWorkers() - 1) ? getWorkerID(i + 1) : null));
-                        ranges.add(url);
-                    }
-                }
-            }
-
-            openConnectionAndFill();
-        }
+            filter = filterArg;
+            ranges = scanRanges(tableNameArg, startRowArg, endRowExclusiveArg, filterArg);
 
-        protected String getURL(String tableNameArg, int workerIndexArg, String startRowArg, String endRowExclusiveArg) throws IOException {
-            String params = "";
-            if (startRowArg != null)
-                params = "startRow=" + startRowArg;
-            if (endRowExclusiveArg != null)
-                params = (params.equals("") ? "" : (params + "&")) + "endRowExclusive=" + endRowExclusiveArg;
-            return "http://" + getWorkerAddress(workerIndexArg) + "/data/" + tableNameArg + (params.equals("") ? "" : "?" + params);
+            try {
+                openConnectionAndFill();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
         }
 
         void openConnectionAndFill() {
@@ -128,7 +157,11 @@ public class KVSClient implements KVS {
                         HttpURLConnection con = (HttpURLConnection) url.openConnection();
                         con.setRequestMethod("GET");
                         con.connect();
-                        in = con.getInputStream();
+                        if (con.getResponseCode() == 421) {
+                            reroute();
+                            continue;
+                        }
+                        in = new BufferedInputStream(con.getInputStream());
                         Row r = fill();
                         if (r != null) {
                             nextRow = r;
@@ -136,6 +169,7 @@ public class KVSClient implements KVS {
                         }
                     } catch (FileNotFoundException fnfe) {
                     } catch (URISyntaxException use) {
+                        throw new IOException("Bad scan URL " + ranges.elementAt(currentRangeIndex), use);
                     }
 
                     currentRangeIndex++;
@@ -149,9 +183,24 @@ public class KVSClient implements KVS {
                     in = null;
                 }
                 atEnd = true;
+                // Ending quietly would pass the rows not read yet off as the end of the table
+                throw new UncheckedIOException(new IOException("Failed to scan " + tableName, ioe));
             }
         }
 
+        /**
+         * Lists the workers again after one answered that it no longer owns its range, and carries on after the
+         * last row returned.
+         */
+        void reroute() throws IOException {
+            if (++reroutes > MAX_REROUTES)
+                throw new IOException("Ranges of " + tableName + " kept moving during the scan");
+            sleepBeforeReroute(reroutes - 1);
+            downloadWorkers();
+            ranges = scanRanges(tableName, lastKey == null ? startRow : lastKey + "\0", endRowExclusive, filter);
+            currentRangeIndex = 0;
+        }
+
         synchronized Row fill() {
             try {
                 Row r = Row.readFrom(in);
@@ -165,6 +214,7 @@ public class KVSClient implements KVS {
             if (atEnd)
                 return null;
             Row r = nextRow;
+            lastKey = r.key();
             nextRow = fill();
             while ((nextRow == null) && !atEnd) {
                 currentRangeIndex++;
@@ -179,34 +229,174 @@ public class KVSClient implements KVS {
         }
     }
 
+    /**
+     * Returns the URLs that stream the parts of a key range held by each worker, in key order, one per range of
+     * the hash ring. Each URL carries the filter.
+     */
+    Vector<String> scanRanges(String tableNameArg, String startRowArg, String endRowExclusiveArg, ScanFilter filterArg) throws IOException {
+        return rangeURLs("/data/", tableNameArg, startRowArg, endRowExclusiveArg, filterArg);
+    }
+
+    Vector<String> rangeURLs(String routeArg, String tableNameArg, String startRowArg, String endRowExclusiveArg, ScanFilter filterArg) throws IOException {
+        Vector<String> ranges = new Vector<String>();
+        for (RangePart part : rangeParts(routeArg, tableNameArg, startRowArg, endRowExclusiveArg, filterArg))
+            ranges.add(part.url());
+        return ranges;
+    }
+
+    /**
+     * The URL of one worker's part of a key range, with the bounds of the part, so that the part can be listed
+     * again if its worker answers 421.
+     */
+    record RangePart(String url, String fromKey, String toKeyExclusive) {
+    }
+
+    synchronized List<RangePart> rangeParts(String routeArg, String tableNameArg, String startRowArg, String endRowExclusiveArg, ScanFilter filterArg) throws IOException {
+        ensureWorkers();
+
+        List<RangePart> parts = new ArrayList<RangePart>();
+        for (HashRing.Range range : ring.ranges(filterArg.startRow(startRowArg), filterArg.endRowExclusive(endRowExclusiveArg)))
+            parts.add(new RangePart(getURL(routeArg, tableNameArg, range.worker(), range.fromKey(), range.toKeyExclusive(), filterArg),
+                    range.fromKey(), range.toKeyExclusive()));
+        return parts;
+    }
+
+    protected String getURL(String routeArg, String tableNameArg, int workerIndexArg, String startRowArg, String endRowExclusiveArg, ScanFilter filterArg) throws IOException {
+        String params = Row.FORMAT_PARAMETER + "=" + Row.BINARY_FORMAT;
+        if (startRowArg != null)
+            params = params + "&startRow=" + URLEncoder.encode(startRowArg, StandardCharsets.UTF_8);
+        if (endRowExclusiveArg != null)
+            params = params + "&endRowExclusive=" + URLEncoder.encode(endRowExclusiveArg, StandardCharsets.UTF_8);
+        params = params + filterArg.toQuery();
+        return "http://" + getWorkerAddress(workerIndexArg) + routeArg + tableNameArg + "?" + params;
+    }
+
+    /**
+     * Asks the coordinator for the workers now, for when the ones the client has turned out to be stale.
+     */
     synchronized void downloadWorkers() throws IOException {
-        String result = new String(HTTP.doRequest("GET", "http://" + coordinator + "/workers", null).body());
-        String[] pieces = result.split("\n");
-        int numWorkers = Integer.parseInt(pieces[0]);
-        if (numWorkers < 1)
+        useView(MembershipWatcher.forCoordinator(coordinator).refresh());
+    }
+
+    /**
+     * Takes on the coordinator's latest view of the workers if it changed since the client last listed them.
+     * The view is kept up to date in the background, so this does not ask the coordinator unless there is none.
+     */
+    synchronized void ensureWorkers() throws IOException {
+        MembershipView view = MembershipWatcher.forCoordinator(coordinator).view();
+        if (!haveWorkers || view.version() != viewVersion)
+            useView(view);
+    }
+
+    private void useView(MembershipView view) throws IOException {
+        if (view.members().isEmpty())
             throw new IOException("No active KVS workers");
-        if (pieces.length != (numWorkers + 1))
-            throw new RuntimeException("Received truncated response when asking KVS coordinator for list of workers");
         workers.clear();
-        for (int i = 0; i < numWorkers; i++) {
-            String[] pcs = pieces[1 + i].split(",");
-            workers.add(new WorkerEntry(pcs[1], pcs[0]));
+        for (MembershipView.Member member : view.members()) {
+            WorkerEntry worker = new WorkerEntry(member.address(), member.id());
+            worker.down = member.down();
+            workers.add(worker);
         }
         Collections.sort(workers);
+        List<String> ids = new ArrayList<String>();
+        for (WorkerEntry worker : workers)
+            ids.add(worker.id);
+        ring = HashRing.forWorkers(ids);
 
+        viewVersion = view.version();
         haveWorkers = true;
     }
 
     int workerIndexForKey(String key) {
-        int chosenWorker = workers.size() - 1;
-        if (key != null) {
-            for (int i = 0; i < workers.size() - 1; i++) {
-                if ((key.compareTo(workers.elementAt(i).id) >= 0) && (key.compareTo(workers.elementAt(i + 1).id) < 0))
-                    chosenWorker = i;
-            }
+        return ring.workerForKey(key);
+    }
+
+    synchronized String workerAddressForKey(String key) {
+        return workers.elementAt(workerIndexForKey(key)).address;
+    }
+
+    /**
+     * Returns whether the worker that owns the key missed its heartbeats, in which case reads go to its replicas.
+     */
+    synchronized boolean ownerDown(String key) {
+        return workers.elementAt(workerIndexForKey(key)).down;
+    }
+
+    /**
+     * Returns the worker that owns the key followed by up to replicasArg workers that replicate it, the ones
+     * after the owner in ID order.
+     */
+    synchronized List<WorkerEntry> workersWithKey(String key, int replicasArg) {
+        int owner = workerIndexForKey(key);
+        List<WorkerEntry> result = new ArrayList<WorkerEntry>();
+        for (int i = 0; i <= Math.min(replicasArg, workers.size() - 1); i++)
+            result.add(workers.elementAt((owner + i) % workers.size()));
+        return result;
+    }
+
+    /**
+     * Sends a request about a row to the worker that owns it. A worker answers 421 for rows that were moved to
+     * another worker, in which case the workers are listed again and the request is retried.
+     */
+    HTTP.Response doRowRequest(String method, String row, String pathAndQuery, byte[] body) throws IOException {
+        return doRowRequest(method, row, pathAndQuery, body, -1);
+    }
+
+    HTTP.Response doRowRequest(String method, String row, String pathAndQuery, byte[] body, int timeoutMillis) throws IOException {
+        ensureWorkers();
+
+        if (!method.equals("GET"))
+            pathAndQuery = withAcks(pathAndQuery);
+
+        for (int attempt = 0; ; attempt++) {
+            HTTP.Response response = HTTP.doRequestWithTimeout(method, "http://" + workerAddressForKey(row) + pathAndQuery, body, timeoutMillis, false);
+            if (response.statusCode() != 421 || attempt >= MAX_REROUTES)
+                return response;
+            sleepBeforeReroute(attempt);
+            downloadWorkers();
+        }
+    }
+
+    /**
+     * Reads from the worker that owns the row. If the row has replicas, waits at most READ_TIMEOUT_MILLIS and
+     * returns null if the owner fails to answer in time, or is down, for the caller to read from the replicas.
+     * Without replicas there is nowhere else to read from, so this waits for the owner as long as it takes.
+     */
+    HTTP.Response doOwnerRead(String row, String pathAndQuery) throws IOException {
+        if (readPolicy.replicas() <= 0 && WorkerReplicationManager.replicaCount() <= 0)
+            return doRowRequest("GET", row, pathAndQuery, null);
+
+        ensureWorkers();
+        if (ownerDown(row))
+            return null;
+        try {
+            return doRowRequest("GET", row, pathAndQuery, null, READ_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            LOGGER.debug("Owner of " + row + " did not answer in time; reading from its replicas", e);
+            return null;
         }
+    }
+
+    static long rerouteDelayMillis(int attempt) {
+        return Math.min(REROUTE_DELAY_MILLIS << attempt, MAX_REROUTE_DELAY_MILLIS);
+    }
+
+    static void sleepBeforeReroute(int attempt) throws IOException {
+        try {
+            Thread.sleep(rerouteDelayMillis(attempt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the KVS to rebalance");
+        }
+    }
 
-        return chosenWorker;
+    /**
+     * Returns the ring that places keys on the workers, whose worker indexes match getWorkerID and
+     * getWorkerAddress.
+     */
+    public HashRing ring() throws IOException {
+        ensureWorkers();
+        return ring;
     }
 
     public KVSClient(String coordinatorArg) {
@@ -216,8 +406,7 @@ public class KVSClient implements KVS {
     }
 
     public boolean rename(String oldTableName, String newTableName) throws IOException {
-        if (!haveWorkers)
-            downloadWorkers();
+        ensureWorkers();
 
         boolean result = true;
         for (WorkerEntry w : workers) {
@@ -233,8 +422,7 @@ public class KVSClient implements KVS {
     }
 
     public void delete(String oldTableName) throws IOException {
-        if (!haveWorkers)
-            downloadWorkers();
+        ensureWorkers();
 
         for (WorkerEntry w : workers) {
             try {
@@ -246,12 +434,11 @@ public class KVSClient implements KVS {
     }
 
     public void put(String tableName, String row, String column, byte value[]) throws IOException {
-        if (!haveWorkers)
-            downloadWorkers();
+        ensureWorkers();
 
         try {
-            String target = "http://" + workers.elementAt(workerIndexForKey(row)).address + "/data/" + tableName + "/" + URLEncoder.encode(row, "UTF-8") + "/" + URLEncoder.encode(column, "UTF-8");
-            byte[] response = HTTP.doRequest("PUT", target, value).body();
+            String target = "/data/" + tableName + "/" + URLEncoder.encode(row, "UTF-8") + "/" + URLEncoder.encode(column, "UTF-8");
+            byte[] response = doRowRequest("PUT", row, target, value).body();
             String result = new String(response);
             if (!result.equals("OK"))
                 throw new RuntimeException("PUT returned something other than OK: " + result + "(" + target + ")");
@@ -264,49 +451,14 @@ public class KVSClient implements KVS {
         put(tableName, row, column, value.getBytes());
     }
 
-    private void batchPutOperation(String tableName, String workerAddress, List<String> batchRowsForWorker) throws IOException {
-        String rowsString = String.join(BATCH_UNIQUE_SEPARATOR, batchRowsForWorker);
-        byte[] body = rowsString.getBytes(StandardCharsets.UTF_8);
-
-        String target = "http://" + workerAddress + "/batch/data/" + tableName + "/";
-
-        byte[] response = HTTP.doRequest("PUT", target, body).body();
-        String result = new String(response);
-        if (!result.equals("OK"))
-            throw new RuntimeException("PUT returned something other than OK: " + result + "(" + target + ")");
-    }
-
     public void batchPut(String tableName, List<RowColumnValueTuple> rowsColsAndValues) throws IOException {
-        if (!haveWorkers)
-            downloadWorkers();
-
-        Map<String, List<String>> workerToRowsMap = new HashMap<>();
-        for (RowColumnValueTuple tup : rowsColsAndValues) {
-            String row = tup.getRow();
-            String column = tup.getColumn();
-            String value = tup.getValue();
-            String workerAddress = workers.elementAt(workerIndexForKey(row)).address;
-            workerToRowsMap.computeIfAbsent(workerAddress, k -> new ArrayList<>()).add(
-                    row + BATCH_ROW_COL_VALUE_SEPARATOR + column + BATCH_ROW_COL_VALUE_SEPARATOR + value
-            );
-        }
-
-        try {
-            for (Map.Entry<String, List<String>> entry : workerToRowsMap.entrySet()) {
-                String workerAddress = entry.getKey();
-                List<String> rowsForWorker = entry.getValue();
-                batchPutOperation(tableName, workerAddress, rowsForWorker);
-            }
-        } catch (UnsupportedEncodingException uee) {
-            throw new RuntimeException("UTF-8 encoding not supported?!?");
-        }
+        AsyncKVSClient.await(async().batchPut(tableName, rowsColsAndValues));
     }
 
     public void putRow(String tableName, Row row) throws FileNotFoundException, IOException {
-        if (!haveWorkers)
-            downloadWorkers();
+        ensureWorkers();
 
-        byte[] response = HTTP.doRequest("PUT", "http://" + workers.elementAt(workerIndexForKey(row.key())).address + "/data/" + tableName, row.toByteArray()).body();
+        byte[] response = doRowRequest("PUT", row.key(), "/data/" + tableName, row.toBinaryByteArray()).body();
         String result = new String(response);
         if (!result.equals("OK"))
             throw new RuntimeException("PUT returned something other than OK: " + result);
@@ -314,86 +466,84 @@ public class KVSClient implements KVS {
 
     @Override
     public void appendToRow(String tableName, String row, String column, byte[] value, String delimiter) throws FileNotFoundException, IOException {
-        if (!haveWorkers)
-            downloadWorkers();
+        ensureWorkers();
 
-        byte[] response = HTTP.doRequest("PUT", "http://" + workers.elementAt(workerIndexForKey(row)).address + "/append/" + tableName + "/" + URLEncoder.encode(row, "UTF-8") + "/" + URLEncoder.encode(column, "UTF-8") + "?delimiter=" + URLEncoder.encode(delimiter, "UTF-8"), value).body();
+        byte[] response = doRowRequest("PUT", row, "/append/" + tableName + "/" + URLEncoder.encode(row, "UTF-8") + "/" + URLEncoder.encode(column, "UTF-8") + "?delimiter=" + URLEncoder.encode(delimiter, "UTF-8"), value).body();
         String result = new String(response);
         if (!result.equals("OK"))
             throw new RuntimeException("PUT returned something other than OK: " + result);
     }
 
     public void batchAppendToRow(String tableName, String column, List<RowColumnValueTuple> rowsColsAndValues) throws IOException {
-        if (!haveWorkers)
-            downloadWorkers();
-
-        Map<String, List<String>> workerToRowsMap = new HashMap<>();
-        for (RowColumnValueTuple tup : rowsColsAndValues) {
-            String row = tup.getRow();
-            String col = tup.getColumn();
-            String value = tup.getValue();
-            String workerAddress = workers.elementAt(workerIndexForKey(row)).address;
-            workerToRowsMap.computeIfAbsent(workerAddress, k -> new ArrayList<>()).add(
-                    row + BATCH_ROW_COL_VALUE_SEPARATOR + col + BATCH_ROW_COL_VALUE_SEPARATOR + value
-            );
-        }
-
-        try {
-            for (Map.Entry<String, List<String>> entry : workerToRowsMap.entrySet()) {
-                String workerAddress = entry.getKey();
-                List<String> rowsForWorker = entry.getValue();
-
-                List<String> batchRowsForWorker = new ArrayList<>();
-                for (String row : rowsForWorker) {
-                    batchRowsForWorker.add(row);
-                    if (batchRowsForWorker.size() >= BATCH_LIMIT) {
-                        String rowsString = String.join(BATCH_UNIQUE_SEPARATOR, rowsForWorker);
-                        byte[] body = rowsString.getBytes(StandardCharsets.UTF_8);
-
-                        String target = "http://" + workerAddress + "/batchAppend/data/" + tableName + "/" + URLEncoder.encode(column, "UTF-8");
-
-                        byte[] response = HTTP.doRequest("PUT", target, body).body();
-                        String result = new String(response);
-                        if (!result.equals("OK"))
-                            throw new RuntimeException("PUT returned something other than OK: " + result + "(" + target + ")");
+        AsyncKVSClient.await(async().batchAppendToRow(tableName, column, rowsColsAndValues));
+    }
 
-                        batchRowsForWorker = new ArrayList<>();
-                    }
-                }
-                if (batchRowsForWorker.size() > 0) {
-                    String rowsString = String.join(BATCH_UNIQUE_SEPARATOR, rowsForWorker);
-                    byte[] body = rowsString.getBytes(StandardCharsets.UTF_8);
+    public void appendToRow(String tableName, String row, String column, String value, String delimiter) throws FileNotFoundException, IOException {
+        ensureWorkers();
 
-                    String target = "http://" + workerAddress + "/batchAppend/data/" + tableName + "/" + URLEncoder.encode(column, "UTF-8");
+        byte[] response = doRowRequest("PUT", row, "/append/" + tableName + "/" + URLEncoder.encode(row, "UTF-8") + "/" + URLEncoder.encode(column, "UTF-8") + "?delimiter=" + URLEncoder.encode(delimiter, "UTF-8"), value.getBytes()).body();
+        String result = new String(response);
+        if (!result.equals("OK"))
+            throw new RuntimeException("PUT returned something other than OK: " + result);
+    }
 
-                    byte[] response = HTTP.doRequest("PUT", target, body).body();
-                    String result = new String(response);
-                    if (!result.equals("OK"))
-                        System.out.println("PUT returned something other than OK: " + result + "(" + target + ")");
+    /**
+     * Merges the operand into the cell on the worker, which may defer applying it until the cell is read.
+     */
+    public void merge(String tableName, String row, String column, byte[] operand, MergeOperator operator) throws IOException {
+        String result = new String(mergeRequest(tableName, row, column, operand, operator, false));
+        if (!result.equals("OK"))
+            throw new RuntimeException("PUT returned something other than OK: " + result);
+    }
 
-                    batchRowsForWorker = new ArrayList<>();
-                }
-            }
-        } catch (UnsupportedEncodingException uee) {
-            throw new RuntimeException("UTF-8 encoding not supported?!?");
+    /**
+     * Atomically adds delta to the decimal number in the cell, treating a missing cell as zero, and returns the
+     * sum.
+     */
+    public long increment(String tableName, String row, String column, long delta) throws IOException {
+        String result = new String(mergeRequest(tableName, row, column, String.valueOf(delta).getBytes(), MergeOperators.add(), true));
+        try {
+            return Long.parseLong(result.trim());
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Increment returned a value that is not an integer: " + result);
         }
     }
 
-    public void appendToRow(String tableName, String row, String column, String value, String delimiter) throws FileNotFoundException, IOException {
-        if (!haveWorkers)
-            downloadWorkers();
+    private byte[] mergeRequest(String tableName, String row, String column, byte[] operand, MergeOperator operator, boolean returnValue) throws IOException {
+        ensureWorkers();
 
-        byte[] response = HTTP.doRequest("PUT", "http://" + workers.elementAt(workerIndexForKey(row)).address + "/append/" + tableName + "/" + URLEncoder.encode(row, "UTF-8") + "/" + URLEncoder.encode(column, "UTF-8") + "?delimiter=" + URLEncoder.encode(delimiter, "UTF-8"), value.getBytes()).body();
-        String result = new String(response);
+        String target = "/merge/" + tableName + "/" + URLEncoder.encode(row, "UTF-8") + "/" + URLEncoder.encode(column, "UTF-8")
+                + "?" + MergeOperators.OPERATOR_PARAMETER + "=" + URLEncoder.encode(operator.spec(), "UTF-8")
+                + "&" + MergeOperators.RETURN_VALUE_PARAMETER + "=" + returnValue;
+        HTTP.Response response = doRowRequest("PUT", row, target, operand);
+        if (response.statusCode() != 200)
+            throw new RuntimeException("Merge failed with status " + response.statusCode() + ": " + new String(response.body()) + " (" + target + ")");
+        return response.body();
+    }
+
+    /**
+     * Puts newValue into the cell only if the cell currently holds expectedValue, or does not exist if that is
+     * null, and returns whether it did.
+     */
+    public boolean compareAndSet(String tableName, String row, String column, String expectedValue, String newValue) throws IOException {
+        ensureWorkers();
+
+        String target = "/data/" + tableName + "/" + URLEncoder.encode(row, "UTF-8") + "/" + URLEncoder.encode(column, "UTF-8")
+                + "?ifcolumn=" + URLEncoder.encode(column, "UTF-8")
+                + (expectedValue == null ? "&ifabsent=true" : "&equals=" + URLEncoder.encode(expectedValue, "UTF-8"));
+        HTTP.Response response = doRowRequest("PUT", row, target, newValue.getBytes());
+        if (response.statusCode() == 412)
+            return false;
+        String result = new String(response.body());
         if (!result.equals("OK"))
-            throw new RuntimeException("PUT returned something other than OK: " + result);
+            throw new RuntimeException("PUT returned something other than OK: " + result + "(" + target + ")");
+        return true;
     }
 
     public Row getRow(String tableName, String row) throws IOException {
-        if (!haveWorkers)
-            downloadWorkers();
-
-        HTTP.Response resp = HTTP.doRequest("GET", "http://" + workers.elementAt(workerIndexForKey(row)).address + "/data/" + tableName + "/" + URLEncoder.encode(row, "UTF-8"), null);
+        HTTP.Response resp = readPolicy.usesReplicas() ? null : doOwnerRead(row, "/data/" + tableName + "/" + URLEncoder.encode(row, "UTF-8") + "?" + Row.FORMAT_PARAMETER + "=" + Row.BINARY_FORMAT);
+        if (resp == null)
+            return AsyncKVSClient.await(async().getRow(tableName, row));
         if (resp.statusCode() == 404)
             return null;
 
@@ -406,81 +556,181 @@ public class KVSClient implements KVS {
     }
 
     public byte[] get(String tableName, String row, String column) throws IOException {
-        if (!haveWorkers)
-            downloadWorkers();
-
-        HTTP.Response res = HTTP.doRequest("GET", "http://" + workers.elementAt(workerIndexForKey(row)).address + "/data/" + tableName + "/" + URLEncoder.encode(row, "UTF-8") + "/" + URLEncoder.encode(column, "UTF-8"), null);
+        HTTP.Response res = readPolicy.usesReplicas() ? null : doOwnerRead(row, "/data/" + tableName + "/" + URLEncoder.encode(row, "UTF-8") + "/" + URLEncoder.encode(column, "UTF-8"));
+        if (res == null)
+            return AsyncKVSClient.await(async().get(tableName, row, column));
         return ((res != null) && (res.statusCode() == 200)) ? res.body() : null;
     }
 
     public List<String> batchGetColValue(String tableName, String column, List<String> rows) throws IOException {
-        if (!haveWorkers) {
-            downloadWorkers();
-        }
+        return AsyncKVSClient.await(async().batchGetColValue(tableName, column, rows));
+    }
 
-        Map<String, List<String>> workerToRowsMap = new HashMap<>();
-        for (String row : rows) {
-            String workerAddress = workers.elementAt(workerIndexForKey(row)).address;
-            workerToRowsMap.computeIfAbsent(workerAddress, k -> new ArrayList<>()).add(row);
-        }
+    public boolean existsRow(String tableName, String row) throws FileNotFoundException, IOException {
+        ensureWorkers();
 
-        List<String> responseList = new ArrayList<>(Collections.nCopies(rows.size(), NULL_RETURN));
+        HTTP.Response r = doRowRequest("GET", row, "/data/" + tableName + "/" + URLEncoder.encode(row, "UTF-8"), null);
+        return r.statusCode() == 200;
+    }
 
-        for (Map.Entry<String, List<String>> entry : workerToRowsMap.entrySet()) {
-            String workerAddress = entry.getKey();
-            List<String> rowsForWorker = entry.getValue();
+    public int count(String tableName) throws IOException {
+        // Rows move between workers when the KVS rebalances, so this must ask the current ones
+        downloadWorkers();
 
-            String rowsString = String.join(BATCH_UNIQUE_SEPARATOR, rowsForWorker);
+        int total = 0;
+        for (WorkerEntry w : workers) {
+            HTTP.Response r = HTTP.doRequest("GET", "http://" + w.address + "/count/" + tableName, null);
+            if ((r != null) && (r.statusCode() == 200)) {
+                String result = new String(r.body());
+                total += Integer.valueOf(result).intValue();
+            }
+        }
+        return total;
+    }
 
-            String requestUrl = "http://" + workerAddress + "/batch/data/" + tableName + "/" +
-                    URLEncoder.encode(column, "UTF-8") + "?rows=" + URLEncoder.encode(rowsString, "UTF-8");
-            HTTP.Response res = HTTP.doRequest("GET", requestUrl, null);
+    /**
+     * Aggregates the numeric values of the column over the rows in the range that pass the filter, or counts
+     * those rows if the column is null. Each worker aggregates its own rows, so only the results are sent.
+     */
+    public Aggregate aggregate(String tableName, String column, String startRow, String endRowExclusive, ScanFilter filter) throws IOException {
+        return aggregate(tableName, column, startRow, endRowExclusive, filter, "");
+    }
 
-            if (res != null && res.statusCode() == 200) {
-                String responseBody = new String(res.body(), StandardCharsets.UTF_8);
-                String[] values = responseBody.split(BATCH_UNIQUE_SEPARATOR);
+    /**
+     * Counts the rows in the range that pass the filter and whose value in the column is a number at least
+     * lowerBound and below upperBound.
+     */
+    public long countWhere(String tableName, String column, double lowerBound, double upperBound, String startRow, String endRowExclusive, ScanFilter filter) throws IOException {
+        return aggregate(tableName, column, startRow, endRowExclusive, filter,
+                "&" + Aggregate.LOWER_BOUND_PARAMETER + "=" + lowerBound + "&" + Aggregate.UPPER_BOUND_PARAMETER + "=" + upperBound).count();
+    }
 
-                for (int i = 0; i < rowsForWorker.size(); i++) {
-                    String row = rowsForWorker.get(i);
-                    int rowIndex = rows.indexOf(row);
-                    if (rowIndex != -1) {
-                        responseList.set(rowIndex, values[i]);
-                    }
-                }
-            } else {
-                for (String row : rowsForWorker) {
-                    int rowIndex = rows.indexOf(row);
-                    if (rowIndex != -1) {
-                        responseList.set(rowIndex, NULL_RETURN);
+    private Aggregate aggregate(String tableName, String column, String startRow, String endRowExclusive, ScanFilter filter, String extraParams) throws IOException {
+        downloadWorkers();
+
+        String params = extraParams;
+        if (column != null)
+            params = params + "&" + Aggregate.COLUMN_PARAMETER + "=" + URLEncoder.encode(column, StandardCharsets.UTF_8);
+        return aggregateRanges(tableName, startRow, endRowExclusive, filter, params, 0);
+    }
+
+    /**
+     * Aggregates the parts of the range on all workers at once. A worker answers 421 for a part that moved, in
+     * which case the workers are listed again and the part is aggregated where it is now.
+     */
+    private Aggregate aggregateRanges(String tableName, String startRow, String endRowExclusive, ScanFilter filter, String params, int attempt) throws IOException {
+        List<CompletableFuture<Aggregate>> results = new ArrayList<CompletableFuture<Aggregate>>();
+        for (RangePart part : rangeParts("/aggregate/", tableName, startRow, endRowExclusive, filter)) {
+            String rangeURL = part.url() + params;
+            results.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    HTTP.Response r = HTTP.doRequest("GET", rangeURL, null);
+                    if (r.statusCode() == 421) {
+                        if (attempt >= MAX_REROUTES)
+                            throw new IOException("Ranges of " + tableName + " kept moving during the aggregate");
+                        sleepBeforeReroute(attempt);
+                        downloadWorkers();
+                        return aggregateRanges(tableName, part.fromKey(), part.toKeyExclusive(), filter, params, attempt + 1);
                     }
+                    if (r.statusCode() == 404)
+                        return Aggregate.EMPTY;
+                    if (r.statusCode() != 200)
+                        throw new IOException("Aggregate failed with status " + r.statusCode() + " (" + rangeURL + ")");
+                    return Aggregate.decode(new String(r.body()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
-            }
+            }));
         }
 
-        return responseList;
+        Aggregate total = Aggregate.EMPTY;
+        for (CompletableFuture<Aggregate> result : results)
+            total = total.combine(AsyncKVSClient.await(result));
+        return total;
     }
 
-    public boolean existsRow(String tableName, String row) throws FileNotFoundException, IOException {
-        if (!haveWorkers)
-            downloadWorkers();
-
-        HTTP.Response r = HTTP.doRequest("GET", "http://" + workers.elementAt(workerIndexForKey(row)).address + "/data/" + tableName + "/" + URLEncoder.encode(row, "UTF-8"), null);
-        return r.statusCode() == 200;
+    /**
+     * Aggregates the numeric values of each row in the range that passes the filter, over all of its columns if
+     * column is null, and returns the aggregates by row key in key order. Rows without numeric values are left out.
+     */
+    public Iterator<Map.Entry<String, Aggregate>> aggregateRows(String tableName, String column, String startRow, String endRowExclusive, ScanFilter filter) throws IOException {
+        downloadWorkers();
+
+        String params = "&" + Aggregate.PER_ROW_PARAMETER + "=true";
+        if (column != null)
+            params = params + "&" + Aggregate.COLUMN_PARAMETER + "=" + URLEncoder.encode(column, StandardCharsets.UTF_8);
+        return new RowAggregateIterator(tableName, filter, params, rangeParts("/aggregate/", tableName, startRow, endRowExclusive, filter));
     }
 
-    public int count(String tableName) throws IOException {
-        if (!haveWorkers)
+    class RowAggregateIterator implements Iterator<Map.Entry<String, Aggregate>> {
+        String tableName;
+        ScanFilter filter;
+        String params;
+        List<RangePart> parts;
+        int currentRangeIndex;
+        BatchFrames.Reader reader;
+        InputStream in;
+        int reroutes;
+
+        RowAggregateIterator(String tableNameArg, ScanFilter filterArg, String paramsArg, List<RangePart> partsArg) {
+            tableName = tableNameArg;
+            filter = filterArg;
+            params = paramsArg;
+            parts = new ArrayList<RangePart>(partsArg);
+        }
+
+        public boolean hasNext() {
+            try {
+                while (reader == null || !reader.hasNext()) {
+                    if (in != null) {
+                        in.close();
+                        in = null;
+                        reader = null;
+                    }
+                    if (currentRangeIndex >= parts.size())
+                        return false;
+                    HttpURLConnection con = (HttpURLConnection) new URI(parts.get(currentRangeIndex).url() + params).toURL().openConnection();
+                    con.setRequestMethod("GET");
+                    if (con.getResponseCode() == 421) {
+                        reroute();
+                        continue;
+                    }
+                    currentRangeIndex++;
+                    try {
+                        in = new BufferedInputStream(con.getInputStream());
+                    } catch (FileNotFoundException fnfe) {
+                        continue;
+                    }
+                    reader = new BatchFrames.Reader(in);
+                }
+                return true;
+            } catch (IOException | URISyntaxException e) {
+                throw new UncheckedIOException(new IOException("Failed to read row aggregates", e));
+            }
+        }
+
+        /**
+         * Lists the workers again after one answered that it no longer owns the current part, and replaces the
+         * part with where its keys are now.
+         */
+        void reroute() throws IOException {
+            if (++reroutes > MAX_REROUTES)
+                throw new IOException("Ranges of " + tableName + " kept moving during the aggregate");
+            sleepBeforeReroute(reroutes - 1);
             downloadWorkers();
+            RangePart moved = parts.remove(currentRangeIndex);
+            parts.addAll(currentRangeIndex, rangeParts("/aggregate/", tableName, moved.fromKey(), moved.toKeyExclusive(), filter));
+        }
 
-        int total = 0;
-        for (WorkerEntry w : workers) {
-            HTTP.Response r = HTTP.doRequest("GET", "http://" + w.address + "/count/" + tableName, null);
-            if ((r != null) && (r.statusCode() == 200)) {
-                String result = new String(r.body());
-                total += Integer.valueOf(result).intValue();
+        public Map.Entry<String, Aggregate> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            try {
+                return Map.entry(reader.string(), Aggregate.decode(reader.string()));
+            } catch (Exception e) {
+                throw new UncheckedIOException(new IOException("Malformed row aggregate", e));
             }
         }
-        return total;
     }
 
 /*  public void persist(String tableName) throws IOException {
@@ -496,10 +746,32 @@ public class KVSClient implements KVS {
     }
 
     public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive) throws FileNotFoundException, IOException {
-        if (!haveWorkers)
-            downloadWorkers();
+        return scan(tableName, startRow, endRowExclusive, ScanFilter.NONE);
+    }
+
+    /**
+     * Scans the rows that pass the filter, with only the columns it projects. The workers apply the filter, so
+     * the rows and columns it drops are never sent.
+     */
+    public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive, ScanFilter filter) throws FileNotFoundException, IOException {
+        ensureWorkers();
+
+        return new KVSIterator(tableName, startRow, endRowExclusive, filter);
+    }
+
+    /**
+     * Scans all workers at once, decoding rows on background threads into bounded buffers. Ordered scans return
+     * rows in the same order as scan(); unordered ones return whichever rows arrive first. Callers that stop
+     * before the end should close the iterator.
+     */
+    public ParallelScanIterator parallelScan(String tableName, String startRow, String endRowExclusive, boolean ordered) throws IOException {
+        return parallelScan(tableName, startRow, endRowExclusive, ordered, ScanFilter.NONE);
+    }
+
+    public ParallelScanIterator parallelScan(String tableName, String startRow, String endRowExclusive, boolean ordered, ScanFilter filter) throws IOException {
+        downloadWorkers();
 
-        return new KVSIterator(tableName, startRow, endRowExclusive);
+        return new ParallelScanIterator(this, tableName, filter, rangeParts("/data/", tableName, startRow, endRowExclusive, filter), ordered);
     }
 
     public static void main(String args[]) throws Exception {
@@ -0,0 +1,44 @@
+package cis5550.kvs;
+
+import java.util.Arrays;
+
+/**
+ * The latencies of the latest {@link #SAMPLES} requests, for deciding when a request is slow enough to hedge.
+ * Percentiles are taken from a sorted copy that is only sorted again every {@link #RESORT_INTERVAL} requests.
+ */
+class LatencyTracker {
+    static final int SAMPLES = 1024;
+    static final int MIN_SAMPLES = 32;
+    static final int RESORT_INTERVAL = 64;
+
+    private final long[] theNanos;
+    private long theCount;
+    private long[] theSorted;
+    private long theSortedAt;
+
+    LatencyTracker() {
+        theNanos = new long[SAMPLES];
+        theSorted = new long[0];
+    }
+
+    synchronized void record(long aNanos) {
+        theNanos[(int) (theCount % SAMPLES)] = aNanos;
+        theCount++;
+    }
+
+    /**
+     * Returns the percentile of the latencies in milliseconds, or -1 if there are too few of them yet.
+     */
+    synchronized long percentileMillis(double aPercentile) {
+        if (theCount < MIN_SAMPLES) {
+            return -1;
+        }
+        if (theCount - theSortedAt >= RESORT_INTERVAL || theSorted.length == 0) {
+            theSorted = Arrays.copyOf(theNanos, (int) Math.min(theCount, SAMPLES));
+            Arrays.sort(theSorted);
+            theSortedAt = theCount;
+        }
+        int myIndex = (int) Math.min(theSorted.length - 1, Math.ceil(aPercentile / 100 * theSorted.length) - 1);
+        return theSorted[Math.max(0, myIndex)] / 1000000;
+    }
+}
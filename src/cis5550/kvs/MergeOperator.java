@@ -0,0 +1,24 @@
+package cis5550.kvs;
+
+/**
+ * An associative update of a single value. Merging an operand is a blind write: stores that support it record
+ * the operand and apply it to the stored value only when the value is read or compacted, combining operands of
+ * the same operator in the meantime. For any value v and operands a and b, apply(apply(v, a), b) must equal
+ * apply(v, combine(a, b)).
+ * <p>
+ * Operators travel between clients, workers and files as their spec, a name optionally followed by a colon and
+ * an argument; see {@link MergeOperators}.
+ */
+public interface MergeOperator {
+    String spec();
+
+    /**
+     * Returns the value after merging the operand into the existing value, which is null if there is none.
+     */
+    byte[] apply(byte[] aExisting, byte[] aOperand);
+
+    /**
+     * Returns a single operand with the effect of merging the older operand and then the newer one.
+     */
+    byte[] combine(byte[] aOlder, byte[] aNewer);
+}
@@ -0,0 +1,161 @@
+package cis5550.kvs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * The merge operators known to this process, by name. The built-in ones work on decimal text: add sums numbers,
+ * keeping them integral while both sides are, max and min keep the larger or smaller number, and append joins
+ * values with the delimiter given as its argument. Values that are not numbers count as zero for add and lose to
+ * any number for max and min.
+ * <p>
+ * Custom operators must be registered under the same name on the clients and on every worker before use.
+ */
+public class MergeOperators {
+    public static final String ADD = "add";
+    public static final String MAX = "max";
+    public static final String MIN = "min";
+    public static final String APPEND = "append";
+
+    public static final String OPERATOR_PARAMETER = "op";
+    public static final String RETURN_VALUE_PARAMETER = "returnValue";
+
+    private static final char ARGUMENT_SEPARATOR = ':';
+    private static final Map<String, Function<String, MergeOperator>> theFactories = new ConcurrentHashMap<>();
+
+    static {
+        register(ADD, aArgument -> numeric(ADD, MergeOperators::add));
+        register(MAX, aArgument -> numeric(MAX, (aFirst, aSecond) -> pick(aFirst, aSecond, true)));
+        register(MIN, aArgument -> numeric(MIN, (aFirst, aSecond) -> pick(aFirst, aSecond, false)));
+        register(APPEND, MergeOperators::append);
+    }
+
+    /**
+     * Registers a factory that makes operators from the argument of their spec, which is null if there is none.
+     */
+    public static void register(String aName, Function<String, MergeOperator> aFactory) {
+        theFactories.put(aName, aFactory);
+    }
+
+    /**
+     * @throws IllegalArgumentException if no operator is registered under the name in the spec
+     */
+    public static MergeOperator forSpec(String aSpec) {
+        int mySeparator = aSpec.indexOf(ARGUMENT_SEPARATOR);
+        String myName = mySeparator < 0 ? aSpec : aSpec.substring(0, mySeparator);
+        Function<String, MergeOperator> myFactory = theFactories.get(myName);
+        if (myFactory == null) {
+            throw new IllegalArgumentException("Unknown merge operator '" + myName + "'");
+        }
+        return myFactory.apply(mySeparator < 0 ? null : aSpec.substring(mySeparator + 1));
+    }
+
+    public static MergeOperator add() {
+        return forSpec(ADD);
+    }
+
+    public static MergeOperator max() {
+        return forSpec(MAX);
+    }
+
+    public static MergeOperator min() {
+        return forSpec(MIN);
+    }
+
+    public static MergeOperator append(String aDelimiter) {
+        String myDelimiter = aDelimiter == null ? "" : aDelimiter;
+        byte[] myDelimiterBytes = myDelimiter.getBytes(StandardCharsets.UTF_8);
+        return new MergeOperator() {
+            @Override
+            public String spec() {
+                return APPEND + ARGUMENT_SEPARATOR + myDelimiter;
+            }
+
+            @Override
+            public byte[] apply(byte[] aExisting, byte[] aOperand) {
+                return aExisting == null ? aOperand : combine(aExisting, aOperand);
+            }
+
+            @Override
+            public byte[] combine(byte[] aOlder, byte[] aNewer) {
+                byte[] myJoined = new byte[aOlder.length + myDelimiterBytes.length + aNewer.length];
+                System.arraycopy(aOlder, 0, myJoined, 0, aOlder.length);
+                System.arraycopy(myDelimiterBytes, 0, myJoined, aOlder.length, myDelimiterBytes.length);
+                System.arraycopy(aNewer, 0, myJoined, aOlder.length + myDelimiterBytes.length, aNewer.length);
+                return myJoined;
+            }
+        };
+    }
+
+    /**
+     * Returns the delimiter of an append operator, or null if the operator is not one.
+     */
+    public static String appendDelimiter(MergeOperator aOperator) {
+        String mySpec = aOperator.spec();
+        String myPrefix = APPEND + ARGUMENT_SEPARATOR;
+        return mySpec.startsWith(myPrefix) ? mySpec.substring(myPrefix.length()) : null;
+    }
+
+    private interface NumericFunction {
+        String apply(String aFirst, String aSecond);
+    }
+
+    private static MergeOperator numeric(String aSpec, NumericFunction aFunction) {
+        return new MergeOperator() {
+            @Override
+            public String spec() {
+                return aSpec;
+            }
+
+            @Override
+            public byte[] apply(byte[] aExisting, byte[] aOperand) {
+                return aExisting == null ? aOperand : combine(aExisting, aOperand);
+            }
+
+            @Override
+            public byte[] combine(byte[] aOlder, byte[] aNewer) {
+                String myOlder = new String(aOlder, StandardCharsets.UTF_8).trim();
+                String myNewer = new String(aNewer, StandardCharsets.UTF_8).trim();
+                return aFunction.apply(myOlder, myNewer).getBytes(StandardCharsets.UTF_8);
+            }
+        };
+    }
+
+    private static String add(String aFirst, String aSecond) {
+        try {
+            return String.valueOf(Math.addExact(parseLong(aFirst), parseLong(aSecond)));
+        } catch (NumberFormatException | ArithmeticException e) {
+            return String.valueOf(orZero(parseDouble(aFirst)) + orZero(parseDouble(aSecond)));
+        }
+    }
+
+    private static String pick(String aFirst, String aSecond, boolean aLarger) {
+        double myFirst = parseDouble(aFirst);
+        double mySecond = parseDouble(aSecond);
+        if (Double.isNaN(mySecond)) {
+            return aFirst;
+        }
+        if (Double.isNaN(myFirst)) {
+            return aSecond;
+        }
+        return (myFirst >= mySecond) == aLarger ? aFirst : aSecond;
+    }
+
+    private static double orZero(double aValue) {
+        return Double.isNaN(aValue) ? 0 : aValue;
+    }
+
+    private static long parseLong(String aValue) {
+        return aValue.isEmpty() ? 0 : Long.parseLong(aValue);
+    }
+
+    private static double parseDouble(String aValue) {
+        try {
+            return Double.parseDouble(aValue);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
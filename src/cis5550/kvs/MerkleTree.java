@@ -0,0 +1,230 @@
+package cis5550.kvs;
+
+import cis5550.kvs.datastore.Datastore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Hashes of a table's rows by key range, for finding the ranges where two copies of the table differ. The leaves
+ * split the keys at fixed boundaries, chosen when the tree is built so that each holds about as many rows, and
+ * every {@link #FANOUT} leaves hash into an inner node. A leaf's hash is the sum of the hashes of its rows, so it
+ * does not depend on the order rows are read in.
+ * <p>
+ * Writes mark the leaves of their keys dirty, and {@link #refresh} hashes only the dirty leaves again, reading
+ * just their key ranges. Two copies can only be compared with trees of the same boundaries.
+ */
+public class MerkleTree {
+    public static final int LEAVES = 1024;
+    public static final int FANOUT = 32;
+    public static final int MIN_LEAF_ROWS = 64;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final String theVersion;
+    private final String[] theBoundaries;
+    private final long[] theLeaves;
+    private final int[] theRows;
+    private final BitSet theDirty;
+
+    /**
+     * Makes a tree with the given boundaries whose leaves all need hashing. Leaf i holds the keys from boundary
+     * i - 1 up to boundary i, the first leaf all keys below the first boundary and the last all keys from the
+     * last boundary on.
+     */
+    public MerkleTree(String aVersion, String[] aBoundaries) {
+        theVersion = aVersion;
+        theBoundaries = aBoundaries;
+        theLeaves = new long[aBoundaries.length + 1];
+        theRows = new int[aBoundaries.length + 1];
+        theDirty = new BitSet(theLeaves.length);
+        theDirty.set(0, theLeaves.length);
+    }
+
+    /**
+     * Builds a tree for the table as it is, with boundaries that give each of up to {@link #LEAVES} leaves about
+     * the same number of rows. Returns null if the table does not exist.
+     */
+    public static MerkleTree build(String aVersion, Datastore aData, String aTable) {
+        int myCount = aData.count(aTable);
+        Stream<Row> myStream = aData.getRowDataStream(aTable, null, null);
+        if (myCount < 0 || myStream == null) {
+            return null;
+        }
+
+        int myRowsPerLeaf = Math.max(1, (myCount + LEAVES - 1) / LEAVES);
+        List<String> myBoundaries = new ArrayList<>();
+        List<Long> myLeaves = new ArrayList<>();
+        List<Integer> myRows = new ArrayList<>();
+        long myLeaf = 0;
+        int myLeafRows = 0;
+        try (myStream) {
+            Iterator<Row> myIterator = myStream.iterator();
+            while (myIterator.hasNext()) {
+                Row myRow = myIterator.next();
+                if (myLeafRows == myRowsPerLeaf && myBoundaries.size() < LEAVES - 1) {
+                    myBoundaries.add(myRow.key());
+                    myLeaves.add(myLeaf);
+                    myRows.add(myLeafRows);
+                    myLeaf = 0;
+                    myLeafRows = 0;
+                }
+                myLeaf += hash(myRow);
+                myLeafRows++;
+            }
+        }
+        myLeaves.add(myLeaf);
+        myRows.add(myLeafRows);
+
+        MerkleTree myTree = new MerkleTree(aVersion, myBoundaries.toArray(new String[0]));
+        for (int i = 0; i < myTree.theLeaves.length; i++) {
+            myTree.theLeaves[i] = myLeaves.get(i);
+            myTree.theRows[i] = myRows.get(i);
+        }
+        myTree.theDirty.clear();
+        return myTree;
+    }
+
+    public String version() {
+        return theVersion;
+    }
+
+    public String[] boundaries() {
+        return theBoundaries;
+    }
+
+    public int leaves() {
+        return theLeaves.length;
+    }
+
+    public int innerNodes() {
+        return (theLeaves.length + FANOUT - 1) / FANOUT;
+    }
+
+    public String fromKey(int aLeaf) {
+        return aLeaf == 0 ? null : theBoundaries[aLeaf - 1];
+    }
+
+    public String toKeyExclusive(int aLeaf) {
+        return aLeaf == theBoundaries.length ? null : theBoundaries[aLeaf];
+    }
+
+    public synchronized void markDirty(String aKey) {
+        theDirty.set(leafFor(aKey));
+    }
+
+    /**
+     * Marks the leaves overlapping the keys from the start key up to the end key dirty; either may be null.
+     */
+    public synchronized void markDirty(String aStartKey, String aEndKeyExclusive) {
+        int myFirst = aStartKey == null ? 0 : leafFor(aStartKey);
+        int myLast = aEndKeyExclusive == null ? theLeaves.length - 1 : leafFor(aEndKeyExclusive);
+        theDirty.set(myFirst, myLast + 1);
+    }
+
+    /**
+     * Hashes the dirty leaves of the table again. Leaves written to while this runs stay dirty.
+     */
+    public void refresh(Datastore aData, String aTable) {
+        BitSet myDirty;
+        synchronized (this) {
+            myDirty = (BitSet) theDirty.clone();
+            theDirty.clear();
+        }
+
+        for (int i = myDirty.nextSetBit(0); i >= 0; i = myDirty.nextSetBit(i + 1)) {
+            long myLeaf = 0;
+            int myRows = 0;
+            Stream<Row> myStream = aData.getRowDataStream(aTable, fromKey(i), toKeyExclusive(i));
+            if (myStream != null) {
+                try (myStream) {
+                    Iterator<Row> myIterator = myStream.iterator();
+                    while (myIterator.hasNext()) {
+                        myLeaf += hash(myIterator.next());
+                        myRows++;
+                    }
+                }
+            }
+            synchronized (this) {
+                theLeaves[i] = myLeaf;
+                theRows[i] = myRows;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the rows have shifted so much since the tree was built that a leaf holds several times
+     * its share, in which case the tree should be built again.
+     */
+    public synchronized boolean isUnbalanced() {
+        long myTotal = 0;
+        int myMax = 0;
+        for (int myRows : theRows) {
+            myTotal += myRows;
+            myMax = Math.max(myMax, myRows);
+        }
+        return myMax > Math.max(MIN_LEAF_ROWS, 4 * myTotal / LEAVES);
+    }
+
+    public synchronized long[] innerHashes() {
+        long[] myHashes = new long[innerNodes()];
+        for (int i = 0; i < myHashes.length; i++) {
+            myHashes[i] = combine(leafHashes(i));
+        }
+        return myHashes;
+    }
+
+    /**
+     * Returns the hashes of the leaves under the inner node.
+     */
+    public synchronized long[] leafHashes(int aInnerNode) {
+        int myFrom = aInnerNode * FANOUT;
+        return Arrays.copyOfRange(theLeaves, myFrom, Math.min(myFrom + FANOUT, theLeaves.length));
+    }
+
+    /**
+     * Hashes a row from its key and its columns in name order, so equal rows hash alike however they are stored.
+     */
+    public static long hash(Row aRow) {
+        long myHash = fnv(FNV_OFFSET, aRow.key().getBytes(StandardCharsets.UTF_8));
+        List<String> myColumns = new ArrayList<>(aRow.columns());
+        Collections.sort(myColumns);
+        for (String myColumn : myColumns) {
+            myHash = fnv(myHash ^ 0xff, myColumn.getBytes(StandardCharsets.UTF_8));
+            myHash = fnv(myHash ^ 0xfe, aRow.getBytes(myColumn));
+        }
+        return mix(myHash);
+    }
+
+    private int leafFor(String aKey) {
+        int myIndex = Arrays.binarySearch(theBoundaries, aKey);
+        return myIndex >= 0 ? myIndex + 1 : -myIndex - 1;
+    }
+
+    private static long combine(long[] aHashes) {
+        long myHash = FNV_OFFSET;
+        for (long myValue : aHashes) {
+            myHash = mix(myHash ^ myValue) * FNV_PRIME;
+        }
+        return myHash;
+    }
+
+    private static long fnv(long aHash, byte[] aBytes) {
+        long myHash = aHash;
+        for (byte myByte : aBytes) {
+            myHash ^= myByte & 0xff;
+            myHash *= FNV_PRIME;
+        }
+        return myHash;
+    }
+
+    // The finalizer of SplitMix64, so that sums of row hashes do not cancel out
+    private static long mix(long aValue) {
+        long myValue = aValue;
+        myValue = (myValue ^ (myValue >>> 30)) * 0xbf58476d1ce4e5b9L;
+        myValue = (myValue ^ (myValue >>> 27)) * 0x94d049bb133111ebL;
+        return myValue ^ (myValue >>> 31);
+    }
+}
@@ -0,0 +1,186 @@
+package cis5550.kvs;
+
+import cis5550.tools.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Streams the ranges of a scan from all workers at once. A thread per range decodes rows into a bounded buffer and
+ * blocks while it is full, so rows are fetched ahead of the consumer but never more than {@link #BUFFER_ROWS} per
+ * buffer.
+ * <p>
+ * The ranges are disjoint and listed in key order, so an ordered scan merges them by draining their buffers one
+ * after another while the later ranges keep filling theirs. An unordered scan has all ranges share one buffer and
+ * returns rows in the order they arrive, so no worker waits for a slower one.
+ * <p>
+ * A worker answers 421 for a range that moved, in which case the reader lists the workers again and reads the
+ * range's parts where they are now, in key order, into the same buffer.
+ */
+public class ParallelScanIterator implements Iterator<Row>, AutoCloseable {
+    public static final Logger LOGGER = Logger.getLogger(ParallelScanIterator.class);
+    public static final int BUFFER_ROWS = 1024;
+
+    private static final Object END = new Object();
+
+    private record Failure(Exception cause) {
+    }
+
+    private final KVSClient theClient;
+    private final String theTable;
+    private final ScanFilter theFilter;
+    private final List<BlockingQueue<Object>> theBuffers;
+    private final int theEndsPerBuffer;
+    private final List<Thread> theReaders;
+    private final List<HttpURLConnection> theConnections;
+    private volatile boolean theClosed;
+    private int theCurrentBuffer;
+    private int theEndsSeen;
+    private Row theNext;
+
+    ParallelScanIterator(KVSClient aClient, String aTable, ScanFilter aFilter, List<KVSClient.RangePart> aRanges, boolean aOrdered) {
+        theClient = aClient;
+        theTable = aTable;
+        theFilter = aFilter;
+        theBuffers = new ArrayList<>();
+        theEndsPerBuffer = aOrdered ? 1 : aRanges.size();
+        theReaders = new ArrayList<>();
+        theConnections = new CopyOnWriteArrayList<>();
+
+        BlockingQueue<Object> mySharedBuffer = aOrdered ? null : new ArrayBlockingQueue<>(BUFFER_ROWS);
+        if (!aOrdered && !aRanges.isEmpty()) {
+            theBuffers.add(mySharedBuffer);
+        }
+        for (int i = 0; i < aRanges.size(); i++) {
+            BlockingQueue<Object> myBuffer = aOrdered ? new ArrayBlockingQueue<>(BUFFER_ROWS) : mySharedBuffer;
+            if (aOrdered) {
+                theBuffers.add(myBuffer);
+            }
+            KVSClient.RangePart myRange = aRanges.get(i);
+            Thread myReader = new Thread(() -> read(myRange, myBuffer), "kvs-scan-" + aTable + "-" + i);
+            myReader.setDaemon(true);
+            theReaders.add(myReader);
+        }
+        theReaders.forEach(Thread::start);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (theNext == null) {
+            theNext = advance();
+        }
+        return theNext != null;
+    }
+
+    @Override
+    public Row next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Row myRow = theNext;
+        theNext = null;
+        return myRow;
+    }
+
+    /**
+     * Stops the readers and drops the buffered rows. Only needed when the scan is abandoned before its end.
+     */
+    @Override
+    public void close() {
+        theClosed = true;
+        theReaders.forEach(Thread::interrupt);
+        theConnections.forEach(HttpURLConnection::disconnect);
+        theBuffers.forEach(BlockingQueue::clear);
+    }
+
+    private Row advance() {
+        while (!theClosed && theCurrentBuffer < theBuffers.size()) {
+            Object myItem;
+            try {
+                myItem = theBuffers.get(theCurrentBuffer).take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                return null;
+            }
+
+            if (myItem == END) {
+                if (++theEndsSeen == theEndsPerBuffer) {
+                    theCurrentBuffer++;
+                    theEndsSeen = 0;
+                }
+            } else if (myItem instanceof Failure myFailure) {
+                close();
+                throw new UncheckedIOException(new IOException("Scan failed", myFailure.cause()));
+            } else {
+                return (Row) myItem;
+            }
+        }
+        return null;
+    }
+
+    private void read(KVSClient.RangePart aRange, BlockingQueue<Object> aBuffer) {
+        try {
+            readPart(aRange, aBuffer, 0);
+        } catch (InterruptedException e) {
+            return;
+        } catch (Exception e) {
+            if (theClosed) {
+                return;
+            }
+            LOGGER.error("Failed to scan " + aRange.url(), e);
+            try {
+                aBuffer.put(new Failure(e));
+            } catch (InterruptedException ie) {
+                // Closed while waiting for room
+            }
+            return;
+        }
+
+        try {
+            aBuffer.put(END);
+        } catch (InterruptedException e) {
+            // Closed while waiting for room
+        }
+    }
+
+    private void readPart(KVSClient.RangePart aPart, BlockingQueue<Object> aBuffer, int aAttempt) throws Exception {
+        HttpURLConnection myConnection = (HttpURLConnection) new URI(aPart.url()).toURL().openConnection();
+        theConnections.add(myConnection);
+        myConnection.setRequestMethod("GET");
+        if (myConnection.getResponseCode() == 421) {
+            myConnection.disconnect();
+            if (aAttempt >= KVSClient.MAX_REROUTES) {
+                throw new IOException("Ranges of " + theTable + " kept moving during the scan");
+            }
+            KVSClient.sleepBeforeReroute(aAttempt);
+            theClient.downloadWorkers();
+            for (KVSClient.RangePart myPart : theClient.rangeParts("/data/", theTable, aPart.fromKey(),
+                    aPart.toKeyExclusive(), theFilter)) {
+                if (theClosed) {
+                    return;
+                }
+                readPart(myPart, aBuffer, aAttempt + 1);
+            }
+            return;
+        }
+
+        try (InputStream myIn = new BufferedInputStream(myConnection.getInputStream())) {
+            Row myRow;
+            while (!theClosed && (myRow = Row.readFrom(myIn)) != null) {
+                aBuffer.put(myRow);
+            }
+        } catch (FileNotFoundException e) {
+            // The worker holds no part of the table
+        }
+    }
+}
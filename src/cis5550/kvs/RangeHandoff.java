@@ -0,0 +1,354 @@
+package cis5550.kvs;
+
+import cis5550.kvs.datastore.Datastore;
+import cis5550.tools.HTTP;
+import cis5550.tools.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * A worker's part in rebalancing. The coordinator announces the members of the KVS, and the worker only serves
+ * the keys the ring of those members gives it, answering 421 for the rest so that clients look up the new
+ * owner. Until the first announcement it serves every key.
+ * <p>
+ * To hand ranges to other workers, the worker streams their rows in bulk while it keeps serving reads and
+ * writes, records the keys written in the meantime and sends those rows again. It then briefly holds back
+ * writes to the ranges, sends the last changes and waits for the coordinator to commit the new members, after
+ * which it deletes the rows it handed off.
+ */
+public class RangeHandoff {
+    public static final Logger LOGGER = Logger.getLogger(RangeHandoff.class);
+    public static final int CHUNK_SIZE = 1 << 20;
+    public static final int MAX_CATCH_UP_ROUNDS = 5;
+    public static final int CATCH_UP_KEYS = 1000;
+
+    /**
+     * A range of keys to hand to the worker at the target address. Null bounds are open.
+     */
+    public record Move(String target, String fromKey, String toKeyExclusive) {
+        public boolean contains(String aKey) {
+            return (fromKey == null || aKey.compareTo(fromKey) >= 0)
+                    && (toKeyExclusive == null || aKey.compareTo(toKeyExclusive) < 0);
+        }
+
+        public static void write(BatchFrames.Writer aWriter, List<Move> aMoves) {
+            for (Move myMove : aMoves) {
+                aWriter.string(myMove.target())
+                        .nullableBytes(bytes(myMove.fromKey()))
+                        .nullableBytes(bytes(myMove.toKeyExclusive()))
+                        .endRecord();
+            }
+        }
+
+        public static List<Move> read(BatchFrames.Reader aReader) throws Exception {
+            List<Move> myMoves = new ArrayList<>();
+            while (aReader.hasNext()) {
+                myMoves.add(new Move(aReader.string(), string(aReader.nullableBytes()), string(aReader.nullableBytes())));
+            }
+            return myMoves;
+        }
+
+        private static byte[] bytes(String aKey) {
+            return aKey == null ? null : aKey.getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static String string(byte[] aKey) {
+            return aKey == null ? null : new String(aKey, StandardCharsets.UTF_8);
+        }
+    }
+
+    private final String theId;
+    private final Datastore theData;
+    private final Map<String, Set<String>> theDirtyKeys;
+
+    private long theEpoch;
+    private HashRing theRing;
+    private List<String> theIds;
+    private int theSelf;
+    private List<Move> theMoves;
+    private boolean theFrozen;
+    private int theActiveWrites;
+
+    public RangeHandoff(String aId, Datastore aData) {
+        theId = aId;
+        theData = aData;
+        theDirtyKeys = new HashMap<>();
+        theMoves = List.of();
+        theIds = List.of();
+    }
+
+    /**
+     * Takes on the members of an epoch, given as the coordinator lists workers. Announcements of older epochs
+     * are ignored.
+     * <p>
+     * The coordinator announces only once it is done with a handoff, so one that is still held back here lost
+     * its commit or abort on the way. It is committed if the members no longer give this worker any of its
+     * ranges, and aborted otherwise.
+     */
+    public void announce(long aEpoch, String aWorkers) {
+        List<Move> myHandedOff;
+        synchronized (this) {
+            takeMembers(aEpoch, aWorkers);
+            if (!theFrozen || aEpoch < theEpoch) {
+                return;
+            }
+            boolean myCommitted = theMoves.stream().noneMatch(aMove -> theRing == null || theRing
+                    .ranges(aMove.fromKey(), aMove.toKeyExclusive()).stream()
+                    .anyMatch(aRange -> aRange.worker() == theSelf));
+            LOGGER.warn("Resolving a handoff of " + theMoves.size() + " ranges left waiting at epoch " + theEpoch
+                    + " as " + (myCommitted ? "committed" : "aborted"));
+            myHandedOff = endHandoff();
+            if (!myCommitted) {
+                return;
+            }
+        }
+        deleteHandedOff(myHandedOff, aEpoch);
+    }
+
+    private synchronized void takeMembers(long aEpoch, String aWorkers) {
+        if (aEpoch <= theEpoch) {
+            return;
+        }
+
+        List<String> myIds = new ArrayList<>();
+        String[] myLines = aWorkers.split("\n");
+        for (int i = 1; i < myLines.length; i++) {
+            myIds.add(myLines[i].split(",")[0]);
+        }
+        Collections.sort(myIds);
+
+        theEpoch = aEpoch;
+        theRing = myIds.isEmpty() ? null : HashRing.forWorkers(myIds);
+        theIds = myIds;
+        theSelf = myIds.indexOf(theId);
+        LOGGER.info("Members of epoch " + aEpoch + ": " + myIds);
+        notifyAll();
+    }
+
+    public synchronized boolean owns(String aKey) {
+        return theRing == null || (theSelf >= 0 && theRing.workerForKey(aKey) == theSelf);
+    }
+
+    /**
+     * Returns whether the worker owns the key in the current epoch, as this worker's copy of a leader may only
+     * answer for the keys the leader still owns.
+     */
+    public synchronized boolean ownedBy(String aWorker, String aKey) {
+        if (theRing == null) {
+            return true;
+        }
+        int myWorker = theIds.indexOf(aWorker);
+        return myWorker >= 0 && theRing.workerForKey(aKey) == myWorker;
+    }
+
+    public synchronized boolean ownsRange(String aStartRow, String aEndRowExclusive) {
+        if (theRing == null) {
+            return true;
+        }
+        return theSelf >= 0 && theRing.ranges(aStartRow, aEndRowExclusive).stream()
+                .allMatch(aRange -> aRange.worker() == theSelf);
+    }
+
+    /**
+     * Must be called before writing to the keys, and followed by {@link #release} once the write is done.
+     * Waits while the keys are held back for the end of a handoff, and returns false if this worker does not own
+     * all of them, in which case nothing may be written.
+     */
+    public synchronized boolean admit(Collection<String> aKeys) throws InterruptedException {
+        while (theFrozen && aKeys.stream().anyMatch(this::isMoving)) {
+            wait();
+        }
+        for (String myKey : aKeys) {
+            if (!owns(myKey)) {
+                return false;
+            }
+        }
+        theActiveWrites++;
+        return true;
+    }
+
+    /**
+     * Records the written keys that lie in ranges being handed off, after the write, so their rows are sent
+     * again with the write included.
+     */
+    public synchronized void release(String aTable, Collection<String> aKeys) {
+        for (String myKey : aKeys) {
+            if (isMoving(myKey)) {
+                theDirtyKeys.computeIfAbsent(aTable, aName -> new HashSet<>()).add(myKey);
+            }
+        }
+        theActiveWrites--;
+        notifyAll();
+    }
+
+    private boolean isMoving(String aKey) {
+        for (Move myMove : theMoves) {
+            if (myMove.contains(aKey)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the rows of every table in the ranges to their targets and returns once the targets hold all of
+     * them, with writes to the ranges held back until {@link #commit} or {@link #abort}. Aborts on failure.
+     */
+    public void send(List<Move> aMoves) throws IOException, InterruptedException {
+        synchronized (this) {
+            if (!theMoves.isEmpty()) {
+                throw new IllegalStateException("A handoff is already in progress");
+            }
+            theMoves = List.copyOf(aMoves);
+            theDirtyKeys.clear();
+        }
+
+        try {
+            long myRows = 0;
+            for (String myTable : theData.getTables().keySet()) {
+                for (Move myMove : aMoves) {
+                    Stream<Row> myStream = theData.getRowDataStream(myTable, myMove.fromKey(), myMove.toKeyExclusive());
+                    if (myStream != null) {
+                        myRows += sendRows(myMove.target(), myTable, myStream.iterator());
+                    }
+                }
+            }
+            LOGGER.info("Sent " + myRows + " rows in " + aMoves.size() + " ranges");
+
+            // Writes go on while the bulk copy runs, so send their rows again until few are left
+            long myResent = sendDirtyRows();
+            for (int i = 1; i < MAX_CATCH_UP_ROUNDS && myResent > CATCH_UP_KEYS; i++) {
+                myResent = sendDirtyRows();
+            }
+
+            synchronized (this) {
+                theFrozen = true;
+                while (theActiveWrites > 0) {
+                    wait();
+                }
+            }
+            LOGGER.info("Sent " + sendDirtyRows() + " rows written during the handoff");
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes on the members of the new epoch, which no longer give this worker the ranges, lets held back writes
+     * go on to be turned away, and deletes the rows that were handed off.
+     */
+    public void commit(long aEpoch, String aWorkers) {
+        List<Move> myMoves;
+        synchronized (this) {
+            takeMembers(aEpoch, aWorkers);
+            myMoves = endHandoff();
+        }
+        deleteHandedOff(myMoves, aEpoch);
+    }
+
+    private void deleteHandedOff(List<Move> aMoves, long aEpoch) {
+        long myDeleted = 0;
+        for (String myTable : theData.getTables().keySet()) {
+            for (Move myMove : aMoves) {
+                myDeleted += Math.max(theData.deleteRange(myTable, myMove.fromKey(), myMove.toKeyExclusive()), 0);
+            }
+        }
+        LOGGER.info("Deleted " + myDeleted + " rows handed off in epoch " + aEpoch);
+    }
+
+    /**
+     * Deletes the rows in the ranges that this worker does not own, such as the partial copies of a handoff to
+     * it that was aborted.
+     */
+    public void discard(List<Move> aMoves) {
+        List<HashRing.Range> myRanges = new ArrayList<>();
+        synchronized (this) {
+            if (theRing == null) {
+                return;
+            }
+            for (Move myMove : aMoves) {
+                for (HashRing.Range myRange : theRing.ranges(myMove.fromKey(), myMove.toKeyExclusive())) {
+                    if (myRange.worker() != theSelf) {
+                        myRanges.add(myRange);
+                    }
+                }
+            }
+        }
+
+        long myDeleted = 0;
+        for (String myTable : theData.getTables().keySet()) {
+            for (HashRing.Range myRange : myRanges) {
+                myDeleted += Math.max(theData.deleteRange(myTable, myRange.fromKey(), myRange.toKeyExclusive()), 0);
+            }
+        }
+        LOGGER.info("Discarded " + myDeleted + " rows of an aborted handoff");
+    }
+
+    public synchronized void abort() {
+        endHandoff();
+    }
+
+    /**
+     * Ends the handoff in progress, letting held back writes go on, and returns its ranges.
+     */
+    private synchronized List<Move> endHandoff() {
+        List<Move> myMoves = theMoves;
+        theMoves = List.of();
+        theDirtyKeys.clear();
+        theFrozen = false;
+        notifyAll();
+        return myMoves;
+    }
+
+    private long sendDirtyRows() throws IOException {
+        Map<String, Set<String>> myDirtyKeys;
+        List<Move> myMoves;
+        synchronized (this) {
+            myDirtyKeys = new HashMap<>(theDirtyKeys);
+            theDirtyKeys.clear();
+            myMoves = theMoves;
+        }
+
+        long myRows = 0;
+        for (Map.Entry<String, Set<String>> myEntry : myDirtyKeys.entrySet()) {
+            for (Move myMove : myMoves) {
+                Iterator<Row> myRowsOfMove = myEntry.getValue().stream()
+                        .filter(myMove::contains)
+                        .map(aKey -> theData.get(myEntry.getKey(), aKey))
+                        .filter(Objects::nonNull)
+                        .iterator();
+                myRows += sendRows(myMove.target(), myEntry.getKey(), myRowsOfMove);
+            }
+        }
+        return myRows;
+    }
+
+    private static long sendRows(String aTarget, String aTable, Iterator<Row> aRows) throws IOException {
+        long myRows = 0;
+        BatchFrames.Writer myBatch = new BatchFrames.Writer();
+        while (aRows.hasNext()) {
+            myBatch.bytes(aRows.next().toBinaryByteArray()).endRecord();
+            myRows++;
+            if (myBatch.size() >= CHUNK_SIZE) {
+                putRows(aTarget, aTable, myBatch.toByteArray());
+                myBatch.reset();
+            }
+        }
+        if (myBatch.records() > 0) {
+            putRows(aTarget, aTable, myBatch.toByteArray());
+        }
+        return myRows;
+    }
+
+    private static void putRows(String aTarget, String aTable, byte[] aBatch) throws IOException {
+        HTTP.Response myResponse = HTTP.doRequest("PUT", "http://" + aTarget + "/rebalance/rows/" + aTable, aBatch);
+        if (myResponse.statusCode() != 200) {
+            throw new IOException("Worker " + aTarget + " failed to take rows of " + aTable + " with status "
+                    + myResponse.statusCode());
+        }
+    }
+}
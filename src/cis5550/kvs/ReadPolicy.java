@@ -0,0 +1,54 @@
+package cis5550.kvs;
+
+/**
+ * Where a {@link KVSClient} reads single rows and batches of cells from. Every row is on the worker that owns it
+ * and on that worker's {@link #replicas} replicas, the workers that follow it in ID order (see
+ * {@link WorkerReplicationManager}). Replicas apply writes shortly after the owner, so reads from them may miss
+ * the latest writes.
+ * <p>
+ * A policy that spreads reads sends each to one of those workers at random, instead of always to the owner. One
+ * that hedges sends a read again to the next of them when the first has not answered within the given
+ * percentile of recent read latencies, but no sooner than the minimum delay, and takes whichever answer comes
+ * first. Either way, a worker that fails or has no complete copy is passed over for the next.
+ *
+ * @param spread            whether to spread reads over the owner and its replicas
+ * @param replicas          how many replicas each worker has, as {@link WorkerReplicationManager#REPLICAS_PROPERTY}
+ * @param hedgePercentile   the percentile of latencies after which to hedge, or 0 not to hedge
+ * @param minHedgeDelayMillis the least time to wait before hedging
+ */
+public record ReadPolicy(boolean spread, int replicas, double hedgePercentile, long minHedgeDelayMillis) {
+    public static final String SPREAD_PROPERTY = "kvs.read.spread";
+    public static final String HEDGE_PERCENTILE_PROPERTY = "kvs.read.hedgePercentile";
+    public static final String MIN_HEDGE_DELAY_PROPERTY = "kvs.read.minHedgeDelayMillis";
+    public static final long DEFAULT_MIN_HEDGE_DELAY_MILLIS = 10;
+
+    /**
+     * Reads from the owner only.
+     */
+    public static final ReadPolicy PRIMARY = new ReadPolicy(false, 0, 0, 0);
+
+    /**
+     * Spreads reads and hedges them at the percentile.
+     */
+    public static ReadPolicy hedged(double aPercentile) {
+        return new ReadPolicy(true, WorkerReplicationManager.replicaCount(), aPercentile,
+                DEFAULT_MIN_HEDGE_DELAY_MILLIS);
+    }
+
+    /**
+     * Returns the policy the system properties set, which is {@link #PRIMARY} unless they say otherwise.
+     */
+    public static ReadPolicy fromProperties() {
+        boolean mySpread = Boolean.getBoolean(SPREAD_PROPERTY);
+        double myPercentile = Double.parseDouble(System.getProperty(HEDGE_PERCENTILE_PROPERTY, "0"));
+        if (!mySpread && myPercentile <= 0) {
+            return PRIMARY;
+        }
+        return new ReadPolicy(mySpread, WorkerReplicationManager.replicaCount(), myPercentile,
+                Long.getLong(MIN_HEDGE_DELAY_PROPERTY, DEFAULT_MIN_HEDGE_DELAY_MILLIS));
+    }
+
+    public boolean usesReplicas() {
+        return replicas > 0 && (spread || hedgePercentile > 0);
+    }
+}
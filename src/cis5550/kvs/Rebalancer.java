@@ -0,0 +1,283 @@
+package cis5550.kvs;
+
+import cis5550.generic.Coordinator;
+import cis5550.tools.HTTP;
+import cis5550.tools.Logger;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Decides which of the workers that ping the coordinator are members of the KVS, the workers clients send keys
+ * to, and moves key ranges between workers when a worker joins or leaves.
+ * <p>
+ * Workers that ping within {@link #STARTUP_GRACE_MILLIS} of the coordinator starting become members as they
+ * are, so a restarted cluster comes back with the same ring. After that, a new worker joins, and a member asked
+ * to leave is removed, one at a time: the ranges the ring of the new members gives to other workers are handed
+ * off by their current owners (see {@link RangeHandoff}), which keep serving them until every handoff is done.
+ * Only then do the new members take effect, for the workers in one step with a new epoch and for clients the
+ * next time they list the workers. A handoff that fails is aborted and the members stay as they were.
+ * <p>
+ * A member that stops pinging stays a member, marked down in the coordinator's view, since its ranges cannot be
+ * handed off without it; clients read them from its replicas until it is back.
+ */
+public class Rebalancer {
+    public static final Logger LOGGER = Logger.getLogger(Rebalancer.class);
+    public static final long STARTUP_GRACE_MILLIS = 15000;
+    public static final long POLL_INTERVAL_MILLIS = 1000;
+    public static final long ANNOUNCE_INTERVAL_MILLIS = 5000;
+    public static final long RETRY_DELAY_MILLIS = 30000;
+    public static final int CONTROL_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * A range of keys that moves from the source worker to the target worker, by ID. Null bounds are open.
+     */
+    public record Transfer(String source, String target, String fromKey, String toKeyExclusive) {
+    }
+
+    private final long theStartMillis;
+    private final Queue<String> theLeaving;
+    private final Set<String> theRetired;
+    private final Map<String, Long> theFailures;
+
+    private volatile List<String> theMembers;
+    private volatile long theEpoch;
+    private volatile String theStatus;
+    private long theLastAnnounceMillis;
+
+    public Rebalancer() {
+        theStartMillis = System.currentTimeMillis();
+        theLeaving = new ConcurrentLinkedQueue<>();
+        theRetired = ConcurrentHashMap.newKeySet();
+        theFailures = new ConcurrentHashMap<>();
+        theStatus = "Waiting for workers";
+    }
+
+    public void start() {
+        Thread myThread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(POLL_INTERVAL_MILLIS);
+                    poll();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    LOGGER.error("Rebalancing failed", e);
+                }
+            }
+        }, "rebalancer");
+        myThread.setDaemon(true);
+        myThread.start();
+    }
+
+    /**
+     * Lists the members as the /workers route does, or every worker that pings until the members are settled.
+     */
+    public String workers() {
+        List<String> myMembers = theMembers;
+        return myMembers == null ? Coordinator.getWorkers() : list(myMembers);
+    }
+
+    /**
+     * Asks for a member to leave once its ranges are handed to the others. It does not join again until
+     * {@link #join} is called.
+     */
+    public void leave(String aId) {
+        theRetired.add(aId);
+        theLeaving.add(aId);
+    }
+
+    public void join(String aId) {
+        theRetired.remove(aId);
+        theFailures.remove(aId);
+    }
+
+    public String status() {
+        List<String> myMembers = theMembers;
+        return "Epoch " + theEpoch + "\nMembers " + (myMembers == null ? "not settled" : myMembers) + "\n"
+                + theStatus + "\n";
+    }
+
+    /**
+     * Returns the ranges whose owner changes from the old members to the new ones, both sorted.
+     */
+    public static List<Transfer> transfers(List<String> aOldMembers, List<String> aNewMembers) {
+        HashRing myOldRing = HashRing.forWorkers(aOldMembers);
+        HashRing myNewRing = HashRing.forWorkers(aNewMembers);
+        List<Transfer> myTransfers = new ArrayList<>();
+        for (HashRing.Range myOld : myOldRing.ranges(null, null)) {
+            for (HashRing.Range myNew : myNewRing.ranges(myOld.fromKey(), myOld.toKeyExclusive())) {
+                String mySource = aOldMembers.get(myOld.worker());
+                String myTarget = aNewMembers.get(myNew.worker());
+                if (!mySource.equals(myTarget)) {
+                    myTransfers.add(new Transfer(mySource, myTarget, myNew.fromKey(), myNew.toKeyExclusive()));
+                }
+            }
+        }
+        return myTransfers;
+    }
+
+    private void poll() {
+        long myNow = System.currentTimeMillis();
+        List<String> myWorkers = Coordinator.getWorkerIds();
+        if (theMembers == null) {
+            if (myNow - theStartMillis < STARTUP_GRACE_MILLIS || myWorkers.isEmpty()) {
+                return;
+            }
+            List<String> myMembers = new ArrayList<>(myWorkers);
+            myMembers.removeAll(theRetired);
+            Collections.sort(myMembers);
+            theEpoch = nextEpoch();
+            theMembers = myMembers;
+            theStatus = "Started with " + myMembers.size() + " members";
+            LOGGER.info("Started epoch " + theEpoch + " with members " + myMembers);
+            Coordinator.viewChanged();
+            announce();
+            return;
+        }
+
+        String myLeaving = theLeaving.poll();
+        if (myLeaving != null) {
+            if (!theMembers.contains(myLeaving)) {
+                LOGGER.info("Worker " + myLeaving + " is not a member");
+            } else if (theMembers.size() == 1) {
+                LOGGER.error("Worker " + myLeaving + " is the last member and cannot leave");
+                theRetired.remove(myLeaving);
+            } else {
+                change(myLeaving, false);
+            }
+        } else {
+            for (String myWorker : myWorkers) {
+                Long myFailure = theFailures.get(myWorker);
+                if (!theMembers.contains(myWorker) && !theRetired.contains(myWorker)
+                        && (myFailure == null || myNow - myFailure >= RETRY_DELAY_MILLIS)) {
+                    change(myWorker, true);
+                    break;
+                }
+            }
+        }
+
+        if (System.currentTimeMillis() - theLastAnnounceMillis >= ANNOUNCE_INTERVAL_MILLIS) {
+            announce();
+        }
+    }
+
+    /**
+     * Hands off the ranges that move when the worker joins or leaves, and makes the new members take effect if
+     * every source succeeded.
+     */
+    private void change(String aWorker, boolean aJoin) {
+        List<String> myOldMembers = theMembers;
+        List<String> myNewMembers = new ArrayList<>(myOldMembers);
+        if (aJoin) {
+            myNewMembers.add(aWorker);
+        } else {
+            myNewMembers.remove(aWorker);
+        }
+        Collections.sort(myNewMembers);
+
+        Map<String, List<RangeHandoff.Move>> myMovesBySource = new TreeMap<>();
+        Map<String, List<RangeHandoff.Move>> myMovesByTarget = new TreeMap<>();
+        for (Transfer myTransfer : transfers(myOldMembers, myNewMembers)) {
+            RangeHandoff.Move myMove = new RangeHandoff.Move(Coordinator.getWorkerAddress(myTransfer.target()),
+                    myTransfer.fromKey(), myTransfer.toKeyExclusive());
+            myMovesBySource.computeIfAbsent(myTransfer.source(), aSource -> new ArrayList<>()).add(myMove);
+            myMovesByTarget.computeIfAbsent(myTransfer.target(), aTarget -> new ArrayList<>()).add(myMove);
+        }
+        String myChange = (aJoin ? "Join of " : "Leave of ") + aWorker;
+        theStatus = myChange + ": handing off ranges from " + myMovesBySource.keySet();
+        LOGGER.info(theStatus);
+
+        Map<String, CompletableFuture<Boolean>> myHandoffs = new TreeMap<>();
+        myMovesBySource.forEach((aSource, aMoves) ->
+                myHandoffs.put(aSource, CompletableFuture.supplyAsync(() -> handOff(aSource, aMoves))));
+        boolean mySuccess = myHandoffs.values().stream().allMatch(CompletableFuture::join);
+
+        if (!mySuccess) {
+            myHandoffs.keySet().forEach(aSource -> control(aSource, "/rebalance/abort", null));
+            // Targets drop what they took so far, or their copies would outlive later writes to the sources
+            myMovesByTarget.forEach((aTarget, aMoves) -> {
+                BatchFrames.Writer myBody = new BatchFrames.Writer();
+                RangeHandoff.Move.write(myBody, aMoves);
+                control(aTarget, "/rebalance/discard", myBody.toByteArray());
+            });
+            theFailures.put(aWorker, System.currentTimeMillis());
+            theStatus = myChange + " failed; members unchanged";
+            LOGGER.error(theStatus);
+            return;
+        }
+
+        theEpoch = nextEpoch();
+        theMembers = myNewMembers;
+        String myWorkers = list(myNewMembers);
+        myHandoffs.keySet().forEach(aSource -> control(aSource, "/rebalance/commit?epoch=" + theEpoch,
+                myWorkers.getBytes()));
+        Coordinator.viewChanged();
+        announce();
+        theStatus = myChange + " done in epoch " + theEpoch;
+        LOGGER.info(theStatus);
+    }
+
+    private boolean handOff(String aSource, List<RangeHandoff.Move> aMoves) {
+        BatchFrames.Writer myBody = new BatchFrames.Writer();
+        RangeHandoff.Move.write(myBody, aMoves);
+        try {
+            HTTP.Response myResponse = HTTP.doRequest("POST",
+                    "http://" + Coordinator.getWorkerAddress(aSource) + "/rebalance/send", myBody.toByteArray());
+            if (myResponse.statusCode() != 200) {
+                LOGGER.error("Worker " + aSource + " failed to hand off " + aMoves.size() + " ranges: "
+                        + new String(myResponse.body()));
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            LOGGER.error("Worker " + aSource + " failed to hand off " + aMoves.size() + " ranges", e);
+            return false;
+        }
+    }
+
+    /**
+     * Tells every worker that pings which workers are members, so workers that missed a change or restarted
+     * catch up.
+     */
+    private void announce() {
+        theLastAnnounceMillis = System.currentTimeMillis();
+        String myWorkers = list(theMembers);
+        for (String myWorker : Coordinator.getWorkerIds()) {
+            control(myWorker, "/rebalance/members?epoch=" + theEpoch, myWorkers.getBytes());
+        }
+    }
+
+    private static void control(String aWorker, String aPath, byte[] aBodyOrNull) {
+        String myURL = "http://" + Coordinator.getWorkerAddress(aWorker) + aPath;
+        try {
+            HTTP.Response myResponse = HTTP.doRequestWithTimeout("POST", myURL, aBodyOrNull, CONTROL_TIMEOUT_MILLIS,
+                    false);
+            if (myResponse.statusCode() != 200) {
+                LOGGER.error(myURL + " returned status " + myResponse.statusCode());
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed to reach worker " + aWorker + " at " + myURL, e);
+        }
+    }
+
+    private long nextEpoch() {
+        // Epochs follow the clock, so those of a restarted coordinator still come after the ones workers know
+        return Math.max(theEpoch + 1, System.currentTimeMillis());
+    }
+
+    private static String list(List<String> aIds) {
+        StringBuilder myBuilder = new StringBuilder();
+        int myCount = 0;
+        for (String myId : aIds) {
+            String myAddress = Coordinator.getWorkerAddress(myId);
+            if (myAddress != null) {
+                myBuilder.append(myId).append(",").append(myAddress).append("\n");
+                myCount++;
+            }
+        }
+        return myCount + "\n" + myBuilder;
+    }
+}
@@ -0,0 +1,94 @@
+package cis5550.kvs;
+
+import cis5550.kvs.datastore.Datastore;
+import cis5550.kvs.datastore.DatastoreContainer;
+import cis5550.tools.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Moves the rows of worker directories to the workers that own them on the hash ring, once, for directories
+ * written while keys were placed by ranges of worker IDs. Run it with the workers stopped, on the directories of
+ * all workers. For every table, each range a directory holds but does not own is copied to its owner's directory
+ * and then deleted; copies under replicas/ are left alone, and anti-entropy repairs them once the workers run.
+ */
+public class Rehash {
+    public static final Logger LOGGER = Logger.getLogger(Rehash.class);
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: Rehash <worker directory>...");
+            System.exit(1);
+        }
+
+        Map<String, String> myDirectories = new TreeMap<>();
+        for (String myDirectory : args) {
+            File myIdFile = new File(myDirectory, Worker.ID_FILE);
+            if (!myIdFile.exists()) {
+                System.err.println("No " + Worker.ID_FILE + " file in " + myDirectory);
+                System.exit(1);
+            }
+            myDirectories.put(Files.readString(myIdFile.toPath()).trim(), myDirectory);
+        }
+
+        List<String> myIds = new ArrayList<>(myDirectories.keySet());
+        List<Datastore> myData = new ArrayList<>();
+        for (String myId : myIds) {
+            myData.add(new DatastoreContainer(myDirectories.get(myId)));
+        }
+
+        HashRing myRing = HashRing.forWorkers(myIds);
+        for (int i = 0; i < myIds.size(); i++) {
+            long myMoved = 0;
+            for (String myTable : myData.get(i).getTables().keySet()) {
+                myMoved += move(myData, i, myTable, myRing);
+            }
+            LOGGER.info("Moved " + myMoved + " rows out of " + myDirectories.get(myIds.get(i)));
+        }
+
+        for (Datastore myDatastore : myData) {
+            myDatastore.sync();
+        }
+        // The datastores keep background threads
+        System.exit(0);
+    }
+
+    private static long move(List<Datastore> aData, int aSource, String aTable, HashRing aRing) {
+        Datastore mySource = aData.get(aSource);
+        long myMoved = 0;
+        for (HashRing.Range myRange : aRing.ranges(null, null)) {
+            if (myRange.worker() == aSource) {
+                continue;
+            }
+            Datastore myTarget = aData.get(myRange.worker());
+            Stream<Row> myRows = mySource.getRowDataStream(aTable, myRange.fromKey(), myRange.toKeyExclusive());
+            if (myRows == null) {
+                continue;
+            }
+            long myCount = 0;
+            long myFailed = 0;
+            try (myRows) {
+                Iterator<Row> myIterator = myRows.iterator();
+                while (myIterator.hasNext()) {
+                    Row myRow = myIterator.next();
+                    if (myTarget.putRow(aTable, myRow.key(), myRow) < 0) {
+                        myFailed++;
+                    }
+                    myCount++;
+                }
+            }
+            if (myFailed > 0) {
+                LOGGER.error("Failed to copy " + myFailed + " rows of " + aTable + " from " + myRange.fromKey()
+                        + " to " + myRange.toKeyExclusive() + "; keeping the range where it is");
+            } else if (myCount > 0) {
+                mySource.deleteRange(aTable, myRange.fromKey(), myRange.toKeyExclusive());
+                myMoved += myCount;
+            }
+        }
+        return myMoved;
+    }
+}
@@ -1,16 +1,33 @@
 package cis5550.kvs;
 
 import cis5550.tools.Logger;
+import cis5550.utils.Compression;
 
 import java.util.*;
+import java.util.function.Predicate;
 import java.io.*;
-
-import static cis5550.utils.FileIOUtils.readRestOfStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 public class Row implements Serializable {
 
+    // Binary rows start with a zero byte, which cannot start a row in the text format
+    public static final int BINARY_MAGIC = 0;
+    public static final int BINARY_VERSION = 2;
+    public static final String FORMAT_PARAMETER = "format";
+    public static final String BINARY_FORMAT = "binary" + BINARY_VERSION;
+    static final int MAX_FIELD_LENGTH = 16384;
+    // Since version 2, each binary value starts with the codec it is stored with
+    static final int CODEC_RAW = 0;
+    static final int CODEC_DEFLATE = 1;
+
+    protected record Slice(ByteBuffer bytes, int codec) {
+    }
+
     protected String key;
     protected HashMap<String, byte[]> values;
+    // Columns decoded from a binary row that nobody has read yet; their entries in values are null
+    protected transient HashMap<String, Slice> slices;
 
     public Row(String keyArg) {
         key = keyArg;
@@ -25,6 +42,11 @@ public class Row implements Serializable {
         Row theClone = new Row(key);
         for (String s : values.keySet())
             theClone.values.put(s, values.get(s));
+        if (slices != null && !slices.isEmpty()) {
+            theClone.slices = new HashMap<String, Slice>();
+            for (Map.Entry<String, Slice> e : slices.entrySet())
+                theClone.slices.put(e.getKey(), new Slice(e.getValue().bytes().duplicate(), e.getValue().codec()));
+        }
         return theClone;
     }
 
@@ -33,57 +55,124 @@ public class Row implements Serializable {
     }
 
     public synchronized void put(String key, String value) {
-        values.put(key, value.getBytes());
+        put(key, value.getBytes());
     }
 
     public synchronized void put(String key, byte[] value) {
         values.put(key, value);
+        if (slices != null)
+            slices.remove(key);
     }
 
     public synchronized String get(String key) {
-        if (values.get(key) == null)
+        byte[] value = getBytes(key);
+        if (value == null)
             return null;
-        return new String(values.get(key));
+        return new String(value);
     }
 
     public synchronized byte[] getBytes(String key) {
-        return values.get(key);
+        byte[] value = values.get(key);
+        if (value == null && slices != null) {
+            Slice slice = slices.get(key);
+            if (slice != null) {
+                value = decode(slice);
+                slices.remove(key);
+                values.put(key, value);
+            }
+        }
+        return value;
     }
 
-    static String readStringSpace(InputStream in) throws Exception {
-        byte buffer[] = new byte[16384];
-        int numRead = 0;
-        while (true) {
-            if (numRead == buffer.length)
-                throw new Exception("Format error: Expecting string+space");
+    /**
+     * Returns the length of the value in bytes, or -1 if the row has no such column. Only compressed values
+     * that were never read are decoded to find it.
+     */
+    synchronized int valueLength(String key) {
+        byte[] value = values.get(key);
+        if (value != null)
+            return value.length;
+        Slice slice = slices == null ? null : slices.get(key);
+        if (slice == null)
+            return -1;
+        if (slice.codec() == CODEC_RAW)
+            return slice.bytes().remaining();
+        return getBytes(key).length;
+    }
 
-            int b = in.read();
-            if ((b < 0) || (b == 10))
-                return null;
-            buffer[numRead++] = (byte) b;
-            if (b == ' ')
-                return new String(buffer, 0, numRead - 1);
+    /**
+     * Returns a row with the same key and only the given columns. Values that were never read are shared with
+     * this row without being decoded.
+     */
+    synchronized Row project(Set<String> columns) {
+        Row projection = new Row(key);
+        for (String s : columns) {
+            if (!values.containsKey(s))
+                continue;
+            byte[] value = values.get(s);
+            projection.values.put(s, value);
+            if (value == null) {
+                Slice slice = slices.get(s);
+                if (projection.slices == null)
+                    projection.slices = new HashMap<String, Slice>();
+                projection.slices.put(s, new Slice(slice.bytes().duplicate(), slice.codec()));
+            }
         }
+        return projection;
+    }
+
+    private static byte[] decode(Slice slice) {
+        if (slice.codec() == CODEC_DEFLATE) {
+            try {
+                return Compression.inflate(slice.bytes());
+            } catch (Exception e) {
+                throw new RuntimeException("Corrupt compressed value", e);
+            }
+        }
+        byte[] value = new byte[slice.bytes().remaining()];
+        slice.bytes().duplicate().get(value);
+        return value;
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        if (slices != null)
+            for (String s : new ArrayList<String>(slices.keySet()))
+                getBytes(s);
+        out.defaultWriteObject();
     }
 
-    static String readStringSpace(RandomAccessFile in) throws Exception {
-        byte buffer[] = new byte[16384];
+    static String readStringSpace(InputStream in) throws Exception {
+        return readStringSpace(in, in.read());
+    }
+
+    static String readStringSpace(InputStream in, int b) throws Exception {
+        byte buffer[] = new byte[64];
         int numRead = 0;
         while (true) {
-            if (numRead == buffer.length)
-                throw new Exception("Format error: Expecting string+space");
-
-            int b = in.read();
             if ((b < 0) || (b == 10))
                 return null;
-            buffer[numRead++] = (byte) b;
             if (b == ' ')
-                return new String(buffer, 0, numRead - 1);
+                return new String(buffer, 0, numRead);
+            if (numRead == buffer.length) {
+                if (numRead >= MAX_FIELD_LENGTH)
+                    throw new Exception("Format error: Expecting string+space");
+                buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, MAX_FIELD_LENGTH));
+            }
+            buffer[numRead++] = (byte) b;
+            b = in.read();
         }
     }
 
+    /**
+     * Reads one row in either format. Returns null at the end of the stream or at the empty line that ends a
+     * stream of rows.
+     */
     public static Row readFrom(InputStream in) throws Exception {
-        String theKey = readStringSpace(in);
+        int first = in.read();
+        if (first == BINARY_MAGIC)
+            return readBinaryBody(in);
+
+        String theKey = readStringSpace(in, first);
         if (theKey == null)
             return null;
 
@@ -116,40 +205,131 @@ public class Row implements Serializable {
         }
     }
 
+    /**
+     * Reads the row stored in the rest of the file with one read, instead of one read per byte.
+     */
     public static Row readFrom(RandomAccessFile in) throws Exception {
-        String theKey = readStringSpace(in);
-        if (theKey == null)
+        byte[] contents = new byte[(int) (in.length() - in.getFilePointer())];
+        in.readFully(contents);
+        return readFrom(ByteBuffer.wrap(contents));
+    }
+
+    /**
+     * Reads one row in either format, starting at the buffer's position and leaving the position after it.
+     * Values of a binary row are not copied until they are accessed, so the buffer must not change while the
+     * row is in use.
+     */
+    public static Row readFrom(ByteBuffer in) throws Exception {
+        if (!in.hasRemaining())
             return null;
+        if (in.get(in.position()) != BINARY_MAGIC) {
+            return readFrom(new InputStream() {
+                public int read() {
+                    return in.hasRemaining() ? (in.get() & 0xff) : -1;
+                }
+            });
+        }
 
-        Row newRow = new Row(theKey);
-        while (true) {
-            String keyOrMarker = readStringSpace(in);
-            if (keyOrMarker == null)
-                return newRow;
+        in.get();
+        int version = in.get();
+        if (version < 1 || version > BINARY_VERSION)
+            throw new Exception("Format error: Unsupported binary row version");
+        int length = readVarint(in);
+        ByteBuffer body = in.slice(in.position(), length);
+        in.position(in.position() + length);
+        return decodeBinaryBody(body, version);
+    }
 
-            int len = Integer.parseInt(readStringSpace(in));
-            byte[] theValue = new byte[len];
-            int bytesRead = 0;
-            while (bytesRead < len) {
-                int n = in.read(theValue, bytesRead, len - bytesRead);
-                if (n < 0)
-                    throw new Exception("Premature end of stream while reading value for key '" + keyOrMarker + "' (read " + bytesRead + " bytes, expecting " + len + ")");
-                bytesRead += n;
+    private static Row readBinaryBody(InputStream in) throws Exception {
+        int version = in.read();
+        if (version < 1 || version > BINARY_VERSION)
+            throw new Exception("Format error: Unsupported binary row version");
+
+        int length = readVarint(in);
+        byte[] body = in.readNBytes(length);
+        if (body.length != length)
+            throw new Exception("Premature end of stream while reading binary row (read " + body.length + " bytes, expecting " + length + ")");
+        return decodeBinaryBody(ByteBuffer.wrap(body), version);
+    }
+
+    private static Row decodeBinaryBody(ByteBuffer body, int version) throws Exception {
+        Row newRow = new Row(readVarintString(body));
+        int numColumns = readVarint(body);
+        if (numColumns > 0)
+            newRow.slices = new HashMap<String, Slice>();
+        for (int i = 0; i < numColumns; i++) {
+            String column = readVarintString(body);
+            int len = readVarint(body);
+            int codec = CODEC_RAW;
+            if (version >= 2) {
+                codec = body.get();
+                len--;
+                if (codec != CODEC_RAW && codec != CODEC_DEFLATE)
+                    throw new Exception("Format error: Unknown codec " + codec + " for column '" + column + "'");
             }
+            newRow.values.put(column, null);
+            newRow.slices.put(column, new Slice(body.slice(body.position(), len), codec));
+            body.position(body.position() + len);
+        }
+        return newRow;
+    }
 
-            byte b = (byte) in.read();
-            if (b != ' ')
-                throw new Exception("Expecting a space separator after value for key '" + keyOrMarker + "'");
+    private static String readVarintString(ByteBuffer in) throws Exception {
+        int len = readVarint(in);
+        String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[len];
+            in.get(in.position(), bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + len);
+        return s;
+    }
 
-            newRow.put(keyOrMarker, theValue);
+    static int readVarint(ByteBuffer in) throws Exception {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new Exception("Format error: Varint too long");
+    }
+
+    static int readVarint(InputStream in) throws Exception {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0)
+                throw new Exception("Premature end of stream while reading varint");
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new Exception("Format error: Varint too long");
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
         }
+        out.write(value);
+    }
+
+    static void writeVarintBytes(ByteArrayOutputStream out, byte[] value) {
+        writeVarint(out, value.length);
+        out.write(value, 0, value.length);
     }
 
     public synchronized String toString() {
         String s = key + " {";
         boolean isFirst = true;
         for (String k : values.keySet()) {
-            s = s + (isFirst ? " " : ", ") + k + ": " + new String(values.get(k));
+            s = s + (isFirst ? " " : ", ") + k + ": " + new String(getBytes(k));
             isFirst = false;
         }
         return s + " }";
@@ -163,11 +343,12 @@ public class Row implements Serializable {
             baos.write(' ');
 
             for (String s : values.keySet()) {
+                byte[] value = getBytes(s);
                 baos.write(s.getBytes());
                 baos.write(' ');
-                baos.write(("" + values.get(s).length).getBytes());
+                baos.write(("" + value.length).getBytes());
                 baos.write(' ');
-                baos.write(values.get(s));
+                baos.write(value);
                 baos.write(' ');
             }
         } catch (Exception e) {
@@ -179,16 +360,76 @@ public class Row implements Serializable {
         return baos.toByteArray();
     }
 
+    public synchronized byte[] toBinaryByteArray() {
+        return toBinaryByteArray(column -> false);
+    }
+
+    /**
+     * Encodes the row as BINARY_MAGIC, BINARY_VERSION and the varint length of a body holding the key, the
+     * number of columns and each column name and value, all prefixed with varint lengths. Each value starts
+     * with its codec; values of the given columns are compressed if that makes them smaller. Columns that were
+     * never accessed are copied straight from the slices they were read from, still compressed if they were.
+     */
+    public synchronized byte[] toBinaryByteArray(Predicate<String> compressColumn) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeVarintBytes(body, key.getBytes(StandardCharsets.UTF_8));
+        writeVarint(body, values.size());
+        for (Map.Entry<String, byte[]> e : values.entrySet()) {
+            writeVarintBytes(body, e.getKey().getBytes(StandardCharsets.UTF_8));
+            Slice slice = (e.getValue() == null && slices != null) ? slices.get(e.getKey()) : null;
+            boolean compress = compressColumn.test(e.getKey());
+            if (slice != null && (slice.codec() == CODEC_DEFLATE || !compress)) {
+                writeValue(body, slice.codec(), slice.bytes());
+                continue;
+            }
+
+            byte[] value = slice != null ? getBytes(e.getKey()) : e.getValue();
+            if (compress && value.length >= Compression.MIN_COMPRESSED_LENGTH) {
+                byte[] compressed = Compression.deflate(value);
+                if (compressed.length < value.length) {
+                    writeValue(body, CODEC_DEFLATE, ByteBuffer.wrap(compressed));
+                    continue;
+                }
+            }
+            writeValue(body, CODEC_RAW, ByteBuffer.wrap(value));
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(body.size() + 7);
+        baos.write(BINARY_MAGIC);
+        baos.write(BINARY_VERSION);
+        writeVarint(baos, body.size());
+        try {
+            body.writeTo(baos);
+        } catch (IOException e) {
+            throw new RuntimeException("This should not happen!");
+        }
+        return baos.toByteArray();
+    }
+
+    private static void writeValue(ByteArrayOutputStream out, int codec, ByteBuffer value) {
+        writeVarint(out, value.remaining() + 1);
+        out.write(codec);
+        if (value.hasArray()) {
+            out.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+        } else {
+            byte[] bytes = new byte[value.remaining()];
+            value.duplicate().get(bytes);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
     public static Row readFromAppendOnly(RandomAccessFile in) {
         try {
-            String theKey = readStringSpace(in);
+            byte[] contents = new byte[(int) (in.length() - in.getFilePointer())];
+            in.readFully(contents);
+            InputStream header = new ByteArrayInputStream(contents);
+            String theKey = readStringSpace(header);
             if (theKey == null)
                 return null;
 
             Row newRow = new Row(theKey);
-            String keyOrMarker = readStringSpace(in);
-            byte[] value = readRestOfStream(in);
-            newRow.put(keyOrMarker, value);
+            String keyOrMarker = readStringSpace(header);
+            newRow.put(keyOrMarker, header.readAllBytes());
             return newRow;
         } catch (Exception e) {
             e.printStackTrace();
@@ -210,7 +451,7 @@ public class Row implements Serializable {
             for (String s : values.keySet()) {
                 baos.write(s.getBytes());
                 baos.write(' ');
-                baos.write(values.get(s));
+                baos.write(getBytes(s));
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -0,0 +1,195 @@
+package cis5550.kvs;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * A projection and simple predicates that a KVS worker applies to the rows of a scan before sending them, so rows
+ * and columns the caller will not use never leave the storage node. A row is sent if its key starts with the key
+ * prefix, it has all the required columns and the value of the length column is within the length bounds; only
+ * the projected columns of it are sent. Filters are immutable; the with* methods return changed copies.
+ * <p>
+ * A filter travels as query parameters, which a Flame worker receives along with an operation and forwards to
+ * the KVS workers unchanged. Column lists are comma-separated, with each name URL-encoded.
+ */
+public final class ScanFilter {
+    public static final ScanFilter NONE = new ScanFilter(null, Set.of(), null, null, 0, Integer.MAX_VALUE);
+
+    public static final String COLUMNS_PARAMETER = "columns";
+    public static final String HAS_COLUMNS_PARAMETER = "hasColumns";
+    public static final String KEY_PREFIX_PARAMETER = "keyPrefix";
+    public static final String LENGTH_COLUMN_PARAMETER = "lengthColumn";
+    public static final String MIN_LENGTH_PARAMETER = "minLength";
+    public static final String MAX_LENGTH_PARAMETER = "maxLength";
+
+    private final Set<String> theColumns;
+    private final Set<String> theRequiredColumns;
+    private final String theKeyPrefix;
+    private final String theLengthColumn;
+    private final int theMinLength;
+    private final int theMaxLength;
+
+    private ScanFilter(Set<String> aColumns, Set<String> aRequiredColumns, String aKeyPrefix,
+                       String aLengthColumn, int aMinLength, int aMaxLength) {
+        theColumns = aColumns;
+        theRequiredColumns = aRequiredColumns;
+        theKeyPrefix = aKeyPrefix;
+        theLengthColumn = aLengthColumn;
+        theMinLength = aMinLength;
+        theMaxLength = aMaxLength;
+    }
+
+    /**
+     * Sends only the given columns of each row; rows keep their keys even if none of the columns are present.
+     */
+    public ScanFilter withColumns(String... aColumns) {
+        return new ScanFilter(Set.of(aColumns), theRequiredColumns, theKeyPrefix, theLengthColumn, theMinLength, theMaxLength);
+    }
+
+    public ScanFilter withRequiredColumns(String... aColumns) {
+        return new ScanFilter(theColumns, Set.of(aColumns), theKeyPrefix, theLengthColumn, theMinLength, theMaxLength);
+    }
+
+    public ScanFilter withKeyPrefix(String aKeyPrefix) {
+        return new ScanFilter(theColumns, theRequiredColumns, aKeyPrefix, theLengthColumn, theMinLength, theMaxLength);
+    }
+
+    /**
+     * Sends only rows whose value in the column has between the given numbers of bytes, inclusive. Rows without
+     * the column are dropped.
+     */
+    public ScanFilter withValueLength(String aColumn, int aMinLength, int aMaxLength) {
+        return new ScanFilter(theColumns, theRequiredColumns, theKeyPrefix, aColumn, aMinLength, aMaxLength);
+    }
+
+    public boolean isEmpty() {
+        return theColumns == null && theRequiredColumns.isEmpty() && theKeyPrefix == null && theLengthColumn == null;
+    }
+
+    /**
+     * Returns the row as it should be sent, or null if it should not be sent at all.
+     */
+    public Row apply(Row aRow) {
+        if (theKeyPrefix != null && !aRow.key().startsWith(theKeyPrefix)) {
+            return null;
+        }
+        for (String myColumn : theRequiredColumns) {
+            if (aRow.valueLength(myColumn) < 0) {
+                return null;
+            }
+        }
+        if (theLengthColumn != null) {
+            int myLength = aRow.valueLength(theLengthColumn);
+            if (myLength < 0 || myLength < theMinLength || myLength > theMaxLength) {
+                return null;
+            }
+        }
+        return theColumns == null ? aRow : aRow.project(theColumns);
+    }
+
+    /**
+     * Narrows the first row of a scan to the key prefix, so the datastore can skip the rows before it.
+     */
+    public String startRow(String aStartRow) {
+        if (theKeyPrefix == null || (aStartRow != null && aStartRow.compareTo(theKeyPrefix) > 0)) {
+            return aStartRow;
+        }
+        return theKeyPrefix;
+    }
+
+    /**
+     * Narrows the end of a scan to the first key after all keys with the prefix.
+     */
+    public String endRowExclusive(String aEndRowExclusive) {
+        if (theKeyPrefix == null) {
+            return aEndRowExclusive;
+        }
+        String myPrefixEnd = prefixEnd(theKeyPrefix);
+        if (myPrefixEnd == null || (aEndRowExclusive != null && aEndRowExclusive.compareTo(myPrefixEnd) < 0)) {
+            return aEndRowExclusive;
+        }
+        return myPrefixEnd;
+    }
+
+    private static String prefixEnd(String aPrefix) {
+        int myEnd = aPrefix.length();
+        while (myEnd > 0 && aPrefix.charAt(myEnd - 1) == Character.MAX_VALUE) {
+            myEnd--;
+        }
+        if (myEnd == 0) {
+            return null;
+        }
+        return aPrefix.substring(0, myEnd - 1) + (char) (aPrefix.charAt(myEnd - 1) + 1);
+    }
+
+    /**
+     * Returns the query parameters of the filter, each preceded by an ampersand, or an empty string if the filter
+     * is empty.
+     */
+    public String toQuery() {
+        StringBuilder myQuery = new StringBuilder();
+        if (theColumns != null) {
+            appendParameter(myQuery, COLUMNS_PARAMETER, joinColumns(theColumns));
+        }
+        if (!theRequiredColumns.isEmpty()) {
+            appendParameter(myQuery, HAS_COLUMNS_PARAMETER, joinColumns(theRequiredColumns));
+        }
+        if (theKeyPrefix != null) {
+            appendParameter(myQuery, KEY_PREFIX_PARAMETER, theKeyPrefix);
+        }
+        if (theLengthColumn != null) {
+            appendParameter(myQuery, LENGTH_COLUMN_PARAMETER, theLengthColumn);
+            appendParameter(myQuery, MIN_LENGTH_PARAMETER, String.valueOf(theMinLength));
+            appendParameter(myQuery, MAX_LENGTH_PARAMETER, String.valueOf(theMaxLength));
+        }
+        return myQuery.toString();
+    }
+
+    /**
+     * Reads a filter from decoded query parameters, as produced by toQuery().
+     *
+     * @throws IllegalArgumentException if a length bound is not a number
+     */
+    public static ScanFilter fromParams(Function<String, String> aParams) {
+        String myColumns = aParams.apply(COLUMNS_PARAMETER);
+        String myRequiredColumns = aParams.apply(HAS_COLUMNS_PARAMETER);
+        String myLengthColumn = aParams.apply(LENGTH_COLUMN_PARAMETER);
+        String myMinLength = aParams.apply(MIN_LENGTH_PARAMETER);
+        String myMaxLength = aParams.apply(MAX_LENGTH_PARAMETER);
+        return new ScanFilter(
+                myColumns == null ? null : splitColumns(myColumns),
+                myRequiredColumns == null ? Set.of() : splitColumns(myRequiredColumns),
+                aParams.apply(KEY_PREFIX_PARAMETER),
+                myLengthColumn,
+                myMinLength == null ? 0 : Integer.parseInt(myMinLength),
+                myMaxLength == null ? Integer.MAX_VALUE : Integer.parseInt(myMaxLength));
+    }
+
+    private static void appendParameter(StringBuilder aQuery, String aName, String aValue) {
+        aQuery.append('&').append(aName).append('=').append(URLEncoder.encode(aValue, StandardCharsets.UTF_8));
+    }
+
+    private static String joinColumns(Set<String> aColumns) {
+        StringJoiner myJoiner = new StringJoiner(",");
+        aColumns.forEach(aColumn -> myJoiner.add(URLEncoder.encode(aColumn, StandardCharsets.UTF_8)));
+        return myJoiner.toString();
+    }
+
+    private static Set<String> splitColumns(String aColumns) {
+        Set<String> myColumns = new HashSet<>();
+        for (String myColumn : aColumns.split(",")) {
+            if (!myColumn.isEmpty()) {
+                myColumns.add(URLDecoder.decode(myColumn, StandardCharsets.UTF_8));
+            }
+        }
+        return myColumns;
+    }
+
+    @Override
+    public String toString() {
+        return "ScanFilter" + toQuery();
+    }
+}
@@ -1,13 +1,22 @@
 package cis5550.kvs;
 
+import cis5550.kvs.datamodels.OpStatus;
+import cis5550.kvs.datastore.CachingDatastore;
+import cis5550.kvs.datastore.Datastore;
 import cis5550.kvs.datastore.DatastoreContainer;
+import cis5550.kvs.datastore.ReplicatedDatastore;
+import cis5550.kvs.datastore.ReplicationLog;
 import cis5550.tools.Logger;
 import cis5550.webserver.Request;
+import cis5550.webserver.Response;
 import cis5550.webserver.Route;
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.function.DoublePredicate;
 import java.util.stream.Stream;
 
 import static cis5550.kvs.datamodels.IPPort.fromString;
@@ -21,15 +30,16 @@ public class Worker extends cis5550.generic.Worker {
     public static final Logger LOGGER = Logger.getLogger(Worker.class);
 
     public static final String ID_FILE = "id";
-    public static final String BATCH_UNIQUE_SEPARATOR = "&#!#&";
-    public static final String BATCH_ROW_COL_VALUE_SEPARATOR = "!&&!##!&&!&&!";
-    public static final String BATCH_ROW_VALUE_SEPARATOR = "!&&!##!&&!&&!";
     public static final String NULL_RETURN = "NULL";
+    public static final String NOT_SUPPORTED = "Not supported for this table type";
     public static final int ID_LENGTH = 5;
     public static final int PAGE_SIZE = 10;
+    public static final int BATCH_RESPONSE_CHUNK_SIZE = 64 * 1024;
 
-    private static DatastoreContainer theData;
+    private static Datastore theData;
+    private static CachingDatastore theCache;
     private static WorkerReplicationManager theReplicationManager;
+    private static RangeHandoff theHandoff;
 
     public static void main(String[] args) {
         if (args.length != 3) {
@@ -83,8 +93,21 @@ public class Worker extends cis5550.generic.Worker {
             }
         }
 
+        // Replays whatever the write-ahead logs still hold from before a crash
         theData = new DatastoreContainer(myDirectory);
-        theReplicationManager = new WorkerReplicationManager(myId, fromString(myCoordinatorIPPort));
+        long myCacheBudget = CachingDatastore.budgetFromProperties();
+        if (myCacheBudget > 0) {
+            theCache = new CachingDatastore(theData, myCacheBudget);
+            theData = theCache;
+        }
+        ReplicationLog myLog = null;
+        if (WorkerReplicationManager.replicaCount() > 0) {
+            myLog = new ReplicationLog();
+            theData = new ReplicatedDatastore(theData, myLog);
+        }
+        theReplicationManager = new WorkerReplicationManager(myId, fromString(myCoordinatorIPPort), myDirectory,
+                theData, myLog);
+        theHandoff = new RangeHandoff(myId, theData);
 
         port(myPort);
         startPingThread(myId, myPort, myCoordinatorIPPort);
@@ -99,13 +122,30 @@ public class Worker extends cis5550.generic.Worker {
         put("/data/:table", putRow());
         put("/data/:table/:row/:column", putCell());
         put("/append/:table/:row/:column", appendCell());
-        put("/batchAppend/data/:table/:column", batchAppendCell());
+        put("/merge/:table/:row/:column", mergeCell());
+        put("/batch/append/:table", batchAppend());
         get("/data/:table/:row/:column", getCell());
         put("/delete/:table", deleteTable());
         put("/rename/:table", renameTable());
+        post("/bulk/attach/:table", attachTable());
         get("/count/:table", rowCount());
-        get("/batch/data/:table/:column", batchGetColValue());
-        put("/batch/data/:table/", batchPutCell());
+        get("/aggregate/:table", aggregate());
+        get("/hotkeys", hotKeys());
+        post("/batch/get/:table/:column", batchGet());
+        put("/batch/put/:table", batchPut());
+        post("/rebalance/members", announceMembers());
+        post("/rebalance/send", sendRanges());
+        put("/rebalance/rows/:table", receiveRows());
+        post("/rebalance/commit", commitHandoff());
+        post("/rebalance/abort", abortHandoff());
+        post("/rebalance/discard", discardRows());
+        get("/replication/offset", replicationOffset());
+        post("/replication/apply", applyReplication());
+        post("/replication/drop", dropReplica());
+        get("/replication/merkle/tables", copiedTables());
+        post("/replication/merkle/tree", installTree());
+        get("/replication/merkle", treeHashes());
+        post("/replication/merkle/rows", rowHashes());
         after((req, res) -> {
             LOGGER.debug("Completed request " + req.requestMethod() + " " + req.url());
         });
@@ -113,7 +153,6 @@ public class Worker extends cis5550.generic.Worker {
 
     private static Route putCell() {
         return (req, res) -> {
-            forwardPutRequest(req);
             String myTable = req.params("table");
             String myRow = req.params("row");
             String myColumn = req.params("column");
@@ -125,57 +164,80 @@ public class Worker extends cis5550.generic.Worker {
                 return "Bad Request";
             }
 
-            String myIfColumn = req.queryParams("ifcolumn");
-            String myIfEquals = req.queryParams("equals");
-
-            if (myIfColumn != null && myIfEquals != null) {
-                Row myRowObject = theData.get(myTable, myRow);
-                if (myRowObject == null
-                        || myRowObject.get(myIfColumn) == null
-                        || !myIfEquals.equals(myRowObject.get(myIfColumn))) {
-                    setResponseStatus(res, PRECONDITION_FAILED);
-                    return "FAIL";
+            return writeOwned(req, res, myTable, List.of(myRow), () -> {
+                String myIfColumn = req.queryParams("ifcolumn");
+                String myIfEquals = req.queryParams("equals");
+                boolean myIfAbsent = "true".equals(req.queryParams("ifabsent"));
+
+                int myVersion = 0;
+                if (myIfColumn != null && (myIfEquals != null || myIfAbsent)) {
+                    byte[] myExpected = myIfAbsent ? null : myIfEquals.getBytes();
+                    OpStatus myStatus = theData.compareAndPut(myTable, myRow, myIfColumn, myExpected, myColumn, myValue);
+                    if (myStatus == OpStatus.PRECONDITION_FAILED) {
+                        setResponseStatus(res, PRECONDITION_FAILED);
+                        return "FAIL";
+                    } else if (myStatus == OpStatus.NOT_SUPPORTED) {
+                        setResponseStatus(res, BAD_REQUEST);
+                        return NOT_SUPPORTED;
+                    } else if (myStatus != OpStatus.SUCCESS) {
+                        setResponseStatus(res, INTERNAL_SERVER_ERROR);
+                        return "Internal Server Error";
+                    }
+                } else {
+                    myVersion = theData.put(myTable, myRow, myColumn, myValue);
                 }
-            }
 
-            int myVersion = theData.put(myTable, myRow, myColumn, myValue);
+                if (!theData.sync()) {
+                    setResponseStatus(res, INTERNAL_SERVER_ERROR);
+                    return "Internal Server Error";
+                }
 
-            res.header("Version", String.valueOf(myVersion));
-            setResponseStatus(res, OK);
-            return "OK";
+                res.header("Version", String.valueOf(myVersion));
+                setResponseStatus(res, OK);
+                return "OK";
+            });
         };
     }
 
-    private static Route batchPutCell() {
+    /**
+     * Puts a batch of cells, sent as {@link BatchFrames} records of row, column and value.
+     */
+    private static Route batchPut() {
         return (req, res) -> {
             String myTable = req.params("table");
-            byte[] myRowsColsValuesBytes = req.bodyAsBytes();
-
-            if (myTable == null || myRowsColsValuesBytes == null) {
-                LOGGER.debug("Bad Request: " + myTable + " " + myRowsColsValuesBytes);
+            if (myTable == null) {
                 setResponseStatus(res, BAD_REQUEST);
                 return "Bad Request";
             }
 
-            String myRowsColsValuesStr = new String(myRowsColsValuesBytes, StandardCharsets.UTF_8);
-            String[] myRowsColsValuesList = myRowsColsValuesStr.split(BATCH_UNIQUE_SEPARATOR);
+            List<String> myRows = new ArrayList<>();
+            List<String> myColumns = new ArrayList<>();
+            List<byte[]> myValues = new ArrayList<>();
+            BatchFrames.Reader myReader = new BatchFrames.Reader(new ByteArrayInputStream(req.bodyAsBytes()));
+            try {
+                while (myReader.hasNext()) {
+                    myRows.add(myReader.string());
+                    myColumns.add(myReader.string());
+                    myValues.add(myReader.bytes());
+                }
+            } catch (Exception e) {
+                LOGGER.debug("Malformed batch for table " + myTable + ": " + e.getMessage());
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
 
-            for (String myRowColValue : myRowsColsValuesList) {
-                String[] myValues = myRowColValue.split(BATCH_ROW_COL_VALUE_SEPARATOR);
-                if (myValues.length != 3) {
-                    LOGGER.debug("Bad Request: " + myTable + " " + myRowsColsValuesBytes);
-                    setResponseStatus(res, BAD_REQUEST);
-                    return "Bad Request";
-                } else {
-                    String myRow = myRowColValue.split(BATCH_ROW_COL_VALUE_SEPARATOR)[0];
-                    String myCol = myRowColValue.split(BATCH_ROW_COL_VALUE_SEPARATOR)[1];
-                    String myValue = myRowColValue.split(BATCH_ROW_COL_VALUE_SEPARATOR)[2];
+            return writeOwned(req, res, myTable, myRows, () -> {
+                for (int i = 0; i < myRows.size(); i++) {
+                    theData.put(myTable, myRows.get(i), myColumns.get(i), myValues.get(i));
+                }
 
-                    theData.put(myTable, myRow, myCol, myValue.getBytes(StandardCharsets.UTF_8));
+                if (!theData.sync()) {
+                    setResponseStatus(res, INTERNAL_SERVER_ERROR);
+                    return "Internal Server Error";
                 }
-            }
-            setResponseStatus(res, OK);
-            return "OK";
+                setResponseStatus(res, OK);
+                return "OK";
+            });
         };
     }
 
@@ -188,8 +250,12 @@ public class Worker extends cis5550.generic.Worker {
                 setResponseStatus(res, BAD_REQUEST);
                 return "Bad Request";
             }
+            Datastore myData = dataToRead(req, List.of(myRow));
+            if (myData == null) {
+                return misdirected(res);
+            }
 
-            Row myRowObject = theData.get(myTable, myRow);
+            Row myRowObject = myData.get(myTable, myRow);
             if (myRowObject == null) {
                 setResponseStatus(res, NOT_FOUND);
                 return "Not Found";
@@ -197,7 +263,9 @@ public class Worker extends cis5550.generic.Worker {
 
             setResponseStatus(res, OK);
             res.type("application/octet-stream");
-            res.bodyAsBytes(myRowObject.toByteArray());
+            res.bodyAsBytes(Row.BINARY_FORMAT.equals(req.queryParams(Row.FORMAT_PARAMETER))
+                    ? myRowObject.toBinaryByteArray()
+                    : myRowObject.toByteArray());
             return null;
         };
     }
@@ -212,19 +280,23 @@ public class Worker extends cis5550.generic.Worker {
                 setResponseStatus(res, BAD_REQUEST);
                 return "Bad Request";
             }
+            Datastore myData = dataToRead(req, List.of(myRow));
+            if (myData == null) {
+                return misdirected(res);
+            }
 
             String myVersionString = req.queryParams("version");
             int myVersion;
             Row myRowObject;
 
             if (myVersionString == null) {
-                myRowObject = theData.get(myTable, myRow);
+                myRowObject = myData.get(myTable, myRow);
                 if (myRowObject == null) {
                     setResponseStatus(res, NOT_FOUND);
                     return "Not Found";
                 }
 
-                myVersion = theData.getVersion(myTable, myRow);
+                myVersion = myData.getVersion(myTable, myRow);
             } else {
                 try {
                     myVersion = Integer.parseInt(myVersionString);
@@ -234,7 +306,7 @@ public class Worker extends cis5550.generic.Worker {
                     return "Bad Request";
                 }
 
-                myRowObject = theData.get(myTable, myRow, myVersion);
+                myRowObject = myData.get(myTable, myRow, myVersion);
                 if (myRowObject == null) {
                     setResponseStatus(res, NOT_FOUND);
                     return "Not Found";
@@ -253,44 +325,46 @@ public class Worker extends cis5550.generic.Worker {
         };
     }
 
-    private static Route batchGetColValue() {
+    /**
+     * Reads one column of a batch of rows, sent as {@link BatchFrames} row keys. The response holds a nullable
+     * value per row, in the same order, and is written out as it is produced.
+     */
+    private static Route batchGet() {
         return (req, res) -> {
             String myTable = req.params("table");
-            if (myTable == null) {
+            String myColumn = req.params("column");
+            if (myTable == null || myColumn == null) {
                 setResponseStatus(res, BAD_REQUEST);
                 return "Bad Request";
             }
 
-            String myRows = req.queryParams("rows");
-            if (myRows == null || myRows.isEmpty()) {
+            List<String> myRows = new ArrayList<>();
+            BatchFrames.Reader myReader = new BatchFrames.Reader(new ByteArrayInputStream(req.bodyAsBytes()));
+            try {
+                while (myReader.hasNext()) {
+                    myRows.add(myReader.string());
+                }
+            } catch (Exception e) {
+                LOGGER.debug("Malformed batch for table " + myTable + ": " + e.getMessage());
                 setResponseStatus(res, BAD_REQUEST);
                 return "Bad Request";
             }
-            String[] myRowsList = myRows.split(BATCH_UNIQUE_SEPARATOR);
-            String myColumn = req.params("column");
-            if (myColumn == null) {
-                setResponseStatus(res, BAD_REQUEST);
-                return "Bad Request";
+            Datastore myData = dataToRead(req, myRows);
+            if (myData == null) {
+                return misdirected(res);
             }
 
-            StringBuilder responseBuilder = new StringBuilder();
-            for (String myRow : myRowsList) {
-                Row myRowObject = theData.get(myTable, myRow);
-                if (myRowObject != null) {
-                    responseBuilder.append(myRowObject.get(myColumn));
-                } else {
-                    responseBuilder.append(NULL_RETURN);
+            res.type(BatchFrames.CONTENT_TYPE);
+            BatchFrames.Writer myWriter = new BatchFrames.Writer();
+            for (String myRow : myRows) {
+                Row myRowObject = myData.get(myTable, myRow);
+                myWriter.nullableBytes(myRowObject == null ? null : myRowObject.getBytes(myColumn));
+                if (myWriter.size() >= BATCH_RESPONSE_CHUNK_SIZE) {
+                    res.write(myWriter.toByteArray());
+                    myWriter.reset();
                 }
-                responseBuilder.append(BATCH_UNIQUE_SEPARATOR);
             }
-
-            if (!responseBuilder.isEmpty()) {
-                responseBuilder.setLength(responseBuilder.length() - BATCH_UNIQUE_SEPARATOR.length());
-            }
-
-            byte[] responseBytes = responseBuilder.toString().getBytes(StandardCharsets.UTF_8);
-            setResponseStatus(res, OK);
-            res.bodyAsBytes(responseBytes);
+            res.write(myWriter.toByteArray());
             return null;
         };
     }
@@ -298,23 +372,36 @@ public class Worker extends cis5550.generic.Worker {
     private static Route streamRows() {
         return (req, res) -> {
             String myTable = req.params("table");
-            String myStartRow = req.queryParams("startRow");
-            String myEndRowExclusive = req.queryParams("endRowExclusive");
-
             if (myTable == null) {
                 setResponseStatus(res, BAD_REQUEST);
                 return "Bad Request";
             }
-            Stream<Row> myRowStream = theData.getRowDataStream(myTable, myStartRow, myEndRowExclusive);
+            ScanFilter myFilter;
+            try {
+                myFilter = ScanFilter.fromParams(req::queryParams);
+            } catch (IllegalArgumentException e) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+            if (!ownsRequestedRange(req, myFilter)) {
+                return misdirected(res);
+            }
+            Stream<Row> myRowStream = filteredRowStream(req, myTable, myFilter);
             if (myRowStream == null) {
                 setResponseStatus(res, NOT_FOUND);
                 return "Not Found";
             }
-            res.type("text/plain");
+            // Binary rows carry their own length, so only the text format needs a line feed after each row
+            boolean myBinary = Row.BINARY_FORMAT.equals(req.queryParams(Row.FORMAT_PARAMETER));
+            res.type(myBinary ? "application/octet-stream" : "text/plain");
             myRowStream.forEach(myRow -> {
                 try {
-                    res.write(myRow.toByteArray());
-                    res.write(new byte[]{'\n'});
+                    if (myBinary) {
+                        res.write(myRow.toBinaryByteArray());
+                    } else {
+                        res.write(myRow.toByteArray());
+                        res.write(new byte[]{'\n'});
+                    }
                 } catch (Exception e) {
                     LOGGER.error("Failed to write row to response", e);
                 }
@@ -328,9 +415,113 @@ public class Worker extends cis5550.generic.Worker {
         };
     }
 
+    /**
+     * Computes an aggregate over the rows of a range that pass the scan filter. Without a column it counts the
+     * rows; with one it aggregates the values of that column that are numbers within the optional lower
+     * (inclusive) and upper (exclusive) bounds. With perRow, it instead streams the key and the aggregate of the
+     * values of each row, over all of its columns unless one is given, as batch frames.
+     */
+    private static Route aggregate() {
+        return (req, res) -> {
+            String myTable = req.params("table");
+            if (myTable == null) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+            ScanFilter myFilter;
+            double myLowerBound;
+            double myUpperBound;
+            try {
+                myFilter = ScanFilter.fromParams(req::queryParams);
+                String myLower = req.queryParams(Aggregate.LOWER_BOUND_PARAMETER);
+                String myUpper = req.queryParams(Aggregate.UPPER_BOUND_PARAMETER);
+                myLowerBound = myLower == null ? Double.NEGATIVE_INFINITY : Double.parseDouble(myLower);
+                myUpperBound = myUpper == null ? Double.POSITIVE_INFINITY : Double.parseDouble(myUpper);
+            } catch (IllegalArgumentException e) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+            if (!ownsRequestedRange(req, myFilter)) {
+                return misdirected(res);
+            }
+            Stream<Row> myRowStream = filteredRowStream(req, myTable, myFilter);
+            if (myRowStream == null) {
+                setResponseStatus(res, NOT_FOUND);
+                return "Not Found";
+            }
+
+            String myColumn = req.queryParams(Aggregate.COLUMN_PARAMETER);
+            DoublePredicate myInBounds = aValue -> aValue >= myLowerBound && aValue < myUpperBound;
+            if ("true".equals(req.queryParams(Aggregate.PER_ROW_PARAMETER))) {
+                res.type(BatchFrames.CONTENT_TYPE);
+                BatchFrames.Writer myWriter = new BatchFrames.Writer();
+                Iterator<Row> myRows = myRowStream.iterator();
+                while (myRows.hasNext()) {
+                    Row myRow = myRows.next();
+                    Aggregate myAggregate = Aggregate.EMPTY;
+                    for (String myRowColumn : myColumn == null ? myRow.columns() : Set.of(myColumn)) {
+                        myAggregate = addValue(myAggregate, myRow.getBytes(myRowColumn), myInBounds);
+                    }
+                    if (myAggregate.count() > 0) {
+                        myWriter.string(myRow.key()).string(myAggregate.encode());
+                    }
+                    if (myWriter.size() >= BATCH_RESPONSE_CHUNK_SIZE) {
+                        res.write(myWriter.toByteArray());
+                        myWriter.reset();
+                    }
+                }
+                res.write(myWriter.toByteArray());
+                return null;
+            }
+
+            Aggregate myAggregate = myRowStream.reduce(Aggregate.EMPTY,
+                    (aAggregate, aRow) -> myColumn == null
+                            ? aAggregate.addRow()
+                            : addValue(aAggregate, aRow.getBytes(myColumn), myInBounds),
+                    Aggregate::combine);
+            setResponseStatus(res, OK);
+            return myAggregate.encode();
+        };
+    }
+
+    private static Aggregate addValue(Aggregate aAggregate, byte[] aValue, DoublePredicate aInBounds) {
+        if (aValue == null) {
+            return aAggregate;
+        }
+        double myNumber;
+        try {
+            myNumber = Double.parseDouble(new String(aValue).trim());
+        } catch (NumberFormatException e) {
+            return aAggregate;
+        }
+        return aInBounds.test(myNumber) ? aAggregate.add(myNumber) : aAggregate;
+    }
+
+    private static boolean ownsRequestedRange(Request aReq, ScanFilter aFilter) {
+        return theHandoff.ownsRange(aFilter.startRow(aReq.queryParams("startRow")),
+                aFilter.endRowExclusive(aReq.queryParams("endRowExclusive")));
+    }
+
+    /**
+     * Returns the rows of the requested range that pass the filter, with the key prefix narrowing the range, or
+     * null if the table does not exist.
+     */
+    private static Stream<Row> filteredRowStream(Request aReq, String aTable, ScanFilter aFilter) {
+        String myStartRow = aFilter.startRow(aReq.queryParams("startRow"));
+        String myEndRowExclusive = aFilter.endRowExclusive(aReq.queryParams("endRowExclusive"));
+        if (myStartRow != null && myEndRowExclusive != null && myStartRow.compareTo(myEndRowExclusive) > 0) {
+            // The key prefix lies outside the range; an empty range still answers null for missing tables
+            myEndRowExclusive = myStartRow;
+        }
+        Stream<Row> myRowStream = theData.getRowDataStream(aTable, myStartRow, myEndRowExclusive);
+        if (myRowStream == null || aFilter.isEmpty()) {
+            return myRowStream;
+        }
+        return myRowStream.map(aFilter::apply).filter(Objects::nonNull);
+    }
+
     private static Route putRow() {
         return (req, res) -> {
-            forwardPutRequest(req);
             String myTable = req.params("table");
             byte[] myValue = req.bodyAsBytes();
 
@@ -339,19 +530,25 @@ public class Worker extends cis5550.generic.Worker {
                 return "Bad Request";
             }
 
-            Row myRow = Row.readFrom(new ByteArrayInputStream(myValue));
+            Row myRow = Row.readFrom(ByteBuffer.wrap(myValue));
 
-            int myVersion = theData.putRow(myTable, myRow.key(), myRow);
+            return writeOwned(req, res, myTable, List.of(myRow.key()), () -> {
+                int myVersion = theData.putRow(myTable, myRow.key(), myRow);
 
-            res.header("Version", String.valueOf(myVersion));
-            setResponseStatus(res, OK);
-            return "OK";
+                if (!theData.sync()) {
+                    setResponseStatus(res, INTERNAL_SERVER_ERROR);
+                    return "Internal Server Error";
+                }
+
+                res.header("Version", String.valueOf(myVersion));
+                setResponseStatus(res, OK);
+                return "OK";
+            });
         };
     }
 
     private static Route appendCell() {
         return (req, res) -> {
-            forwardPutRequest(req);;
             String myTable = req.params("table");
             String myRow = req.params("row");
             String myColumn = req.params("column");
@@ -364,49 +561,131 @@ public class Worker extends cis5550.generic.Worker {
                 return "Bad Request";
             }
 
-            int myVersion = theData.append(myTable, myRow, myColumn, myValue, myDelimiter);
-            res.header("Version", String.valueOf(myVersion));
-            setResponseStatus(res, OK);
-            return "OK";
+            return writeOwned(req, res, myTable, List.of(myRow), () -> {
+                int myVersion = theData.append(myTable, myRow, myColumn, myValue, myDelimiter);
+
+                if (!theData.sync()) {
+                    setResponseStatus(res, INTERNAL_SERVER_ERROR);
+                    return "Internal Server Error";
+                }
+                res.header("Version", String.valueOf(myVersion));
+                setResponseStatus(res, OK);
+                return "OK";
+            });
         };
     }
 
-    private static Route batchAppendCell() {
+    /**
+     * Merges the body into the cell with the operator named by the op parameter, and answers with the cell's new
+     * value if the returnValue parameter is true. Stores that defer merges only read the cell in that case.
+     */
+    private static Route mergeCell() {
         return (req, res) -> {
-            forwardPutRequest(req);;
             String myTable = req.params("table");
+            String myRow = req.params("row");
             String myColumn = req.params("column");
-            String myDelimiter = ",";
-            byte[] myRowsAndValuesBytes = req.bodyAsBytes();
+            String mySpec = req.queryParams(MergeOperators.OPERATOR_PARAMETER);
+            byte[] myOperand = req.bodyAsBytes();
 
-            if (myTable == null || myColumn == null || myRowsAndValuesBytes == null) {
-                LOGGER.debug("Bad Request: " + myTable + " " + myColumn + " " + myRowsAndValuesBytes);
+            if (myTable == null || myRow == null || myColumn == null || mySpec == null || myOperand == null) {
                 setResponseStatus(res, BAD_REQUEST);
                 return "Bad Request";
             }
 
-            String myRowsAndValuesStr = new String(myRowsAndValuesBytes, StandardCharsets.UTF_8);
-            String[] myRowsAndValuesList = myRowsAndValuesStr.split(BATCH_UNIQUE_SEPARATOR);
-            // System.out.println(Arrays.toString(myRowsAndValuesList));
-            int myVersion = 0;
-            for (String myRowAndValue : myRowsAndValuesList) {
-                String myRow = myRowAndValue.split(BATCH_ROW_VALUE_SEPARATOR)[0];
-                String myValue = myRowAndValue.split(BATCH_ROW_VALUE_SEPARATOR)[2];
-                System.out.println(myRowAndValue);
-                System.out.println("");
-                if (myRow != null && !myRow.equals("") && myRow.length() > 0) {
-                    myVersion = theData.append(myTable, myRow, myColumn, myValue.getBytes(), myDelimiter);
+            MergeOperator myOperator;
+            try {
+                myOperator = MergeOperators.forSpec(mySpec);
+            } catch (IllegalArgumentException e) {
+                setResponseStatus(res, BAD_REQUEST);
+                return e.getMessage();
+            }
+
+            boolean myReturnValue = "true".equals(req.queryParams(MergeOperators.RETURN_VALUE_PARAMETER));
+            if (!theData.canMerge(myTable, myOperator, myReturnValue)) {
+                setResponseStatus(res, BAD_REQUEST);
+                return NOT_SUPPORTED;
+            }
+
+            return writeOwned(req, res, myTable, List.of(myRow), () -> {
+                byte[] myValue = null;
+                if (myReturnValue) {
+                    myValue = theData.mergeAndGet(myTable, myRow, myColumn, myOperand, myOperator);
+                    if (myValue == null) {
+                        setResponseStatus(res, INTERNAL_SERVER_ERROR);
+                        return "Internal Server Error";
+                    }
+                } else if (theData.merge(myTable, myRow, myColumn, myOperand, myOperator) < 0) {
+                    setResponseStatus(res, INTERNAL_SERVER_ERROR);
+                    return "Internal Server Error";
+                }
+
+                if (!theData.sync()) {
+                    setResponseStatus(res, INTERNAL_SERVER_ERROR);
+                    return "Internal Server Error";
                 }
+                setResponseStatus(res, OK);
+                if (myValue == null) {
+                    return "OK";
+                }
+                res.bodyAsBytes(myValue);
+                return null;
+            });
+        };
+    }
+
+    /**
+     * Appends a batch of values, sent as {@link BatchFrames} records of row, column and value, joining them to
+     * existing values with the delimiter parameter or a comma.
+     */
+    private static Route batchAppend() {
+        return (req, res) -> {
+            String myTable = req.params("table");
+            String myDelimiter = req.queryParams("delimiter") == null ? "," : req.queryParams("delimiter");
+            if (myTable == null) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
             }
-            res.header("Version", String.valueOf(myVersion));
-            setResponseStatus(res, OK);
-            return "OK";
+
+            List<String> myRows = new ArrayList<>();
+            List<String> myColumns = new ArrayList<>();
+            List<byte[]> myValues = new ArrayList<>();
+            BatchFrames.Reader myReader = new BatchFrames.Reader(new ByteArrayInputStream(req.bodyAsBytes()));
+            try {
+                while (myReader.hasNext()) {
+                    String myRow = myReader.string();
+                    String myColumn = myReader.string();
+                    byte[] myValue = myReader.bytes();
+                    if (!myRow.isEmpty()) {
+                        myRows.add(myRow);
+                        myColumns.add(myColumn);
+                        myValues.add(myValue);
+                    }
+                }
+            } catch (Exception e) {
+                LOGGER.debug("Malformed batch for table " + myTable + ": " + e.getMessage());
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+
+            return writeOwned(req, res, myTable, myRows, () -> {
+                int myVersion = 0;
+                for (int i = 0; i < myRows.size(); i++) {
+                    myVersion = theData.append(myTable, myRows.get(i), myColumns.get(i), myValues.get(i), myDelimiter);
+                }
+
+                if (!theData.sync()) {
+                    setResponseStatus(res, INTERNAL_SERVER_ERROR);
+                    return "Internal Server Error";
+                }
+                res.header("Version", String.valueOf(myVersion));
+                setResponseStatus(res, OK);
+                return "OK";
+            });
         };
     }
 
     private static Route deleteTable() {
         return (req, res) -> {
-            forwardPutRequest(req);
             String myTable = req.params("table");
 
             if (myTable == null) {
@@ -430,7 +709,6 @@ public class Worker extends cis5550.generic.Worker {
 
     private static Route renameTable() {
         return (req, res) -> {
-            forwardPutRequest(req);
             String myTable = req.params("table");
             String myNewName = req.body();
 
@@ -464,6 +742,47 @@ public class Worker extends cis5550.generic.Worker {
         };
     }
 
+    /**
+     * Attaches the segment files that {@link BulkLoad} wrote to the directory named in the body, which must be on
+     * this worker's machine, to the table, or with the leader parameter to the leader's copy of it.
+     */
+    private static Route attachTable() {
+        return (req, res) -> {
+            String myTable = req.params("table");
+            String myDirectory = req.body();
+
+            if (myTable == null || myDirectory == null || myDirectory.isBlank()) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+
+            String myLeader = req.queryParams(WorkerReplicationManager.LEADER_PARAMETER);
+            File myFiles = new File(myDirectory.trim());
+            OpStatus myStatus = myLeader == null
+                    ? theData.attach(myTable, myFiles)
+                    : theReplicationManager.attach(myLeader, myTable, myFiles);
+            switch (myStatus) {
+                case SUCCESS:
+                    LOGGER.info("Attached " + myFiles + " to table " + myTable
+                            + (myLeader == null ? "" : " of " + myLeader));
+                    setResponseStatus(res, OK);
+                    return "OK";
+                case TABLE_NOT_FOUND:
+                    LOGGER.info("No segment files in " + myFiles);
+                    setResponseStatus(res, NOT_FOUND);
+                    return "Not found";
+                case WRONG_NAME_FORMAT:
+                    LOGGER.info("Table " + myTable + " is not log-structured");
+                    setResponseStatus(res, BAD_REQUEST);
+                    return "Bad Request";
+                default:
+                    LOGGER.error("Failed to attach table");
+                    setResponseStatus(res, INTERNAL_SERVER_ERROR);
+                    return "Internal Server Error";
+            }
+        };
+    }
+
     private static Route rowCount() {
         return (req, res) -> {
             String myTable = req.params("table");
@@ -507,12 +826,379 @@ public class Worker extends cis5550.generic.Worker {
         };
     }
 
-    private static void forwardPutRequest(Request aReq) {
-        // turn off replication for now!
-        return;
-//        if (aReq.queryParams("replica") != null) {
-//            return;
-//        }
-//        theReplicationManager.forwardPuts(aReq);
+    /**
+     * Runs a write to keys of the table if this worker owns all of them, and answers 421 without writing
+     * anything otherwise, so that clients with an old list of workers look up the new owner. A successful write
+     * is answered once the replicas the acks parameter asks for have it, or with 504 if they take too long.
+     */
+    private static Object writeOwned(Request aReq, Response aRes, String aTable, Collection<String> aKeys,
+                                     Callable<Object> aWrite) throws Exception {
+        WorkerReplicationManager.Acks myAcks;
+        try {
+            myAcks = theReplicationManager.acks(aReq.queryParams(WorkerReplicationManager.ACKS_PARAMETER));
+        } catch (IllegalArgumentException e) {
+            setResponseStatus(aRes, BAD_REQUEST);
+            return "Bad Request";
+        }
+
+        if (!theHandoff.admit(aKeys)) {
+            return misdirected(aRes);
+        }
+        Object myResult;
+        try {
+            myResult = aWrite.call();
+        } finally {
+            theHandoff.release(aTable, aKeys);
+        }
+
+        // Successful writes answer OK, or with the body already set
+        if ((myResult == null || "OK".equals(myResult)) && !theReplicationManager.awaitAcks(myAcks)) {
+            setResponseStatus(aRes, GATEWAY_TIMEOUT);
+            return "Not acknowledged by replicas";
+        }
+        return myResult;
+    }
+
+    /**
+     * Returns the datastore to read the keys from: this worker's own if it owns them all, or the copy of the
+     * leader the request names, if this worker has a complete one and the leader still owns them all. Returns
+     * null otherwise, as the rows may have moved on with a rebalance.
+     */
+    private static Datastore dataToRead(Request aReq, Collection<String> aKeys) {
+        String myLeader = aReq.queryParams(WorkerReplicationManager.LEADER_PARAMETER);
+        if (myLeader != null) {
+            if (!aKeys.stream().allMatch(aKey -> theHandoff.ownedBy(myLeader, aKey))) {
+                return null;
+            }
+            return theReplicationManager.copyToRead(myLeader);
+        }
+        return aKeys.stream().allMatch(theHandoff::owns) ? theData : null;
+    }
+
+    private static Object misdirected(Response aRes) {
+        setResponseStatus(aRes, MISDIRECTED_REQUEST);
+        return "Misdirected Request";
+    }
+
+    /**
+     * Takes on the members the coordinator announces for an epoch, listed as by its /workers route.
+     */
+    private static Route announceMembers() {
+        return (req, res) -> {
+            long myEpoch;
+            try {
+                myEpoch = Long.parseLong(req.queryParams("epoch"));
+            } catch (NumberFormatException e) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+            theHandoff.announce(myEpoch, req.body());
+            setResponseStatus(res, OK);
+            return "OK";
+        };
+    }
+
+    /**
+     * Hands the ranges, sent as {@link RangeHandoff.Move} records, to their targets, and answers once the
+     * targets hold all of their rows. Writes to the ranges are held back until the handoff is committed or
+     * aborted.
+     */
+    private static Route sendRanges() {
+        return (req, res) -> {
+            List<RangeHandoff.Move> myMoves;
+            try {
+                myMoves = RangeHandoff.Move.read(new BatchFrames.Reader(new ByteArrayInputStream(req.bodyAsBytes())));
+            } catch (Exception e) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+
+            try {
+                theHandoff.send(myMoves);
+            } catch (IllegalStateException e) {
+                setResponseStatus(res, CONFLICT);
+                return e.getMessage();
+            } catch (IOException e) {
+                LOGGER.error("Failed to hand off " + myMoves.size() + " ranges", e);
+                setResponseStatus(res, INTERNAL_SERVER_ERROR);
+                return "Internal Server Error";
+            }
+            setResponseStatus(res, OK);
+            return "OK";
+        };
+    }
+
+    /**
+     * Stores rows handed off by another worker, sent as {@link BatchFrames} records of binary rows. The rows
+     * are taken whether or not this worker owns them yet.
+     */
+    private static Route receiveRows() {
+        return (req, res) -> {
+            String myTable = req.params("table");
+            if (myTable == null) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+
+            BatchFrames.Reader myReader = new BatchFrames.Reader(new ByteArrayInputStream(req.bodyAsBytes()));
+            try {
+                while (myReader.hasNext()) {
+                    Row myRow = Row.readFrom(ByteBuffer.wrap(myReader.bytes()));
+                    if (theData.putRow(myTable, myRow.key(), myRow) < 0) {
+                        setResponseStatus(res, INTERNAL_SERVER_ERROR);
+                        return "Internal Server Error";
+                    }
+                }
+            } catch (Exception e) {
+                LOGGER.debug("Malformed rows for table " + myTable + ": " + e.getMessage());
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+
+            if (!theData.sync()) {
+                setResponseStatus(res, INTERNAL_SERVER_ERROR);
+                return "Internal Server Error";
+            }
+            setResponseStatus(res, OK);
+            return "OK";
+        };
+    }
+
+    /**
+     * Ends a handoff: takes on the members of the new epoch, sent as for /rebalance/members, and deletes the
+     * rows that were handed off.
+     */
+    private static Route commitHandoff() {
+        return (req, res) -> {
+            long myEpoch;
+            try {
+                myEpoch = Long.parseLong(req.queryParams("epoch"));
+            } catch (NumberFormatException e) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+            theHandoff.commit(myEpoch, req.body());
+            setResponseStatus(res, OK);
+            return "OK";
+        };
+    }
+
+    private static Route abortHandoff() {
+        return (req, res) -> {
+            theHandoff.abort();
+            setResponseStatus(res, OK);
+            return "OK";
+        };
+    }
+
+    /**
+     * Deletes the rows this worker took for the ranges, sent as {@link RangeHandoff.Move} records, if it does
+     * not own them after all.
+     */
+    private static Route discardRows() {
+        return (req, res) -> {
+            List<RangeHandoff.Move> myMoves;
+            try {
+                myMoves = RangeHandoff.Move.read(new BatchFrames.Reader(new ByteArrayInputStream(req.bodyAsBytes())));
+            } catch (Exception e) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+            theHandoff.discard(myMoves);
+            setResponseStatus(res, OK);
+            return "OK";
+        };
+    }
+
+    /**
+     * Shows how often the hottest keys are read and how well the cache of them works.
+     */
+    private static Route hotKeys() {
+        return (req, res) -> {
+            if (theCache == null) {
+                setResponseStatus(res, NOT_FOUND);
+                return "Caching is off";
+            }
+            setResponseStatus(res, OK);
+            res.type("text/plain");
+            return theCache.stats();
+        };
+    }
+
+    /**
+     * Answers with the generation and offset of the leader's log that this worker's copy of it reflects.
+     */
+    private static Route replicationOffset() {
+        return (req, res) -> {
+            String myLeader = req.queryParams("leader");
+            if (myLeader == null) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+            setResponseStatus(res, OK);
+            return theReplicationManager.offset(myLeader);
+        };
+    }
+
+    /**
+     * Applies a batch of the leader's log to this worker's copy of it, and answers 409 if the batch does not
+     * continue the copy.
+     */
+    private static Route applyReplication() {
+        return (req, res) -> {
+            String myLeader = req.queryParams("leader");
+            long myGeneration;
+            long myFrom;
+            long myTo;
+            try {
+                myGeneration = Long.parseLong(req.queryParams("generation"));
+                myFrom = req.queryParams("from") == null ? -1 : Long.parseLong(req.queryParams("from"));
+                myTo = req.queryParams("to") == null ? -1 : Long.parseLong(req.queryParams("to"));
+            } catch (NumberFormatException e) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+            if (myLeader == null) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+
+            try {
+                if (!theReplicationManager.apply(myLeader, myGeneration, myFrom, myTo,
+                        "true".equals(req.queryParams("reset")), req.bodyAsBytes())) {
+                    setResponseStatus(res, CONFLICT);
+                    return theReplicationManager.offset(myLeader);
+                }
+            } catch (IOException e) {
+                LOGGER.error("Failed to apply the log of " + myLeader, e);
+                setResponseStatus(res, INTERNAL_SERVER_ERROR);
+                return "Internal Server Error";
+            } catch (Exception e) {
+                LOGGER.debug("Malformed log batch from " + myLeader + ": " + e.getMessage());
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+            setResponseStatus(res, OK);
+            return "OK";
+        };
+    }
+
+    private static Route dropReplica() {
+        return (req, res) -> {
+            String myLeader = req.queryParams("leader");
+            if (myLeader == null) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+            theReplicationManager.drop(myLeader);
+            setResponseStatus(res, OK);
+            return "OK";
+        };
+    }
+
+    private static Route copiedTables() {
+        return (req, res) -> {
+            String myLeader = req.queryParams("leader");
+            if (myLeader == null) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+            setResponseStatus(res, OK);
+            return theReplicationManager.copiedTables(myLeader);
+        };
+    }
+
+    /**
+     * Starts a Merkle tree for this worker's copy of the leader's table, with the boundaries in the body.
+     */
+    private static Route installTree() {
+        return (req, res) -> {
+            String myLeader = req.queryParams("leader");
+            String myTable = req.queryParams("table");
+            String myVersion = req.queryParams("version");
+            if (myLeader == null || myTable == null || myVersion == null) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+            List<String> myBoundaries = new ArrayList<>();
+            try {
+                BatchFrames.Reader myReader = new BatchFrames.Reader(new ByteArrayInputStream(req.bodyAsBytes()));
+                while (myReader.hasNext()) {
+                    myBoundaries.add(myReader.string());
+                }
+            } catch (Exception e) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+            theReplicationManager.installTree(myLeader, myTable, myVersion, myBoundaries.toArray(new String[0]));
+            setResponseStatus(res, OK);
+            return "OK";
+        };
+    }
+
+    /**
+     * Answers with the hashes of the copy's Merkle tree for the leader's table, one per line, or 404 if it has no
+     * tree of the version.
+     */
+    private static Route treeHashes() {
+        return (req, res) -> {
+            String myLeader = req.queryParams("leader");
+            String myTable = req.queryParams("table");
+            String myVersion = req.queryParams("version");
+            int myNode;
+            try {
+                myNode = req.queryParams("node") == null ? -1 : Integer.parseInt(req.queryParams("node"));
+            } catch (NumberFormatException e) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+            if (myLeader == null || myTable == null || myVersion == null) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+            long[] myHashes = theReplicationManager.treeHashes(myLeader, myTable, myVersion, myNode);
+            if (myHashes == null) {
+                setResponseStatus(res, NOT_FOUND);
+                return "Not Found";
+            }
+            StringBuilder myBuilder = new StringBuilder();
+            for (long myHash : myHashes) {
+                myBuilder.append(myHash).append("\n");
+            }
+            setResponseStatus(res, OK);
+            return myBuilder.toString();
+        };
+    }
+
+    /**
+     * Answers with the key and hash of every row of the copy of the leader's table in the range the body gives.
+     */
+    private static Route rowHashes() {
+        return (req, res) -> {
+            String myLeader = req.queryParams("leader");
+            String myTable = req.queryParams("table");
+            if (myLeader == null || myTable == null) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+            String myFrom;
+            String myTo;
+            try {
+                BatchFrames.Reader myReader = new BatchFrames.Reader(new ByteArrayInputStream(req.bodyAsBytes()));
+                byte[] myFromBytes = myReader.nullableBytes();
+                byte[] myToBytes = myReader.nullableBytes();
+                myFrom = myFromBytes == null ? null : new String(myFromBytes, StandardCharsets.UTF_8);
+                myTo = myToBytes == null ? null : new String(myToBytes, StandardCharsets.UTF_8);
+            } catch (Exception e) {
+                setResponseStatus(res, BAD_REQUEST);
+                return "Bad Request";
+            }
+            BatchFrames.Writer myWriter = new BatchFrames.Writer();
+            theReplicationManager.writeRowHashes(myLeader, myTable, myFrom, myTo, myWriter);
+            setResponseStatus(res, OK);
+            res.type(BatchFrames.CONTENT_TYPE);
+            res.bodyAsBytes(myWriter.toByteArray());
+            return null;
+        };
     }
 }
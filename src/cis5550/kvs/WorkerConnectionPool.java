@@ -0,0 +1,380 @@
+package cis5550.kvs;
+
+import cis5550.tools.HTTP;
+import cis5550.tools.Logger;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Keep-alive connections to one KVS worker, each carrying up to {@link #MAX_PIPELINE_DEPTH} requests whose
+ * responses have not arrived yet. A request goes to the least loaded connection, a new connection is opened while
+ * there are fewer than {@link #MAX_CONNECTIONS}, and beyond that requests wait for a response to free a slot.
+ * <p>
+ * The worker answers the requests of a connection in order, so each connection matches responses to requests
+ * by position. Responses are handed to the futures on the common pool, never on a connection's reader thread.
+ * <p>
+ * There is one pool per worker and process, shared by all clients, since the worker serves every open connection
+ * with a thread of its own. For the same reason, a connection that has had nothing in flight for
+ * {@link #IDLE_TIMEOUT_MILLIS} is closed.
+ */
+class WorkerConnectionPool {
+    public static final Logger LOGGER = Logger.getLogger(WorkerConnectionPool.class);
+    public static final int MAX_CONNECTIONS = 4;
+    public static final int MAX_PIPELINE_DEPTH = 16;
+    public static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    public static final int IDLE_TIMEOUT_MILLIS = 10000;
+
+    private static final Executor COMPLETION_EXECUTOR = ForkJoinPool.commonPool();
+    private static final ConcurrentMap<String, WorkerConnectionPool> POOLS = new ConcurrentHashMap<>();
+
+    private record PendingRequest(String method, String path, byte[] body, CompletableFuture<HTTP.Response> result) {
+    }
+
+    /**
+     * Where a request goes: on the connection, on a new one if open is set, or nowhere yet if neither.
+     */
+    private record Slot(Connection connection, boolean open) {
+    }
+
+    private static final Slot QUEUED = new Slot(null, false);
+    private static final Slot OPEN = new Slot(null, true);
+
+    private final String theHost;
+    private final int thePort;
+    private final List<Connection> theConnections;
+    private final Deque<PendingRequest> theWaiting;
+    private int theConnecting;
+
+    private WorkerConnectionPool(String aAddress) {
+        int mySeparator = aAddress.lastIndexOf(':');
+        theHost = aAddress.substring(0, mySeparator);
+        thePort = Integer.parseInt(aAddress.substring(mySeparator + 1));
+        theConnections = new ArrayList<>();
+        theWaiting = new ArrayDeque<>();
+    }
+
+    /**
+     * Returns the pool of the worker at the ip:port.
+     */
+    static WorkerConnectionPool forWorker(String aAddress) {
+        return POOLS.computeIfAbsent(aAddress, WorkerConnectionPool::new);
+    }
+
+    CompletableFuture<HTTP.Response> send(String aMethod, String aPath, byte[] aBody) {
+        PendingRequest myRequest = new PendingRequest(aMethod, aPath, aBody, new CompletableFuture<>());
+        Slot mySlot = reserve(myRequest);
+        Connection myConnection = mySlot.open() ? connect(myRequest) : mySlot.connection();
+        if (myConnection != null) {
+            myConnection.write(myRequest);
+        }
+        return myRequest.result();
+    }
+
+    /**
+     * Sends a request on a connection of its own, for responses that are streamed until the worker closes the
+     * connection and so cannot be followed by other requests.
+     */
+    CompletableFuture<HTTP.Response> sendAlone(String aMethod, String aPath, byte[] aBody) {
+        PendingRequest myRequest = new PendingRequest(aMethod, aPath, aBody, new CompletableFuture<>());
+        try {
+            Connection myConnection = new Connection(false);
+            myConnection.theInFlight = 1;
+            myConnection.write(myRequest);
+        } catch (IOException e) {
+            myRequest.result().completeExceptionally(e);
+        }
+        return myRequest.result();
+    }
+
+    /**
+     * Takes a pipeline slot for the request, or queues it if every slot is taken. A request that is to go on a new
+     * connection gets {@link #OPEN}, and its caller opens the connection outside the lock.
+     */
+    private synchronized Slot reserve(PendingRequest aRequest) {
+        Connection myBest = null;
+        for (Connection myConnection : theConnections) {
+            if (myConnection.theInFlight < MAX_PIPELINE_DEPTH
+                    && (myBest == null || myConnection.theInFlight < myBest.theInFlight)) {
+                myBest = myConnection;
+            }
+        }
+        if ((myBest == null || myBest.theInFlight > 0) && theConnections.size() + theConnecting < MAX_CONNECTIONS) {
+            theConnecting++;
+            return OPEN;
+        }
+        if (myBest == null) {
+            theWaiting.add(aRequest);
+            return QUEUED;
+        }
+        myBest.theInFlight++;
+        return new Slot(myBest, false);
+    }
+
+    /**
+     * Opens a connection for the request, or fails the request and returns null.
+     */
+    private Connection connect(PendingRequest aRequest) {
+        Connection myConnection = null;
+        try {
+            myConnection = new Connection(true);
+        } catch (IOException e) {
+            aRequest.result().completeExceptionally(e);
+        }
+        List<PendingRequest> myRetries = List.of();
+        synchronized (this) {
+            theConnecting--;
+            if (myConnection != null) {
+                myConnection.theInFlight = 1;
+                theConnections.add(myConnection);
+            } else if (theConnections.isEmpty() && theConnecting == 0) {
+                myRetries = new ArrayList<>(theWaiting);
+                theWaiting.clear();
+            }
+        }
+        IOException myError = new IOException("Failed to connect to " + theHost + ":" + thePort);
+        myRetries.forEach(aWaiting -> aWaiting.result().completeExceptionally(myError));
+        return myConnection;
+    }
+
+    /**
+     * Removes the connection from the pool if nothing is in flight on it, so that it can be closed.
+     */
+    private synchronized boolean retireIfIdle(Connection aConnection) {
+        if (aConnection.theInFlight > 0) {
+            return false;
+        }
+        theConnections.remove(aConnection);
+        return true;
+    }
+
+    private void onResponse(Connection aConnection) {
+        PendingRequest myNext;
+        synchronized (this) {
+            aConnection.theInFlight--;
+            myNext = theWaiting.poll();
+            if (myNext != null) {
+                aConnection.theInFlight++;
+            }
+        }
+        if (myNext != null) {
+            aConnection.write(myNext);
+        }
+    }
+
+    private void onClosed(Connection aConnection) {
+        List<PendingRequest> myRetries = new ArrayList<>();
+        synchronized (this) {
+            theConnections.remove(aConnection);
+            if (theConnections.isEmpty() && theConnecting == 0) {
+                myRetries.addAll(theWaiting);
+                theWaiting.clear();
+            }
+        }
+        // Requests that were waiting for a slot were never sent, so they can go out on a new connection
+        for (PendingRequest myRequest : myRetries) {
+            send(myRequest.method(), myRequest.path(), myRequest.body()).whenComplete((aResponse, aError) -> {
+                if (aError != null) {
+                    myRequest.result().completeExceptionally(aError);
+                } else {
+                    myRequest.result().complete(aResponse);
+                }
+            });
+        }
+    }
+
+    private class Connection {
+        private final Socket theSocket;
+        private final OutputStream theOut;
+        private final InputStream theIn;
+        private final Deque<CompletableFuture<HTTP.Response>> thePending;
+        private final boolean thePooled;
+        private int theInFlight;
+        private boolean theClosed;
+
+        Connection(boolean aPooled) throws IOException {
+            theSocket = new Socket();
+            theSocket.connect(new InetSocketAddress(theHost, thePort), CONNECT_TIMEOUT_MILLIS);
+            theSocket.setTcpNoDelay(true);
+            if (aPooled) {
+                theSocket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+            }
+            theOut = new BufferedOutputStream(theSocket.getOutputStream());
+            theIn = new BufferedInputStream(theSocket.getInputStream());
+            thePending = new ArrayDeque<>();
+            thePooled = aPooled;
+
+            Thread myReader = new Thread(this::readLoop, "kvs-connection-" + theHost + ":" + thePort);
+            myReader.setDaemon(true);
+            myReader.start();
+        }
+
+        void write(PendingRequest aRequest) {
+            StringBuilder myHeader = new StringBuilder()
+                    .append(aRequest.method()).append(' ').append(aRequest.path()).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(theHost).append("\r\n");
+            if (aRequest.body() != null) {
+                myHeader.append("Content-Length: ").append(aRequest.body().length).append("\r\n");
+            }
+            myHeader.append("Connection: keep-alive\r\n\r\n");
+
+            synchronized (this) {
+                if (theClosed) {
+                    aRequest.result().completeExceptionally(
+                            new IOException("Connection to " + theHost + ":" + thePort + " is closed"));
+                    return;
+                }
+                thePending.add(aRequest.result());
+                try {
+                    theOut.write(myHeader.toString().getBytes(StandardCharsets.UTF_8));
+                    if (aRequest.body() != null) {
+                        theOut.write(aRequest.body());
+                    }
+                    theOut.flush();
+                } catch (IOException e) {
+                    LOGGER.debug("Failed to send request to " + theHost + ":" + thePort + ": " + e.getMessage());
+                    close();
+                }
+            }
+        }
+
+        private void readLoop() {
+            try {
+                while (true) {
+                    HTTP.Response myResponse = readResponse();
+                    if (myResponse == null) {
+                        break;
+                    }
+
+                    CompletableFuture<HTTP.Response> myResult;
+                    synchronized (this) {
+                        myResult = thePending.poll();
+                    }
+                    if (myResult != null) {
+                        COMPLETION_EXECUTOR.execute(() -> myResult.complete(myResponse));
+                    }
+                    if (!thePooled || myResponse.headers().get("content-length") == null) {
+                        break;
+                    }
+                    onResponse(this);
+                }
+            } catch (IOException e) {
+                LOGGER.debug("Connection to " + theHost + ":" + thePort + " failed: " + e.getMessage());
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Reads one response, or returns null if the worker closed the connection before sending one. Without a
+         * Content-Length the body runs until the connection is closed.
+         */
+        private HTTP.Response readResponse() throws IOException {
+            if (!awaitResponse()) {
+                return null;
+            }
+            String myStatusLine = readLine();
+            if (myStatusLine == null) {
+                return null;
+            }
+            String[] myStatus = myStatusLine.split(" ", 3);
+            if (myStatus.length < 2) {
+                throw new IOException("Malformed status line '" + myStatusLine + "'");
+            }
+
+            Map<String, String> myHeaders = new HashMap<>();
+            String myLine;
+            while ((myLine = readLine()) != null && !myLine.isEmpty()) {
+                int myColon = myLine.indexOf(':');
+                if (myColon > 0) {
+                    myHeaders.put(myLine.substring(0, myColon).trim().toLowerCase(), myLine.substring(myColon + 1).trim());
+                }
+            }
+
+            byte[] myBody;
+            String myContentLength = myHeaders.get("content-length");
+            if (myContentLength == null) {
+                myBody = theIn.readAllBytes();
+            } else {
+                int myLength = Integer.parseInt(myContentLength);
+                myBody = theIn.readNBytes(myLength);
+                if (myBody.length != myLength) {
+                    throw new IOException("Response ended after " + myBody.length + " of " + myLength + " bytes");
+                }
+            }
+            if (thePooled) {
+                theSocket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+            }
+            return new HTTP.Response(myBody, myHeaders, Integer.parseInt(myStatus[1]));
+        }
+
+        /**
+         * Waits for the first byte of the next response, and returns false if the worker closed the connection or
+         * if it was idle long enough to be retired. Once a response starts, it is read without a timeout.
+         */
+        private boolean awaitResponse() throws IOException {
+            while (true) {
+                try {
+                    theIn.mark(1);
+                    if (theIn.read() < 0) {
+                        return false;
+                    }
+                    theIn.reset();
+                    theSocket.setSoTimeout(0);
+                    return true;
+                } catch (SocketTimeoutException e) {
+                    if (retireIfIdle(this)) {
+                        LOGGER.debug("Closing idle connection to " + theHost + ":" + thePort);
+                        return false;
+                    }
+                }
+            }
+        }
+
+        private String readLine() throws IOException {
+            ByteArrayOutputStream myLine = new ByteArrayOutputStream();
+            int myByte;
+            while ((myByte = theIn.read()) >= 0 && myByte != '\n') {
+                if (myByte != '\r') {
+                    myLine.write(myByte);
+                }
+            }
+            if (myByte < 0 && myLine.size() == 0) {
+                return null;
+            }
+            return myLine.toString(StandardCharsets.ISO_8859_1);
+        }
+
+        void close() {
+            List<CompletableFuture<HTTP.Response>> myFailed;
+            synchronized (this) {
+                if (theClosed) {
+                    return;
+                }
+                theClosed = true;
+                myFailed = new ArrayList<>(thePending);
+                thePending.clear();
+            }
+            try {
+                theSocket.close();
+            } catch (IOException e) {
+                LOGGER.debug("Failed to close connection to " + theHost + ":" + thePort);
+            }
+
+            IOException myError = new IOException("Connection to " + theHost + ":" + thePort + " closed before the response");
+            myFailed.forEach(aResult -> aResult.completeExceptionally(myError));
+            if (thePooled) {
+                onClosed(this);
+            }
+        }
+    }
+}
@@ -1,137 +1,581 @@
 package cis5550.kvs;
 
+import cis5550.generic.MembershipWatcher;
 import cis5550.kvs.datamodels.IPPort;
+import cis5550.kvs.datamodels.OpStatus;
+import cis5550.kvs.datastore.Datastore;
+import cis5550.kvs.datastore.DatastoreContainer;
+import cis5550.kvs.datastore.DatastoreType;
+import cis5550.kvs.datastore.ReplicationLog;
+import cis5550.tools.HTTP;
 import cis5550.tools.Logger;
-import cis5550.webserver.Request;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.SortedMap;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.List;
+import java.util.stream.Stream;
 
+/**
+ * Replicates a worker's datastore to the {@link #REPLICAS_PROPERTY} workers that follow it in the sorted list of
+ * workers, and keeps the copies that other workers replicate to this one. Replication is off unless that property
+ * is set: every copy doubles the disk and the writes of a worker, including those of the temporary tables of
+ * Flame jobs, and a full copy starts over when the leader restarts.
+ * <p>
+ * As a leader, the worker records its mutations in a {@link ReplicationLog}, and a thread per replica ships them
+ * in batches over the connection {@link HTTP} keeps open to the replica, reading the rows they name as they are
+ * by then. A replica only applies a batch that starts where the last one ended, and acknowledges it by answering;
+ * writes can wait for the acknowledgements of one or all replicas (see {@link Acks}). A replica that restarts
+ * reports the offset it saved with its copy and catches up from there. One that is too far behind, or whose copy
+ * is from an earlier run of the leader, is sent a full copy first, and the entries logged meanwhile after it.
+ * <p>
+ * As a replica, the worker keeps each leader's copy in a datastore of its own under {@link #REPLICAS_DIRECTORY},
+ * apart from the tables it serves, with the {@link MerkleTree}s the leader's {@link AntiEntropy} compares it by.
+ * Clients may read from a complete copy, which lags the leader by the writes not yet shipped.
+ */
 public class WorkerReplicationManager {
     public static final Logger LOGGER = Logger.getLogger(WorkerReplicationManager.class);
-    public static final int NUM_REPLICAS = 2;
-    public static final int PING_INTERVAL = 5000;
+    public static final String REPLICAS_PROPERTY = "kvs.replicas";
+    public static final int DEFAULT_REPLICAS = 0;
+    public static final String ACKS_PROPERTY = "kvs.replication.acks";
+    public static final String ACKS_PARAMETER = "acks";
+    public static final String LEADER_PARAMETER = "leader";
+    public static final String ACK_TIMEOUT_PROPERTY = "kvs.replication.ackTimeoutMillis";
+    public static final long DEFAULT_ACK_TIMEOUT_MILLIS = 10000;
+    public static final int BATCH_ENTRIES = 1000;
+    public static final int BATCH_SIZE = 1 << 20;
+    public static final long READ_WAIT_MILLIS = 1000;
+    public static final long RETRY_DELAY_MILLIS = 5000;
+    public static final String REPLICAS_DIRECTORY = "replicas";
+    public static final String OFFSET_FILE = "replication-offset";
+
+    /**
+     * How many replicas must have applied a write before it is acknowledged to the client. ONE and ALL count
+     * the replicas the leader ships to at the time, so a worker without replicas acknowledges every write itself.
+     */
+    public enum Acks {
+        LEADER,
+        ONE,
+        ALL
+    }
+
+    /**
+     * A leader's datastore on this worker, with the generation and offset of the leader's log it reflects. The
+     * offset is -1 while the copy is incomplete. Copies of in-memory tables do not survive a restart, so a copy
+     * that has them starts over instead of catching up.
+     */
+    private static class Copy {
+        final File directory;
+        final DatastoreContainer data;
+        long generation;
+        long offset = -1;
+        boolean hasInMemoryTables;
+        final Map<String, MerkleTree> trees = new ConcurrentHashMap<>();
+
+        Copy(File aDirectory) {
+            if (!aDirectory.exists() && !aDirectory.mkdirs()) {
+                LOGGER.error("Failed to create directory " + aDirectory);
+            }
+            directory = aDirectory;
+            data = new DatastoreContainer(aDirectory.getPath());
+        }
+    }
 
-    private final SortedMap<String, IPPort> theReplicaWorkerAddresses;
-    private final IPPort theCoordinatorAddr;
     private final String theName;
+    private final IPPort theCoordinatorAddr;
+    private final String theDirectory;
+    private final Datastore theData;
+    private final ReplicationLog theLog;
+    private final int theReplicaCount;
+    private final Acks theDefaultAcks;
+    private final long theAckTimeoutMillis;
+    private final Map<String, Shipper> theShippers;
+    private final Map<String, Copy> theCopies;
 
-    public WorkerReplicationManager(String aName, IPPort aCoordinatorAddr) {
+    /**
+     * The log is null if this worker does not replicate its own datastore, only keeps copies of others.
+     */
+    public WorkerReplicationManager(String aName, IPPort aCoordinatorAddr, String aDirectory, Datastore aData,
+                                    ReplicationLog aLog) {
         theName = aName;
-        theReplicaWorkerAddresses = new ConcurrentSkipListMap<>();
         theCoordinatorAddr = aCoordinatorAddr;
+        theDirectory = aDirectory;
+        theData = aData;
+        theLog = aLog;
+        theReplicaCount = aLog == null ? 0 : replicaCount();
+        theDefaultAcks = Acks.valueOf(System.getProperty(ACKS_PROPERTY, Acks.LEADER.name()).toUpperCase());
+        theAckTimeoutMillis = Long.getLong(ACK_TIMEOUT_PROPERTY, DEFAULT_ACK_TIMEOUT_MILLIS);
+        theShippers = new ConcurrentHashMap<>();
+        theCopies = new ConcurrentHashMap<>();
 
-        startReplicationThread();
+        if (theReplicaCount > 0) {
+            startReplicationThread();
+            new AntiEntropy(aName, aData, aLog, this::replicaAddresses).start();
+        }
     }
 
+    public static int replicaCount() {
+        return Integer.getInteger(REPLICAS_PROPERTY, DEFAULT_REPLICAS);
+    }
+
+    /**
+     * Picks the replicas again whenever the coordinator's view of the workers changes.
+     */
     public void startReplicationThread() {
-        Thread myReplicationThread = new Thread(() -> {
-            while (true) {
+        MembershipWatcher.forCoordinator(theCoordinatorAddr.ip() + ":" + theCoordinatorAddr.port())
+                .addListener(aView -> {
+                    SortedMap<String, IPPort> myAllWorkers = new ConcurrentSkipListMap<>();
+                    aView.members().forEach(aMember -> myAllWorkers.put(aMember.id(), IPPort.fromString(aMember.address())));
+                    setMyReplicas(myAllWorkers);
+                });
+    }
+
+    /**
+     * Ships to the workers that follow this one in ID order, wrapping around, and tells workers that are no
+     * longer replicas to drop their copies. Lists without this worker are ignored. Workers that are down keep
+     * their place, so that clients find a row's replicas where they were, and are shipped to once they are back.
+     */
+    private void setMyReplicas(SortedMap<String, IPPort> aAllWorkers) {
+        if (!aAllWorkers.containsKey(theName)) {
+            // Either the coordinator has not heard from this worker yet or it is not a member, and has no data
+            return;
+        }
+        List<String> myOthers = new ArrayList<>(aAllWorkers.tailMap(theName).keySet());
+        myOthers.addAll(aAllWorkers.headMap(theName).keySet());
+        myOthers.remove(theName);
+        List<String> myReplicas = myOthers.subList(0, Math.min(theReplicaCount, myOthers.size()));
+
+        theShippers.entrySet().removeIf(aEntry -> {
+            if (myReplicas.contains(aEntry.getKey())) {
+                return false;
+            }
+            LOGGER.info("Worker " + aEntry.getKey() + " is no longer a replica");
+            aEntry.getValue().stop();
+            return true;
+        });
+        for (String myReplica : myReplicas) {
+            String myAddress = aAllWorkers.get(myReplica).ip() + ":" + aAllWorkers.get(myReplica).port();
+            Shipper myShipper = theShippers.computeIfAbsent(myReplica, aReplica -> {
+                LOGGER.info("Worker " + aReplica + " is a new replica");
+                Shipper myNewShipper = new Shipper(aReplica, myAddress);
+                Thread myThread = new Thread(myNewShipper, "replication-" + aReplica);
+                myThread.setDaemon(true);
+                myThread.start();
+                return myNewShipper;
+            });
+            myShipper.theAddress = myAddress;
+        }
+        theLog.retainReplicas(myReplicas);
+    }
+
+    private Map<String, String> replicaAddresses() {
+        Map<String, String> myAddresses = new TreeMap<>();
+        theShippers.forEach((aReplica, aShipper) -> myAddresses.put(aReplica, aShipper.theAddress));
+        return myAddresses;
+    }
+
+    /**
+     * Returns the acknowledgement level a request asks for with the acks parameter, or the default.
+     *
+     * @throws IllegalArgumentException if the parameter names no level
+     */
+    public Acks acks(String aParameterOrNull) {
+        return aParameterOrNull == null ? theDefaultAcks : Acks.valueOf(aParameterOrNull.toUpperCase());
+    }
+
+    /**
+     * Waits until the replicas the level asks for have applied every write logged so far, and returns false if
+     * they take longer than {@link #ACK_TIMEOUT_PROPERTY}.
+     */
+    public boolean awaitAcks(Acks aAcks) throws InterruptedException {
+        if (theLog == null || aAcks == Acks.LEADER) {
+            return true;
+        }
+        int myReplicas = theShippers.size();
+        int myNeeded = aAcks == Acks.ONE ? Math.min(1, myReplicas) : myReplicas;
+        return myNeeded == 0 || theLog.awaitAcknowledgements(theLog.endOffset(), myNeeded, theAckTimeoutMillis);
+    }
+
+    /**
+     * Ships the log to one replica, starting with a full copy when the replica cannot catch up from the log.
+     */
+    private class Shipper implements Runnable {
+        private final String theReplica;
+        private volatile String theAddress;
+        private volatile boolean theStopped;
+        private long theNextOffset = -1;
+
+        Shipper(String aReplica, String aAddress) {
+            theReplica = aReplica;
+            theAddress = aAddress;
+        }
+
+        void stop() {
+            theStopped = true;
+        }
+
+        @Override
+        public void run() {
+            while (!theStopped) {
                 try {
-                    Thread.sleep(PING_INTERVAL);
+                    if (theNextOffset < 0) {
+                        theNextOffset = catchUp();
+                        theLog.acknowledge(theReplica, theNextOffset);
+                    }
+                    List<ReplicationLog.Entry> myEntries = theLog.read(theNextOffset, BATCH_ENTRIES, READ_WAIT_MILLIS);
+                    if (myEntries == null) {
+                        LOGGER.info("Replica " + theReplica + " fell behind the log and gets a full copy");
+                        theNextOffset = -1;
+                    } else if (!myEntries.isEmpty()) {
+                        ship(myEntries);
+                    }
                 } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.warn("Failed to replicate to " + theReplica + " at " + theAddress + ": " + e.getMessage());
+                    theNextOffset = -1;
+                    try {
+                        Thread.sleep(RETRY_DELAY_MILLIS);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
                 }
-                SortedMap<String, IPPort> myAllWorkers = getWorkersFromCoordinator();
-                setMyReplicas(myAllWorkers);
             }
-        });
-        myReplicationThread.start();
-    }
-
-    private SortedMap<String, IPPort> getWorkersFromCoordinator() {
-        SortedMap<String, IPPort> myAllWorkers = new ConcurrentSkipListMap<>();
-        try {
-            URL myURL = URI.create("http://" + theCoordinatorAddr.ip() + ":" + theCoordinatorAddr.port() + "/workers")
-                    .toURL();
-
-            HttpURLConnection myConnection = (HttpURLConnection) myURL.openConnection();
-            myConnection.setRequestMethod("GET");
-            myConnection.connect();
-            BufferedReader myReader = new BufferedReader(new InputStreamReader(myConnection.getInputStream()));
-            while (myReader.ready()) {
-                String myLine = myReader.readLine();
-                if (myLine == null) {
-                    break;
+
+            try {
+                apply("drop", null);
+            } catch (IOException e) {
+                LOGGER.info("Failed to tell " + theReplica + " to drop its copy: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Ships the entries in batches of at most BATCH_SIZE bytes, each acknowledged before the next. Writes to
+         * the same row between two other kinds of entries are shipped once.
+         */
+        private void ship(List<ReplicationLog.Entry> aEntries) throws IOException {
+            BatchFrames.Writer myBatch = new BatchFrames.Writer();
+            Set<String> myShippedRows = new HashSet<>();
+            long myFrom = theNextOffset;
+            for (ReplicationLog.Entry myEntry : aEntries) {
+                if (myEntry.kind() != ReplicationLog.Kind.ROW) {
+                    myShippedRows.clear();
+                    write(myBatch, myEntry, null);
+                } else if (myShippedRows.add(myEntry.table() + "\n" + myEntry.key())) {
+                    String myTable = theLog.currentName(myEntry.table(), myEntry.offset());
+                    write(myBatch, myEntry, theData.get(myTable, myEntry.key()));
+                }
+
+                if (myBatch.size() >= BATCH_SIZE) {
+                    long myTo = myEntry.offset() + 1;
+                    apply("apply?from=" + myFrom + "&to=" + myTo, myBatch.toByteArray());
+                    acknowledged(myTo);
+                    myBatch.reset();
+                    myShippedRows.clear();
+                    myFrom = myTo;
                 }
-                String[] myParts = myLine.split(",");
-                if (myParts.length != 2) {
+            }
+
+            long myTo = aEntries.getLast().offset() + 1;
+            if (myFrom < myTo) {
+                apply("apply?from=" + myFrom + "&to=" + myTo, myBatch.toByteArray());
+                acknowledged(myTo);
+            }
+        }
+
+        private void acknowledged(long aOffset) {
+            theNextOffset = aOffset;
+            theLog.acknowledge(theReplica, aOffset);
+        }
+
+        /**
+         * Returns the offset the replica continues from, after sending it a full copy if it has to.
+         */
+        private long catchUp() throws IOException {
+            HTTP.Response myResponse = HTTP.doRequest("GET",
+                    "http://" + theAddress + "/replication/offset?leader=" + theName, null);
+            if (myResponse.statusCode() != 200) {
+                throw new IOException("Status " + myResponse.statusCode() + " for the offset");
+            }
+            String[] myState = new String(myResponse.body()).trim().split(" ");
+            long myGeneration = Long.parseLong(myState[0]);
+            long myOffset = Long.parseLong(myState[1]);
+            if (myGeneration == theLog.generation() && myOffset >= theLog.startOffset()
+                    && myOffset <= theLog.endOffset()) {
+                LOGGER.info("Replica " + theReplica + " continues from offset " + myOffset);
+                return myOffset;
+            }
+
+            // Entries logged from here on are shipped after the copy and bring it up to date
+            long myEnd = theLog.endOffset();
+            apply("apply?reset=true", null);
+            BatchFrames.Writer myBatch = new BatchFrames.Writer();
+            long myRows = 0;
+            for (String myTable : theData.getTables().keySet()) {
+                Stream<Row> myStream = theData.getRowDataStream(myTable, null, null);
+                if (myStream == null) {
                     continue;
                 }
-                String myID = myParts[0];
-                IPPort myAddr = IPPort.fromString(myParts[1]);
-                myAllWorkers.put(myID, myAddr);
+                try (myStream) {
+                    Iterator<Row> myIterator = myStream.iterator();
+                    while (myIterator.hasNext()) {
+                        Row myRow = myIterator.next();
+                        write(myBatch, new ReplicationLog.Entry(-1, ReplicationLog.Kind.ROW, myTable, myRow.key(), null),
+                                myRow);
+                        myRows++;
+                        if (myBatch.size() >= BATCH_SIZE) {
+                            apply("apply?from=-1", myBatch.toByteArray());
+                            myBatch.reset();
+                        }
+                    }
+                }
             }
-        } catch (IOException e) {
-            LOGGER.info("Failed to get workers from coordinator");
+            apply("apply?from=-1&to=" + myEnd, myBatch.toByteArray());
+            LOGGER.info("Copied " + myRows + " rows to replica " + theReplica + " up to offset " + myEnd);
+            return myEnd;
         }
 
-        return myAllWorkers;
+        private void apply(String aPathAndQuery, byte[] aBody) throws IOException {
+            String myURL = "http://" + theAddress + "/replication/" + aPathAndQuery
+                    + (aPathAndQuery.contains("?") ? "&" : "?") + "leader=" + theName
+                    + "&generation=" + theLog.generation();
+            HTTP.Response myResponse = HTTP.doRequest("POST", myURL, aBody);
+            if (myResponse.statusCode() != 200) {
+                throw new IOException("Status " + myResponse.statusCode() + " for " + myURL);
+            }
+        }
     }
 
-    private void setMyReplicas(SortedMap<String, IPPort> aAllWorkers) {
-        theReplicaWorkerAddresses.clear();
-        int myIndex = 0;
-        List<String> myWorkerKeys = new ArrayList<>(aAllWorkers.keySet());
-        Collections.reverse(myWorkerKeys);
+    /**
+     * Writes an entry as kind, table, key, argument and, for ROW entries, the row, which is null if it is gone.
+     */
+    private static void write(BatchFrames.Writer aBatch, ReplicationLog.Entry aEntry, Row aRowOrNull) {
+        aBatch.string(aEntry.kind().name())
+                .string(aEntry.table())
+                .nullableBytes(bytes(aEntry.key()))
+                .nullableBytes(bytes(aEntry.argument()))
+                .nullableBytes(aRowOrNull == null ? null : aRowOrNull.toBinaryByteArray())
+                .endRecord();
+    }
+
+    /**
+     * Returns the generation and offset of the leader's log that this worker's copy reflects, separated by a
+     * space.
+     */
+    public String offset(String aLeader) {
+        Copy myCopy = copy(aLeader);
+        synchronized (myCopy) {
+            return myCopy.generation + " " + myCopy.offset;
+        }
+    }
 
-        for (String myID : myWorkerKeys) {
-            if (myIndex >= NUM_REPLICAS) {
-                break;
+    /**
+     * Applies a batch of entries to the leader's copy if it continues from the offset of the copy, and then
+     * advances the copy to the given offset unless that is negative. A reset empties the copy and starts a new one
+     * for the generation. Returns false if the batch does not continue the copy.
+     */
+    public boolean apply(String aLeader, long aGeneration, long aFrom, long aTo, boolean aReset, byte[] aBatch)
+            throws Exception {
+        Copy myCopy = copy(aLeader);
+        synchronized (myCopy) {
+            if (aReset) {
+                myCopy.data.getTables().keySet().forEach(myCopy.data::delete);
+                myCopy.generation = aGeneration;
+                myCopy.offset = -1;
+                myCopy.hasInMemoryTables = false;
+                myCopy.trees.clear();
+                save(myCopy);
+            } else if (myCopy.generation != aGeneration || myCopy.offset != aFrom) {
+                return false;
             }
-            if (myID.compareTo(theName) < 0) {
-                theReplicaWorkerAddresses.put(myID, aAllWorkers.get(myID));
-                myIndex++;
+
+            BatchFrames.Reader myReader = new BatchFrames.Reader(new ByteArrayInputStream(aBatch == null ? new byte[0] : aBatch));
+            while (myReader.hasNext()) {
+                ReplicationLog.Kind myKind = ReplicationLog.Kind.valueOf(myReader.string());
+                String myTable = myReader.string();
+                String myKey = string(myReader.nullableBytes());
+                String myArgument = string(myReader.nullableBytes());
+                byte[] myRow = myReader.nullableBytes();
+                applyEntry(myCopy, myKind, myTable, myKey, myArgument, myRow);
             }
-        }
-        for (String myID : myWorkerKeys) {
-            if (myIndex >= NUM_REPLICAS) {
-                break;
+
+            if (!myCopy.data.sync()) {
+                throw new IOException("Failed to sync the copy of " + aLeader);
             }
-            if (!myID.equals(theName)) {
-                theReplicaWorkerAddresses.put(myID, aAllWorkers.get(myID));
-                myIndex++;
+            if (aTo >= 0) {
+                myCopy.offset = aTo;
+                save(myCopy);
             }
+            return true;
         }
     }
 
-    public void forwardPuts(Request aRequest) {
-        for (IPPort myAddr : theReplicaWorkerAddresses.values()) {
-            try {
-                URL myURL = URI.create("http://" + myAddr.ip() + ":" + myAddr.port() + aRequest.url() + "?"
-                                + buildQueryParams(aRequest))
-                        .toURL();
-                HttpURLConnection myConnection = (HttpURLConnection) myURL.openConnection();
-                myConnection.setRequestMethod("PUT");
-                myConnection.setDoOutput(true);
-                myConnection.getOutputStream().write(aRequest.bodyAsBytes());
-                myConnection.connect();
-                int myResponseCode = myConnection.getResponseCode();
-            } catch (IOException e) {
-                LOGGER.error("Failed to forward put to replica", e);
+    private static void applyEntry(Copy aCopy, ReplicationLog.Kind aKind, String aTable, String aKey,
+                                   String aArgument, byte[] aRow) throws Exception {
+        String myTable = aKind == ReplicationLog.Kind.RENAME ? aArgument : aTable;
+        if (DatastoreType.fromName(myTable) == DatastoreType.IN_MEMORY) {
+            aCopy.hasInMemoryTables = true;
+        }
+
+        MerkleTree myTree = aCopy.trees.get(aTable);
+        switch (aKind) {
+            case ROW -> {
+                if (myTree != null) {
+                    myTree.markDirty(aKey);
+                }
+                if (aRow != null) {
+                    aCopy.data.putRow(aTable, aKey, Row.readFrom(ByteBuffer.wrap(aRow)));
+                } else {
+                    aCopy.data.deleteRange(aTable, aKey, aKey + "\0");
+                }
+            }
+            case RANGE -> {
+                if (myTree != null) {
+                    myTree.markDirty(aKey, aArgument);
+                }
+                aCopy.data.deleteRange(aTable, aKey, aArgument);
+            }
+            case DROP -> {
+                aCopy.trees.remove(aTable);
+                aCopy.data.delete(aTable);
+            }
+            case RENAME -> {
+                aCopy.trees.remove(aTable);
+                aCopy.trees.remove(aArgument);
+                // The leader renamed to a name it had no table under, so whatever the copy has there is stale
+                aCopy.data.delete(aArgument);
+                aCopy.data.rename(aTable, aArgument);
             }
         }
     }
 
-    private String buildQueryParams(Request aRequest) {
-        StringBuilder myStringBuilder = new StringBuilder();
-        for (String myKey : aRequest.queryParams()) {
-            myStringBuilder
-                    .append(myKey)
-                    .append("=")
-                    .append(aRequest.queryParams(myKey))
-                    .append("&");
+    /**
+     * Returns the leader's copy to read from, or null if this worker has no complete copy of it.
+     */
+    public Datastore copyToRead(String aLeader) {
+        Copy myCopy = theCopies.get(aLeader);
+        if (myCopy == null) {
+            return null;
         }
-        myStringBuilder.append("replica=true");
-        return myStringBuilder.toString();
+        synchronized (myCopy) {
+            return myCopy.offset < 0 ? null : myCopy.data;
+        }
+    }
+
+    /**
+     * Lists the tables of the leader's copy, one per line.
+     */
+    public String copiedTables(String aLeader) {
+        StringBuilder myBuilder = new StringBuilder();
+        copy(aLeader).data.getTables().keySet().forEach(aTable -> myBuilder.append(aTable).append("\n"));
+        return myBuilder.toString();
+    }
+
+    /**
+     * Starts a tree of the leader's version for the copy of the table, with the leader's boundaries.
+     */
+    public void installTree(String aLeader, String aTable, String aVersion, String[] aBoundaries) {
+        copy(aLeader).trees.put(aTable, new MerkleTree(aVersion, aBoundaries));
+    }
+
+    /**
+     * Returns the inner hashes of the copy's tree for the table, or the hashes of the leaves under the inner node
+     * if it is not negative, after hashing what changed since last time. Returns null if the copy has no tree of
+     * the version.
+     */
+    public long[] treeHashes(String aLeader, String aTable, String aVersion, int aInnerNode) {
+        Copy myCopy = copy(aLeader);
+        MerkleTree myTree = myCopy.trees.get(aTable);
+        if (myTree == null || !myTree.version().equals(aVersion)
+                || aInnerNode >= myTree.innerNodes()) {
+            return null;
+        }
+        myTree.refresh(myCopy.data, aTable);
+        return aInnerNode < 0 ? myTree.innerHashes() : myTree.leafHashes(aInnerNode);
+    }
+
+    /**
+     * Writes the key and hash of every row of the copy of the table in the range, for the leader to compare with
+     * its own.
+     */
+    public void writeRowHashes(String aLeader, String aTable, String aFromKey, String aToKeyExclusive,
+                               BatchFrames.Writer aWriter) {
+        Stream<Row> myStream = copy(aLeader).data.getRowDataStream(aTable, aFromKey, aToKeyExclusive);
+        if (myStream == null) {
+            return;
+        }
+        try (myStream) {
+            myStream.forEach(aRow -> aWriter.string(aRow.key()).string(Long.toString(MerkleTree.hash(aRow))).endRecord());
+        }
+    }
+
+    /**
+     * Attaches bulk-loaded segment files to the leader's copy of the table, the same ones the leader attaches.
+     */
+    public OpStatus attach(String aLeader, String aTable, File aDirectory) {
+        Copy myCopy = copy(aLeader);
+        synchronized (myCopy) {
+            myCopy.trees.remove(aTable);
+            return myCopy.data.attach(aTable, aDirectory);
+        }
+    }
+
+    /**
+     * Deletes the leader's copy.
+     */
+    public void drop(String aLeader) {
+        Copy myCopy = theCopies.remove(aLeader);
+        if (myCopy == null) {
+            return;
+        }
+        synchronized (myCopy) {
+            myCopy.data.getTables().keySet().forEach(myCopy.data::delete);
+            if (!new File(myCopy.directory, OFFSET_FILE).delete()) {
+                LOGGER.debug("No offset file to delete for the copy of " + aLeader);
+            }
+        }
+        LOGGER.info("Dropped the copy of " + aLeader);
+    }
+
+    private Copy copy(String aLeader) {
+        return theCopies.computeIfAbsent(aLeader, aName -> {
+            Copy myCopy = new Copy(new File(theDirectory + File.separator + REPLICAS_DIRECTORY, aName));
+            File myOffsetFile = new File(myCopy.directory, OFFSET_FILE);
+            if (myOffsetFile.exists()) {
+                try {
+                    String[] myState = Files.readString(myOffsetFile.toPath()).trim().split(" ");
+                    if (!Boolean.parseBoolean(myState[2])) {
+                        myCopy.generation = Long.parseLong(myState[0]);
+                        myCopy.offset = Long.parseLong(myState[1]);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.error("Failed to read the offset of the copy of " + aName, e);
+                }
+            }
+            return myCopy;
+        });
+    }
+
+    private static void save(Copy aCopy) throws IOException {
+        File myFile = new File(aCopy.directory, OFFSET_FILE);
+        File myTemporaryFile = new File(aCopy.directory, OFFSET_FILE + ".tmp");
+        Files.writeString(myTemporaryFile.toPath(),
+                aCopy.generation + " " + aCopy.offset + " " + aCopy.hasInMemoryTables + "\n");
+        Files.move(myTemporaryFile.toPath(), myFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] bytes(String aValue) {
+        return aValue == null ? null : aValue.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] aValue) {
+        return aValue == null ? null : new String(aValue, StandardCharsets.UTF_8);
     }
 }
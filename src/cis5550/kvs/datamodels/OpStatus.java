@@ -6,4 +6,6 @@ public enum OpStatus {
     WRONG_NAME_FORMAT,
     SUCCESS,
     SERVER_ERROR,
+    PRECONDITION_FAILED,
+    NOT_SUPPORTED,
 }
@@ -1,5 +1,7 @@
 package cis5550.kvs.datastore;
 
+import cis5550.kvs.MergeOperator;
+import cis5550.kvs.MergeOperators;
 import cis5550.kvs.Row;
 import cis5550.kvs.datamodels.OpStatus;
 import cis5550.tools.Logger;
@@ -7,23 +9,65 @@ import cis5550.utils.FileIOUtils;
 
 import java.io.File;
 import java.util.*;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static cis5550.kvs.KeyEncoder.encode;
 import static cis5550.utils.FileIOUtils.*;
 
+/**
+ * Stores each row of an at- table in its own file and appends values to it in place. A background compactor
+ * rewrites rows that were appended to into their distinct values in sorted order, either once appends have
+ * paused for {@link #COMPACTION_IDLE_MILLIS} or as soon as a row has grown by {@link #COMPACTION_THRESHOLD}.
+ */
 public class AppendOnlyDatastore implements Datastore {
     public static final Logger LOGGER = Logger.getLogger(PersistentDatastore.class);
     public static final String SUBDIRECTORY_PREFIX = "__";
     public static final int MAX_KEY_LENGTH = 6;
     public static final int KEY_SUBSTRING_LENGTH = 2;
+    public static final long COMPACTION_INTERVAL_MILLIS = 1000;
+    public static final long COMPACTION_IDLE_MILLIS = 5000;
+    public static final long COMPACTION_THRESHOLD = 1024 * 1024;
+
+    /**
+     * A row that was appended to since it was last compacted. Rows appended to with different delimiters
+     * cannot be split reliably and are never compacted.
+     */
+    private record PendingRow(String table, String key, String delimiter, long appendedBytes, boolean compactable) {
+        PendingRow merge(PendingRow aOther) {
+            return new PendingRow(table, key, delimiter, appendedBytes + aOther.appendedBytes,
+                    compactable && aOther.compactable && delimiter.equals(aOther.delimiter));
+        }
+    }
 
     private final String theDataDirectory;
+    private final TableKeyIndexes theIndexes;
+    private final TableCatalog theCatalog;
+    private final ConcurrentMap<String, PendingRow> thePendingRows;
+    private final AtomicBoolean theCompactionScheduled;
+    private final ScheduledExecutorService theCompactionExecutor;
 
-    public AppendOnlyDatastore(String aDirectory) {
+    private volatile long theLastAppendMillis;
+
+    public AppendOnlyDatastore(String aDirectory, TableCatalog aCatalog) {
         theDataDirectory = aDirectory;
+        theIndexes = new TableKeyIndexes(aDirectory, FileIOUtils::readAppendOnlyRow);
+        theCatalog = aCatalog;
+        thePendingRows = new ConcurrentHashMap<>();
+        theCompactionScheduled = new AtomicBoolean(false);
+
+        theCompactionExecutor = Executors.newSingleThreadScheduledExecutor(aRunnable -> {
+            Thread myThread = new Thread(aRunnable, "append-compactor");
+            myThread.setDaemon(true);
+            myThread.setPriority(Thread.MIN_PRIORITY);
+            return myThread;
+        });
+        theCompactionExecutor.scheduleWithFixedDelay(
+                this::compact, COMPACTION_INTERVAL_MILLIS, COMPACTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -31,9 +75,29 @@ public class AppendOnlyDatastore implements Datastore {
         throw new UnsupportedOperationException("Append only datastore does not support put");
     }
 
+    /**
+     * Replaces the whole row. Rows only come in whole when they are moved from another worker, so they already
+     * have the append-only shape of a single column.
+     */
     @Override
     public int putRow(String aTable, String aKey, Row aRow) {
-        throw new UnsupportedOperationException("Append only datastore does not support putRow");
+        String myFileName = getRowFileName(aTable, aKey);
+        File myFile = new File(myFileName);
+
+        if (!myFile.getParentFile().exists() && !myFile.getParentFile().mkdirs()) {
+            LOGGER.error("Failed to create directory");
+            return -1;
+        }
+        if (!myFile.exists()) {
+            if (!theIndexes.add(aTable, aKey)) {
+                return -1;
+            }
+            return writeRow(aTable, aKey, myFile, () -> writeAppendOnlyRow(myFileName, aRow)) ? 0 : -1;
+        }
+
+        long myLength = myFile.length();
+        thePendingRows.remove(myFileName);
+        return writeRow(aTable, aKey, myFile, () -> rewriteAppendOnlyRow(myFileName, aRow, myLength)) ? 0 : -1;
     }
 
     @Override
@@ -47,16 +111,58 @@ public class AppendOnlyDatastore implements Datastore {
                 return -1;
             }
         } else if (myFile.exists()) {
-            return FileIOUtils.appendValueToRow(myFileName, aDelimiter, aValue) ? 0 : -1;
+            if (!writeRow(aTable, aKey, myFile, () -> FileIOUtils.appendValueToRow(myFileName, aDelimiter, aValue))) {
+                return -1;
+            }
+            markPending(myFileName, new PendingRow(aTable, aKey, aDelimiter, aDelimiter.length() + aValue.length, true));
+            return 0;
+        }
+
+        if (!theIndexes.add(aTable, aKey)) {
+            return -1;
         }
 
         Row myRow = new Row(aKey);
         myRow.put(aColumn, aValue);
-        return FileIOUtils.writeAppendOnlyRow(myFileName, myRow) ? 0 : -1;
+        return writeRow(aTable, aKey, myFile, () -> FileIOUtils.writeAppendOnlyRow(myFileName, myRow)) ? 0 : -1;
+    }
+
+    @Override
+    public int merge(String aTable, String aKey, String aColumn, byte[] aOperand, MergeOperator aOperator) {
+        String myDelimiter = MergeOperators.appendDelimiter(aOperator);
+        if (myDelimiter == null) {
+            LOGGER.warn("Append only datastore only supports append merges");
+            return -1;
+        }
+        return append(aTable, aKey, aColumn, aOperand, myDelimiter);
+    }
+
+    @Override
+    public byte[] mergeAndGet(String aTable, String aKey, String aColumn, byte[] aOperand, MergeOperator aOperator) {
+        LOGGER.warn("Append only datastore does not support mergeAndGet");
+        return null;
+    }
+
+    /**
+     * Only appends can be merged, since they never read the row, and never with their result.
+     */
+    @Override
+    public boolean canMerge(String aTable, MergeOperator aOperator, boolean aReturnValue) {
+        return !aReturnValue && MergeOperators.appendDelimiter(aOperator) != null;
+    }
+
+    @Override
+    public OpStatus compareAndPut(String aTable, String aKey, String aIfColumn, byte[] aExpected, String aColumn,
+                                  byte[] aValue) {
+        return OpStatus.NOT_SUPPORTED;
     }
 
     @Override
     public Row get(String aTable, String aKey) {
+        if (!theIndexes.mightContain(aTable, aKey)) {
+            return null;
+        }
+
         String myFileName = getRowFileName(aTable, aKey);
 
         File myFile = new File(myFileName);
@@ -94,7 +200,7 @@ public class AppendOnlyDatastore implements Datastore {
         Map<String, Integer> myResult = new HashMap<>();
 
         for (File myTable : myTables) {
-            if (myTable.isDirectory()) {
+            if (myTable.isDirectory() && DatastoreType.fromName(myTable.getName()) == DatastoreType.APPEND_ONLY) {
                 myResult.put(myTable.getName(), count(myTable.getName()));
             }
         }
@@ -104,40 +210,31 @@ public class AppendOnlyDatastore implements Datastore {
 
     @Override
     public SortedMap<String, Row> getRows(String aTable, String aFromRow, int aNumRows) {
-        File myTableDirectory = new File(getTableDirectory(aTable));
-
-        if (!myTableDirectory.exists() || !myTableDirectory.isDirectory()) {
+        Stream<Row> myRows = getRowDataStream(aTable, aFromRow, null);
+        if (myRows == null) {
             return null;
         }
 
-        return recursiveAddRows(myTableDirectory, aFromRow).entrySet().stream()
+        return myRows
                 .limit(aNumRows + 1)
                 .collect(
                         ConcurrentSkipListMap::new,
-                        (aMap, aEntry) -> aMap.put(aEntry.getKey(), aEntry.getValue()),
+                        (aMap, aRow) -> aMap.put(aRow.key(), aRow),
                         ConcurrentSkipListMap::putAll);
     }
 
     @Override
     public Stream<Row> getRowDataStream(String aTable, String aStartRow, String aEndRowExclusive) {
-        File myTableDirectory = new File(getTableDirectory(aTable));
-
-        if (!myTableDirectory.exists() || !myTableDirectory.isDirectory()) {
+        TableKeyIndex myIndex = theIndexes.get(aTable);
+        if (myIndex == null) {
             return null;
         }
 
-        File[] myRowFilesOrSubdirectories = myTableDirectory.listFiles();
-
-        return Arrays.stream(myRowFilesOrSubdirectories)
-                .flatMap(myRowFileOrSubdirectory -> {
-                    if (myRowFileOrSubdirectory.isDirectory()) {
-                        return Arrays.stream(myRowFileOrSubdirectory.listFiles());
-                    } else {
-                        return Stream.of(myRowFileOrSubdirectory);
-                    }
-                })
-                .filter(Objects::nonNull)
-                .map(myFile -> readAppendOnlyRow(myFile.getAbsolutePath()))
+        Iterator<String> myKeys = myIndex.keys(aStartRow, aEndRowExclusive);
+        return StreamSupport.stream(
+                        Spliterators.spliteratorUnknownSize(myKeys, Spliterator.ORDERED | Spliterator.SORTED
+                                | Spliterator.DISTINCT | Spliterator.NONNULL), false)
+                .map(aKey -> get(aTable, aKey))
                 .filter(Objects::nonNull);
     }
 
@@ -149,6 +246,8 @@ public class AppendOnlyDatastore implements Datastore {
             return OpStatus.TABLE_NOT_FOUND;
         }
 
+        theIndexes.close(aTable);
+        theCatalog.remove(aTable);
         File[] myRowOrSubdirectories = myTableDirectory.listFiles();
 
         Arrays.stream(myRowOrSubdirectories).forEach(myRowOrSubdirectory -> {
@@ -163,6 +262,43 @@ public class AppendOnlyDatastore implements Datastore {
         return myTableDirectory.delete() ? OpStatus.SUCCESS : OpStatus.SERVER_ERROR;
     }
 
+    /**
+     * Deletes the row files of the range. Their keys stay in the index, which skips keys without a file.
+     */
+    @Override
+    public int deleteRange(String aTable, String aStartRow, String aEndRowExclusive) {
+        TableKeyIndex myIndex = theIndexes.get(aTable);
+        if (myIndex == null) {
+            return -1;
+        }
+
+        int myDeleted = 0;
+        Iterator<String> myKeys = myIndex.keys(aStartRow, aEndRowExclusive);
+        while (myKeys.hasNext()) {
+            String myKey = myKeys.next();
+            String myFileName = getRowFileName(aTable, myKey);
+            File myFile = new File(myFileName);
+            if (!myFile.exists()) {
+                continue;
+            }
+            thePendingRows.remove(myFileName);
+            long myLength = myFile.length();
+            boolean mySuccess = false;
+            theCatalog.beginWrite(aTable, theIndexes::count);
+            try {
+                mySuccess = myFile.delete();
+            } finally {
+                theCatalog.endWrite(aTable, myKey, mySuccess ? -1 : 0, mySuccess ? -myLength : 0);
+            }
+            if (mySuccess) {
+                myDeleted++;
+            } else {
+                LOGGER.error("Failed to delete row " + myKey + " of table " + aTable);
+            }
+        }
+        return myDeleted;
+    }
+
     @Override
     public OpStatus rename(String aTable, String aNewName) {
         File myTableDirectory = new File(getTableDirectory(aTable));
@@ -177,31 +313,19 @@ public class AppendOnlyDatastore implements Datastore {
             return OpStatus.TABLE_ALREADY_EXISTS;
         }
 
-        return myTableDirectory.renameTo(myNewTableDirectory) ? OpStatus.SUCCESS : OpStatus.SERVER_ERROR;
+        // The index moves with the table directory and is reopened under the new name on next use
+        theIndexes.close(aTable);
+        if (!myTableDirectory.renameTo(myNewTableDirectory)) {
+            return OpStatus.SERVER_ERROR;
+        }
+        theCatalog.rename(aTable, aNewName);
+        return OpStatus.SUCCESS;
     }
 
     @Override
     public int count(String aTable) {
-        File myTableDirectory = new File(getTableDirectory(aTable));
-
-        if (!myTableDirectory.exists() || !myTableDirectory.isDirectory()) {
-            return -1;
-        }
-
-        int myCount = 0;
-
-        for (File myRowOrSubdirectory : myTableDirectory.listFiles()) {
-            if (myRowOrSubdirectory.isDirectory()) {
-                File[] myRowFiles = myRowOrSubdirectory.listFiles();
-                if (myRowFiles != null) {
-                    myCount += myRowFiles.length;
-                }
-            } else {
-                myCount++;
-            }
-        }
-
-        return myCount;
+        TableCatalog.TableStats myStats = theCatalog.stats(aTable, theIndexes::count);
+        return myStats == null ? -1 : (int) myStats.rows();
     }
 
     @Override
@@ -222,7 +346,9 @@ public class AppendOnlyDatastore implements Datastore {
                 }
             }
 
-            if (!writeAppendOnlyRow(myRowFileName, myEntry.getValue())) {
+            if (!theIndexes.add(aTableName, myEntry.getKey())
+                    || !writeRow(aTableName, myEntry.getKey(), myRowFile,
+                    () -> writeAppendOnlyRow(myRowFileName, myEntry.getValue()))) {
                 return OpStatus.SERVER_ERROR;
             }
         }
@@ -231,12 +357,97 @@ public class AppendOnlyDatastore implements Datastore {
 
     @Override
     public ConcurrentMap<String, Row> getMap(String aTableName) {
-        SortedMap<String, Row> myRows = recursiveAddRows(new File(getTableDirectory(aTableName)), null);
         ConcurrentMap<String, Row> myResult = new ConcurrentSkipListMap<>();
-        myResult.putAll(myRows);
+        Stream<Row> myRows = getRowDataStream(aTableName, null, null);
+        if (myRows != null) {
+            myRows.forEach(aRow -> myResult.put(aRow.key(), aRow));
+        }
         return myResult;
     }
 
+    private void markPending(String aFileName, PendingRow aRow) {
+        theLastAppendMillis = System.currentTimeMillis();
+        PendingRow myPending = thePendingRows.merge(aFileName, aRow, PendingRow::merge);
+        if (myPending.compactable() && myPending.appendedBytes() >= COMPACTION_THRESHOLD
+                && theCompactionScheduled.compareAndSet(false, true)) {
+            theCompactionExecutor.execute(this::compact);
+        }
+    }
+
+    /**
+     * Compacts the rows that crossed the size threshold and, while appends stay paused, the rest of the
+     * pending rows. Rows are rewritten one at a time, so readers only ever wait for a single row.
+     */
+    private void compact() {
+        theCompactionScheduled.set(false);
+        try {
+            for (Map.Entry<String, PendingRow> myEntry : thePendingRows.entrySet()) {
+                PendingRow myPending = myEntry.getValue();
+                boolean myIdle = System.currentTimeMillis() - theLastAppendMillis >= COMPACTION_IDLE_MILLIS;
+                if (!myIdle && myPending.appendedBytes() < COMPACTION_THRESHOLD) {
+                    continue;
+                }
+                if (!thePendingRows.remove(myEntry.getKey(), myPending) || !myPending.compactable()) {
+                    continue;
+                }
+                if (!compactRow(myEntry.getKey(), myPending)) {
+                    thePendingRows.merge(myEntry.getKey(), myPending, PendingRow::merge);
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to compact append-only rows", e);
+        }
+    }
+
+    /**
+     * Rewrites a row as its distinct values in sorted order. Returns false if the row changed while it was
+     * being compacted, in which case it is left as it is.
+     */
+    private boolean compactRow(String aFileName, PendingRow aPending) {
+        File myFile = new File(aFileName);
+        long myLength = myFile.length();
+        Row myRow = myFile.exists() ? readAppendOnlyRow(aFileName) : null;
+        if (myRow == null) {
+            // The table was deleted in the meantime
+            return true;
+        }
+
+        String myColumn = myRow.columns().iterator().next();
+        SortedSet<String> myValues = new TreeSet<>();
+        for (String myValue : myRow.get(myColumn).split(Pattern.quote(aPending.delimiter()))) {
+            if (!myValue.isEmpty()) {
+                myValues.add(myValue);
+            }
+        }
+
+        Row myCompacted = new Row(myRow.key());
+        myCompacted.put(myColumn, String.join(aPending.delimiter(), myValues));
+        if (!writeRow(aPending.table(), aPending.key(), myFile,
+                () -> rewriteAppendOnlyRow(aFileName, myCompacted, myLength))) {
+            return false;
+        }
+        LOGGER.debug("Compacted row " + aPending.key() + " of table " + aPending.table() + " from " + myLength
+                + " bytes to " + myFile.length() + " bytes");
+        return true;
+    }
+
+    /**
+     * Runs a write to a row file and records the new row, if it is one, and the change in size in the table
+     * catalog.
+     */
+    private boolean writeRow(String aTable, String aKey, File aFile, BooleanSupplier aWrite) {
+        boolean myNewRow = !aFile.exists();
+        long myOldLength = myNewRow ? 0 : aFile.length();
+        boolean mySuccess = false;
+        theCatalog.beginWrite(aTable, theIndexes::count);
+        try {
+            mySuccess = aWrite.getAsBoolean();
+            return mySuccess;
+        } finally {
+            theCatalog.endWrite(aTable, aKey, mySuccess && myNewRow ? 1 : 0, aFile.length() - myOldLength);
+        }
+    }
+
     private String getRowFileName(String aTable, String aKey) {
         String myEncodedKey = encode(aKey);
         String myFileName;
@@ -260,31 +471,4 @@ public class AppendOnlyDatastore implements Datastore {
     private String getTableDirectory(String aTable) {
         return theDataDirectory + File.separator + aTable;
     }
-
-    private SortedMap<String, Row> recursiveAddRows(File aDirectory, String aFromRow) {
-        SortedMap<String, Row> myResult = new ConcurrentSkipListMap<>();
-        File[] myRowFilesOrSubdirectories = aDirectory.listFiles();
-
-        if (myRowFilesOrSubdirectories == null) {
-            return myResult;
-        }
-
-        for (File myRowFileOrSubdirectory : myRowFilesOrSubdirectories) {
-            if (myRowFileOrSubdirectory.isDirectory()) {
-                myResult.putAll(recursiveAddRows(myRowFileOrSubdirectory, aFromRow));
-            } else {
-                try {
-                    LOGGER.info("Reading from file: " + myRowFileOrSubdirectory.getName());
-                    Row myRow = readAppendOnlyRow(myRowFileOrSubdirectory.getAbsolutePath());
-                    if (myRow != null && (aFromRow == null || myRow.key().compareTo(aFromRow) >= 0)) {
-                        myResult.put(myRow.key(), myRow);
-                    }
-                } catch (Exception e) {
-                    LOGGER.error("Failed to read from file", e);
-                }
-            }
-        }
-
-        return myResult;
-    }
 }
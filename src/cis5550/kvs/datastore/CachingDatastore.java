@@ -0,0 +1,375 @@
+package cis5550.kvs.datastore;
+
+import cis5550.kvs.MergeOperator;
+import cis5550.kvs.Row;
+import cis5550.kvs.datamodels.OpStatus;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the rows that are read most often in memory in front of another datastore, within a budget of
+ * {@link #BUDGET_PROPERTY} megabytes. Tables kept in memory anyway are passed through.
+ * <p>
+ * Every read is counted in a {@link FrequencySketch}. A row that is not cached is only admitted once it has been
+ * read {@link #HOT_FREQUENCY} times recently, and only if it is read more often than each row it would evict, the
+ * least recently used ones (TinyLFU), so that a scan of cold rows cannot flush the hot ones. Writes drop the row
+ * from the cache after they are done; a read that started before a write to its row does not admit what it read.
+ */
+public class CachingDatastore implements Datastore {
+    public static final String BUDGET_PROPERTY = "kvs.cache.budgetMB";
+    public static final long DEFAULT_BUDGET_MB = 64;
+    public static final int HOT_FREQUENCY = 3;
+    public static final int TOP_KEYS = 20;
+    static final int ASSUMED_ROW_BYTES = 1024;
+    static final int ROW_OVERHEAD_BYTES = 64;
+    private static final int STRIPES = 256;
+
+    private record CacheKey(String table, String key) {
+    }
+
+    private record CachedRow(Row row, long bytes, long hash) {
+    }
+
+    private final Datastore theDelegate;
+    private final long theBudget;
+    private final FrequencySketch theSketch;
+    private final LinkedHashMap<CacheKey, CachedRow> theRows;
+    private final long[] theGenerations;
+    private final Map<CacheKey, Long> theHotKeys;
+    private long theBytes;
+    private long theHits;
+    private long theMisses;
+    private long theAdmitted;
+    private long theRejected;
+    private long theEvicted;
+
+    public CachingDatastore(Datastore aDelegate, long aBudgetBytes) {
+        theDelegate = aDelegate;
+        theBudget = aBudgetBytes;
+        theSketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(1, aBudgetBytes / ASSUMED_ROW_BYTES)));
+        theRows = new LinkedHashMap<>(16, 0.75f, true);
+        theGenerations = new long[STRIPES];
+        theHotKeys = new HashMap<>();
+    }
+
+    /**
+     * Returns the budget the system properties set, in bytes, or 0 if caching is off.
+     */
+    public static long budgetFromProperties() {
+        return Math.max(0, Long.getLong(BUDGET_PROPERTY, DEFAULT_BUDGET_MB)) << 20;
+    }
+
+    @Override
+    public Row get(String aTable, String aKey) {
+        long myHash = FrequencySketch.hash(aTable, aKey);
+        int myFrequency = theSketch.increment(myHash);
+        if (DatastoreType.fromName(aTable) == DatastoreType.IN_MEMORY) {
+            return theDelegate.get(aTable, aKey);
+        }
+
+        CacheKey myKey = new CacheKey(aTable, aKey);
+        long myGeneration;
+        synchronized (this) {
+            noteHot(myKey, myHash, myFrequency);
+            CachedRow myCached = theRows.get(myKey);
+            if (myCached != null) {
+                theHits++;
+                return myCached.row();
+            }
+            theMisses++;
+            myGeneration = theGenerations[stripe(myHash)];
+        }
+
+        Row myRow = theDelegate.get(aTable, aKey);
+        if (myRow != null && myFrequency >= HOT_FREQUENCY) {
+            admit(myKey, new CachedRow(myRow, sizeOf(myRow), myHash), myGeneration);
+        }
+        return myRow;
+    }
+
+    @Override
+    public boolean contains(String aTable, String aKey) {
+        synchronized (this) {
+            if (theRows.containsKey(new CacheKey(aTable, aKey))) {
+                return true;
+            }
+        }
+        return theDelegate.contains(aTable, aKey);
+    }
+
+    @Override
+    public boolean canMerge(String aTable, MergeOperator aOperator, boolean aReturnValue) {
+        return theDelegate.canMerge(aTable, aOperator, aReturnValue);
+    }
+
+    @Override
+    public int put(String aTable, String aKey, String aColumn, byte[] aValue) {
+        try {
+            return theDelegate.put(aTable, aKey, aColumn, aValue);
+        } finally {
+            invalidate(aTable, aKey);
+        }
+    }
+
+    @Override
+    public int putRow(String aTable, String aKey, Row aRow) {
+        try {
+            return theDelegate.putRow(aTable, aKey, aRow);
+        } finally {
+            invalidate(aTable, aKey);
+        }
+    }
+
+    @Override
+    public int append(String aTable, String aKey, String aColumn, byte[] aValue, String aDelimiter) {
+        try {
+            return theDelegate.append(aTable, aKey, aColumn, aValue, aDelimiter);
+        } finally {
+            invalidate(aTable, aKey);
+        }
+    }
+
+    @Override
+    public int merge(String aTable, String aKey, String aColumn, byte[] aOperand, MergeOperator aOperator) {
+        try {
+            return theDelegate.merge(aTable, aKey, aColumn, aOperand, aOperator);
+        } finally {
+            invalidate(aTable, aKey);
+        }
+    }
+
+    @Override
+    public byte[] mergeAndGet(String aTable, String aKey, String aColumn, byte[] aOperand, MergeOperator aOperator) {
+        try {
+            return theDelegate.mergeAndGet(aTable, aKey, aColumn, aOperand, aOperator);
+        } finally {
+            invalidate(aTable, aKey);
+        }
+    }
+
+    @Override
+    public OpStatus compareAndPut(String aTable, String aKey, String aIfColumn, byte[] aExpected, String aColumn,
+                                  byte[] aValue) {
+        try {
+            return theDelegate.compareAndPut(aTable, aKey, aIfColumn, aExpected, aColumn, aValue);
+        } finally {
+            invalidate(aTable, aKey);
+        }
+    }
+
+    @Override
+    public boolean sync() {
+        return theDelegate.sync();
+    }
+
+    @Override
+    public Row get(String aTable, String aKey, int aVersion) {
+        return theDelegate.get(aTable, aKey, aVersion);
+    }
+
+    @Override
+    public int getVersion(String aTable, String aKey) {
+        return theDelegate.getVersion(aTable, aKey);
+    }
+
+    @Override
+    public Map<String, Integer> getTables() {
+        return theDelegate.getTables();
+    }
+
+    @Override
+    public SortedMap<String, Row> getRows(String aTable, String aFromRow, int aNumRows) {
+        return theDelegate.getRows(aTable, aFromRow, aNumRows);
+    }
+
+    @Override
+    public Stream<Row> getRowDataStream(String aTable, String aStartRow, String aEndRowExclusive) {
+        return theDelegate.getRowDataStream(aTable, aStartRow, aEndRowExclusive);
+    }
+
+    @Override
+    public OpStatus delete(String aTable) {
+        try {
+            return theDelegate.delete(aTable);
+        } finally {
+            invalidate(aTable);
+        }
+    }
+
+    @Override
+    public int deleteRange(String aTable, String aStartRow, String aEndRowExclusive) {
+        try {
+            return theDelegate.deleteRange(aTable, aStartRow, aEndRowExclusive);
+        } finally {
+            invalidate(aTable);
+        }
+    }
+
+    @Override
+    public OpStatus rename(String aTable, String aNewName) {
+        try {
+            return theDelegate.rename(aTable, aNewName);
+        } finally {
+            invalidate(aTable);
+            invalidate(aNewName);
+        }
+    }
+
+    @Override
+    public OpStatus attach(String aTable, File aDirectory) {
+        try {
+            return theDelegate.attach(aTable, aDirectory);
+        } finally {
+            invalidate(aTable);
+        }
+    }
+
+    @Override
+    public int count(String aTable) {
+        return theDelegate.count(aTable);
+    }
+
+    @Override
+    public OpStatus fromMap(String aTableName, ConcurrentMap<String, Row> aTable) {
+        try {
+            return theDelegate.fromMap(aTableName, aTable);
+        } finally {
+            invalidate(aTableName);
+        }
+    }
+
+    @Override
+    public ConcurrentMap<String, Row> getMap(String aTableName) {
+        return theDelegate.getMap(aTableName);
+    }
+
+    /**
+     * Describes the cache and lists the most often read keys with the estimates of how many of the recent reads
+     * were theirs, the most often read first, one per line as table,key,reads.
+     */
+    public synchronized String stats() {
+        long myReads = theHits + theMisses;
+        StringBuilder myBuilder = new StringBuilder()
+                .append("rows ").append(theRows.size()).append("\n")
+                .append("bytes ").append(theBytes).append("\n")
+                .append("budget ").append(theBudget).append("\n")
+                .append("hits ").append(theHits).append("\n")
+                .append("misses ").append(theMisses).append("\n")
+                .append("hitRate ").append(myReads == 0 ? 0 : (double) theHits / myReads).append("\n")
+                .append("admitted ").append(theAdmitted).append("\n")
+                .append("rejected ").append(theRejected).append("\n")
+                .append("evicted ").append(theEvicted).append("\n")
+                .append("sketchWidth ").append(theSketch.width()).append("\n")
+                .append("sketchSamples ").append(theSketch.samples()).append("\n")
+                .append("sketchResets ").append(theSketch.resets()).append("\n");
+
+        List<Map.Entry<CacheKey, Integer>> myHotKeys = new ArrayList<>();
+        for (Map.Entry<CacheKey, Long> myEntry : theHotKeys.entrySet()) {
+            myHotKeys.add(Map.entry(myEntry.getKey(), theSketch.frequency(myEntry.getValue())));
+        }
+        myHotKeys.sort(Map.Entry.<CacheKey, Integer>comparingByValue().reversed()
+                .thenComparing(aEntry -> aEntry.getKey().key()));
+        myBuilder.append("hotKeys ").append(myHotKeys.size()).append("\n");
+        for (Map.Entry<CacheKey, Integer> myEntry : myHotKeys) {
+            myBuilder.append(myEntry.getKey().table()).append(",").append(myEntry.getKey().key()).append(",")
+                    .append(myEntry.getValue()).append("\n");
+        }
+        return myBuilder.toString();
+    }
+
+    private synchronized void admit(CacheKey aKey, CachedRow aRow, long aGeneration) {
+        if (theGenerations[stripe(aRow.hash())] != aGeneration || theRows.containsKey(aKey)) {
+            return;
+        }
+        if (aRow.bytes() > theBudget) {
+            theRejected++;
+            return;
+        }
+
+        // Admits the row only if it is read more often than every row it would push out
+        int myFrequency = theSketch.frequency(aRow.hash());
+        long myFreed = 0;
+        List<CacheKey> myVictims = new ArrayList<>();
+        Iterator<Map.Entry<CacheKey, CachedRow>> myIterator = theRows.entrySet().iterator();
+        while (theBytes - myFreed + aRow.bytes() > theBudget) {
+            Map.Entry<CacheKey, CachedRow> myVictim = myIterator.next();
+            if (theSketch.frequency(myVictim.getValue().hash()) >= myFrequency) {
+                theRejected++;
+                return;
+            }
+            myFreed += myVictim.getValue().bytes();
+            myVictims.add(myVictim.getKey());
+        }
+        for (CacheKey myVictim : myVictims) {
+            theBytes -= theRows.remove(myVictim).bytes();
+            theEvicted++;
+        }
+        theRows.put(aKey, aRow);
+        theBytes += aRow.bytes();
+        theAdmitted++;
+    }
+
+    private synchronized void invalidate(String aTable, String aKey) {
+        theGenerations[stripe(FrequencySketch.hash(aTable, aKey))]++;
+        CachedRow myRow = theRows.remove(new CacheKey(aTable, aKey));
+        if (myRow != null) {
+            theBytes -= myRow.bytes();
+        }
+    }
+
+    private synchronized void invalidate(String aTable) {
+        for (int i = 0; i < STRIPES; i++) {
+            theGenerations[i]++;
+        }
+        Iterator<Map.Entry<CacheKey, CachedRow>> myIterator = theRows.entrySet().iterator();
+        while (myIterator.hasNext()) {
+            Map.Entry<CacheKey, CachedRow> myEntry = myIterator.next();
+            if (myEntry.getKey().table().equals(aTable)) {
+                theBytes -= myEntry.getValue().bytes();
+                myIterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Keeps the {@link #TOP_KEYS} keys with the highest current estimates among those read while hot.
+     */
+    private void noteHot(CacheKey aKey, long aHash, int aFrequency) {
+        if (aFrequency < HOT_FREQUENCY || theHotKeys.containsKey(aKey)) {
+            return;
+        }
+        if (theHotKeys.size() < TOP_KEYS) {
+            theHotKeys.put(aKey, aHash);
+            return;
+        }
+        Map.Entry<CacheKey, Long> myColdest = theHotKeys.entrySet().stream()
+                .min(Comparator.comparingInt(aEntry -> theSketch.frequency(aEntry.getValue()))).orElseThrow();
+        if (theSketch.frequency(myColdest.getValue()) < aFrequency) {
+            theHotKeys.remove(myColdest.getKey());
+            theHotKeys.put(aKey, aHash);
+        }
+    }
+
+    private static int stripe(long aHash) {
+        return (int) aHash & (STRIPES - 1);
+    }
+
+    private static long sizeOf(Row aRow) {
+        long myBytes = ROW_OVERHEAD_BYTES + 2L * aRow.key().length();
+        for (String myColumn : aRow.columns()) {
+            byte[] myValue = aRow.getBytes(myColumn);
+            myBytes += ROW_OVERHEAD_BYTES + 2L * myColumn.length() + (myValue == null ? 0 : myValue.length);
+        }
+        return myBytes;
+    }
+}
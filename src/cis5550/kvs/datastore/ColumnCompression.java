@@ -0,0 +1,54 @@
+package cis5550.kvs.datastore;
+
+import cis5550.tools.Logger;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Decides which columns are stored compressed. The {@link #COLUMNS_PROPERTY} system property holds a comma-separated
+ * list of table:column pairs, where a column of * stands for every column of the table. Reads never depend on
+ * it, so changing it only affects rows written afterwards.
+ */
+public class ColumnCompression {
+    public static final Logger LOGGER = Logger.getLogger(ColumnCompression.class);
+    public static final String COLUMNS_PROPERTY = "kvs.compress.columns";
+    public static final String DEFAULT_COLUMNS = "pt-crawl:page,lt-crawl:page";
+    public static final String ALL_COLUMNS = "*";
+
+    private static final Map<String, Set<String>> COLUMNS = parse(System.getProperty(COLUMNS_PROPERTY, DEFAULT_COLUMNS));
+    private static final Predicate<String> NONE = aColumn -> false;
+
+    public static Predicate<String> forTable(String aTable) {
+        Set<String> myColumns = COLUMNS.get(aTable);
+        if (myColumns == null) {
+            return NONE;
+        }
+        if (myColumns.contains(ALL_COLUMNS)) {
+            return aColumn -> true;
+        }
+        return myColumns::contains;
+    }
+
+    private static Map<String, Set<String>> parse(String aColumns) {
+        Map<String, Set<String>> myResult = new HashMap<>();
+        for (String myEntry : aColumns.split(",")) {
+            myEntry = myEntry.trim();
+            if (myEntry.isEmpty()) {
+                continue;
+            }
+
+            int mySeparator = myEntry.lastIndexOf(':');
+            if (mySeparator <= 0 || mySeparator == myEntry.length() - 1) {
+                LOGGER.warn("Ignoring malformed entry '" + myEntry + "' in " + COLUMNS_PROPERTY);
+                continue;
+            }
+            myResult.computeIfAbsent(myEntry.substring(0, mySeparator), aTable -> new HashSet<>())
+                    .add(myEntry.substring(mySeparator + 1));
+        }
+        return myResult;
+    }
+}
@@ -1,8 +1,10 @@
 package cis5550.kvs.datastore;
 
+import cis5550.kvs.MergeOperator;
 import cis5550.kvs.datamodels.OpStatus;
 import cis5550.kvs.Row;
 
+import java.io.File;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.concurrent.ConcurrentMap;
@@ -12,6 +14,19 @@ public interface Datastore {
     int put(String aTable, String aKey, String aColumn, byte[] aValue);
     int putRow(String aTable, String aKey, Row aRow);
     int append(String aTable, String aKey, String aColumn, byte[] aValue, String aDelimiter);
+
+    /**
+     * Atomically merges the operand into the column and returns the new value, or null if the merge failed.
+     */
+    byte[] mergeAndGet(String aTable, String aKey, String aColumn, byte[] aOperand, MergeOperator aOperator);
+
+    /**
+     * Atomically puts the value if the condition column holds the expected value, or is absent if that is null.
+     * Returns PRECONDITION_FAILED if it does not, and NOT_SUPPORTED if the table's store cannot put conditionally.
+     */
+    OpStatus compareAndPut(String aTable, String aKey, String aIfColumn, byte[] aExpected, String aColumn,
+                           byte[] aValue);
+
     Row get(String aTable, String aKey);
     Row get(String aTable, String aKey, int aVersion);
     int getVersion(String aTable, String aKey);
@@ -19,8 +34,54 @@ public interface Datastore {
     SortedMap<String, Row> getRows(String aTable, String aFromRow, int aNumRows);
     Stream<Row> getRowDataStream(String aTable, String aStartRow, String aEndRowExclusive);
     OpStatus delete(String aTable);
+
+    /**
+     * Deletes the rows with keys from the start row up to the end row, either of which may be null, and returns
+     * how many there were, or -1 if the table does not exist. Callers must keep writes away from the range.
+     */
+    int deleteRange(String aTable, String aStartRow, String aEndRowExclusive);
     OpStatus rename(String aTable, String aNewName);
     int count(String aTable);
     OpStatus fromMap(String aTableName, ConcurrentMap<String, Row> aTable);
     ConcurrentMap<String, Row> getMap(String aTableName);
+
+    /**
+     * Returns whether the table has a row with the given key. Stores that can tell without reading the row
+     * override this.
+     */
+    default boolean contains(String aTable, String aKey) {
+        return get(aTable, aKey) != null;
+    }
+
+    /**
+     * Merges the operand into the column without returning the result. Stores that can defer applying operands
+     * override this.
+     */
+    default int merge(String aTable, String aKey, String aColumn, byte[] aOperand, MergeOperator aOperator) {
+        return mergeAndGet(aTable, aKey, aColumn, aOperand, aOperator) == null ? -1 : 0;
+    }
+
+    /**
+     * Returns whether the table's store can merge with the operator, and also return the merged value if asked
+     * to. Stores that cannot merge every operator override this.
+     */
+    default boolean canMerge(String aTable, MergeOperator aOperator, boolean aReturnValue) {
+        return true;
+    }
+
+    /**
+     * Attaches the sorted segment files in the directory, as written by {@link cis5550.kvs.BulkLoad}, to the
+     * table without going through the write path. Only log-structured tables can take them; the others answer
+     * WRONG_NAME_FORMAT.
+     */
+    default OpStatus attach(String aTable, File aDirectory) {
+        return OpStatus.WRONG_NAME_FORMAT;
+    }
+
+    /**
+     * Makes the calling thread's writes durable. Stores that write through on every call have nothing to do.
+     */
+    default boolean sync() {
+        return true;
+    }
 }
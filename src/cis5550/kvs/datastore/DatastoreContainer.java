@@ -1,9 +1,11 @@
 package cis5550.kvs.datastore;
 
+import cis5550.kvs.MergeOperator;
 import cis5550.kvs.Row;
 import cis5550.kvs.datamodels.OpStatus;
 import cis5550.tools.Logger;
 
+import java.io.File;
 import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
@@ -17,9 +19,15 @@ public class DatastoreContainer implements Datastore {
     EnumMap<DatastoreType, Datastore> theDatastores = new EnumMap<>(DatastoreType.class);
 
     public DatastoreContainer(String aDirectory) {
-        theDatastores.put(DatastoreType.IN_MEMORY, new InMemoryDatastore());
-        theDatastores.put(DatastoreType.PERSISTENT, new PersistentDatastore(aDirectory));
-        theDatastores.put(DatastoreType.APPEND_ONLY, new AppendOnlyDatastore(aDirectory));
+        TableCatalog myCatalog = TableCatalog.open(aDirectory);
+        long myOffHeapBudget = Long.getLong(OffHeapDatastore.BUDGET_PROPERTY, 0) << 20;
+        theDatastores.put(DatastoreType.IN_MEMORY, myOffHeapBudget > 0
+                ? new OffHeapDatastore(aDirectory, myOffHeapBudget)
+                : new InMemoryDatastore());
+        theDatastores.put(DatastoreType.PERSISTENT,
+                new WriteBehindDatastore(new PersistentDatastore(aDirectory, myCatalog), aDirectory));
+        theDatastores.put(DatastoreType.APPEND_ONLY, new AppendOnlyDatastore(aDirectory, myCatalog));
+        theDatastores.put(DatastoreType.LOG_STRUCTURED, new LogStructuredDatastore(aDirectory));
     }
 
     @Override
@@ -40,12 +48,52 @@ public class DatastoreContainer implements Datastore {
         return theDatastores.get(DatastoreType.fromName(aTable)).append(aTable, aKey, aColumn, aValue, aDelimiter);
     }
 
+    @Override
+    public int merge(String aTable, String aKey, String aColumn, byte[] aOperand, MergeOperator aOperator) {
+        LOGGER.debug("Merging into table: " + aTable + " key: " + aKey + " column: " + aColumn);
+        return theDatastores.get(DatastoreType.fromName(aTable)).merge(aTable, aKey, aColumn, aOperand, aOperator);
+    }
+
+    @Override
+    public byte[] mergeAndGet(String aTable, String aKey, String aColumn, byte[] aOperand, MergeOperator aOperator) {
+        LOGGER.debug("Merging into table: " + aTable + " key: " + aKey + " column: " + aColumn);
+        return theDatastores.get(DatastoreType.fromName(aTable))
+                .mergeAndGet(aTable, aKey, aColumn, aOperand, aOperator);
+    }
+
+    @Override
+    public boolean canMerge(String aTable, MergeOperator aOperator, boolean aReturnValue) {
+        return theDatastores.get(DatastoreType.fromName(aTable)).canMerge(aTable, aOperator, aReturnValue);
+    }
+
+    @Override
+    public OpStatus compareAndPut(String aTable, String aKey, String aIfColumn, byte[] aExpected, String aColumn,
+                                  byte[] aValue) {
+        LOGGER.debug("Conditionally putting into table: " + aTable + " key: " + aKey + " column: " + aColumn);
+        return theDatastores.get(DatastoreType.fromName(aTable))
+                .compareAndPut(aTable, aKey, aIfColumn, aExpected, aColumn, aValue);
+    }
+
+    @Override
+    public boolean sync() {
+        boolean mySuccess = true;
+        for (Datastore myDatastore : theDatastores.values()) {
+            mySuccess &= myDatastore.sync();
+        }
+        return mySuccess;
+    }
+
     @Override
     public Row get(String aTable, String aKey) {
         LOGGER.debug("Getting from table: " + aTable + " key: " + aKey);
         return theDatastores.get(DatastoreType.fromName(aTable)).get(aTable, aKey);
     }
 
+    @Override
+    public boolean contains(String aTable, String aKey) {
+        return theDatastores.get(DatastoreType.fromName(aTable)).contains(aTable, aKey);
+    }
+
     @Override
     public Row get(String aTable, String aKey, int aVersion) {
         LOGGER.debug("Getting from table: " + aTable + " key: " + aKey + " version: " + aVersion);
@@ -63,7 +111,11 @@ public class DatastoreContainer implements Datastore {
         LOGGER.debug("Getting tables");
         Map<String, Integer> myAllTables = new HashMap<>();
         for (DatastoreType myType : DatastoreType.values()) {
-            myAllTables.putAll(theDatastores.get(myType).getTables());
+            theDatastores.get(myType).getTables().forEach((aTable, aCount) -> {
+                if (DatastoreType.fromName(aTable) == myType) {
+                    myAllTables.put(aTable, aCount);
+                }
+            });
         }
         return myAllTables;
     }
@@ -86,19 +138,37 @@ public class DatastoreContainer implements Datastore {
         return theDatastores.get(DatastoreType.fromName(aTable)).delete(aTable);
     }
 
+    @Override
+    public int deleteRange(String aTable, String aStartRow, String aEndRowExclusive) {
+        LOGGER.debug("Deleting rows of table: " + aTable + " start row: " + aStartRow + " end row: " + aEndRowExclusive);
+        return theDatastores.get(DatastoreType.fromName(aTable)).deleteRange(aTable, aStartRow, aEndRowExclusive);
+    }
+
     @Override
     public OpStatus rename(String aTable, String aNewName) {
         LOGGER.debug("Renaming table: " + aTable + " to: " + aNewName);
         switch (DatastoreType.fromName(aTable)) {
             case PERSISTENT -> {
+                if (DatastoreType.fromName(aNewName) == DatastoreType.LOG_STRUCTURED) {
+                    return migrate(aTable, aNewName);
+                }
                 if (DatastoreType.fromName(aNewName) != DatastoreType.PERSISTENT) {
                     return OpStatus.WRONG_NAME_FORMAT;
                 }
                 return theDatastores.get(DatastoreType.PERSISTENT).rename(aTable, aNewName);
             }
+            case LOG_STRUCTURED -> {
+                if (DatastoreType.fromName(aNewName) != DatastoreType.LOG_STRUCTURED) {
+                    return OpStatus.WRONG_NAME_FORMAT;
+                }
+                return theDatastores.get(DatastoreType.LOG_STRUCTURED).rename(aTable, aNewName);
+            }
             case IN_MEMORY -> {
+                DatastoreType myTargetType = DatastoreType.fromName(aNewName) == DatastoreType.LOG_STRUCTURED
+                        ? DatastoreType.LOG_STRUCTURED
+                        : DatastoreType.PERSISTENT;
                 ConcurrentMap<String, Row> myTable = theDatastores.get(DatastoreType.IN_MEMORY).getMap(aTable);
-                OpStatus myResult = theDatastores.get(DatastoreType.PERSISTENT).fromMap(aNewName, myTable);
+                OpStatus myResult = theDatastores.get(myTargetType).fromMap(aNewName, myTable);
                 if (myResult == OpStatus.SUCCESS) {
                     theDatastores.get(DatastoreType.IN_MEMORY).delete(aTable);
                 }
@@ -115,6 +185,39 @@ public class DatastoreContainer implements Datastore {
         }
     }
 
+    /**
+     * Moves a pt- table into the log-structured store row by row, so the table never has to fit in memory.
+     */
+    private OpStatus migrate(String aTable, String aNewName) {
+        Datastore mySource = theDatastores.get(DatastoreType.PERSISTENT);
+        Datastore myTarget = theDatastores.get(DatastoreType.LOG_STRUCTURED);
+        if (myTarget.count(aNewName) >= 0) {
+            return OpStatus.TABLE_ALREADY_EXISTS;
+        }
+
+        Stream<Row> myRows = mySource.getRowDataStream(aTable, null, null);
+        if (myRows == null) {
+            return OpStatus.TABLE_NOT_FOUND;
+        }
+
+        boolean mySuccess;
+        try (myRows) {
+            mySuccess = myRows.allMatch(aRow -> myTarget.putRow(aNewName, aRow.key(), aRow) >= 0);
+        }
+        if (!mySuccess) {
+            LOGGER.error("Failed to migrate table " + aTable + " to " + aNewName);
+            myTarget.delete(aNewName);
+            return OpStatus.SERVER_ERROR;
+        }
+        return mySource.delete(aTable);
+    }
+
+    @Override
+    public OpStatus attach(String aTable, File aDirectory) {
+        LOGGER.debug("Attaching to table: " + aTable + " segments in: " + aDirectory);
+        return theDatastores.get(DatastoreType.fromName(aTable)).attach(aTable, aDirectory);
+    }
+
     @Override
     public int count(String aTable) {
         LOGGER.debug("Counting table: " + aTable);
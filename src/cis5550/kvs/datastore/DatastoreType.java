@@ -3,6 +3,7 @@ package cis5550.kvs.datastore;
 public enum DatastoreType {
     PERSISTENT("pt-"),
     APPEND_ONLY("at-"),
+    LOG_STRUCTURED("lt-"),
     IN_MEMORY(""),
     ;
 
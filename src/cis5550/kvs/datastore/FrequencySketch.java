@@ -0,0 +1,101 @@
+package cis5550.kvs.datastore;
+
+/**
+ * A count-min sketch of how often keys are read, with {@link #DEPTH} rows of 4-bit counters packed sixteen to a
+ * long. Once it has counted ten times as many reads as it has counters per row, every counter is halved, so the
+ * estimates follow what is popular now rather than what ever was.
+ */
+class FrequencySketch {
+    static final int DEPTH = 4;
+    static final int MAX_COUNT = 15;
+    private static final long HALF_MASK = 0x7777777777777777L;
+
+    private final long[][] theRows;
+    private final int theMask;
+    private final long theSampleSize;
+    private long theSamples;
+    private long theResets;
+
+    /**
+     * Sizes the sketch to tell apart the frequencies of about the given number of keys.
+     */
+    FrequencySketch(int aKeys) {
+        int myWidth = Integer.highestOneBit(Math.max(64, aKeys - 1) << 1);
+        theRows = new long[DEPTH][myWidth / 16];
+        theMask = myWidth - 1;
+        theSampleSize = 10L * myWidth;
+    }
+
+    /**
+     * Counts one read of the key, and returns the estimate of its frequency that includes it.
+     */
+    synchronized int increment(long aHash) {
+        int myMin = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            int myIndex = index(aHash, i);
+            long[] myRow = theRows[i];
+            int myShift = (myIndex & 15) << 2;
+            int myCount = (int) (myRow[myIndex >>> 4] >>> myShift) & MAX_COUNT;
+            if (myCount < MAX_COUNT) {
+                myRow[myIndex >>> 4] += 1L << myShift;
+                myCount++;
+            }
+            myMin = Math.min(myMin, myCount);
+        }
+        if (++theSamples >= theSampleSize) {
+            halve();
+        }
+        return myMin;
+    }
+
+    synchronized int frequency(long aHash) {
+        int myMin = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            int myIndex = index(aHash, i);
+            myMin = Math.min(myMin, (int) (theRows[i][myIndex >>> 4] >>> ((myIndex & 15) << 2)) & MAX_COUNT);
+        }
+        return myMin;
+    }
+
+    /**
+     * Returns how many reads were counted since the counters were last halved.
+     */
+    synchronized long samples() {
+        return theSamples;
+    }
+
+    synchronized long resets() {
+        return theResets;
+    }
+
+    int width() {
+        return theMask + 1;
+    }
+
+    private void halve() {
+        for (long[] myRow : theRows) {
+            for (int i = 0; i < myRow.length; i++) {
+                myRow[i] = (myRow[i] >>> 1) & HALF_MASK;
+            }
+        }
+        theSamples /= 2;
+        theResets++;
+    }
+
+    private int index(long aHash, int aRow) {
+        long myHash = (aHash >>> 32) + aRow * (aHash | 1);
+        myHash ^= myHash >>> 29;
+        myHash *= 0xbf58476d1ce4e5b9L;
+        return (int) (myHash ^ (myHash >>> 32)) & theMask;
+    }
+
+    /**
+     * Hashes the key of a row of a table without joining the two.
+     */
+    static long hash(String aTable, String aKey) {
+        long myHash = aTable.hashCode() * 0x9e3779b97f4a7c15L + aKey.hashCode();
+        myHash = (myHash ^ (myHash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        myHash = (myHash ^ (myHash >>> 27)) * 0x94d049bb133111ebL;
+        return myHash ^ (myHash >>> 31);
+    }
+}
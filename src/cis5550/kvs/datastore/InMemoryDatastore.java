@@ -1,21 +1,27 @@
 package cis5550.kvs.datastore;
 
+import cis5550.kvs.MergeOperator;
+import cis5550.kvs.MergeOperators;
 import cis5550.kvs.datamodels.OpStatus;
 import cis5550.kvs.Row;
 import cis5550.tools.Logger;
 
+import java.util.Arrays;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.stream.Stream;
 
+/**
+ * Keeps each table in a skip list ordered by row key, so scans seek to their start row and stop at their end row.
+ */
 public class InMemoryDatastore implements Datastore {
     public static final Logger LOGGER = Logger.getLogger(InMemoryDatastore.class);
 
-    private final ConcurrentMap<String, ConcurrentMap<String, Row>> theMemoryData;
+    private final ConcurrentMap<String, ConcurrentNavigableMap<String, Row>> theMemoryData;
 
     public InMemoryDatastore() {
         theMemoryData = new ConcurrentHashMap<>();
@@ -23,37 +29,51 @@ public class InMemoryDatastore implements Datastore {
 
     @Override
     public int put(String aTable, String aKey, String aColumn, byte[] aValue) {
-        theMemoryData.putIfAbsent(aTable, new ConcurrentHashMap<>());
-        if (!theMemoryData.get(aTable).containsKey(aKey)) {
-            Row myNewRow = new Row(aKey);
-            myNewRow.put(aColumn, aValue);
-            theMemoryData.get(aTable).put(aKey, myNewRow);
-        } else {
-            theMemoryData.get(aTable).get(aKey).put(aColumn, aValue);
-        }
+        getOrCreateTable(aTable).compute(aKey, (aRowKey, aRow) -> {
+            Row myRow = aRow == null ? new Row(aRowKey) : aRow;
+            myRow.put(aColumn, aValue);
+            return myRow;
+        });
         return 0;
     }
 
     @Override
     public int putRow(String aTable, String aKey, Row aRow) {
-        theMemoryData.putIfAbsent(aTable, new ConcurrentHashMap<>());
-        theMemoryData.get(aTable).put(aKey, aRow);
+        getOrCreateTable(aTable).put(aKey, aRow);
         return 0;
     }
 
     @Override
     public int append(String aTable, String aKey, String aColumn, byte[] aValue, String aDelimiter) {
-        theMemoryData.putIfAbsent(aTable, new ConcurrentHashMap<>());
-        Row myPreviousRow = theMemoryData.get(aTable).get(aKey);
-        if (myPreviousRow == null) {
-            myPreviousRow = new Row(aKey);
-        }
-        if (myPreviousRow.get(aColumn) == null) {
-            myPreviousRow.put(aColumn, aValue);
-        } else {
-            myPreviousRow.put(aColumn, myPreviousRow.get(aColumn) + aDelimiter + new String(aValue));
-        }
-        return 0;
+        return merge(aTable, aKey, aColumn, aValue, MergeOperators.append(aDelimiter));
+    }
+
+    @Override
+    public byte[] mergeAndGet(String aTable, String aKey, String aColumn, byte[] aOperand, MergeOperator aOperator) {
+        byte[][] myResult = new byte[1][];
+        getOrCreateTable(aTable).compute(aKey, (aRowKey, aRow) -> {
+            Row myRow = aRow == null ? new Row(aRowKey) : aRow;
+            myResult[0] = aOperator.apply(myRow.getBytes(aColumn), aOperand);
+            myRow.put(aColumn, myResult[0]);
+            return myRow;
+        });
+        return myResult[0];
+    }
+
+    @Override
+    public OpStatus compareAndPut(String aTable, String aKey, String aIfColumn, byte[] aExpected, String aColumn,
+                                  byte[] aValue) {
+        boolean[] myMatched = new boolean[1];
+        getOrCreateTable(aTable).compute(aKey, (aRowKey, aRow) -> {
+            myMatched[0] = Arrays.equals(aRow == null ? null : aRow.getBytes(aIfColumn), aExpected);
+            if (!myMatched[0]) {
+                return aRow;
+            }
+            Row myRow = aRow == null ? new Row(aRowKey) : aRow;
+            myRow.put(aColumn, aValue);
+            return myRow;
+        });
+        return myMatched[0] ? OpStatus.SUCCESS : OpStatus.PRECONDITION_FAILED;
     }
 
     @Override
@@ -87,11 +107,11 @@ public class InMemoryDatastore implements Datastore {
 
     @Override
     public SortedMap<String, Row> getRows(String aTable, String aFromRow, int aNumRows) {
-        if (!theMemoryData.containsKey(aTable)) {
+        ConcurrentNavigableMap<String, Row> myTable = theMemoryData.get(aTable);
+        if (myTable == null) {
             return null;
         }
-        return theMemoryData.get(aTable).entrySet().stream()
-                .filter(aEntry -> aFromRow == null || aEntry.getKey().compareTo(aFromRow) >= 0)
+        return (aFromRow == null ? myTable : myTable.tailMap(aFromRow)).entrySet().stream()
                 .limit(aNumRows + 1)
                 .collect(
                         ConcurrentSkipListMap::new,
@@ -102,20 +122,20 @@ public class InMemoryDatastore implements Datastore {
 
     @Override
     public Stream<Row> getRowDataStream(String aTable, String aStartRow, String aEndRowExclusive) {
-        if (!theMemoryData.containsKey(aTable)) {
+        ConcurrentNavigableMap<String, Row> myTable = theMemoryData.get(aTable);
+        if (myTable == null) {
             return null;
         }
-        return theMemoryData.get(aTable).entrySet().stream()
-                .filter(aEntry -> {
-                    if (aStartRow != null && aEntry.getKey().compareTo(aStartRow) < 0) {
-                        return false;
-                    }
-                    if (aEndRowExclusive != null && aEntry.getKey().compareTo(aEndRowExclusive) >= 0) {
-                        return false;
-                    }
-                    return true;
-                })
-                .map(aEntry -> aEntry.getValue());
+        if (aStartRow != null && aEndRowExclusive != null && aStartRow.compareTo(aEndRowExclusive) >= 0) {
+            return Stream.empty();
+        }
+        if (aStartRow != null) {
+            myTable = myTable.tailMap(aStartRow);
+        }
+        if (aEndRowExclusive != null) {
+            myTable = myTable.headMap(aEndRowExclusive);
+        }
+        return myTable.values().stream();
     }
 
     @Override
@@ -126,6 +146,26 @@ public class InMemoryDatastore implements Datastore {
         return theMemoryData.remove(aTable, theMemoryData.get(aTable)) ? OpStatus.SUCCESS : OpStatus.SERVER_ERROR;
     }
 
+    @Override
+    public int deleteRange(String aTable, String aStartRow, String aEndRowExclusive) {
+        ConcurrentNavigableMap<String, Row> myTable = theMemoryData.get(aTable);
+        if (myTable == null) {
+            return -1;
+        }
+        if (aStartRow != null && aEndRowExclusive != null && aStartRow.compareTo(aEndRowExclusive) >= 0) {
+            return 0;
+        }
+        if (aStartRow != null) {
+            myTable = myTable.tailMap(aStartRow);
+        }
+        if (aEndRowExclusive != null) {
+            myTable = myTable.headMap(aEndRowExclusive);
+        }
+        int myDeleted = myTable.size();
+        myTable.clear();
+        return myDeleted;
+    }
+
     @Override
     public OpStatus rename(String aTable, String aNewName) {
         if (!theMemoryData.containsKey(aTable)) {
@@ -151,15 +191,21 @@ public class InMemoryDatastore implements Datastore {
         if (theMemoryData.containsKey(aTableName)) {
             return OpStatus.TABLE_ALREADY_EXISTS;
         }
-        theMemoryData.put(aTableName, aTable);
+        theMemoryData.put(aTableName, aTable instanceof ConcurrentNavigableMap<String, Row> mySortedTable
+                ? mySortedTable
+                : new ConcurrentSkipListMap<>(aTable));
         return OpStatus.SUCCESS;
     }
 
     @Override
     public ConcurrentMap<String, Row> getMap(String aTableName) {
         if (!theMemoryData.containsKey(aTableName)) {
-            return new ConcurrentHashMap<>();
+            return new ConcurrentSkipListMap<>();
         }
         return theMemoryData.get(aTableName);
     }
+
+    private ConcurrentNavigableMap<String, Row> getOrCreateTable(String aTable) {
+        return theMemoryData.computeIfAbsent(aTable, aName -> new ConcurrentSkipListMap<>());
+    }
 }
\ No newline at end of file
@@ -0,0 +1,376 @@
+package cis5550.kvs.datastore;
+
+import cis5550.kvs.MergeOperator;
+import cis5550.kvs.Row;
+import cis5550.kvs.datamodels.OpStatus;
+import cis5550.kvs.datastore.lsm.LogStructuredTable;
+import cis5550.kvs.datastore.lsm.RowFragment;
+import cis5550.kvs.datastore.lsm.Segment;
+import cis5550.tools.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class LogStructuredDatastore implements Datastore {
+    public static final Logger LOGGER = Logger.getLogger(LogStructuredDatastore.class);
+    public static final String STAGING_PREFIX = "__attach-";
+
+    private final String theDataDirectory;
+    private final ConcurrentMap<String, LogStructuredTable> theTables;
+    private final ExecutorService theFlushExecutor;
+    private final ExecutorService theCompactionExecutor;
+
+    public LogStructuredDatastore(String aDirectory) {
+        theDataDirectory = aDirectory;
+        theTables = new ConcurrentHashMap<>();
+        theFlushExecutor = Executors.newSingleThreadExecutor(aRunnable -> daemon(aRunnable, "lsm-flush"));
+        theCompactionExecutor = Executors.newSingleThreadExecutor(aRunnable -> daemon(aRunnable, "lsm-compaction"));
+
+        File[] myTables = new File(theDataDirectory).listFiles();
+        if (myTables == null) {
+            return;
+        }
+        for (File myTable : myTables) {
+            if (myTable.isDirectory() && myTable.getName().startsWith(STAGING_PREFIX)) {
+                // An attach that was cut short attached nothing
+                deleteDirectory(myTable);
+            } else if (myTable.isDirectory() && DatastoreType.fromName(myTable.getName()) == DatastoreType.LOG_STRUCTURED) {
+                try {
+                    theTables.put(myTable.getName(), openTable(myTable.getName()));
+                } catch (IOException e) {
+                    LOGGER.error("Failed to open table " + myTable.getName(), e);
+                }
+            }
+        }
+    }
+
+    private static Thread daemon(Runnable aRunnable, String aName) {
+        Thread myThread = new Thread(aRunnable, aName);
+        myThread.setDaemon(true);
+        return myThread;
+    }
+
+    @Override
+    public int put(String aTable, String aKey, String aColumn, byte[] aValue) {
+        try {
+            getOrCreateTable(aTable).put(aKey, aColumn, aValue);
+            return 0;
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.error("Failed to put into table " + aTable, e);
+            return -1;
+        }
+    }
+
+    @Override
+    public int putRow(String aTable, String aKey, Row aRow) {
+        try {
+            getOrCreateTable(aTable).putRow(aKey, aRow);
+            return 0;
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.error("Failed to put row into table " + aTable, e);
+            return -1;
+        }
+    }
+
+    @Override
+    public int append(String aTable, String aKey, String aColumn, byte[] aValue, String aDelimiter) {
+        try {
+            getOrCreateTable(aTable).append(aKey, aColumn, aValue, aDelimiter);
+            return 0;
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.error("Failed to append to table " + aTable, e);
+            return -1;
+        }
+    }
+
+    @Override
+    public byte[] mergeAndGet(String aTable, String aKey, String aColumn, byte[] aOperand, MergeOperator aOperator) {
+        try {
+            return getOrCreateTable(aTable).mergeAndGet(aKey, aColumn, aOperator, aOperand);
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.error("Failed to merge into table " + aTable, e);
+            return null;
+        }
+    }
+
+    @Override
+    public int merge(String aTable, String aKey, String aColumn, byte[] aOperand, MergeOperator aOperator) {
+        try {
+            getOrCreateTable(aTable).merge(aKey, aColumn, aOperator, aOperand);
+            return 0;
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.error("Failed to merge into table " + aTable, e);
+            return -1;
+        }
+    }
+
+    @Override
+    public OpStatus compareAndPut(String aTable, String aKey, String aIfColumn, byte[] aExpected, String aColumn,
+                                  byte[] aValue) {
+        try {
+            return getOrCreateTable(aTable).compareAndPut(aKey, aIfColumn, aExpected, aColumn, aValue)
+                    ? OpStatus.SUCCESS : OpStatus.PRECONDITION_FAILED;
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.error("Failed to put into table " + aTable, e);
+            return OpStatus.SERVER_ERROR;
+        }
+    }
+
+    @Override
+    public boolean sync() {
+        boolean mySuccess = true;
+        for (LogStructuredTable myTable : theTables.values()) {
+            try {
+                myTable.sync();
+            } catch (IOException e) {
+                LOGGER.error("Failed to sync table " + myTable.directory().getName(), e);
+                mySuccess = false;
+            }
+        }
+        return mySuccess;
+    }
+
+    @Override
+    public Row get(String aTable, String aKey) {
+        LogStructuredTable myTable = theTables.get(aTable);
+        if (myTable == null) {
+            return null;
+        }
+
+        try {
+            return myTable.get(aKey);
+        } catch (IOException e) {
+            LOGGER.error("Failed to read from table " + aTable, e);
+            return null;
+        }
+    }
+
+    @Override
+    public Row get(String aTable, String aKey, int aVersion) {
+        return get(aTable, aKey);
+    }
+
+    @Override
+    public int getVersion(String aTable, String aKey) {
+        return 0;
+    }
+
+    @Override
+    public Map<String, Integer> getTables() {
+        Map<String, Integer> myResult = new HashMap<>();
+        theTables.forEach((aName, aTable) -> myResult.put(aName, aTable.count()));
+        return myResult;
+    }
+
+    @Override
+    public SortedMap<String, Row> getRows(String aTable, String aFromRow, int aNumRows) {
+        LogStructuredTable myTable = theTables.get(aTable);
+        if (myTable == null) {
+            return null;
+        }
+
+        SortedMap<String, Row> myResult = new ConcurrentSkipListMap<>();
+        Iterator<Map.Entry<String, RowFragment>> myRows = myTable.iterator(aFromRow, null);
+        while (myRows.hasNext() && myResult.size() < aNumRows + 1) {
+            Map.Entry<String, RowFragment> myEntry = myRows.next();
+            myResult.put(myEntry.getKey(), myEntry.getValue().resolve());
+        }
+        return myResult;
+    }
+
+    @Override
+    public Stream<Row> getRowDataStream(String aTable, String aStartRow, String aEndRowExclusive) {
+        LogStructuredTable myTable = theTables.get(aTable);
+        if (myTable == null) {
+            return null;
+        }
+
+        Iterator<Map.Entry<String, RowFragment>> myRows = myTable.iterator(aStartRow, aEndRowExclusive);
+        return StreamSupport.stream(
+                        Spliterators.spliteratorUnknownSize(myRows, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .map(aEntry -> aEntry.getValue().resolve());
+    }
+
+    @Override
+    public OpStatus delete(String aTable) {
+        LogStructuredTable myTable = theTables.remove(aTable);
+        if (myTable == null) {
+            return OpStatus.TABLE_NOT_FOUND;
+        }
+        return myTable.destroy() ? OpStatus.SUCCESS : OpStatus.SERVER_ERROR;
+    }
+
+    @Override
+    public int deleteRange(String aTable, String aStartRow, String aEndRowExclusive) {
+        LogStructuredTable myTable = theTables.get(aTable);
+        if (myTable == null) {
+            return -1;
+        }
+
+        try {
+            return myTable.deleteRange(aStartRow, aEndRowExclusive);
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.error("Failed to delete rows of table " + aTable, e);
+            return -1;
+        }
+    }
+
+    @Override
+    public OpStatus rename(String aTable, String aNewName) {
+        File myNewTableDirectory = new File(theDataDirectory + File.separator + aNewName);
+        if (theTables.containsKey(aNewName) || myNewTableDirectory.exists()) {
+            return OpStatus.TABLE_ALREADY_EXISTS;
+        }
+
+        LogStructuredTable myTable = theTables.remove(aTable);
+        if (myTable == null) {
+            return OpStatus.TABLE_NOT_FOUND;
+        }
+
+        myTable.close();
+        if (!myTable.directory().renameTo(myNewTableDirectory)) {
+            LOGGER.error("Failed to rename " + myTable.directory() + " to " + myNewTableDirectory);
+            return OpStatus.SERVER_ERROR;
+        }
+
+        try {
+            theTables.put(aNewName, openTable(aNewName));
+            return OpStatus.SUCCESS;
+        } catch (IOException e) {
+            LOGGER.error("Failed to reopen renamed table " + aNewName, e);
+            return OpStatus.SERVER_ERROR;
+        }
+    }
+
+    /**
+     * Links the segment files into a staging directory next to the tables, or copies them if they are on another
+     * file system, so that the directory given stays as it is, for replicas to attach the same files from. A
+     * crash before the staged segments are attached leaves only the staging directory, which is deleted on the
+     * next start. Then attaches them to the table, which is created if it does not exist.
+     */
+    @Override
+    public OpStatus attach(String aTable, File aDirectory) {
+        File[] myFiles = aDirectory.listFiles((aDir, aName) -> aName.endsWith(Segment.SUFFIX));
+        if (myFiles == null || myFiles.length == 0) {
+            LOGGER.warn("No segment files to attach in " + aDirectory);
+            return OpStatus.TABLE_NOT_FOUND;
+        }
+
+        File myStaging = new File(theDataDirectory, STAGING_PREFIX + aTable + "-" + System.nanoTime());
+        try {
+            if (!myStaging.mkdirs()) {
+                throw new IOException("Failed to create staging directory " + myStaging);
+            }
+            for (File myFile : myFiles) {
+                stage(myFile, new File(myStaging, myFile.getName()));
+            }
+
+            theTables.compute(aTable, (aName, aExisting) -> {
+                LogStructuredTable myTable = null;
+                try {
+                    myTable = aExisting != null ? aExisting : openTable(aName);
+                    myTable.attach(myStaging);
+                    return myTable;
+                } catch (IOException e) {
+                    if (aExisting == null && myTable != null) {
+                        myTable.destroy();
+                    }
+                    throw new UncheckedIOException(e);
+                }
+            });
+            return OpStatus.SUCCESS;
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.error("Failed to attach " + aDirectory + " to table " + aTable, e);
+            return OpStatus.SERVER_ERROR;
+        } finally {
+            // Holds only links or copies, and is gone once the segments are attached
+            deleteDirectory(myStaging);
+        }
+    }
+
+    private static void stage(File aSource, File aTarget) throws IOException {
+        try {
+            Files.createLink(aTarget.toPath(), aSource.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(aSource.toPath(), aTarget.toPath());
+            try (FileChannel myChannel = FileChannel.open(aTarget.toPath(), StandardOpenOption.WRITE)) {
+                myChannel.force(true);
+            }
+        }
+    }
+
+    private static void deleteDirectory(File aDirectory) {
+        File[] myFiles = aDirectory.listFiles();
+        if (myFiles != null) {
+            for (File myFile : myFiles) {
+                myFile.delete();
+            }
+        }
+        aDirectory.delete();
+    }
+
+    @Override
+    public int count(String aTable) {
+        LogStructuredTable myTable = theTables.get(aTable);
+        return myTable == null ? -1 : myTable.count();
+    }
+
+    @Override
+    public OpStatus fromMap(String aTableName, ConcurrentMap<String, Row> aTable) {
+        if (theTables.containsKey(aTableName) || new File(getTableDirectory(aTableName)).exists()) {
+            return OpStatus.TABLE_ALREADY_EXISTS;
+        }
+
+        SortedMap<String, RowFragment> mySortedRows = new TreeMap<>();
+        aTable.forEach((aKey, aRow) -> mySortedRows.put(aKey, new RowFragment(aRow, true)));
+
+        try {
+            LogStructuredTable myTable = openTable(aTableName);
+            myTable.importSorted(mySortedRows.entrySet().iterator(), mySortedRows.size());
+            theTables.put(aTableName, myTable);
+            return OpStatus.SUCCESS;
+        } catch (IOException e) {
+            LOGGER.error("Failed to load table " + aTableName, e);
+            return OpStatus.SERVER_ERROR;
+        }
+    }
+
+    @Override
+    public ConcurrentMap<String, Row> getMap(String aTableName) {
+        ConcurrentMap<String, Row> myResult = new ConcurrentSkipListMap<>();
+        LogStructuredTable myTable = theTables.get(aTableName);
+        if (myTable == null) {
+            return myResult;
+        }
+
+        myTable.iterator(null, null).forEachRemaining(aEntry -> myResult.put(aEntry.getKey(), aEntry.getValue().resolve()));
+        return myResult;
+    }
+
+    private LogStructuredTable getOrCreateTable(String aTable) {
+        return theTables.computeIfAbsent(aTable, aName -> {
+            try {
+                return openTable(aName);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private LogStructuredTable openTable(String aTable) throws IOException {
+        return LogStructuredTable.open(new File(getTableDirectory(aTable)), ColumnCompression.forTable(aTable),
+                theFlushExecutor, theCompactionExecutor);
+    }
+
+    private String getTableDirectory(String aTable) {
+        return theDataDirectory + File.separator + aTable;
+    }
+}
@@ -0,0 +1,353 @@
+package cis5550.kvs.datastore;
+
+import cis5550.kvs.MergeOperator;
+import cis5550.kvs.MergeOperators;
+import cis5550.kvs.Row;
+import cis5550.kvs.datamodels.OpStatus;
+import cis5550.kvs.datastore.offheap.MemoryBudget;
+import cis5550.kvs.datastore.offheap.OffHeapTable;
+import cis5550.tools.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * An in-memory datastore that keeps its rows outside the Java heap, in {@link OffHeapTable}s sharing a memory
+ * budget of {@link #BUDGET_PROPERTY} megabytes. When a write does not fit, the largest table is spilled to a
+ * log-structured table under {@link #SPILL_DIRECTORY} and served from there until it is deleted. Like every
+ * in-memory table, spilled tables do not survive a restart.
+ */
+public class OffHeapDatastore implements Datastore {
+    public static final Logger LOGGER = Logger.getLogger(OffHeapDatastore.class);
+    public static final String BUDGET_PROPERTY = "kvs.offHeap.budgetMB";
+    public static final String SPILL_DIRECTORY = "__spill";
+
+    private final MemoryBudget theBudget;
+    private final ConcurrentMap<String, OffHeapTable> theTables;
+    private final Set<String> theSpilledTables;
+    private final LogStructuredDatastore theSpillStore;
+    private final ReentrantReadWriteLock theSpillLock;
+
+    public OffHeapDatastore(String aDirectory, long aBudgetBytes) {
+        theBudget = new MemoryBudget(aBudgetBytes);
+        theTables = new ConcurrentHashMap<>();
+        theSpilledTables = ConcurrentHashMap.newKeySet();
+        theSpillLock = new ReentrantReadWriteLock();
+
+        File mySpillDirectory = new File(aDirectory, SPILL_DIRECTORY);
+        deleteRecursively(mySpillDirectory.toPath());
+        theSpillStore = new LogStructuredDatastore(mySpillDirectory.getPath());
+    }
+
+    @Override
+    public int put(String aTable, String aKey, String aColumn, byte[] aValue) {
+        return write(aTable, aKey, aRow -> {
+            Row myRow = aRow == null ? new Row(aKey) : aRow;
+            myRow.put(aColumn, aValue);
+            return myRow;
+        }, () -> theSpillStore.put(aTable, aKey, aColumn, aValue));
+    }
+
+    @Override
+    public int putRow(String aTable, String aKey, Row aRow) {
+        return write(aTable, aRow.key(), aPrevious -> aRow, () -> theSpillStore.putRow(aTable, aKey, aRow));
+    }
+
+    @Override
+    public int append(String aTable, String aKey, String aColumn, byte[] aValue, String aDelimiter) {
+        return merge(aTable, aKey, aColumn, aValue, MergeOperators.append(aDelimiter));
+    }
+
+    @Override
+    public byte[] mergeAndGet(String aTable, String aKey, String aColumn, byte[] aOperand, MergeOperator aOperator) {
+        byte[][] myResult = new byte[1][];
+        int myStatus = write(aTable, aKey, aRow -> {
+            Row myRow = aRow == null ? new Row(aKey) : aRow;
+            myResult[0] = aOperator.apply(myRow.getBytes(aColumn), aOperand);
+            myRow.put(aColumn, myResult[0]);
+            return myRow;
+        }, () -> {
+            myResult[0] = theSpillStore.mergeAndGet(aTable, aKey, aColumn, aOperand, aOperator);
+            return myResult[0] == null ? -1 : 0;
+        });
+        return myStatus < 0 ? null : myResult[0];
+    }
+
+    @Override
+    public int merge(String aTable, String aKey, String aColumn, byte[] aOperand, MergeOperator aOperator) {
+        return write(aTable, aKey, aRow -> {
+            Row myRow = aRow == null ? new Row(aKey) : aRow;
+            myRow.put(aColumn, aOperator.apply(myRow.getBytes(aColumn), aOperand));
+            return myRow;
+        }, () -> theSpillStore.merge(aTable, aKey, aColumn, aOperand, aOperator));
+    }
+
+    @Override
+    public OpStatus compareAndPut(String aTable, String aKey, String aIfColumn, byte[] aExpected, String aColumn,
+                                  byte[] aValue) {
+        OpStatus[] myResult = new OpStatus[1];
+        write(aTable, aKey, aRow -> {
+            if (!Arrays.equals(aRow == null ? null : aRow.getBytes(aIfColumn), aExpected)) {
+                myResult[0] = OpStatus.PRECONDITION_FAILED;
+                return null;
+            }
+            Row myRow = aRow == null ? new Row(aKey) : aRow;
+            myRow.put(aColumn, aValue);
+            myResult[0] = OpStatus.SUCCESS;
+            return myRow;
+        }, () -> {
+            myResult[0] = theSpillStore.compareAndPut(aTable, aKey, aIfColumn, aExpected, aColumn, aValue);
+            return 0;
+        });
+        return myResult[0];
+    }
+
+    /**
+     * Applies a write to the table in memory, spilling tables until it fits, or to the spilled table.
+     */
+    private int write(String aTable, String aKey, UnaryOperator<Row> aUpdate, Supplier<Integer> aSpilledWrite) {
+        while (true) {
+            theSpillLock.readLock().lock();
+            try {
+                if (theSpilledTables.contains(aTable)) {
+                    return aSpilledWrite.get();
+                }
+                if (theTables.computeIfAbsent(aTable, aName -> new OffHeapTable(theBudget)).update(aKey, aUpdate)) {
+                    return 0;
+                }
+            } finally {
+                theSpillLock.readLock().unlock();
+            }
+            spill(aTable);
+        }
+    }
+
+    /**
+     * Spills the table holding the most memory, or the given table if no table holds any.
+     */
+    private void spill(String aTable) {
+        theSpillLock.writeLock().lock();
+        try {
+            String myVictim = aTable;
+            long myVictimBytes = 0;
+            for (Map.Entry<String, OffHeapTable> myEntry : theTables.entrySet()) {
+                if (myEntry.getValue().reservedBytes() > myVictimBytes) {
+                    myVictim = myEntry.getKey();
+                    myVictimBytes = myEntry.getValue().reservedBytes();
+                }
+            }
+
+            OffHeapTable myTable = theTables.remove(myVictim);
+            if (myTable == null) {
+                theSpilledTables.add(myVictim);
+                return;
+            }
+
+            LOGGER.info("Spilling table " + myVictim + " of " + myTable.size() + " rows and " + myVictimBytes
+                    + " bytes to disk, " + theBudget.used() + " of " + theBudget.limit() + " bytes in use");
+            Iterator<Row> myRows = myTable.rows(null, null);
+            while (myRows.hasNext()) {
+                // Copy the row onto the heap so the spill store does not keep the chunks alive
+                Row myRow = Row.readFrom(ByteBuffer.wrap(myRows.next().toBinaryByteArray()));
+                if (theSpillStore.putRow(myVictim, myRow.key(), myRow) < 0) {
+                    LOGGER.error("Failed to spill row " + myRow.key() + " of table " + myVictim);
+                }
+            }
+            theSpilledTables.add(myVictim);
+            myTable.free();
+        } catch (Exception e) {
+            LOGGER.error("Failed to spill table", e);
+        } finally {
+            theSpillLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Row get(String aTable, String aKey) {
+        return get(aTable, aKey, -1);
+    }
+
+    @Override
+    public Row get(String aTable, String aKey, int aVersion) {
+        theSpillLock.readLock().lock();
+        try {
+            if (theSpilledTables.contains(aTable)) {
+                return theSpillStore.get(aTable, aKey);
+            }
+            OffHeapTable myTable = theTables.get(aTable);
+            return myTable == null ? null : myTable.get(aKey);
+        } finally {
+            theSpillLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getVersion(String aTable, String aKey) {
+        return 0;
+    }
+
+    @Override
+    public Map<String, Integer> getTables() {
+        theSpillLock.readLock().lock();
+        try {
+            Map<String, Integer> myResult = new HashMap<>();
+            theTables.forEach((aName, aTable) -> myResult.put(aName, aTable.size()));
+            theSpillStore.getTables().forEach((aName, aCount) -> {
+                if (theSpilledTables.contains(aName)) {
+                    myResult.put(aName, aCount);
+                }
+            });
+            return myResult;
+        } finally {
+            theSpillLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public SortedMap<String, Row> getRows(String aTable, String aFromRow, int aNumRows) {
+        Stream<Row> myRows = getRowDataStream(aTable, aFromRow, null);
+        if (myRows == null) {
+            return null;
+        }
+        return myRows.limit(aNumRows + 1)
+                .collect(
+                        ConcurrentSkipListMap::new,
+                        (aMap, aRow) -> aMap.put(aRow.key(), aRow),
+                        ConcurrentSkipListMap::putAll);
+    }
+
+    @Override
+    public Stream<Row> getRowDataStream(String aTable, String aStartRow, String aEndRowExclusive) {
+        theSpillLock.readLock().lock();
+        try {
+            if (theSpilledTables.contains(aTable)) {
+                return theSpillStore.getRowDataStream(aTable, aStartRow, aEndRowExclusive);
+            }
+            OffHeapTable myTable = theTables.get(aTable);
+            if (myTable == null) {
+                return null;
+            }
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                    myTable.rows(aStartRow, aEndRowExclusive), Spliterator.ORDERED | Spliterator.NONNULL), false);
+        } finally {
+            theSpillLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public OpStatus delete(String aTable) {
+        theSpillLock.writeLock().lock();
+        try {
+            if (theSpilledTables.remove(aTable)) {
+                OpStatus myResult = theSpillStore.delete(aTable);
+                // A table spilled before its first row was written has nothing on disk
+                return myResult == OpStatus.TABLE_NOT_FOUND ? OpStatus.SUCCESS : myResult;
+            }
+            OffHeapTable myTable = theTables.remove(aTable);
+            if (myTable == null) {
+                return OpStatus.TABLE_NOT_FOUND;
+            }
+            myTable.free();
+            return OpStatus.SUCCESS;
+        } finally {
+            theSpillLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int deleteRange(String aTable, String aStartRow, String aEndRowExclusive) {
+        theSpillLock.readLock().lock();
+        try {
+            if (theSpilledTables.contains(aTable)) {
+                return Math.max(theSpillStore.deleteRange(aTable, aStartRow, aEndRowExclusive), 0);
+            }
+            OffHeapTable myTable = theTables.get(aTable);
+            return myTable == null ? -1 : myTable.removeRange(aStartRow, aEndRowExclusive);
+        } finally {
+            theSpillLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public OpStatus rename(String aTable, String aNewName) {
+        theSpillLock.writeLock().lock();
+        try {
+            if (!theTables.containsKey(aTable) && !theSpilledTables.contains(aTable)) {
+                return OpStatus.TABLE_NOT_FOUND;
+            }
+            if (theTables.containsKey(aNewName) || theSpilledTables.contains(aNewName)) {
+                return OpStatus.TABLE_ALREADY_EXISTS;
+            }
+
+            if (theSpilledTables.contains(aTable)) {
+                OpStatus myResult = theSpillStore.rename(aTable, aNewName);
+                if (myResult != OpStatus.SUCCESS && myResult != OpStatus.TABLE_NOT_FOUND) {
+                    return myResult;
+                }
+                theSpilledTables.remove(aTable);
+                theSpilledTables.add(aNewName);
+                return OpStatus.SUCCESS;
+            }
+            theTables.put(aNewName, theTables.remove(aTable));
+            return OpStatus.SUCCESS;
+        } finally {
+            theSpillLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int count(String aTable) {
+        theSpillLock.readLock().lock();
+        try {
+            if (theSpilledTables.contains(aTable)) {
+                return Math.max(theSpillStore.count(aTable), 0);
+            }
+            OffHeapTable myTable = theTables.get(aTable);
+            return myTable == null ? -1 : myTable.size();
+        } finally {
+            theSpillLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public OpStatus fromMap(String aTableName, ConcurrentMap<String, Row> aTable) {
+        if (count(aTableName) >= 0) {
+            return OpStatus.TABLE_ALREADY_EXISTS;
+        }
+        aTable.forEach((aKey, aRow) -> putRow(aTableName, aKey, aRow));
+        return OpStatus.SUCCESS;
+    }
+
+    @Override
+    public ConcurrentMap<String, Row> getMap(String aTableName) {
+        ConcurrentMap<String, Row> myResult = new ConcurrentHashMap<>();
+        Stream<Row> myRows = getRowDataStream(aTableName, null, null);
+        if (myRows != null) {
+            myRows.forEach(aRow -> myResult.put(aRow.key(), aRow));
+        }
+        return myResult;
+    }
+
+    private static void deleteRecursively(Path aPath) {
+        if (!Files.exists(aPath)) {
+            return;
+        }
+        try (Stream<Path> myPaths = Files.walk(aPath)) {
+            myPaths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            LOGGER.error("Failed to delete " + aPath, e);
+        }
+    }
+}
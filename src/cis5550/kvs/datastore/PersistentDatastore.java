@@ -1,14 +1,19 @@
 package cis5550.kvs.datastore;
 
+import cis5550.kvs.MergeOperator;
 import cis5550.kvs.datamodels.OpStatus;
 import cis5550.kvs.Row;
 import cis5550.tools.Logger;
+import cis5550.utils.FileIOUtils;
 
 import java.io.*;
 import java.util.*;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static cis5550.kvs.KeyEncoder.encode;
 import static cis5550.utils.FileIOUtils.readRowFromFile;
@@ -21,9 +26,16 @@ public class PersistentDatastore implements Datastore {
     public static final int KEY_SUBSTRING_LENGTH = 2;
 
     private final String theDataDirectory;
+    private final TableKeyIndexes theIndexes;
+    private final TableCatalog theCatalog;
+    // Row files written, and directories given new row files, since the last sync
+    private final Set<File> theUnsynced;
 
-    public PersistentDatastore(String aDirectory) {
+    public PersistentDatastore(String aDirectory, TableCatalog aCatalog) {
         theDataDirectory = aDirectory;
+        theIndexes = new TableKeyIndexes(aDirectory, FileIOUtils::readRowFromFile);
+        theCatalog = aCatalog;
+        theUnsynced = ConcurrentHashMap.newKeySet();
     }
 
     @Override
@@ -46,9 +58,13 @@ public class PersistentDatastore implements Datastore {
             }
         }
 
+        if (!myFile.exists() && !theIndexes.add(aTable, aKey)) {
+            return -1;
+        }
+
         myRow.put(aColumn, aValue);
 
-        return writeRowToFile(myFileName, myRow) ? 0 : -1;
+        return writeRow(aTable, aKey, myFile, myRow) ? 0 : -1;
     }
 
     @Override
@@ -63,8 +79,11 @@ public class PersistentDatastore implements Datastore {
             }
         }
 
-        return writeRowToFile(myFileName, aRow) ? 0 : -1;
+        if (!myFile.exists() && !theIndexes.add(aTable, aKey)) {
+            return -1;
+        }
 
+        return writeRow(aTable, aKey, myFile, aRow) ? 0 : -1;
     }
 
     @Override
@@ -87,17 +106,49 @@ public class PersistentDatastore implements Datastore {
             }
         }
 
+        if (!myFile.exists() && !theIndexes.add(aTable, aKey)) {
+            return -1;
+        }
+
         if (myRow.get(aColumn) == null) {
             myRow.put(aColumn, aValue);
         } else {
             myRow.put(aColumn, myRow.get(aColumn) + aDelimiter + new String(aValue));
         }
 
-        return writeRowToFile(myFileName, myRow) ? 0 : -1;
+        return writeRow(aTable, aKey, myFile, myRow) ? 0 : -1;
+    }
+
+    /**
+     * Reads and rewrites the row, so callers must serialize writes to the key as {@link WriteBehindDatastore}
+     * does.
+     */
+    @Override
+    public byte[] mergeAndGet(String aTable, String aKey, String aColumn, byte[] aOperand, MergeOperator aOperator) {
+        Row myRow = get(aTable, aKey);
+        byte[] myValue = aOperator.apply(myRow == null ? null : myRow.getBytes(aColumn), aOperand);
+        return put(aTable, aKey, aColumn, myValue) < 0 ? null : myValue;
+    }
+
+    /**
+     * Like {@link #mergeAndGet}, this is only atomic if callers serialize writes to the key.
+     */
+    @Override
+    public OpStatus compareAndPut(String aTable, String aKey, String aIfColumn, byte[] aExpected, String aColumn,
+                                  byte[] aValue) {
+        Row myRow = get(aTable, aKey);
+        if (!Arrays.equals(myRow == null ? null : myRow.getBytes(aIfColumn), aExpected)) {
+            return OpStatus.PRECONDITION_FAILED;
+        }
+        return put(aTable, aKey, aColumn, aValue) < 0 ? OpStatus.SERVER_ERROR : OpStatus.SUCCESS;
     }
 
     @Override
     public Row get(String aTable, String aKey) {
+        if (!theIndexes.mightContain(aTable, aKey)) {
+            return null;
+        }
+
         String myFileName = getRowFileName(aTable, aKey);
 
         File myFile = new File(myFileName);
@@ -113,6 +164,11 @@ public class PersistentDatastore implements Datastore {
         }
     }
 
+    @Override
+    public boolean contains(String aTable, String aKey) {
+        return theIndexes.mightContain(aTable, aKey) && new File(getRowFileName(aTable, aKey)).exists();
+    }
+
     @Override
     public Row get(String aTable, String aKey, int aVersion) {
         return get(aTable, aKey);
@@ -135,7 +191,7 @@ public class PersistentDatastore implements Datastore {
         Map<String, Integer> myResult = new HashMap<>();
 
         for (File myTable : myTables) {
-            if (myTable.isDirectory()) {
+            if (myTable.isDirectory() && DatastoreType.fromName(myTable.getName()) == DatastoreType.PERSISTENT) {
                 myResult.put(myTable.getName(), count(myTable.getName()));
             }
         }
@@ -145,40 +201,31 @@ public class PersistentDatastore implements Datastore {
 
     @Override
     public SortedMap<String, Row> getRows(String aTable, String aFromRow, int aNumRows) {
-        File myTableDirectory = new File(getTableDirectory(aTable));
-
-        if (!myTableDirectory.exists() || !myTableDirectory.isDirectory()) {
+        Stream<Row> myRows = getRowDataStream(aTable, aFromRow, null);
+        if (myRows == null) {
             return null;
         }
 
-        return recursiveAddRows(myTableDirectory, aFromRow).entrySet().stream()
+        return myRows
                 .limit(aNumRows + 1)
                 .collect(
                         ConcurrentSkipListMap::new,
-                        (aMap, aEntry) -> aMap.put(aEntry.getKey(), aEntry.getValue()),
+                        (aMap, aRow) -> aMap.put(aRow.key(), aRow),
                         ConcurrentSkipListMap::putAll);
     }
 
     @Override
     public Stream<Row> getRowDataStream(String aTable, String aStartRow, String aEndRowExclusive) {
-        File myTableDirectory = new File(getTableDirectory(aTable));
-
-        if (!myTableDirectory.exists() || !myTableDirectory.isDirectory()) {
+        TableKeyIndex myIndex = theIndexes.get(aTable);
+        if (myIndex == null) {
             return null;
         }
 
-        File[] myRowFilesOrSubdirectories = myTableDirectory.listFiles();
-
-        return Arrays.stream(myRowFilesOrSubdirectories)
-                .flatMap(myRowFileOrSubdirectory -> {
-                    if (myRowFileOrSubdirectory.isDirectory()) {
-                        return Arrays.stream(myRowFileOrSubdirectory.listFiles());
-                    } else {
-                        return Stream.of(myRowFileOrSubdirectory);
-                    }
-                })
-                .filter(Objects::nonNull)
-                .map(myFile -> readRowFromFile(myFile.getAbsolutePath()))
+        Iterator<String> myKeys = myIndex.keys(aStartRow, aEndRowExclusive);
+        return StreamSupport.stream(
+                        Spliterators.spliteratorUnknownSize(myKeys, Spliterator.ORDERED | Spliterator.SORTED
+                                | Spliterator.DISTINCT | Spliterator.NONNULL), false)
+                .map(aKey -> get(aTable, aKey))
                 .filter(Objects::nonNull);
     }
 
@@ -190,6 +237,8 @@ public class PersistentDatastore implements Datastore {
             return OpStatus.TABLE_NOT_FOUND;
         }
 
+        theIndexes.close(aTable);
+        theCatalog.remove(aTable);
         File[] myRowOrSubdirectories = myTableDirectory.listFiles();
 
         Arrays.stream(myRowOrSubdirectories).forEach(myRowOrSubdirectory -> {
@@ -204,6 +253,41 @@ public class PersistentDatastore implements Datastore {
         return myTableDirectory.delete() ? OpStatus.SUCCESS : OpStatus.SERVER_ERROR;
     }
 
+    /**
+     * Deletes the row files of the range. Their keys stay in the index, which skips keys without a file.
+     */
+    @Override
+    public int deleteRange(String aTable, String aStartRow, String aEndRowExclusive) {
+        TableKeyIndex myIndex = theIndexes.get(aTable);
+        if (myIndex == null) {
+            return -1;
+        }
+
+        int myDeleted = 0;
+        Iterator<String> myKeys = myIndex.keys(aStartRow, aEndRowExclusive);
+        while (myKeys.hasNext()) {
+            String myKey = myKeys.next();
+            File myFile = new File(getRowFileName(aTable, myKey));
+            if (!myFile.exists()) {
+                continue;
+            }
+            long myLength = myFile.length();
+            boolean mySuccess = false;
+            theCatalog.beginWrite(aTable, theIndexes::count);
+            try {
+                mySuccess = myFile.delete();
+            } finally {
+                theCatalog.endWrite(aTable, myKey, mySuccess ? -1 : 0, mySuccess ? -myLength : 0);
+            }
+            if (mySuccess) {
+                myDeleted++;
+            } else {
+                LOGGER.error("Failed to delete row " + myKey + " of table " + aTable);
+            }
+        }
+        return myDeleted;
+    }
+
     @Override
     public OpStatus rename(String aTable, String aNewName) {
         File myTableDirectory = new File(getTableDirectory(aTable));
@@ -218,31 +302,19 @@ public class PersistentDatastore implements Datastore {
             return OpStatus.TABLE_ALREADY_EXISTS;
         }
 
-        return myTableDirectory.renameTo(myNewTableDirectory) ? OpStatus.SUCCESS : OpStatus.SERVER_ERROR;
+        // The index moves with the table directory and is reopened under the new name on next use
+        theIndexes.close(aTable);
+        if (!myTableDirectory.renameTo(myNewTableDirectory)) {
+            return OpStatus.SERVER_ERROR;
+        }
+        theCatalog.rename(aTable, aNewName);
+        return OpStatus.SUCCESS;
     }
 
     @Override
     public int count(String aTable) {
-        File myTableDirectory = new File(getTableDirectory(aTable));
-
-        if (!myTableDirectory.exists() || !myTableDirectory.isDirectory()) {
-            return -1;
-        }
-
-        int myCount = 0;
-
-        for (File myRowOrSubdirectory : myTableDirectory.listFiles()) {
-            if (myRowOrSubdirectory.isDirectory()) {
-                File[] myRowFiles = myRowOrSubdirectory.listFiles();
-                if (myRowFiles != null) {
-                    myCount += myRowFiles.length;
-                }
-            } else {
-                myCount++;
-            }
-        }
-
-        return myCount;
+        TableCatalog.TableStats myStats = theCatalog.stats(aTable, theIndexes::count);
+        return myStats == null ? -1 : (int) myStats.rows();
     }
 
     @Override
@@ -263,7 +335,8 @@ public class PersistentDatastore implements Datastore {
                 }
             }
 
-            if (!writeRowToFile(myRowFileName, myEntry.getValue())) {
+            if (!theIndexes.add(aTableName, myEntry.getKey())
+                    || !writeRow(aTableName, myEntry.getKey(), myRowFile, myEntry.getValue())) {
                 return OpStatus.SERVER_ERROR;
             }
         }
@@ -272,12 +345,68 @@ public class PersistentDatastore implements Datastore {
 
     @Override
     public ConcurrentMap<String, Row> getMap(String aTableName) {
-        SortedMap<String, Row> myRows = recursiveAddRows(new File(getTableDirectory(aTableName)), null);
         ConcurrentMap<String, Row> myResult = new ConcurrentSkipListMap<>();
-        myResult.putAll(myRows);
+        Stream<Row> myRows = getRowDataStream(aTableName, null, null);
+        if (myRows != null) {
+            myRows.forEach(aRow -> myResult.put(aRow.key(), aRow));
+        }
         return myResult;
     }
 
+    /**
+     * Syncs the row files written since the last sync, and the directories new row files were created in. Row
+     * files are otherwise only written to the page cache, so {@link WriteBehindDatastore} calls this before it
+     * drops the log of the rows it wrote back.
+     */
+    @Override
+    public boolean sync() {
+        boolean mySuccess = true;
+        for (File myFile : theUnsynced) {
+            theUnsynced.remove(myFile);
+            try {
+                if (myFile.isDirectory()) {
+                    FileIOUtils.syncDirectory(myFile);
+                } else {
+                    FileIOUtils.syncFile(myFile);
+                }
+            } catch (NoSuchFileException e) {
+                // Deleted since, which needs no sync
+            } catch (IOException e) {
+                LOGGER.error("Failed to sync " + myFile, e);
+                theUnsynced.add(myFile);
+                mySuccess = false;
+            }
+        }
+        return mySuccess;
+    }
+
+    /**
+     * Writes a row file and records the new row, if it is one, and the change in size in the table catalog.
+     */
+    private boolean writeRow(String aTable, String aKey, File aFile, Row aRow) {
+        boolean myNewRow = !aFile.exists();
+        long myOldLength = myNewRow ? 0 : aFile.length();
+        boolean mySuccess = false;
+        theCatalog.beginWrite(aTable, theIndexes::count);
+        try {
+            mySuccess = writeRowToFile(aFile.getPath(), aRow, ColumnCompression.forTable(aTable));
+            if (mySuccess) {
+                theUnsynced.add(aFile);
+                File myDataDirectory = new File(theDataDirectory);
+                for (File myDirectory = aFile.getParentFile(); myNewRow && myDirectory != null;
+                     myDirectory = myDirectory.getParentFile()) {
+                    theUnsynced.add(myDirectory);
+                    if (myDirectory.equals(myDataDirectory)) {
+                        break;
+                    }
+                }
+            }
+            return mySuccess;
+        } finally {
+            theCatalog.endWrite(aTable, aKey, mySuccess && myNewRow ? 1 : 0, aFile.length() - myOldLength);
+        }
+    }
+
     private String getRowFileName(String aTable, String aKey) {
         String myEncodedKey = encode(aKey);
         String myFileName;
@@ -301,31 +430,4 @@ public class PersistentDatastore implements Datastore {
     private String getTableDirectory(String aTable) {
         return theDataDirectory + File.separator + aTable;
     }
-
-    private SortedMap<String, Row> recursiveAddRows(File aDirectory, String aFromRow) {
-        SortedMap<String, Row> myResult = new ConcurrentSkipListMap<>();
-        File[] myRowFilesOrSubdirectories = aDirectory.listFiles();
-
-        if (myRowFilesOrSubdirectories == null) {
-            return myResult;
-        }
-
-        for (File myRowFileOrSubdirectory : myRowFilesOrSubdirectories) {
-            if (myRowFileOrSubdirectory.isDirectory()) {
-                myResult.putAll(recursiveAddRows(myRowFileOrSubdirectory, aFromRow));
-            } else {
-                try {
-                    LOGGER.info("Reading from file: " + myRowFileOrSubdirectory.getName());
-                    Row myRow = readRowFromFile(myRowFileOrSubdirectory.getAbsolutePath());
-                    if (myRow != null && (aFromRow == null || myRow.key().compareTo(aFromRow) >= 0)) {
-                        myResult.put(myRow.key(), myRow);
-                    }
-                } catch (Exception e) {
-                    LOGGER.error("Failed to read from file", e);
-                }
-            }
-        }
-
-        return myResult;
-    }
 }
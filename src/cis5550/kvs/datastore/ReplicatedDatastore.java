@@ -0,0 +1,169 @@
+package cis5550.kvs.datastore;
+
+import cis5550.kvs.MergeOperator;
+import cis5550.kvs.Row;
+import cis5550.kvs.datamodels.OpStatus;
+
+import java.io.File;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
+
+/**
+ * Records every successful mutation of another datastore in a {@link ReplicationLog}, after it is done.
+ */
+public class ReplicatedDatastore implements Datastore {
+    private final Datastore theDelegate;
+    private final ReplicationLog theLog;
+
+    public ReplicatedDatastore(Datastore aDelegate, ReplicationLog aLog) {
+        theDelegate = aDelegate;
+        theLog = aLog;
+    }
+
+    @Override
+    public int put(String aTable, String aKey, String aColumn, byte[] aValue) {
+        return logRow(aTable, aKey, theDelegate.put(aTable, aKey, aColumn, aValue));
+    }
+
+    @Override
+    public int putRow(String aTable, String aKey, Row aRow) {
+        return logRow(aTable, aKey, theDelegate.putRow(aTable, aKey, aRow));
+    }
+
+    @Override
+    public int append(String aTable, String aKey, String aColumn, byte[] aValue, String aDelimiter) {
+        return logRow(aTable, aKey, theDelegate.append(aTable, aKey, aColumn, aValue, aDelimiter));
+    }
+
+    @Override
+    public int merge(String aTable, String aKey, String aColumn, byte[] aOperand, MergeOperator aOperator) {
+        return logRow(aTable, aKey, theDelegate.merge(aTable, aKey, aColumn, aOperand, aOperator));
+    }
+
+    @Override
+    public byte[] mergeAndGet(String aTable, String aKey, String aColumn, byte[] aOperand, MergeOperator aOperator) {
+        byte[] myValue = theDelegate.mergeAndGet(aTable, aKey, aColumn, aOperand, aOperator);
+        if (myValue != null) {
+            theLog.append(ReplicationLog.Kind.ROW, aTable, aKey, null);
+        }
+        return myValue;
+    }
+
+    @Override
+    public OpStatus compareAndPut(String aTable, String aKey, String aIfColumn, byte[] aExpected, String aColumn,
+                                  byte[] aValue) {
+        OpStatus myStatus = theDelegate.compareAndPut(aTable, aKey, aIfColumn, aExpected, aColumn, aValue);
+        if (myStatus == OpStatus.SUCCESS) {
+            theLog.append(ReplicationLog.Kind.ROW, aTable, aKey, null);
+        }
+        return myStatus;
+    }
+
+    @Override
+    public boolean sync() {
+        return theDelegate.sync();
+    }
+
+    @Override
+    public Row get(String aTable, String aKey) {
+        return theDelegate.get(aTable, aKey);
+    }
+
+    @Override
+    public boolean contains(String aTable, String aKey) {
+        return theDelegate.contains(aTable, aKey);
+    }
+
+    @Override
+    public boolean canMerge(String aTable, MergeOperator aOperator, boolean aReturnValue) {
+        return theDelegate.canMerge(aTable, aOperator, aReturnValue);
+    }
+
+    @Override
+    public Row get(String aTable, String aKey, int aVersion) {
+        return theDelegate.get(aTable, aKey, aVersion);
+    }
+
+    @Override
+    public int getVersion(String aTable, String aKey) {
+        return theDelegate.getVersion(aTable, aKey);
+    }
+
+    @Override
+    public Map<String, Integer> getTables() {
+        return theDelegate.getTables();
+    }
+
+    @Override
+    public SortedMap<String, Row> getRows(String aTable, String aFromRow, int aNumRows) {
+        return theDelegate.getRows(aTable, aFromRow, aNumRows);
+    }
+
+    @Override
+    public Stream<Row> getRowDataStream(String aTable, String aStartRow, String aEndRowExclusive) {
+        return theDelegate.getRowDataStream(aTable, aStartRow, aEndRowExclusive);
+    }
+
+    @Override
+    public OpStatus delete(String aTable) {
+        OpStatus myStatus = theDelegate.delete(aTable);
+        if (myStatus == OpStatus.SUCCESS) {
+            theLog.append(ReplicationLog.Kind.DROP, aTable, null, null);
+        }
+        return myStatus;
+    }
+
+    @Override
+    public int deleteRange(String aTable, String aStartRow, String aEndRowExclusive) {
+        int myDeleted = theDelegate.deleteRange(aTable, aStartRow, aEndRowExclusive);
+        if (myDeleted > 0) {
+            theLog.append(ReplicationLog.Kind.RANGE, aTable, aStartRow, aEndRowExclusive);
+        }
+        return myDeleted;
+    }
+
+    @Override
+    public OpStatus rename(String aTable, String aNewName) {
+        OpStatus myStatus = theDelegate.rename(aTable, aNewName);
+        if (myStatus == OpStatus.SUCCESS) {
+            theLog.append(ReplicationLog.Kind.RENAME, aTable, null, aNewName);
+        }
+        return myStatus;
+    }
+
+    /**
+     * Attached rows are not logged; the replicas attach the same files to their copies.
+     */
+    @Override
+    public OpStatus attach(String aTable, File aDirectory) {
+        return theDelegate.attach(aTable, aDirectory);
+    }
+
+    @Override
+    public int count(String aTable) {
+        return theDelegate.count(aTable);
+    }
+
+    @Override
+    public OpStatus fromMap(String aTableName, ConcurrentMap<String, Row> aTable) {
+        OpStatus myStatus = theDelegate.fromMap(aTableName, aTable);
+        if (myStatus == OpStatus.SUCCESS) {
+            aTable.keySet().forEach(aKey -> theLog.append(ReplicationLog.Kind.ROW, aTableName, aKey, null));
+        }
+        return myStatus;
+    }
+
+    @Override
+    public ConcurrentMap<String, Row> getMap(String aTableName) {
+        return theDelegate.getMap(aTableName);
+    }
+
+    private int logRow(String aTable, String aKey, int aResult) {
+        if (aResult >= 0) {
+            theLog.append(ReplicationLog.Kind.ROW, aTable, aKey, null);
+        }
+        return aResult;
+    }
+}
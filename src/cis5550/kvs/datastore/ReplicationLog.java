@@ -0,0 +1,156 @@
+package cis5550.kvs.datastore;
+
+import java.util.*;
+
+/**
+ * The mutations of a worker's datastore in the order they happened, numbered by offset, for its replicas to
+ * apply. Entries name what a write changed instead of carrying its data, which is read when the entries are
+ * shipped, so a row written many times in a row is shipped once, as it is by then.
+ * <p>
+ * The log keeps the latest {@link #CAPACITY_PROPERTY} entries in memory; a replica that falls further behind, or
+ * that last heard from another generation, must copy the whole datastore again. Every start of the worker is a
+ * new generation. The log also tracks the offset up to which each replica has applied the entries, so writers
+ * can wait for their writes to reach the replicas.
+ */
+public class ReplicationLog {
+    public static final String CAPACITY_PROPERTY = "kvs.replication.logEntries";
+    public static final int DEFAULT_CAPACITY = 200000;
+
+    public enum Kind {
+        ROW,
+        RANGE,
+        DROP,
+        RENAME
+    }
+
+    /**
+     * A mutation of the table. ROW entries name the written row by its key, RANGE entries delete the keys from
+     * the key up to the argument, either of which may be null, and RENAME entries give the new name as argument.
+     */
+    public record Entry(long offset, Kind kind, String table, String key, String argument) {
+    }
+
+    private final long theGeneration;
+    private final Entry[] theEntries;
+    private final TreeMap<Long, Entry> theRenames;
+    private final Map<String, Long> theAcknowledged;
+    private long theStartOffset;
+    private long theEndOffset;
+
+    public ReplicationLog() {
+        this(Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY));
+    }
+
+    public ReplicationLog(int aCapacity) {
+        theGeneration = System.currentTimeMillis();
+        theEntries = new Entry[aCapacity];
+        theRenames = new TreeMap<>();
+        theAcknowledged = new HashMap<>();
+    }
+
+    public long generation() {
+        return theGeneration;
+    }
+
+    public synchronized long startOffset() {
+        return theStartOffset;
+    }
+
+    /**
+     * Returns the offset the next entry will get.
+     */
+    public synchronized long endOffset() {
+        return theEndOffset;
+    }
+
+    public synchronized long append(Kind aKind, String aTable, String aKey, String aArgument) {
+        Entry myEntry = new Entry(theEndOffset, aKind, aTable, aKey, aArgument);
+        if (theEndOffset - theStartOffset == theEntries.length) {
+            theRenames.remove(theStartOffset);
+            theStartOffset++;
+        }
+        theEntries[(int) (theEndOffset % theEntries.length)] = myEntry;
+        if (aKind == Kind.RENAME) {
+            theRenames.put(theEndOffset, myEntry);
+        }
+        theEndOffset++;
+        notifyAll();
+        return myEntry.offset();
+    }
+
+    /**
+     * Returns up to the given number of entries from the offset on, waiting up to the given time for one if there
+     * are none yet. Returns null if the log no longer holds the entry at the offset.
+     */
+    public synchronized List<Entry> read(long aOffset, int aMaxEntries, long aWaitMillis) throws InterruptedException {
+        long myDeadline = System.currentTimeMillis() + aWaitMillis;
+        long myRemaining = aWaitMillis;
+        while (aOffset >= theEndOffset && myRemaining > 0) {
+            wait(myRemaining);
+            myRemaining = myDeadline - System.currentTimeMillis();
+        }
+        if (aOffset < theStartOffset) {
+            return null;
+        }
+
+        List<Entry> myEntries = new ArrayList<>();
+        for (long myOffset = aOffset; myOffset < theEndOffset && myEntries.size() < aMaxEntries; myOffset++) {
+            myEntries.add(theEntries[(int) (myOffset % theEntries.length)]);
+        }
+        return myEntries;
+    }
+
+    /**
+     * Returns the name the table has now, following the renames logged after the offset, so that rows written
+     * before a rename are read from where they went.
+     */
+    public synchronized String currentName(String aTable, long aOffset) {
+        String myName = aTable;
+        for (Entry myRename : theRenames.tailMap(aOffset, false).values()) {
+            if (myRename.table().equals(myName)) {
+                myName = myRename.argument();
+            }
+        }
+        return myName;
+    }
+
+    /**
+     * Records that the replica has applied every entry before the offset.
+     */
+    public synchronized void acknowledge(String aReplica, long aOffset) {
+        theAcknowledged.merge(aReplica, aOffset, Math::max);
+        notifyAll();
+    }
+
+    /**
+     * Returns the offset up to which the replica has applied the entries, or -1 if it has not said.
+     */
+    public synchronized long acknowledged(String aReplica) {
+        return theAcknowledged.getOrDefault(aReplica, -1L);
+    }
+
+    /**
+     * Forgets the acknowledgements of replicas not in the collection.
+     */
+    public synchronized void retainReplicas(Collection<String> aReplicas) {
+        theAcknowledged.keySet().retainAll(aReplicas);
+        notifyAll();
+    }
+
+    /**
+     * Waits until the given number of replicas have applied every entry before the offset, and returns false if
+     * that takes longer than the timeout.
+     */
+    public synchronized boolean awaitAcknowledgements(long aOffset, int aReplicas, long aTimeoutMillis)
+            throws InterruptedException {
+        long myDeadline = System.currentTimeMillis() + aTimeoutMillis;
+        while (theAcknowledged.values().stream().filter(aAcknowledged -> aAcknowledged >= aOffset).count() < aReplicas) {
+            long myRemaining = myDeadline - System.currentTimeMillis();
+            if (myRemaining <= 0) {
+                return false;
+            }
+            wait(myRemaining);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,280 @@
+package cis5550.kvs.datastore;
+
+import cis5550.tools.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * The row count, byte size and key range of each per-row-file table of a worker, updated as writes happen and
+ * checkpointed to {@link #CATALOG_FILE} in the data directory.
+ * <p>
+ * Before the first write to a table after a checkpoint, the table is marked dirty on disk. A table that is
+ * still dirty when the catalog is loaded may have missed writes before a crash, so it is dropped. Tables the
+ * catalog does not know are counted from their files by the counter passed in on first use.
+ */
+public class TableCatalog {
+    public static final Logger LOGGER = Logger.getLogger(TableCatalog.class);
+    public static final String CATALOG_FILE = "__catalog";
+    public static final long CHECKPOINT_INTERVAL_MILLIS = 5000;
+
+    private static final int MAGIC = 0x54434154;
+    private static final int VERSION = 1;
+
+    public record TableStats(long rows, long bytes, String minKey, String maxKey) {
+    }
+
+    private static class Entry {
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicBoolean dirtyOnDisk = new AtomicBoolean();
+        String minKey;
+        String maxKey;
+
+        Entry() {
+        }
+
+        Entry(TableStats aStats) {
+            rows.set(aStats.rows());
+            bytes.set(aStats.bytes());
+            minKey = aStats.minKey();
+            maxKey = aStats.maxKey();
+        }
+
+        synchronized void addKey(String aKey) {
+            if (minKey == null || aKey.compareTo(minKey) < 0) {
+                minKey = aKey;
+            }
+            if (maxKey == null || aKey.compareTo(maxKey) > 0) {
+                maxKey = aKey;
+            }
+        }
+
+        synchronized TableStats stats() {
+            return new TableStats(rows.get(), bytes.get(), minKey, maxKey);
+        }
+    }
+
+    private final File theFile;
+    private final ConcurrentMap<String, Entry> theTables;
+    private final Object theFileLock;
+    private final AtomicBoolean theChanged;
+    private final ScheduledExecutorService theCheckpointExecutor;
+
+    private TableCatalog(File aFile) {
+        theFile = aFile;
+        theTables = new ConcurrentHashMap<>();
+        theFileLock = new Object();
+        theChanged = new AtomicBoolean(false);
+        theCheckpointExecutor = Executors.newSingleThreadScheduledExecutor(aRunnable -> {
+            Thread myThread = new Thread(aRunnable, "catalog-checkpoint");
+            myThread.setDaemon(true);
+            return myThread;
+        });
+    }
+
+    public static TableCatalog open(String aDirectory) {
+        TableCatalog myCatalog = new TableCatalog(new File(aDirectory, CATALOG_FILE));
+        myCatalog.load();
+        myCatalog.theCheckpointExecutor.scheduleWithFixedDelay(
+                myCatalog::checkpoint, CHECKPOINT_INTERVAL_MILLIS, CHECKPOINT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(myCatalog::checkpoint, "catalog-shutdown"));
+        return myCatalog;
+    }
+
+    private void load() {
+        if (!theFile.exists()) {
+            return;
+        }
+
+        try (DataInputStream myIn = new DataInputStream(new BufferedInputStream(new FileInputStream(theFile)))) {
+            if (myIn.readInt() != MAGIC || myIn.readInt() != VERSION) {
+                LOGGER.warn("Ignoring table catalog with unknown format " + theFile);
+                return;
+            }
+
+            int myCount = myIn.readInt();
+            for (int i = 0; i < myCount; i++) {
+                String myTable = readString(myIn);
+                Entry myEntry = new Entry();
+                myEntry.rows.set(myIn.readLong());
+                myEntry.bytes.set(myIn.readLong());
+                if (myIn.readBoolean()) {
+                    myEntry.minKey = readString(myIn);
+                    myEntry.maxKey = readString(myIn);
+                }
+                if (myIn.readBoolean()) {
+                    LOGGER.info("Table " + myTable + " was being written at shutdown and will be recounted");
+                } else {
+                    theTables.put(myTable, myEntry);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed to read table catalog " + theFile + "; all tables will be recounted", e);
+            theTables.clear();
+        }
+    }
+
+    /**
+     * Returns the statistics of a table, or null if it does not exist. The counter is only called for tables the
+     * catalog does not know yet, and returns null for tables that do not exist.
+     */
+    public TableStats stats(String aTable, Function<String, TableStats> aCounter) {
+        Entry myEntry = entry(aTable, aCounter);
+        return myEntry == null ? null : myEntry.stats();
+    }
+
+    /**
+     * Must be called before a write to the table, and followed by {@link #endWrite} once it is done.
+     */
+    public void beginWrite(String aTable, Function<String, TableStats> aCounter) {
+        Entry myEntry = entry(aTable, aCounter);
+        if (myEntry == null) {
+            myEntry = theTables.computeIfAbsent(aTable, aName -> new Entry());
+        }
+
+        myEntry.inFlight.incrementAndGet();
+        if (!myEntry.dirtyOnDisk.get()) {
+            synchronized (theFileLock) {
+                if (myEntry.dirtyOnDisk.compareAndSet(false, true)) {
+                    save();
+                }
+            }
+        }
+    }
+
+    private Entry entry(String aTable, Function<String, TableStats> aCounter) {
+        Entry myEntry = theTables.get(aTable);
+        if (myEntry != null) {
+            return myEntry;
+        }
+
+        return theTables.computeIfAbsent(aTable, aName -> {
+            TableStats myStats = aCounter.apply(aName);
+            if (myStats == null) {
+                return null;
+            }
+            LOGGER.info("Counted " + myStats.rows() + " rows in table " + aName);
+            theChanged.set(true);
+            return new Entry(myStats);
+        });
+    }
+
+    public void endWrite(String aTable, String aKey, long aRowDelta, long aByteDelta) {
+        Entry myEntry = theTables.get(aTable);
+        if (myEntry == null) {
+            // The table was dropped from the catalog while the write was going on
+            return;
+        }
+
+        myEntry.rows.addAndGet(aRowDelta);
+        myEntry.bytes.addAndGet(aByteDelta);
+        if (aRowDelta > 0) {
+            myEntry.addKey(aKey);
+        }
+        myEntry.inFlight.decrementAndGet();
+        theChanged.set(true);
+    }
+
+    public void remove(String aTable) {
+        synchronized (theFileLock) {
+            if (theTables.remove(aTable) != null) {
+                save();
+            }
+        }
+    }
+
+    public void rename(String aTable, String aNewName) {
+        synchronized (theFileLock) {
+            Entry myEntry = theTables.remove(aTable);
+            theTables.remove(aNewName);
+            if (myEntry != null) {
+                theTables.put(aNewName, myEntry);
+            }
+            save();
+        }
+    }
+
+    /**
+     * Writes the current statistics and marks every table without writes in progress as clean, so that it
+     * survives a restart.
+     */
+    private void checkpoint() {
+        if (!theChanged.getAndSet(false)) {
+            return;
+        }
+
+        synchronized (theFileLock) {
+            for (Entry myEntry : theTables.values()) {
+                myEntry.dirtyOnDisk.set(false);
+                if (myEntry.inFlight.get() > 0) {
+                    myEntry.dirtyOnDisk.set(true);
+                    theChanged.set(true);
+                }
+            }
+            save();
+        }
+    }
+
+    private void save() {
+        Map<String, Entry> myTables = new HashMap<>(theTables);
+        File myTemporaryFile = new File(theFile.getPath() + ".tmp");
+        try (FileOutputStream myFileOut = new FileOutputStream(myTemporaryFile);
+             DataOutputStream myOut = new DataOutputStream(new BufferedOutputStream(myFileOut))) {
+            myOut.writeInt(MAGIC);
+            myOut.writeInt(VERSION);
+            myOut.writeInt(myTables.size());
+            for (Map.Entry<String, Entry> myTable : myTables.entrySet()) {
+                Entry myEntry = myTable.getValue();
+                TableStats myStats = myEntry.stats();
+                writeString(myOut, myTable.getKey());
+                myOut.writeLong(myStats.rows());
+                myOut.writeLong(myStats.bytes());
+                myOut.writeBoolean(myStats.minKey() != null);
+                if (myStats.minKey() != null) {
+                    writeString(myOut, myStats.minKey());
+                    writeString(myOut, myStats.maxKey());
+                }
+                myOut.writeBoolean(myEntry.dirtyOnDisk.get());
+            }
+            myOut.flush();
+            myFileOut.getFD().sync();
+        } catch (IOException e) {
+            LOGGER.error("Failed to write table catalog " + myTemporaryFile, e);
+            return;
+        }
+
+        try {
+            Files.move(myTemporaryFile.toPath(), theFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.error("Failed to replace table catalog " + theFile, e);
+        }
+    }
+
+    private static void writeString(DataOutput aOut, String aString) throws IOException {
+        byte[] myBytes = aString.getBytes(StandardCharsets.UTF_8);
+        aOut.writeInt(myBytes.length);
+        aOut.write(myBytes);
+    }
+
+    private static String readString(DataInput aIn) throws IOException {
+        byte[] myBytes = new byte[aIn.readInt()];
+        aIn.readFully(myBytes);
+        return new String(myBytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,251 @@
+package cis5550.kvs.datastore;
+
+import cis5550.kvs.Row;
+import cis5550.kvs.datastore.lsm.MergingIterator;
+import cis5550.kvs.datastore.lsm.RowFragment;
+import cis5550.kvs.datastore.lsm.Segment;
+import cis5550.kvs.datastore.lsm.SegmentWriter;
+import cis5550.tools.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * The sorted set of row keys of one per-row-file table. Keys live in a segment file whose sparse index is
+ * the only part held in memory, plus a small set of recently added keys that is journaled as it grows and
+ * merged into a new segment once it is large relative to the segment. Range reads seek in both and stop at
+ * the end of the range instead of listing the table directory.
+ */
+public class TableKeyIndex implements Closeable {
+    public static final Logger LOGGER = Logger.getLogger(TableKeyIndex.class);
+    public static final String JOURNAL_FILE = "keys.log";
+    public static final int MIN_CHECKPOINT_KEYS = 8192;
+    public static final int CHECKPOINT_FRACTION = 8;
+
+    private record State(Segment base, ConcurrentSkipListSet<String> recent) {
+    }
+
+    private final File theDirectory;
+    private final File theJournalFile;
+
+    private volatile State theState;
+    private DataOutputStream theJournal;
+    private long theGeneration;
+
+    private TableKeyIndex(File aDirectory) {
+        theDirectory = aDirectory;
+        theJournalFile = new File(aDirectory, JOURNAL_FILE);
+    }
+
+    /**
+     * Opens the index in the given directory, building it from the keys the scanner yields if the table was
+     * written before it had an index, or if the table has more row files than the index has keys. Those are
+     * rows the index never heard of, such as files copied into the table by hand or keys lost with the tail of
+     * the journal in a crash.
+     */
+    public static TableKeyIndex open(File aDirectory, Supplier<Stream<String>> aKeyScanner, long aRowFiles) throws IOException {
+        TableKeyIndex myIndex = new TableKeyIndex(aDirectory);
+        String[] mySegments = aDirectory.list((aParent, aName) -> aName.endsWith(Segment.SUFFIX));
+        if (mySegments != null && mySegments.length > 0) {
+            myIndex.load();
+            if (myIndex.size() < aRowFiles) {
+                LOGGER.warn("Key index in " + aDirectory + " has " + myIndex.size() + " keys for " + aRowFiles
+                        + " row files; rebuilding it");
+                myIndex.theState.base().delete();
+                myIndex.build(aKeyScanner);
+            }
+        } else {
+            myIndex.build(aKeyScanner);
+        }
+        myIndex.theJournal = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(myIndex.theJournalFile, true)));
+        return myIndex;
+    }
+
+    private void load() throws IOException {
+        File[] myFiles = theDirectory.listFiles();
+        if (myFiles == null) {
+            throw new IOException("Failed to list index directory " + theDirectory);
+        }
+
+        // Only the newest segment is current; older ones are left behind by a crash during a checkpoint
+        File myNewest = null;
+        for (File myFile : myFiles) {
+            if (myFile.getName().endsWith(Segment.TEMPORARY_SUFFIX)) {
+                myFile.delete();
+            } else if (myFile.getName().endsWith(Segment.SUFFIX)
+                    && (myNewest == null || myFile.getName().compareTo(myNewest.getName()) > 0)) {
+                myNewest = myFile;
+            }
+        }
+        for (File myFile : myFiles) {
+            if (myFile.getName().endsWith(Segment.SUFFIX) && myFile != myNewest) {
+                myFile.delete();
+            }
+        }
+
+        Segment myBase = Segment.open(myNewest);
+        theGeneration = myBase.maxSequence();
+        theState = new State(myBase, readJournal());
+    }
+
+    private ConcurrentSkipListSet<String> readJournal() {
+        ConcurrentSkipListSet<String> myKeys = new ConcurrentSkipListSet<>();
+        if (!theJournalFile.exists()) {
+            return myKeys;
+        }
+
+        try (DataInputStream myIn = new DataInputStream(new BufferedInputStream(new FileInputStream(theJournalFile)))) {
+            while (true) {
+                int myLength;
+                try {
+                    myLength = myIn.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] myKey = new byte[myLength];
+                myIn.readFully(myKey);
+                myKeys.add(new String(myKey, StandardCharsets.UTF_8));
+            }
+        } catch (EOFException e) {
+            LOGGER.warn("Truncated key at the end of " + theJournalFile);
+        } catch (IOException e) {
+            LOGGER.error("Failed to read key journal " + theJournalFile, e);
+        }
+        return myKeys;
+    }
+
+    private void build(Supplier<Stream<String>> aKeyScanner) throws IOException {
+        if (!theDirectory.isDirectory() && !theDirectory.mkdirs()) {
+            throw new IOException("Failed to create index directory " + theDirectory);
+        }
+        // A journal without a segment is the remainder of an interrupted build
+        theJournalFile.delete();
+
+        SortedSet<String> myKeys = new TreeSet<>();
+        try (Stream<String> myScan = aKeyScanner.get()) {
+            myScan.forEach(myKeys::add);
+        }
+
+        theGeneration = 1;
+        File mySegmentFile = new File(theDirectory, Segment.fileName(theGeneration, theGeneration));
+        try (SegmentWriter myWriter = new SegmentWriter(mySegmentFile, myKeys.size())) {
+            for (String myKey : myKeys) {
+                myWriter.add(myKey, new RowFragment(new Row(myKey), true));
+            }
+            myWriter.finish();
+        }
+        theState = new State(Segment.open(mySegmentFile), new ConcurrentSkipListSet<>());
+        if (!myKeys.isEmpty()) {
+            LOGGER.info("Built key index with " + myKeys.size() + " keys in " + theDirectory);
+        }
+    }
+
+    /**
+     * Records a key that was not in the table before. Adding a key that is already indexed is harmless.
+     */
+    public synchronized void add(String aKey) throws IOException {
+        State myState = theState;
+        if (myState.recent().contains(aKey)) {
+            return;
+        }
+
+        byte[] myKey = aKey.getBytes(StandardCharsets.UTF_8);
+        theJournal.writeInt(myKey.length);
+        theJournal.write(myKey);
+        theJournal.flush();
+        myState.recent().add(aKey);
+
+        if (myState.recent().size() >= Math.max(MIN_CHECKPOINT_KEYS, myState.base().recordCount() / CHECKPOINT_FRACTION)) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Merges the recent keys into a new segment. The journal is only emptied once the segment is in place, so
+     * a crash in between at worst replays keys that are already in the segment.
+     */
+    private void checkpoint() throws IOException {
+        State myState = theState;
+        Segment myBase = SegmentWriter.write(
+                new File(theDirectory, Segment.fileName(theGeneration + 1, theGeneration + 1)),
+                new MergingIterator(List.of(fragments(myState.recent().iterator()), myState.base().iterator(null, null))),
+                true,
+                myState.base().recordCount() + myState.recent().size());
+        theGeneration++;
+        theState = new State(myBase, new ConcurrentSkipListSet<>());
+
+        theJournal.close();
+        theJournal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(theJournalFile, false)));
+        myState.base().delete();
+    }
+
+    /**
+     * Returns the number of keys, counting those replayed from the journal that were already in the segment
+     * twice. Keys whose rows were deleted are still counted.
+     */
+    public long size() {
+        State myState = theState;
+        return myState.base().recordCount() + myState.recent().size();
+    }
+
+    /**
+     * Returns false if the table certainly has no row with the given key, without any disk access.
+     */
+    public boolean mightContain(String aKey) {
+        State myState = theState;
+        return myState.recent().contains(aKey) || myState.base().mightContain(aKey);
+    }
+
+    /**
+     * Returns the keys in [aStartRow, aEndRowExclusive) in ascending order; either bound may be null.
+     */
+    public Iterator<String> keys(String aStartRow, String aEndRowExclusive) {
+        State myState = theState;
+        NavigableSet<String> myRecent = myState.recent();
+        if (aStartRow != null) {
+            myRecent = myRecent.tailSet(aStartRow, true);
+        }
+        if (aEndRowExclusive != null) {
+            myRecent = myRecent.headSet(aEndRowExclusive, false);
+        }
+
+        Iterator<Map.Entry<String, RowFragment>> myMerged = new MergingIterator(List.of(
+                fragments(myRecent.iterator()), myState.base().iterator(aStartRow, aEndRowExclusive)));
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return myMerged.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return myMerged.next().getKey();
+            }
+        };
+    }
+
+    private static Iterator<Map.Entry<String, RowFragment>> fragments(Iterator<String> aKeys) {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return aKeys.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, RowFragment> next() {
+                String myKey = aKeys.next();
+                return new AbstractMap.SimpleImmutableEntry<>(myKey, new RowFragment(new Row(myKey), true));
+            }
+        };
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        theJournal.close();
+    }
+}
@@ -0,0 +1,155 @@
+package cis5550.kvs.datastore;
+
+import cis5550.kvs.Row;
+import cis5550.tools.Logger;
+import cis5550.utils.FileIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * The key indexes of the per-row-file tables in one data directory. Each index lives in the
+ * {@link #INDEX_DIRECTORY} of its table and is opened, or built from the row files, on first use.
+ */
+public class TableKeyIndexes {
+    public static final Logger LOGGER = Logger.getLogger(TableKeyIndexes.class);
+    public static final String INDEX_DIRECTORY = ".index";
+
+    private final String theDataDirectory;
+    private final Function<String, Row> theRowReader;
+    private final ConcurrentMap<String, TableKeyIndex> theIndexes;
+
+    public TableKeyIndexes(String aDataDirectory, Function<String, Row> aRowReader) {
+        theDataDirectory = aDataDirectory;
+        theRowReader = aRowReader;
+        theIndexes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the key index of a table, or null if the table does not exist.
+     */
+    public TableKeyIndex get(String aTable) {
+        TableKeyIndex myIndex = theIndexes.get(aTable);
+        if (myIndex != null) {
+            return myIndex;
+        }
+
+        File myTableDirectory = new File(theDataDirectory, aTable);
+        if (!myTableDirectory.isDirectory()) {
+            return null;
+        }
+
+        return theIndexes.computeIfAbsent(aTable, aName -> {
+            try {
+                long myRowFiles;
+                try (Stream<File> myFiles = rowFiles(myTableDirectory)) {
+                    myRowFiles = myFiles.count();
+                }
+                return TableKeyIndex.open(new File(myTableDirectory, INDEX_DIRECTORY), () -> rowFiles(myTableDirectory)
+                        .map(aFile -> theRowReader.apply(aFile.getAbsolutePath()))
+                        .filter(Objects::nonNull)
+                        .map(Row::key), myRowFiles);
+            } catch (IOException e) {
+                LOGGER.error("Failed to open key index of table " + aName, e);
+                return null;
+            }
+        });
+    }
+
+    public boolean add(String aTable, String aKey) {
+        TableKeyIndex myIndex = get(aTable);
+        if (myIndex == null) {
+            return false;
+        }
+
+        try {
+            myIndex.add(aKey);
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Failed to index key in table " + aTable, e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns false if the table certainly has no row with the given key.
+     */
+    public boolean mightContain(String aTable, String aKey) {
+        TableKeyIndex myIndex = get(aTable);
+        return myIndex != null && myIndex.mightContain(aKey);
+    }
+
+    /**
+     * Closes the index of a table that is about to be deleted or renamed.
+     */
+    public void close(String aTable) {
+        TableKeyIndex myIndex = theIndexes.remove(aTable);
+        if (myIndex == null) {
+            return;
+        }
+
+        try {
+            myIndex.close();
+        } catch (IOException e) {
+            LOGGER.error("Failed to close key index of table " + aTable, e);
+        }
+    }
+
+    /**
+     * Counts the rows, bytes and key range of a table from its files, or returns null if the table does not
+     * exist.
+     */
+    public TableCatalog.TableStats count(String aTable) {
+        TableKeyIndex myIndex = get(aTable);
+        if (myIndex == null) {
+            return null;
+        }
+
+        long myRows = 0;
+        long myBytes = 0;
+        try (Stream<File> myFiles = rowFiles(new File(theDataDirectory, aTable))) {
+            for (File myFile : (Iterable<File>) myFiles::iterator) {
+                myRows++;
+                myBytes += myFile.length();
+            }
+        }
+
+        String myMinKey = null;
+        String myMaxKey = null;
+        Iterator<String> myKeys = myIndex.keys(null, null);
+        while (myKeys.hasNext()) {
+            myMaxKey = myKeys.next();
+            if (myMinKey == null) {
+                myMinKey = myMaxKey;
+            }
+        }
+        return new TableCatalog.TableStats(myRows, myBytes, myMinKey, myMaxKey);
+    }
+
+    public static Stream<File> rowFiles(File aTableDirectory) {
+        File[] myRowFilesOrSubdirectories = aTableDirectory.listFiles();
+        if (myRowFilesOrSubdirectories == null) {
+            return Stream.empty();
+        }
+
+        return Arrays.stream(myRowFilesOrSubdirectories)
+                .filter(aFile -> !aFile.getName().equals(INDEX_DIRECTORY))
+                .flatMap(aRowFileOrSubdirectory -> {
+                    if (aRowFileOrSubdirectory.isDirectory()) {
+                        File[] myRowFiles = aRowFileOrSubdirectory.listFiles();
+                        return myRowFiles == null ? Stream.empty() : Arrays.stream(myRowFiles);
+                    } else {
+                        return Stream.of(aRowFileOrSubdirectory);
+                    }
+                })
+                // Left behind by a crash during a rewrite, which kept the row itself as it was
+                .filter(aFile -> !aFile.getName().endsWith(FileIOUtils.TEMPORARY_SUFFIX));
+    }
+}
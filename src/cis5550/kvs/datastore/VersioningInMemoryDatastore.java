@@ -1,5 +1,6 @@
 package cis5550.kvs.datastore;
 
+import cis5550.kvs.MergeOperator;
 import cis5550.kvs.datamodels.OpStatus;
 import cis5550.kvs.Row;
 import cis5550.tools.Logger;
@@ -51,6 +52,17 @@ public class VersioningInMemoryDatastore implements Datastore {
        throw new UnsupportedOperationException("Not supported for versioning datastores");
     }
 
+    @Override
+    public byte[] mergeAndGet(String aTable, String aKey, String aColumn, byte[] aOperand, MergeOperator aOperator) {
+        throw new UnsupportedOperationException("Not supported for versioning datastores");
+    }
+
+    @Override
+    public OpStatus compareAndPut(String aTable, String aKey, String aIfColumn, byte[] aExpected, String aColumn,
+                                  byte[] aValue) {
+        throw new UnsupportedOperationException("Not supported for versioning datastores");
+    }
+
     @Override
     public Row get(String aTable, String aKey) {
         return get(aTable, aKey, -1);
@@ -131,6 +143,21 @@ public class VersioningInMemoryDatastore implements Datastore {
         return theMemoryData.remove(aTable, theMemoryData.get(aTable)) ? OpStatus.SUCCESS : OpStatus.SERVER_ERROR;
     }
 
+    @Override
+    public int deleteRange(String aTable, String aStartRow, String aEndRowExclusive) {
+        if (!theMemoryData.containsKey(aTable)) {
+            return -1;
+        }
+        int[] myDeleted = new int[1];
+        theMemoryData.get(aTable).keySet().removeIf(aKey -> {
+            boolean myInRange = (aStartRow == null || aKey.compareTo(aStartRow) >= 0)
+                    && (aEndRowExclusive == null || aKey.compareTo(aEndRowExclusive) < 0);
+            myDeleted[0] += myInRange ? 1 : 0;
+            return myInRange;
+        });
+        return myDeleted[0];
+    }
+
     @Override
     public OpStatus rename(String aTable, String aNewName) {
         if (!theMemoryData.containsKey(aTable)) {
@@ -0,0 +1,519 @@
+package cis5550.kvs.datastore;
+
+import cis5550.kvs.MergeOperator;
+import cis5550.kvs.MergeOperators;
+import cis5550.kvs.Row;
+import cis5550.kvs.datamodels.OpStatus;
+import cis5550.kvs.datastore.lsm.Memtable;
+import cis5550.kvs.datastore.lsm.MergingIterator;
+import cis5550.kvs.datastore.lsm.RowFragment;
+import cis5550.kvs.datastore.lsm.WriteAheadLog;
+import cis5550.tools.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Puts a worker-wide write-ahead log and per-table memtables in front of another datastore. Writes are logged
+ * and applied in memory, and become durable through {@link #sync}, which group-commits the log; a background
+ * thread periodically writes the dirty rows back to the delegate, syncs the delegate, and only then drops the log
+ * they came from. Reads and scans merge the rows not yet written back over the delegate's. Logs left behind by a
+ * crash are replayed into the delegate on construction.
+ */
+public class WriteBehindDatastore implements Datastore {
+    public static final Logger LOGGER = Logger.getLogger(WriteBehindDatastore.class);
+    public static final String LOG_DIRECTORY = "__wal";
+    public static final String LOG_SUFFIX = ".wal";
+    public static final long WRITE_BACK_INTERVAL_MILLIS = 1000;
+    public static final long WRITE_BACK_THRESHOLD = 32L * 1024 * 1024;
+
+    private static final int KEY_LOCK_STRIPES = 64;
+
+    // newRows counts, per table, the keys that first appeared in this generation and are not in the delegate
+    private record Generation(ConcurrentMap<String, Memtable> tables, ConcurrentMap<String, LongAdder> newRows,
+                              WriteAheadLog log) {
+    }
+
+    private final Datastore theDelegate;
+    private final File theLogDirectory;
+    private final ReentrantReadWriteLock theSwapLock;
+    private final Object theWriteBackLock;
+    private final Object[] theKeyLocks;
+    private final AtomicLong theNextLogSequence;
+    private final AtomicBoolean theWriteBackScheduled;
+    private final ScheduledExecutorService theWriteBackExecutor;
+
+    private volatile Generation theActive;
+    private volatile Generation theFlushing;
+
+    public WriteBehindDatastore(Datastore aDelegate, String aDirectory) {
+        theDelegate = aDelegate;
+        theLogDirectory = new File(aDirectory, LOG_DIRECTORY);
+        theSwapLock = new ReentrantReadWriteLock();
+        theWriteBackLock = new Object();
+        theKeyLocks = new Object[KEY_LOCK_STRIPES];
+        for (int i = 0; i < KEY_LOCK_STRIPES; i++) {
+            theKeyLocks[i] = new Object();
+        }
+        theNextLogSequence = new AtomicLong(1);
+        theWriteBackScheduled = new AtomicBoolean(false);
+
+        if (!theLogDirectory.exists() && !theLogDirectory.mkdirs()) {
+            LOGGER.error("Failed to create log directory " + theLogDirectory);
+        }
+        replay();
+
+        try {
+            theActive = new Generation(new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), new WriteAheadLog(newLogFile()));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to create write-ahead log in " + theLogDirectory, e);
+        }
+
+        theWriteBackExecutor = Executors.newSingleThreadScheduledExecutor(aRunnable -> {
+            Thread myThread = new Thread(aRunnable, "write-behind");
+            myThread.setDaemon(true);
+            return myThread;
+        });
+        theWriteBackExecutor.scheduleWithFixedDelay(
+                this::writeBack, WRITE_BACK_INTERVAL_MILLIS, WRITE_BACK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Applies every log left behind by the previous run to the delegate. Appends, merges and conditional puts
+     * are logged with their full resulting value, so replaying a log whose writes already reached the delegate
+     * is harmless.
+     */
+    private void replay() {
+        File[] myFiles = theLogDirectory.listFiles((aDirectory, aName) -> aName.endsWith(LOG_SUFFIX));
+        if (myFiles == null || myFiles.length == 0) {
+            return;
+        }
+
+        Arrays.sort(myFiles, Comparator.comparingLong(WriteBehindDatastore::sequenceOfLog));
+        for (File myLog : myFiles) {
+            int myRecords = WriteAheadLog.replay(myLog, new WriteAheadLog.Visitor() {
+                @Override
+                public void onPut(String aTable, String aKey, String aColumn, byte[] aValue) {
+                    theDelegate.put(aTable, aKey, aColumn, aValue);
+                }
+
+                @Override
+                public void onPutRow(String aTable, String aKey, Row aRow) {
+                    theDelegate.putRow(aTable, aKey, aRow);
+                }
+
+                @Override
+                public void onMerge(String aTable, String aKey, String aColumn, MergeOperator aOperator,
+                                    byte[] aOperand) {
+                    theDelegate.merge(aTable, aKey, aColumn, aOperand, aOperator);
+                }
+            });
+            LOGGER.info("Replayed " + myRecords + " records from " + myLog);
+            theNextLogSequence.set(Math.max(theNextLogSequence.get(), sequenceOfLog(myLog) + 1));
+            if (!theDelegate.sync()) {
+                LOGGER.warn("Failed to sync rows replayed from " + myLog + "; keeping it");
+            } else if (!myLog.delete()) {
+                LOGGER.warn("Failed to delete replayed log " + myLog);
+            }
+        }
+    }
+
+    @Override
+    public int put(String aTable, String aKey, String aColumn, byte[] aValue) {
+        synchronized (keyLock(aKey)) {
+            if (putLocked(aTable, aKey, aColumn, aValue) < 0) {
+                return -1;
+            }
+        }
+        maybeWriteBack();
+        return 0;
+    }
+
+    @Override
+    public int putRow(String aTable, String aKey, Row aRow) {
+        synchronized (keyLock(aKey)) {
+            theSwapLock.readLock().lock();
+            try {
+                Generation myActive = theActive;
+                myActive.log().appendPutRow(aTable, aKey, aRow);
+                countIfNew(myActive, aTable, aKey);
+                memtable(myActive, aTable).putRow(aKey, aRow);
+            } catch (IOException e) {
+                LOGGER.error("Failed to log row for table " + aTable, e);
+                return -1;
+            } finally {
+                theSwapLock.readLock().unlock();
+            }
+        }
+        maybeWriteBack();
+        return 0;
+    }
+
+    @Override
+    public int append(String aTable, String aKey, String aColumn, byte[] aValue, String aDelimiter) {
+        return merge(aTable, aKey, aColumn, aValue, MergeOperators.append(aDelimiter));
+    }
+
+    @Override
+    public byte[] mergeAndGet(String aTable, String aKey, String aColumn, byte[] aOperand, MergeOperator aOperator) {
+        byte[] myValue;
+        synchronized (keyLock(aKey)) {
+            Row myCurrent = get(aTable, aKey);
+            myValue = aOperator.apply(myCurrent == null ? null : myCurrent.getBytes(aColumn), aOperand);
+            if (putLocked(aTable, aKey, aColumn, myValue) < 0) {
+                return null;
+            }
+        }
+        maybeWriteBack();
+        return myValue;
+    }
+
+    @Override
+    public OpStatus compareAndPut(String aTable, String aKey, String aIfColumn, byte[] aExpected, String aColumn,
+                                  byte[] aValue) {
+        synchronized (keyLock(aKey)) {
+            Row myCurrent = get(aTable, aKey);
+            if (!Arrays.equals(myCurrent == null ? null : myCurrent.getBytes(aIfColumn), aExpected)) {
+                return OpStatus.PRECONDITION_FAILED;
+            }
+            if (putLocked(aTable, aKey, aColumn, aValue) < 0) {
+                return OpStatus.SERVER_ERROR;
+            }
+        }
+        maybeWriteBack();
+        return OpStatus.SUCCESS;
+    }
+
+    private int putLocked(String aTable, String aKey, String aColumn, byte[] aValue) {
+        theSwapLock.readLock().lock();
+        try {
+            Generation myActive = theActive;
+            myActive.log().appendPut(aTable, aKey, aColumn, aValue);
+            countIfNew(myActive, aTable, aKey);
+            memtable(myActive, aTable).put(aKey, aColumn, aValue);
+            return 0;
+        } catch (IOException e) {
+            LOGGER.error("Failed to log write for table " + aTable, e);
+            return -1;
+        } finally {
+            theSwapLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Blocks until the calling thread's writes are on disk.
+     */
+    @Override
+    public boolean sync() {
+        Generation myActive;
+        Generation myFlushing;
+        theSwapLock.readLock().lock();
+        try {
+            myActive = theActive;
+            myFlushing = theFlushing;
+        } finally {
+            theSwapLock.readLock().unlock();
+        }
+
+        try {
+            if (myFlushing != null) {
+                myFlushing.log().commitOwnWrites();
+            }
+            myActive.log().commitOwnWrites();
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Failed to commit write-ahead log", e);
+            return false;
+        }
+    }
+
+    @Override
+    public Row get(String aTable, String aKey) {
+        Generation myActive;
+        Generation myFlushing;
+        theSwapLock.readLock().lock();
+        try {
+            myActive = theActive;
+            myFlushing = theFlushing;
+        } finally {
+            theSwapLock.readLock().unlock();
+        }
+
+        RowFragment myFragment = fragment(myActive, aTable, aKey);
+        if (myFragment != null && myFragment.complete()) {
+            return myFragment.row();
+        }
+        if (myFlushing != null) {
+            myFragment = merge(myFragment, fragment(myFlushing, aTable, aKey));
+            if (myFragment != null && myFragment.complete()) {
+                return myFragment.row();
+            }
+        }
+
+        Row myStored = theDelegate.get(aTable, aKey);
+        if (myFragment == null) {
+            return myStored;
+        }
+        return myStored == null ? myFragment.row() : myFragment.mergeOlder(new RowFragment(myStored, true)).row();
+    }
+
+    @Override
+    public Row get(String aTable, String aKey, int aVersion) {
+        return get(aTable, aKey);
+    }
+
+    @Override
+    public int getVersion(String aTable, String aKey) {
+        return theDelegate.getVersion(aTable, aKey);
+    }
+
+    /**
+     * Counts are the delegate's plus the new rows that have not been written back, so they never wait for a
+     * write-back, only for one that is already in progress.
+     */
+    @Override
+    public Map<String, Integer> getTables() {
+        synchronized (theWriteBackLock) {
+            Map<String, Integer> myTables = new HashMap<>(theDelegate.getTables());
+            theActive.newRows().forEach((aTable, aNewRows) -> myTables.merge(aTable, aNewRows.intValue(), Integer::sum));
+            return myTables;
+        }
+    }
+
+    @Override
+    public SortedMap<String, Row> getRows(String aTable, String aFromRow, int aNumRows) {
+        Stream<Row> myRows = getRowDataStream(aTable, aFromRow, null);
+        if (myRows == null) {
+            return null;
+        }
+
+        try (myRows) {
+            return myRows
+                    .limit(aNumRows + 1)
+                    .collect(
+                            ConcurrentSkipListMap::new,
+                            (aMap, aRow) -> aMap.put(aRow.key(), aRow),
+                            ConcurrentSkipListMap::putAll);
+        }
+    }
+
+    /**
+     * Streams the delegate's rows with the writes not yet written back merged over them, newest first, the way
+     * {@link #get} reads one row, so that a scan never waits for a write-back.
+     */
+    @Override
+    public Stream<Row> getRowDataStream(String aTable, String aStartRow, String aEndRowExclusive) {
+        Generation myActive;
+        Generation myFlushing;
+        theSwapLock.readLock().lock();
+        try {
+            myActive = theActive;
+            myFlushing = theFlushing;
+        } finally {
+            theSwapLock.readLock().unlock();
+        }
+
+        List<Iterator<Map.Entry<String, RowFragment>>> mySources = new ArrayList<>();
+        for (Generation myGeneration : new Generation[]{myActive, myFlushing}) {
+            Memtable myMemtable = myGeneration == null ? null : myGeneration.tables().get(aTable);
+            if (myMemtable != null) {
+                mySources.add(myMemtable.iterator(aStartRow, aEndRowExclusive));
+            }
+        }
+        Stream<Row> myStored = theDelegate.getRowDataStream(aTable, aStartRow, aEndRowExclusive);
+        if (mySources.isEmpty()) {
+            return myStored;
+        }
+        if (myStored != null) {
+            mySources.add(myStored.map(aRow -> Map.entry(aRow.key(), new RowFragment(aRow, true))).iterator());
+        }
+
+        Stream<Row> myRows = StreamSupport.stream(
+                        Spliterators.spliteratorUnknownSize(new MergingIterator(mySources),
+                                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false)
+                .map(aEntry -> aEntry.getValue().row());
+        return myStored == null ? myRows : myRows.onClose(myStored::close);
+    }
+
+    @Override
+    public OpStatus delete(String aTable) {
+        writeBackNow();
+        return theDelegate.delete(aTable);
+    }
+
+    @Override
+    public int deleteRange(String aTable, String aStartRow, String aEndRowExclusive) {
+        writeBackNow();
+        return theDelegate.deleteRange(aTable, aStartRow, aEndRowExclusive);
+    }
+
+    @Override
+    public OpStatus rename(String aTable, String aNewName) {
+        writeBackNow();
+        return theDelegate.rename(aTable, aNewName);
+    }
+
+    @Override
+    public int count(String aTable) {
+        synchronized (theWriteBackLock) {
+            int myStored = theDelegate.count(aTable);
+            LongAdder myNewRows = theActive.newRows().get(aTable);
+            return myNewRows == null ? myStored : Math.max(myStored, 0) + myNewRows.intValue();
+        }
+    }
+
+    @Override
+    public OpStatus fromMap(String aTableName, ConcurrentMap<String, Row> aTable) {
+        writeBackNow();
+        return theDelegate.fromMap(aTableName, aTable);
+    }
+
+    @Override
+    public ConcurrentMap<String, Row> getMap(String aTableName) {
+        ConcurrentMap<String, Row> myResult = new ConcurrentSkipListMap<>();
+        Stream<Row> myRows = getRowDataStream(aTableName, null, null);
+        if (myRows != null) {
+            try (myRows) {
+                myRows.forEach(aRow -> myResult.put(aRow.key(), aRow));
+            }
+        }
+        return myResult;
+    }
+
+    private void maybeWriteBack() {
+        long myDirtyBytes = 0;
+        for (Memtable myMemtable : theActive.tables().values()) {
+            myDirtyBytes += myMemtable.sizeInBytes();
+        }
+        if (myDirtyBytes >= WRITE_BACK_THRESHOLD && theWriteBackScheduled.compareAndSet(false, true)) {
+            theWriteBackExecutor.execute(this::writeBack);
+        }
+    }
+
+    private void writeBack() {
+        theWriteBackScheduled.set(false);
+        try {
+            writeBackNow();
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to write back dirty rows", e);
+        }
+    }
+
+    /**
+     * Swaps in a fresh generation and writes the old one back to the delegate. Its log is closed, and with that
+     * synced, before anything is written back, and it is deleted only once every row has been written and the
+     * delegate has synced them. Operations on whole tables call this first, since they act on the delegate.
+     */
+    private void writeBackNow() {
+        synchronized (theWriteBackLock) {
+            Generation myFlushing;
+            theSwapLock.writeLock().lock();
+            try {
+                if (theActive.tables().isEmpty()) {
+                    return;
+                }
+                myFlushing = theActive;
+                theActive = new Generation(new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), new WriteAheadLog(newLogFile()));
+                theFlushing = myFlushing;
+            } catch (IOException e) {
+                LOGGER.error("Failed to rotate write-ahead log", e);
+                return;
+            } finally {
+                theSwapLock.writeLock().unlock();
+            }
+
+            boolean mySuccess = true;
+            try {
+                myFlushing.log().close();
+            } catch (IOException e) {
+                LOGGER.error("Failed to close write-ahead log " + myFlushing.log().file(), e);
+                mySuccess = false;
+            }
+
+            int myRows = 0;
+            for (Map.Entry<String, Memtable> myTable : myFlushing.tables().entrySet()) {
+                Iterator<Map.Entry<String, RowFragment>> myFragments = myTable.getValue().iterator(null, null);
+                while (myFragments.hasNext()) {
+                    Map.Entry<String, RowFragment> myEntry = myFragments.next();
+                    RowFragment myFragment = myEntry.getValue();
+                    if (!myFragment.complete()) {
+                        Row myStored = theDelegate.get(myTable.getKey(), myEntry.getKey());
+                        if (myStored != null) {
+                            myFragment = myFragment.mergeOlder(new RowFragment(myStored, true));
+                        }
+                    }
+                    if (theDelegate.putRow(myTable.getKey(), myEntry.getKey(), myFragment.row()) < 0) {
+                        mySuccess = false;
+                    }
+                    myRows++;
+                }
+            }
+
+            // The log is all that makes the rows durable until the delegate has synced them
+            if (mySuccess && !theDelegate.sync()) {
+                LOGGER.error("Failed to sync rows written back from " + myFlushing.log().file());
+                mySuccess = false;
+            }
+
+            theFlushing = null;
+            // A failed write-back keeps the log so that the next start replays it
+            if (mySuccess && !myFlushing.log().file().delete()) {
+                LOGGER.warn("Failed to delete write-ahead log " + myFlushing.log().file());
+            }
+            LOGGER.debug("Wrote back " + myRows + " rows");
+        }
+    }
+
+    /**
+     * Counts the key as a new row of the active generation if neither generation nor the delegate has it. Must
+     * be called with the key lock and the swap lock held, before the write goes into the memtable.
+     */
+    private void countIfNew(Generation aActive, String aTable, String aKey) {
+        if (fragment(aActive, aTable, aKey) != null) {
+            return;
+        }
+        // The flushing generation is checked first: once it is gone, all of its rows are in the delegate
+        Generation myFlushing = theFlushing;
+        if (myFlushing != null && fragment(myFlushing, aTable, aKey) != null) {
+            return;
+        }
+        if (theDelegate.contains(aTable, aKey)) {
+            return;
+        }
+        aActive.newRows().computeIfAbsent(aTable, aName -> new LongAdder()).increment();
+    }
+
+    private static Memtable memtable(Generation aGeneration, String aTable) {
+        return aGeneration.tables().computeIfAbsent(aTable, aName -> new Memtable());
+    }
+
+    private static RowFragment fragment(Generation aGeneration, String aTable, String aKey) {
+        Memtable myMemtable = aGeneration.tables().get(aTable);
+        return myMemtable == null ? null : myMemtable.get(aKey);
+    }
+
+    private static RowFragment merge(RowFragment aNewer, RowFragment aOlder) {
+        return aNewer == null ? aOlder : aNewer.mergeOlder(aOlder);
+    }
+
+    private Object keyLock(String aKey) {
+        return theKeyLocks[Math.floorMod(aKey.hashCode(), KEY_LOCK_STRIPES)];
+    }
+
+    private File newLogFile() {
+        return new File(theLogDirectory, String.format("%016d", theNextLogSequence.getAndIncrement()) + LOG_SUFFIX);
+    }
+
+    private static long sequenceOfLog(File aLog) {
+        String myName = aLog.getName();
+        return Long.parseLong(myName.substring(0, myName.length() - LOG_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,930 @@
+package cis5550.kvs.datastore.lsm;
+
+import cis5550.kvs.MergeOperator;
+import cis5550.kvs.MergeOperators;
+import cis5550.kvs.Row;
+import cis5550.tools.Logger;
+import cis5550.utils.FileIOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * One log-structured table: writes go to the write-ahead log and the active memtable, full memtables are
+ * flushed to immutable segments in the background, and runs of segments are merged by size tier so the
+ * number of segments a read has to consult stays logarithmic in the table size.
+ */
+public class LogStructuredTable {
+    public static final Logger LOGGER = Logger.getLogger(LogStructuredTable.class);
+    public static final long MEMTABLE_FLUSH_THRESHOLD = 16L * 1024 * 1024;
+    public static final String LOG_SUFFIX = ".wal";
+    // Keeps every segment small enough to be mapped as a whole
+    public static final long MAX_SEGMENT_SIZE = 1L << 30;
+    // Attached segments stay in the subdirectory they were attached in, until compaction replaces them
+    public static final String ATTACHED_PREFIX = "attached-";
+    // Holds the sequence number of the last log whose writes are all in segments
+    public static final String FLUSHED_FILE = "flushed";
+
+    private static final int KEY_LOCK_STRIPES = 64;
+
+    private record State(Memtable active, Memtable flushing, List<Segment> segments) {
+    }
+
+    private record SegmentRows(List<Segment> segments, int rows) {
+    }
+
+    // Memtables only grow, so their size in bytes tells whether they were written to since they were counted
+    private record MemtableRows(Memtable memtable, long sizeInBytes, Memtable older, List<Segment> segments, int rows) {
+    }
+
+    private interface Lookup {
+        RowFragment get(String aKey) throws IOException;
+    }
+
+    private final File theDirectory;
+    private final Predicate<String> theCompressedColumns;
+    private final ExecutorService theFlushExecutor;
+    private final ExecutorService theCompactionExecutor;
+    private final ReentrantReadWriteLock theSwapLock;
+    private final ReentrantReadWriteLock theMaintenanceLock;
+    private final Object[] theKeyLocks;
+    private final AtomicLong theNextSequence;
+    private final AtomicBoolean theFlushScheduled;
+    private final AtomicBoolean theCompactionScheduled;
+    private final Object theCountLock;
+    private final Object theFlushLock;
+
+    private volatile State theState;
+    private volatile SegmentRows theSegmentRows;
+    private volatile MemtableRows theActiveRows;
+    private volatile MemtableRows theFlushingRows;
+    private volatile boolean theClosed;
+    private WriteAheadLog theLog;
+    private WriteAheadLog theFlushingLog;
+
+    private LogStructuredTable(File aDirectory, Predicate<String> aCompressedColumns, ExecutorService aFlushExecutor,
+                               ExecutorService aCompactionExecutor) {
+        theDirectory = aDirectory;
+        theCompressedColumns = aCompressedColumns;
+        theFlushExecutor = aFlushExecutor;
+        theCompactionExecutor = aCompactionExecutor;
+        theSwapLock = new ReentrantReadWriteLock();
+        theMaintenanceLock = new ReentrantReadWriteLock();
+        theKeyLocks = new Object[KEY_LOCK_STRIPES];
+        for (int i = 0; i < KEY_LOCK_STRIPES; i++) {
+            theKeyLocks[i] = new Object();
+        }
+        theNextSequence = new AtomicLong(1);
+        theFlushScheduled = new AtomicBoolean(false);
+        theCompactionScheduled = new AtomicBoolean(false);
+        theCountLock = new Object();
+        theFlushLock = new Object();
+    }
+
+    /**
+     * Opens the table in the given directory. Values of the given columns are stored compressed in the
+     * segments written from now on.
+     */
+    public static LogStructuredTable open(File aDirectory, Predicate<String> aCompressedColumns,
+                                          ExecutorService aFlushExecutor, ExecutorService aCompactionExecutor)
+            throws IOException {
+        if (!aDirectory.exists() && !aDirectory.mkdirs()) {
+            throw new IOException("Failed to create table directory " + aDirectory);
+        }
+
+        LogStructuredTable myTable = new LogStructuredTable(aDirectory, aCompressedColumns, aFlushExecutor, aCompactionExecutor);
+        myTable.recover();
+        return myTable;
+    }
+
+    private void recover() throws IOException {
+        File[] myTopFiles = theDirectory.listFiles();
+        if (myTopFiles == null) {
+            throw new IOException("Failed to list table directory " + theDirectory);
+        }
+        List<File> myFiles = new ArrayList<>();
+        for (File myFile : myTopFiles) {
+            File[] myAttached = isAttachedDirectory(myFile) ? myFile.listFiles() : null;
+            if (myAttached != null) {
+                myFiles.addAll(Arrays.asList(myAttached));
+            } else {
+                myFiles.add(myFile);
+            }
+        }
+
+        List<Segment> mySegments = new ArrayList<>();
+        List<File> myLogs = new ArrayList<>();
+        long myMaxSequence = 0;
+        for (File myFile : myFiles) {
+            String myName = myFile.getName();
+            if (myName.endsWith(Segment.TEMPORARY_SUFFIX)) {
+                myFile.delete();
+            } else if (myName.endsWith(Segment.SUFFIX)) {
+                Segment mySegment = Segment.open(myFile);
+                mySegments.add(mySegment);
+                myMaxSequence = Math.max(myMaxSequence, mySegment.maxSequence());
+            } else if (myName.endsWith(LOG_SUFFIX)) {
+                myLogs.add(myFile);
+                myMaxSequence = Math.max(myMaxSequence, sequenceOfLog(myFile));
+            }
+        }
+
+        // A crash between publishing a compacted segment and deleting its inputs leaves both behind
+        List<Segment> myObsolete = new ArrayList<>();
+        for (Segment mySegment : mySegments) {
+            for (Segment myOther : mySegments) {
+                if (myOther.covers(mySegment)) {
+                    myObsolete.add(mySegment);
+                    break;
+                }
+            }
+        }
+        mySegments.removeAll(myObsolete);
+        myObsolete.forEach(Segment::delete);
+        removeEmptyAttachedDirectories();
+        mySegments.sort(Comparator.comparingLong(Segment::maxSequence).reversed());
+
+        // A log flushed without writes leaves no file behind, only the watermark
+        long myFlushed = readFlushed();
+        theNextSequence.set(Math.max(myMaxSequence, myFlushed) + 1);
+        theState = new State(new Memtable(), null, Collections.unmodifiableList(mySegments));
+
+        myLogs.sort(Comparator.comparingLong(LogStructuredTable::sequenceOfLog));
+        // Merges are not idempotent, so a log whose memtable was flushed before the crash must not be replayed.
+        // Compacted and attached segments span the sequence numbers of logs that were never flushed, so only the
+        // watermark and the segment a flush names exactly after its log tell.
+        Set<Long> myFlushedLogs = new HashSet<>();
+        for (Segment mySegment : mySegments) {
+            if (mySegment.minSequence() == mySegment.maxSequence()) {
+                myFlushedLogs.add(mySegment.minSequence());
+            }
+        }
+        long myLastLog = myFlushed;
+        for (File myLog : myLogs) {
+            long mySequence = sequenceOfLog(myLog);
+            myLastLog = Math.max(myLastLog, mySequence);
+            if (mySequence <= myFlushed || myFlushedLogs.contains(mySequence)) {
+                myLog.delete();
+                continue;
+            }
+
+            // Each log becomes the segment a flush would have made of it, so a crash from here on finds it
+            Memtable myRecovered = new Memtable();
+            int myRecords = WriteAheadLog.replay(myLog, new WriteAheadLog.Visitor() {
+                @Override
+                public void onPut(String aTable, String aKey, String aColumn, byte[] aValue) {
+                    myRecovered.put(aKey, aColumn, aValue);
+                }
+
+                @Override
+                public void onPutRow(String aTable, String aKey, Row aRow) {
+                    myRecovered.putRow(aKey, aRow);
+                }
+
+                @Override
+                public void onMerge(String aTable, String aKey, String aColumn, MergeOperator aOperator,
+                                    byte[] aOperand) {
+                    myRecovered.merge(aKey, aColumn, aOperator, aOperand);
+                }
+            });
+            LOGGER.info("Replayed " + myRecords + " records from " + myLog);
+            if (!myRecovered.isEmpty()) {
+                addSegment(SegmentWriter.write(
+                        new File(theDirectory, Segment.fileName(mySequence, mySequence)),
+                        myRecovered.iterator(null, null),
+                        false,
+                        myRecovered.size(),
+                        theCompressedColumns));
+            }
+        }
+        writeFlushed(Math.max(myLastLog, 0));
+        for (File myLog : myLogs) {
+            myLog.delete();
+        }
+
+        theLog = new WriteAheadLog(newLogFile());
+        scheduleCompaction();
+    }
+
+    public File directory() {
+        return theDirectory;
+    }
+
+    public void put(String aKey, String aColumn, byte[] aValue) throws IOException {
+        synchronized (keyLock(aKey)) {
+            putLocked(aKey, aColumn, aValue);
+        }
+        maybeFlush();
+    }
+
+    public void putRow(String aKey, Row aRow) throws IOException {
+        synchronized (keyLock(aKey)) {
+            theSwapLock.readLock().lock();
+            try {
+                theLog.appendPutRow(theDirectory.getName(), aKey, aRow);
+                theState.active().putRow(aKey, aRow);
+            } finally {
+                theSwapLock.readLock().unlock();
+            }
+        }
+        maybeFlush();
+    }
+
+    public void append(String aKey, String aColumn, byte[] aValue, String aDelimiter) throws IOException {
+        merge(aKey, aColumn, MergeOperators.append(aDelimiter), aValue);
+    }
+
+    /**
+     * Records the operand without reading the current value; it is applied when the row is read or when
+     * compaction reaches the column's value. Merges of one key are logged in the order they are applied.
+     */
+    public void merge(String aKey, String aColumn, MergeOperator aOperator, byte[] aOperand) throws IOException {
+        synchronized (keyLock(aKey)) {
+            mergeLocked(aKey, aColumn, aOperator, aOperand);
+        }
+        maybeFlush();
+    }
+
+    /**
+     * Merges the operand and returns the column's new value.
+     */
+    public byte[] mergeAndGet(String aKey, String aColumn, MergeOperator aOperator, byte[] aOperand) throws IOException {
+        byte[] myValue;
+        synchronized (keyLock(aKey)) {
+            mergeLocked(aKey, aColumn, aOperator, aOperand);
+            myValue = get(aKey).getBytes(aColumn);
+        }
+        maybeFlush();
+        return myValue;
+    }
+
+    /**
+     * Puts the value only if the condition column currently holds the expected value, or is absent if that is
+     * null. Returns whether the value was put.
+     */
+    public boolean compareAndPut(String aKey, String aIfColumn, byte[] aExpected, String aColumn, byte[] aValue)
+            throws IOException {
+        synchronized (keyLock(aKey)) {
+            Row myCurrent = get(aKey);
+            byte[] myActual = myCurrent == null ? null : myCurrent.getBytes(aIfColumn);
+            if (!Arrays.equals(myActual, aExpected)) {
+                return false;
+            }
+            putLocked(aKey, aColumn, aValue);
+        }
+        maybeFlush();
+        return true;
+    }
+
+    private void mergeLocked(String aKey, String aColumn, MergeOperator aOperator, byte[] aOperand) throws IOException {
+        theSwapLock.readLock().lock();
+        try {
+            theLog.appendMerge(theDirectory.getName(), aKey, aColumn, aOperator, aOperand);
+            theState.active().merge(aKey, aColumn, aOperator, aOperand);
+        } finally {
+            theSwapLock.readLock().unlock();
+        }
+    }
+
+    private void putLocked(String aKey, String aColumn, byte[] aValue) throws IOException {
+        theSwapLock.readLock().lock();
+        try {
+            theLog.appendPut(theDirectory.getName(), aKey, aColumn, aValue);
+            theState.active().put(aKey, aColumn, aValue);
+        } finally {
+            theSwapLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Waits until the calling thread's writes to this table are durable. Writes themselves only buffer their
+     * log records, so a request that writes many cells pays for a single group commit.
+     */
+    public void sync() throws IOException {
+        WriteAheadLog myLog;
+        WriteAheadLog myFlushingLog;
+        theSwapLock.readLock().lock();
+        try {
+            myLog = theLog;
+            myFlushingLog = theFlushingLog;
+        } finally {
+            theSwapLock.readLock().unlock();
+        }
+
+        if (myFlushingLog != null) {
+            myFlushingLog.commitOwnWrites();
+        }
+        myLog.commitOwnWrites();
+    }
+
+    public Row get(String aKey) throws IOException {
+        State myState = theState;
+        RowFragment myFragment = myState.active().get(aKey);
+        if (myState.flushing() != null && (myFragment == null || !myFragment.complete())) {
+            myFragment = merge(myFragment, myState.flushing().get(aKey));
+        }
+        for (Segment mySegment : myState.segments()) {
+            if (myFragment != null && myFragment.complete()) {
+                break;
+            }
+            myFragment = merge(myFragment, mySegment.get(aKey));
+        }
+        return myFragment == null || myFragment.isTombstone() ? null : myFragment.resolve();
+    }
+
+    private static RowFragment merge(RowFragment aNewer, RowFragment aOlder) {
+        return aNewer == null ? aOlder : aNewer.mergeOlder(aOlder);
+    }
+
+    public Iterator<Map.Entry<String, RowFragment>> iterator(String aStartRow, String aEndRowExclusive) {
+        State myState = theState;
+        List<Iterator<Map.Entry<String, RowFragment>>> mySources = new ArrayList<>();
+        mySources.add(myState.active().iterator(aStartRow, aEndRowExclusive));
+        if (myState.flushing() != null) {
+            mySources.add(myState.flushing().iterator(aStartRow, aEndRowExclusive));
+        }
+        for (Segment mySegment : myState.segments()) {
+            mySources.add(mySegment.iterator(aStartRow, aEndRowExclusive));
+        }
+        return withoutTombstones(new MergingIterator(mySources));
+    }
+
+    /**
+     * Deletes the rows of the range by writing a tombstone for each, and returns how many there were.
+     */
+    public int deleteRange(String aStartRow, String aEndRowExclusive) throws IOException {
+        List<String> myKeys = new ArrayList<>();
+        iterator(aStartRow, aEndRowExclusive).forEachRemaining(aEntry -> myKeys.add(aEntry.getKey()));
+        for (String myKey : myKeys) {
+            putRow(myKey, new Row(myKey));
+        }
+        return myKeys.size();
+    }
+
+    private static Iterator<Map.Entry<String, RowFragment>> withoutTombstones(
+            Iterator<Map.Entry<String, RowFragment>> aRows) {
+        return new Iterator<>() {
+            private Map.Entry<String, RowFragment> theNext;
+
+            @Override
+            public boolean hasNext() {
+                while (theNext == null && aRows.hasNext()) {
+                    Map.Entry<String, RowFragment> myEntry = aRows.next();
+                    if (!myEntry.getValue().isTombstone()) {
+                        theNext = myEntry;
+                    }
+                }
+                return theNext != null;
+            }
+
+            @Override
+            public Map.Entry<String, RowFragment> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, RowFragment> myEntry = theNext;
+                theNext = null;
+                return myEntry;
+            }
+        };
+    }
+
+    /**
+     * Counts the rows from the rows of the segments, which are counted again only for segments added since the
+     * last count, plus the rows the memtables add or delete, which are counted again only once they were written
+     * to. Compaction merges segments without changing which rows they hold, so it keeps the count.
+     */
+    public int count() {
+        State myState = theState;
+        try {
+            int myCount = segmentRows(myState.segments());
+            if (myState.flushing() != null) {
+                theFlushingRows = memtableRows(theFlushingRows, myState.flushing(), null, myState.segments());
+                myCount += theFlushingRows.rows();
+            }
+            theActiveRows = memtableRows(theActiveRows, myState.active(), myState.flushing(), myState.segments());
+            return myCount + theActiveRows.rows();
+        } catch (IOException e) {
+            LOGGER.error("Failed to count rows of " + theDirectory + " from its segments; scanning them", e);
+            return countByScan(iterator(null, null));
+        }
+    }
+
+    private int segmentRows(List<Segment> aSegments) throws IOException {
+        SegmentRows myCounted = theSegmentRows;
+        if (myCounted != null && myCounted.segments() == aSegments) {
+            return myCounted.rows();
+        }
+
+        synchronized (theCountLock) {
+            myCounted = theSegmentRows;
+            int myRows;
+            List<Segment> myAdded = myCounted == null ? null : addedSince(myCounted.segments(), aSegments);
+            if (myAdded == null) {
+                myRows = countByScan(withoutTombstones(new MergingIterator(aSegments.stream()
+                        .map(aSegment -> aSegment.iterator(null, null)).toList())));
+            } else {
+                myRows = myCounted.rows();
+                // Oldest first, each against the segments older than it
+                for (int i = myAdded.size() - 1; i >= 0; i--) {
+                    Segment mySegment = myAdded.get(i);
+                    List<Segment> myOlder = aSegments.subList(aSegments.indexOf(mySegment) + 1, aSegments.size());
+                    myRows += rowsAdded(mySegment.iterator(null, null), segmentLookup(myOlder));
+                }
+            }
+            theSegmentRows = new SegmentRows(aSegments, myRows);
+            return myRows;
+        }
+    }
+
+    /**
+     * Returns how many rows the memtable adds to the older memtable, if any, and the segments, counting them
+     * again only if any of them changed since the given count.
+     */
+    private static MemtableRows memtableRows(MemtableRows aCounted, Memtable aMemtable, Memtable aOlder,
+                                             List<Segment> aSegments) throws IOException {
+        long mySizeInBytes = aMemtable.sizeInBytes();
+        if (aCounted != null && aCounted.memtable() == aMemtable && aCounted.sizeInBytes() == mySizeInBytes
+                && aCounted.older() == aOlder && aCounted.segments() == aSegments) {
+            return aCounted;
+        }
+        Lookup mySegments = segmentLookup(aSegments);
+        Lookup myOlder = aOlder == null ? mySegments : aKey -> {
+            RowFragment myFragment = aOlder.get(aKey);
+            return myFragment != null && myFragment.complete() ? myFragment : merge(myFragment, mySegments.get(aKey));
+        };
+        return new MemtableRows(aMemtable, mySizeInBytes, aOlder, aSegments,
+                rowsAdded(aMemtable.iterator(null, null), myOlder));
+    }
+
+    private static Lookup segmentLookup(List<Segment> aSegments) {
+        return aKey -> {
+            RowFragment myFragment = null;
+            for (Segment mySegment : aSegments) {
+                if (myFragment != null && myFragment.complete()) {
+                    break;
+                }
+                myFragment = merge(myFragment, mySegment.get(aKey));
+            }
+            return myFragment;
+        };
+    }
+
+    /**
+     * Returns the segments that hold rows the counted ones did not, newest first, or null if that cannot be
+     * told. The other new segments are compactions, each of which must replace counted segments whose sequence
+     * numbers make up its own without a gap, or it also holds rows of segments that were never counted.
+     */
+    private static List<Segment> addedSince(List<Segment> aCounted, List<Segment> aSegments) {
+        Set<Segment> myCounted = Collections.newSetFromMap(new IdentityHashMap<>());
+        myCounted.addAll(aCounted);
+        Set<Segment> myCurrent = Collections.newSetFromMap(new IdentityHashMap<>());
+        myCurrent.addAll(aSegments);
+
+        List<Segment> myRemoved = aCounted.stream().filter(aSegment -> !myCurrent.contains(aSegment)).toList();
+        List<Segment> myAdded = new ArrayList<>();
+        for (Segment mySegment : aSegments) {
+            if (myCounted.contains(mySegment)) {
+                continue;
+            }
+            List<Segment> myReplaced = myRemoved.stream().filter(mySegment::covers)
+                    .sorted(Comparator.comparingLong(Segment::minSequence)).toList();
+            if (myReplaced.isEmpty()) {
+                myAdded.add(mySegment);
+                continue;
+            }
+            long myNext = mySegment.minSequence();
+            for (Segment myReplacedSegment : myReplaced) {
+                if (myReplacedSegment.minSequence() != myNext) {
+                    return null;
+                }
+                myNext = myReplacedSegment.maxSequence() + 1;
+            }
+            if (myNext != mySegment.maxSequence() + 1) {
+                return null;
+            }
+        }
+        for (Segment myRemovedSegment : myRemoved) {
+            if (aSegments.stream().noneMatch(aSegment -> aSegment.covers(myRemovedSegment))) {
+                return null;
+            }
+        }
+        return myAdded;
+    }
+
+    /**
+     * Returns how many rows the newer fragments add to the older segments, less those they delete.
+     */
+    private static int rowsAdded(Iterator<Map.Entry<String, RowFragment>> aNewer, Lookup aOlder) throws IOException {
+        int myAdded = 0;
+        while (aNewer.hasNext()) {
+            Map.Entry<String, RowFragment> myEntry = aNewer.next();
+            RowFragment myOlder = aOlder.get(myEntry.getKey());
+            boolean myBefore = myOlder != null && !myOlder.isTombstone();
+            RowFragment myAfter = myEntry.getValue().mergeOlder(myOlder);
+            myAdded += (myAfter.isTombstone() ? 0 : 1) - (myBefore ? 1 : 0);
+        }
+        return myAdded;
+    }
+
+    private static int countByScan(Iterator<Map.Entry<String, RowFragment>> aRows) {
+        int myCount = 0;
+        while (aRows.hasNext()) {
+            aRows.next();
+            myCount++;
+        }
+        return myCount;
+    }
+
+    /**
+     * Adds already sorted rows as a new segment that is newer than everything in the table, without going
+     * through the log or the memtable. Writes are held up until the segment is written, so this is meant for
+     * tables that are not being written to.
+     */
+    public void importSorted(Iterator<Map.Entry<String, RowFragment>> aSortedRows, long aRowCount) throws IOException {
+        theMaintenanceLock.writeLock().lock();
+        try {
+            long mySequence = sealAndFlush(1);
+            addSegment(SegmentWriter.write(
+                    new File(theDirectory, Segment.fileName(mySequence, mySequence)), aSortedRows, false, aRowCount,
+                    theCompressedColumns));
+        } finally {
+            theMaintenanceLock.writeLock().unlock();
+        }
+        scheduleCompaction();
+    }
+
+    /**
+     * Adds the segment files in the staging directory, written elsewhere such as by {@link cis5550.kvs.BulkLoad},
+     * to the table as its newest segments. The staging directory must be on the table's file system and hold
+     * nothing else. It is renamed into the table directory in one step, so after a crash the table has either
+     * all of the segments or none, and readers see them all at once. Writes made before are flushed first, so
+     * that the segments are newer than all of them and older than all later ones, before and after a restart.
+     */
+    public void attach(File aStaging) throws IOException {
+        File[] myFiles = aStaging.listFiles((aDir, aName) -> aName.endsWith(Segment.SUFFIX));
+        if (myFiles == null || myFiles.length == 0) {
+            throw new IOException("No segments to attach in " + aStaging);
+        }
+        Arrays.sort(myFiles);
+        for (File myFile : myFiles) {
+            Segment.open(myFile);
+        }
+
+        theMaintenanceLock.writeLock().lock();
+        try {
+            // The names give the segments their places among the table's, and are final before the rename
+            long mySequence = sealAndFlush(myFiles.length);
+            List<String> myNames = new ArrayList<>();
+            for (File myFile : myFiles) {
+                String myName = Segment.fileName(mySequence, mySequence);
+                mySequence++;
+                Files.move(myFile.toPath(), new File(aStaging, myName).toPath(), StandardCopyOption.ATOMIC_MOVE);
+                myNames.add(myName);
+            }
+            File myAttachedDirectory = new File(theDirectory,
+                    ATTACHED_PREFIX + myNames.get(0).replace(Segment.SUFFIX, ""));
+            Files.move(aStaging.toPath(), myAttachedDirectory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+            List<Segment> myAttached = new ArrayList<>();
+            for (String myName : myNames) {
+                myAttached.add(0, Segment.open(new File(myAttachedDirectory, myName)));
+            }
+
+            theSwapLock.writeLock().lock();
+            try {
+                State myState = theState;
+                List<Segment> mySegments = new ArrayList<>(myAttached);
+                mySegments.addAll(myState.segments());
+                theState = new State(myState.active(), myState.flushing(), Collections.unmodifiableList(mySegments));
+            } finally {
+                theSwapLock.writeLock().unlock();
+            }
+        } finally {
+            theMaintenanceLock.writeLock().unlock();
+        }
+        LOGGER.info("Attached " + myFiles.length + " segments to " + theDirectory);
+        scheduleCompaction();
+    }
+
+    private void addSegment(Segment aSegment) {
+        theSwapLock.writeLock().lock();
+        try {
+            State myState = theState;
+            // Logs of tables that attached segments while they were written to can be older than those segments
+            List<Segment> mySegments = new ArrayList<>(myState.segments());
+            int myIndex = 0;
+            while (myIndex < mySegments.size() && mySegments.get(myIndex).maxSequence() > aSegment.maxSequence()) {
+                myIndex++;
+            }
+            mySegments.add(myIndex, aSegment);
+            theState = new State(myState.active(), myState.flushing(), Collections.unmodifiableList(mySegments));
+        } finally {
+            theSwapLock.writeLock().unlock();
+        }
+    }
+
+    private void maybeFlush() throws IOException {
+        State myState = theState;
+        if (myState.active().sizeInBytes() < MEMTABLE_FLUSH_THRESHOLD && myState.flushing() == null) {
+            return;
+        }
+
+        if (myState.flushing() == null) {
+            theSwapLock.writeLock().lock();
+            try {
+                myState = theState;
+                if (myState.flushing() != null || myState.active().sizeInBytes() < MEMTABLE_FLUSH_THRESHOLD) {
+                    return;
+                }
+                theFlushingLog = theLog;
+                theLog = new WriteAheadLog(newLogFile());
+                theState = new State(new Memtable(), myState.active(), myState.segments());
+            } finally {
+                theSwapLock.writeLock().unlock();
+            }
+        }
+
+        if (theFlushScheduled.compareAndSet(false, true)) {
+            theFlushExecutor.submit(this::flush);
+        }
+    }
+
+    private void flush() {
+        theFlushScheduled.set(false);
+        theMaintenanceLock.readLock().lock();
+        try {
+            synchronized (theFlushLock) {
+                flushLocked();
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed to flush memtable of " + theDirectory, e);
+        } finally {
+            theMaintenanceLock.readLock().unlock();
+        }
+        scheduleCompaction();
+    }
+
+    private void flushLocked() throws IOException {
+        Memtable myFlushing = theState.flushing();
+        if (theClosed || myFlushing == null) {
+            return;
+        }
+
+        // The segment takes the sequence number of the log it replaces
+        long mySequence;
+        theSwapLock.readLock().lock();
+        try {
+            mySequence = sequenceOfLog(theFlushingLog.file());
+        } finally {
+            theSwapLock.readLock().unlock();
+        }
+        Segment mySegment = myFlushing.isEmpty() ? null : SegmentWriter.write(
+                new File(theDirectory, Segment.fileName(mySequence, mySequence)),
+                myFlushing.iterator(null, null),
+                false,
+                myFlushing.size(),
+                theCompressedColumns);
+        try {
+            writeFlushed(mySequence);
+        } catch (IOException e) {
+            // The memtable stays to be flushed again, which writes the segment again
+            if (mySegment != null) {
+                mySegment.delete();
+            }
+            throw e;
+        }
+
+        WriteAheadLog myFlushedLog;
+        theSwapLock.writeLock().lock();
+        try {
+            State myState = theState;
+            List<Segment> mySegments = new ArrayList<>();
+            if (mySegment != null) {
+                mySegments.add(mySegment);
+            }
+            mySegments.addAll(myState.segments());
+            theState = new State(myState.active(), null, Collections.unmodifiableList(mySegments));
+            myFlushedLog = theFlushingLog;
+            theFlushingLog = null;
+        } finally {
+            theSwapLock.writeLock().unlock();
+        }
+
+        myFlushedLog.close();
+        myFlushedLog.file().delete();
+        LOGGER.info("Flushed " + myFlushing.size() + " rows of " + theDirectory
+                + (mySegment == null ? "" : " to " + mySegment.file()));
+    }
+
+    /**
+     * Flushes every write made so far and starts a new log, and returns the first of the given number of
+     * sequence numbers taken in between. Segments named after them are newer than all of those writes and
+     * older than all later ones. The caller holds the maintenance write lock, so no other flush runs meanwhile.
+     */
+    private long sealAndFlush(int aSequences) throws IOException {
+        synchronized (theFlushLock) {
+            flushLocked();
+            long myFirst;
+            theSwapLock.writeLock().lock();
+            try {
+                State myState = theState;
+                if (theClosed || myState.flushing() != null) {
+                    throw new IOException("Failed to flush memtable of " + theDirectory);
+                }
+                myFirst = theNextSequence.getAndAdd(aSequences);
+                theFlushingLog = theLog;
+                theLog = new WriteAheadLog(newLogFile());
+                theState = new State(new Memtable(), myState.active(), myState.segments());
+            } finally {
+                theSwapLock.writeLock().unlock();
+            }
+            flushLocked();
+            if (theState.flushing() != null) {
+                throw new IOException("Failed to flush memtable of " + theDirectory);
+            }
+            return myFirst;
+        }
+    }
+
+    /**
+     * Records that the writes of every log up to the sequence number are in segments, so recovery does not
+     * replay them again.
+     */
+    private void writeFlushed(long aSequence) throws IOException {
+        File myTemporaryFile = new File(theDirectory, FLUSHED_FILE + Segment.TEMPORARY_SUFFIX);
+        try (FileOutputStream myOut = new FileOutputStream(myTemporaryFile)) {
+            myOut.write(Long.toString(aSequence).getBytes(StandardCharsets.UTF_8));
+            myOut.getFD().sync();
+        }
+        Files.move(myTemporaryFile.toPath(), new File(theDirectory, FLUSHED_FILE).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        FileIOUtils.syncDirectory(theDirectory);
+    }
+
+    /**
+     * Returns the sequence number of the last flushed log, or -1 for tables written before it was recorded.
+     */
+    private long readFlushed() throws IOException {
+        File myFile = new File(theDirectory, FLUSHED_FILE);
+        if (!myFile.exists()) {
+            return -1;
+        }
+        return Long.parseLong(Files.readString(myFile.toPath()).trim());
+    }
+
+    private void scheduleCompaction() {
+        if (theCompactionScheduled.compareAndSet(false, true)) {
+            theCompactionExecutor.submit(this::compact);
+        }
+    }
+
+    private void compact() {
+        theCompactionScheduled.set(false);
+        theMaintenanceLock.readLock().lock();
+        try {
+            while (!theClosed) {
+                List<Segment> mySegments = theState.segments();
+                List<Segment> myRun = selectCompactionRun(mySegments);
+                if (myRun.size() < 2) {
+                    return;
+                }
+
+                // Merging down to the oldest segment leaves nothing older for partial rows to be merged with
+                boolean myIncludesOldest = myRun.get(myRun.size() - 1) == mySegments.get(mySegments.size() - 1);
+                List<Iterator<Map.Entry<String, RowFragment>>> mySources = new ArrayList<>();
+                long myRecordCount = 0;
+                for (Segment mySegment : myRun) {
+                    mySources.add(mySegment.iterator(null, null));
+                    myRecordCount += mySegment.recordCount();
+                }
+
+                Segment myCompacted = SegmentWriter.write(
+                        new File(theDirectory, Segment.fileName(
+                                myRun.get(myRun.size() - 1).minSequence(), myRun.get(0).maxSequence())),
+                        myIncludesOldest
+                                ? withoutTombstones(new MergingIterator(mySources))
+                                : new MergingIterator(mySources),
+                        myIncludesOldest,
+                        myRecordCount,
+                        theCompressedColumns);
+
+                theSwapLock.writeLock().lock();
+                try {
+                    State myState = theState;
+                    List<Segment> myUpdated = new ArrayList<>(myState.segments());
+                    int myStart = myUpdated.indexOf(myRun.get(0));
+                    myUpdated.subList(myStart, myStart + myRun.size()).clear();
+                    myUpdated.add(myStart, myCompacted);
+                    theState = new State(myState.active(), myState.flushing(), Collections.unmodifiableList(myUpdated));
+                } finally {
+                    theSwapLock.writeLock().unlock();
+                }
+
+                myRun.forEach(Segment::delete);
+                removeEmptyAttachedDirectories();
+                LOGGER.info("Compacted " + myRun.size() + " segments into " + myCompacted.file());
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed to compact segments of " + theDirectory, e);
+        } finally {
+            theMaintenanceLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Picks the newest run of segments in which each older segment is no larger than everything newer than it
+     * combined. With equally sized flushes this behaves like a binary counter, so every row is rewritten a
+     * logarithmic number of times. Runs stop growing before they would exceed {@link #MAX_SEGMENT_SIZE}.
+     */
+    private static List<Segment> selectCompactionRun(List<Segment> aSegmentsNewestFirst) {
+        if (aSegmentsNewestFirst.size() < 2) {
+            return List.of();
+        }
+        long myRunSize = aSegmentsNewestFirst.get(0).sizeInBytes();
+        int myEnd = 1;
+        while (myEnd < aSegmentsNewestFirst.size()
+                && aSegmentsNewestFirst.get(myEnd).sizeInBytes() <= myRunSize
+                && myRunSize + aSegmentsNewestFirst.get(myEnd).sizeInBytes() <= MAX_SEGMENT_SIZE) {
+            myRunSize += aSegmentsNewestFirst.get(myEnd).sizeInBytes();
+            myEnd++;
+        }
+        return aSegmentsNewestFirst.subList(0, myEnd);
+    }
+
+    /**
+     * Stops background work and closes the log. Unflushed writes stay in the log files and are recovered by
+     * the next {@link #open}.
+     */
+    public void close() {
+        theMaintenanceLock.writeLock().lock();
+        try {
+            theClosed = true;
+            theSwapLock.writeLock().lock();
+            try {
+                theLog.close();
+                if (theFlushingLog != null) {
+                    theFlushingLog.close();
+                }
+            } finally {
+                theSwapLock.writeLock().unlock();
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed to close write-ahead log of " + theDirectory, e);
+        } finally {
+            theMaintenanceLock.writeLock().unlock();
+        }
+    }
+
+    public boolean destroy() {
+        close();
+        File[] myFiles = theDirectory.listFiles();
+        if (myFiles != null) {
+            for (File myFile : myFiles) {
+                File[] myAttached = isAttachedDirectory(myFile) ? myFile.listFiles() : null;
+                if (myAttached != null) {
+                    Arrays.stream(myAttached).forEach(File::delete);
+                }
+                myFile.delete();
+            }
+        }
+        return theDirectory.delete();
+    }
+
+    private static boolean isAttachedDirectory(File aFile) {
+        return aFile.isDirectory() && aFile.getName().startsWith(ATTACHED_PREFIX);
+    }
+
+    private void removeEmptyAttachedDirectories() {
+        File[] myDirectories = theDirectory.listFiles(LogStructuredTable::isAttachedDirectory);
+        if (myDirectories != null) {
+            for (File myDirectory : myDirectories) {
+                // Only succeeds once compaction has replaced all of its segments
+                myDirectory.delete();
+            }
+        }
+    }
+
+    private Object keyLock(String aKey) {
+        return theKeyLocks[Math.floorMod(aKey.hashCode(), KEY_LOCK_STRIPES)];
+    }
+
+    private File newLogFile() {
+        return new File(theDirectory, String.format("%016d", theNextSequence.getAndIncrement()) + LOG_SUFFIX);
+    }
+
+    private static long sequenceOfLog(File aLog) {
+        String myName = aLog.getName();
+        return Long.parseLong(myName.substring(0, myName.length() - LOG_SUFFIX.length()));
+    }
+}
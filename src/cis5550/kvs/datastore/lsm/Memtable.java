@@ -0,0 +1,74 @@
+package cis5550.kvs.datastore.lsm;
+
+import cis5550.kvs.MergeOperator;
+import cis5550.kvs.Row;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Memtable {
+    private final ConcurrentSkipListMap<String, RowFragment> theRows;
+    private final AtomicLong theSizeInBytes;
+
+    public Memtable() {
+        theRows = new ConcurrentSkipListMap<>();
+        theSizeInBytes = new AtomicLong();
+    }
+
+    public void put(String aKey, String aColumn, byte[] aValue) {
+        theRows.compute(aKey, (aRowKey, aPrevious) -> {
+            Row myRow = new Row(aRowKey);
+            myRow.put(aColumn, aValue);
+            return new RowFragment(myRow, false).mergeOlder(aPrevious);
+        });
+        theSizeInBytes.addAndGet(aKey.length() + aColumn.length() + aValue.length);
+    }
+
+    /**
+     * Merges the operand into the column, right away if this memtable holds the column's value and otherwise
+     * by recording it until the fragment is merged with an older one.
+     */
+    public void merge(String aKey, String aColumn, MergeOperator aOperator, byte[] aOperand) {
+        theRows.compute(aKey, (aRowKey, aPrevious) ->
+                new RowFragment(new Row(aRowKey), false, Map.of(aColumn, List.of(new MergeOperand(aOperator, aOperand))))
+                        .mergeOlder(aPrevious));
+        theSizeInBytes.addAndGet(aKey.length() + aColumn.length() + aOperand.length);
+    }
+
+    public void putRow(String aKey, Row aRow) {
+        RowFragment myFragment = new RowFragment(aRow.clone(), true);
+        theRows.put(aKey, myFragment);
+        theSizeInBytes.addAndGet(myFragment.sizeInBytes());
+    }
+
+    public RowFragment get(String aKey) {
+        return theRows.get(aKey);
+    }
+
+    public Iterator<Map.Entry<String, RowFragment>> iterator(String aStartRow, String aEndRowExclusive) {
+        ConcurrentNavigableMap<String, RowFragment> myRange = theRows;
+        if (aStartRow != null) {
+            myRange = myRange.tailMap(aStartRow, true);
+        }
+        if (aEndRowExclusive != null) {
+            myRange = myRange.headMap(aEndRowExclusive, false);
+        }
+        return myRange.entrySet().iterator();
+    }
+
+    public boolean isEmpty() {
+        return theRows.isEmpty();
+    }
+
+    public int size() {
+        return theRows.size();
+    }
+
+    public long sizeInBytes() {
+        return theSizeInBytes.get();
+    }
+}
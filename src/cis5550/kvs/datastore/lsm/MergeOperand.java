@@ -0,0 +1,41 @@
+package cis5550.kvs.datastore.lsm;
+
+import cis5550.kvs.MergeOperator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An operand waiting to be merged into an older value of its column.
+ */
+public record MergeOperand(MergeOperator operator, byte[] operand) {
+
+    /**
+     * Applies operands, oldest first, to a value that is null if there is none.
+     */
+    public static byte[] applyAll(byte[] aValue, List<MergeOperand> aOperands) {
+        byte[] myValue = aValue;
+        for (MergeOperand myOperand : aOperands) {
+            myValue = myOperand.operator().apply(myValue, myOperand.operand());
+        }
+        return myValue;
+    }
+
+    /**
+     * Returns the older operands followed by the newer ones, with neighbours of the same operator combined into
+     * one, so a column that is only ever merged with one operator keeps a single pending operand.
+     */
+    public static List<MergeOperand> concat(List<MergeOperand> aOlder, List<MergeOperand> aNewer) {
+        List<MergeOperand> myResult = new ArrayList<>(aOlder);
+        for (MergeOperand myOperand : aNewer) {
+            MergeOperand myLast = myResult.isEmpty() ? null : myResult.getLast();
+            if (myLast != null && myLast.operator().spec().equals(myOperand.operator().spec())) {
+                myResult.set(myResult.size() - 1, new MergeOperand(myLast.operator(),
+                        myLast.operator().combine(myLast.operand(), myOperand.operand())));
+            } else {
+                myResult.add(myOperand);
+            }
+        }
+        return myResult;
+    }
+}
@@ -0,0 +1,56 @@
+package cis5550.kvs.datastore.lsm;
+
+import java.util.*;
+
+/**
+ * Merges sorted sources into one sorted sequence of rows. Sources are given newest first; when several hold
+ * the same key their fragments are folded from newest to oldest until a complete one is reached.
+ */
+public class MergingIterator implements Iterator<Map.Entry<String, RowFragment>> {
+    private record Head(Map.Entry<String, RowFragment> entry, int source) {
+    }
+
+    private final List<Iterator<Map.Entry<String, RowFragment>>> theSources;
+    private final PriorityQueue<Head> theHeads;
+
+    public MergingIterator(List<Iterator<Map.Entry<String, RowFragment>>> aSourcesNewestFirst) {
+        theSources = aSourcesNewestFirst;
+        theHeads = new PriorityQueue<>((aFirst, aSecond) -> {
+            int myComparison = aFirst.entry().getKey().compareTo(aSecond.entry().getKey());
+            return myComparison != 0 ? myComparison : Integer.compare(aFirst.source(), aSecond.source());
+        });
+        for (int i = 0; i < theSources.size(); i++) {
+            pull(i);
+        }
+    }
+
+    private void pull(int aSource) {
+        Iterator<Map.Entry<String, RowFragment>> mySource = theSources.get(aSource);
+        if (mySource.hasNext()) {
+            theHeads.add(new Head(mySource.next(), aSource));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !theHeads.isEmpty();
+    }
+
+    @Override
+    public Map.Entry<String, RowFragment> next() {
+        Head myHead = theHeads.poll();
+        if (myHead == null) {
+            throw new NoSuchElementException();
+        }
+        String myKey = myHead.entry().getKey();
+        RowFragment myMerged = myHead.entry().getValue();
+        pull(myHead.source());
+
+        while (!theHeads.isEmpty() && theHeads.peek().entry().getKey().equals(myKey)) {
+            Head myOlder = theHeads.poll();
+            myMerged = myMerged.mergeOlder(myOlder.entry().getValue());
+            pull(myOlder.source());
+        }
+        return new AbstractMap.SimpleImmutableEntry<>(myKey, myMerged);
+    }
+}
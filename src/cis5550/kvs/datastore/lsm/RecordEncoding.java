@@ -0,0 +1,103 @@
+package cis5550.kvs.datastore.lsm;
+
+import cis5550.kvs.MergeOperators;
+import cis5550.kvs.Row;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class RecordEncoding {
+    static void writeString(DataOutput aOut, String aString) throws IOException {
+        writeBytes(aOut, aString.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void writeBytes(DataOutput aOut, byte[] aBytes) throws IOException {
+        aOut.writeInt(aBytes.length);
+        aOut.write(aBytes);
+    }
+
+    static String readString(DataInput aIn) throws IOException {
+        return new String(readBytes(aIn), StandardCharsets.UTF_8);
+    }
+
+    static String readString(ByteBuffer aIn) throws IOException {
+        return new String(readBytes(aIn), StandardCharsets.UTF_8);
+    }
+
+    static byte[] readBytes(ByteBuffer aIn) throws IOException {
+        int myLength = aIn.getInt();
+        if (myLength < 0 || myLength > aIn.remaining()) {
+            throw new IOException("Invalid length in record: " + myLength);
+        }
+        byte[] myBytes = new byte[myLength];
+        aIn.get(myBytes);
+        return myBytes;
+    }
+
+    static byte[] readBytes(DataInput aIn) throws IOException {
+        int myLength = aIn.readInt();
+        if (myLength < 0) {
+            throw new IOException("Negative length in record: " + myLength);
+        }
+        byte[] myBytes = new byte[myLength];
+        aIn.readFully(myBytes);
+        return myBytes;
+    }
+
+    static void writeColumns(DataOutput aOut, Row aRow) throws IOException {
+        aOut.writeInt(aRow.columns().size());
+        for (String myColumn : aRow.columns()) {
+            writeString(aOut, myColumn);
+            writeBytes(aOut, aRow.getBytes(myColumn));
+        }
+    }
+
+    static Row readColumns(DataInput aIn, String aKey) throws IOException {
+        Row myRow = new Row(aKey);
+        int myColumnCount = aIn.readInt();
+        for (int i = 0; i < myColumnCount; i++) {
+            String myColumn = readString(aIn);
+            myRow.put(myColumn, readBytes(aIn));
+        }
+        return myRow;
+    }
+
+    static void writeOperands(DataOutput aOut, Map<String, List<MergeOperand>> aOperands) throws IOException {
+        aOut.writeInt(aOperands.size());
+        for (Map.Entry<String, List<MergeOperand>> myEntry : aOperands.entrySet()) {
+            writeString(aOut, myEntry.getKey());
+            aOut.writeInt(myEntry.getValue().size());
+            for (MergeOperand myOperand : myEntry.getValue()) {
+                writeString(aOut, myOperand.operator().spec());
+                writeBytes(aOut, myOperand.operand());
+            }
+        }
+    }
+
+    static Map<String, List<MergeOperand>> readOperands(ByteBuffer aIn) throws IOException {
+        Map<String, List<MergeOperand>> myOperands = new HashMap<>();
+        int myColumnCount = aIn.getInt();
+        for (int i = 0; i < myColumnCount; i++) {
+            String myColumn = readString(aIn);
+            int myCount = aIn.getInt();
+            List<MergeOperand> myList = new ArrayList<>(myCount);
+            for (int j = 0; j < myCount; j++) {
+                String mySpec = readString(aIn);
+                try {
+                    myList.add(new MergeOperand(MergeOperators.forSpec(mySpec), readBytes(aIn)));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Unknown merge operator " + mySpec, e);
+                }
+            }
+            myOperands.put(myColumn, myList);
+        }
+        return myOperands;
+    }
+}
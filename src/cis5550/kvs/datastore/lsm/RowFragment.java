@@ -0,0 +1,77 @@
+package cis5550.kvs.datastore.lsm;
+
+import cis5550.kvs.Row;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A version of a row as recorded by one memtable or segment. A complete fragment replaces everything older
+ * for its key (putRow); an incomplete one only carries the columns written since (put/append), and for merged
+ * columns whose older value it has not seen, the operands still to be applied to that value. A column is never
+ * both in the row and in the operands, and a complete fragment has no operands. A complete fragment without
+ * columns is a tombstone: the row was deleted, and readers skip it until compaction drops it.
+ */
+public record RowFragment(Row row, boolean complete, Map<String, List<MergeOperand>> operands) {
+    public RowFragment(Row aRow, boolean aComplete) {
+        this(aRow, aComplete, Map.of());
+    }
+
+    public RowFragment mergeOlder(RowFragment aOlder) {
+        if (complete || aOlder == null) {
+            return this;
+        }
+
+        Row myMerged = aOlder.row().clone();
+        Map<String, List<MergeOperand>> myOperands = new HashMap<>(aOlder.operands());
+        for (String myColumn : row.columns()) {
+            myMerged.put(myColumn, row.getBytes(myColumn));
+            myOperands.remove(myColumn);
+        }
+        for (Map.Entry<String, List<MergeOperand>> myEntry : operands.entrySet()) {
+            String myColumn = myEntry.getKey();
+            byte[] myOlderValue = aOlder.row().getBytes(myColumn);
+            List<MergeOperand> myOlderOperands = aOlder.operands().get(myColumn);
+            if (myOlderValue != null || aOlder.complete()) {
+                myMerged.put(myColumn, MergeOperand.applyAll(myOlderValue, myEntry.getValue()));
+            } else if (myOlderOperands != null) {
+                myOperands.put(myColumn, MergeOperand.concat(myOlderOperands, myEntry.getValue()));
+            } else {
+                myOperands.put(myColumn, myEntry.getValue());
+            }
+        }
+        return new RowFragment(myMerged, aOlder.complete(), myOperands.isEmpty() ? Map.of() : myOperands);
+    }
+
+    public boolean isTombstone() {
+        return complete && row.columns().isEmpty();
+    }
+
+    /**
+     * Returns the row with the pending operands applied as if nothing older existed, which is what a reader
+     * sees once all older fragments have been merged in.
+     */
+    public Row resolve() {
+        if (operands.isEmpty()) {
+            return row;
+        }
+        Row myResolved = row.clone();
+        operands.forEach((aColumn, aOperands) -> myResolved.put(aColumn, MergeOperand.applyAll(null, aOperands)));
+        return myResolved;
+    }
+
+    public long sizeInBytes() {
+        long mySize = row.key().length();
+        for (String myColumn : row.columns()) {
+            byte[] myValue = row.getBytes(myColumn);
+            mySize += myColumn.length() + (myValue == null ? 0 : myValue.length);
+        }
+        for (Map.Entry<String, List<MergeOperand>> myEntry : operands.entrySet()) {
+            for (MergeOperand myOperand : myEntry.getValue()) {
+                mySize += myEntry.getKey().length() + myOperand.operand().length;
+            }
+        }
+        return mySize;
+    }
+}
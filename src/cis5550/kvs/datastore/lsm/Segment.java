@@ -0,0 +1,313 @@
+package cis5550.kvs.datastore.lsm;
+
+import cis5550.kvs.Row;
+import cis5550.tools.Logger;
+import cis5550.utils.BloomFilter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable, sorted segment file. The file is memory-mapped once when it is opened, and since it never
+ * changes afterwards, lookups and scans read straight from the mapping without any locking. Lookups binary
+ * search the sparse index and then scan at most {@link #INDEX_INTERVAL} records; rows are decoded lazily, so
+ * their values stay slices of the mapping until they are accessed. Keys the segment's Bloom filter rules out
+ * are answered without touching the mapping at all.
+ */
+public class Segment {
+    public static final Logger LOGGER = Logger.getLogger(Segment.class);
+    public static final int MAGIC = 0x4c534d53;
+    public static final int VERSION = 4;
+    public static final long MAX_MAPPED_SIZE = Integer.MAX_VALUE;
+    public static final int INDEX_INTERVAL = 16;
+    public static final int FOOTER_LENGTH = 16;
+    public static final byte FLAG_COMPLETE = 1;
+    public static final byte FLAG_OPERANDS = 2;
+    public static final String SUFFIX = ".sst";
+    public static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final File theFile;
+    private final long theMinSequence;
+    private final long theMaxSequence;
+    private final ByteBuffer theData;
+    private final int theVersion;
+    private final int theRecordCount;
+    private final String[] theIndexKeys;
+    private final int[] theIndexOffsets;
+    private final String theMaxKey;
+    private final BloomFilter theFilter;
+
+    private Segment(File aFile, long aMinSequence, long aMaxSequence, ByteBuffer aData, int aVersion,
+                    int aRecordCount, String[] aIndexKeys, int[] aIndexOffsets, String aMaxKey,
+                    BloomFilter aFilter) {
+        theFile = aFile;
+        theMinSequence = aMinSequence;
+        theMaxSequence = aMaxSequence;
+        theData = aData;
+        theVersion = aVersion;
+        theRecordCount = aRecordCount;
+        theIndexKeys = aIndexKeys;
+        theIndexOffsets = aIndexOffsets;
+        theMaxKey = aMaxKey;
+        theFilter = aFilter;
+    }
+
+    public static Segment open(File aFile) throws IOException {
+        MappedByteBuffer myMapping;
+        try (FileChannel myChannel = FileChannel.open(aFile.toPath(), StandardOpenOption.READ)) {
+            long mySize = myChannel.size();
+            if (mySize < 8 + FOOTER_LENGTH) {
+                throw new IOException("Not a segment file: " + aFile);
+            }
+            if (mySize > MAX_MAPPED_SIZE) {
+                throw new IOException("Segment file too large to map: " + aFile);
+            }
+            // The mapping stays valid after the channel is closed and after the file is deleted
+            myMapping = myChannel.map(FileChannel.MapMode.READ_ONLY, 0, mySize);
+        }
+
+        int mySize = myMapping.capacity();
+        int myVersion = myMapping.getInt(4);
+        if (myMapping.getInt(0) != MAGIC || myMapping.getInt(mySize - 4) != MAGIC) {
+            throw new IOException("Not a segment file: " + aFile);
+        }
+        if (myVersion < 1 || myVersion > VERSION) {
+            throw new IOException("Unsupported segment version " + myVersion + ": " + aFile);
+        }
+        int myIndexOffset = (int) myMapping.getLong(mySize - FOOTER_LENGTH);
+        int myRecordCount = myMapping.getInt(mySize - 8);
+
+        ByteBuffer myIn = myMapping.duplicate().position(myIndexOffset);
+        int myIndexSize = myIn.getInt();
+        String[] myIndexKeys = new String[myIndexSize];
+        int[] myIndexOffsets = new int[myIndexSize];
+        for (int i = 0; i < myIndexSize; i++) {
+            myIndexKeys[i] = RecordEncoding.readString(myIn);
+            myIndexOffsets[i] = (int) myIn.getLong();
+        }
+        String myMaxKey = RecordEncoding.readString(myIn);
+        // Segments written before version 3 have no filter and are always searched
+        BloomFilter myFilter = myVersion >= 3 ? BloomFilter.readFrom(myIn) : null;
+
+        String myName = aFile.getName();
+        String[] mySequences = myName.substring(0, myName.length() - SUFFIX.length()).split("-");
+        return new Segment(aFile, Long.parseLong(mySequences[0]), Long.parseLong(mySequences[1]),
+                myMapping.slice(0, myIndexOffset), myVersion, myRecordCount, myIndexKeys, myIndexOffsets, myMaxKey,
+                myFilter);
+    }
+
+    /**
+     * Segments are named after the range of sequence numbers whose writes they hold: a flushed memtable covers
+     * one sequence number, a compacted segment the union of its inputs.
+     */
+    public static String fileName(long aMinSequence, long aMaxSequence) {
+        return String.format("%016d-%016d", aMinSequence, aMaxSequence) + SUFFIX;
+    }
+
+    public File file() {
+        return theFile;
+    }
+
+    public long minSequence() {
+        return theMinSequence;
+    }
+
+    public long maxSequence() {
+        return theMaxSequence;
+    }
+
+    public boolean covers(Segment aOther) {
+        return this != aOther && theMinSequence <= aOther.theMinSequence && theMaxSequence >= aOther.theMaxSequence;
+    }
+
+    public int recordCount() {
+        return theRecordCount;
+    }
+
+    public long sizeInBytes() {
+        return theFile.length();
+    }
+
+    public String minKey() {
+        return theIndexKeys.length == 0 ? null : theIndexKeys[0];
+    }
+
+    public String maxKey() {
+        return theRecordCount == 0 ? null : theMaxKey;
+    }
+
+    /**
+     * Returns false if the segment certainly does not hold the key.
+     */
+    public boolean mightContain(String aKey) {
+        return theRecordCount > 0
+                && aKey.compareTo(theIndexKeys[0]) >= 0
+                && aKey.compareTo(theMaxKey) <= 0
+                && (theFilter == null || theFilter.mightContain(aKey));
+    }
+
+    public RowFragment get(String aKey) throws IOException {
+        if (!mightContain(aKey)) {
+            return null;
+        }
+
+        int myBlock = floorIndex(aKey);
+        ByteBuffer myIn = theData.duplicate().position(theIndexOffsets[myBlock]);
+        for (int i = 0; i < INDEX_INTERVAL && myBlock * INDEX_INTERVAL + i < theRecordCount; i++) {
+            String myKey = RecordEncoding.readString(myIn);
+            int myComparison = myKey.compareTo(aKey);
+            if (myComparison > 0) {
+                return null;
+            }
+            byte myFlags = myIn.get();
+            int myBodyLength = myIn.getInt();
+            if (myComparison == 0) {
+                return readFragment(myIn, myKey, myFlags, myBodyLength);
+            }
+            skipRecord(myIn, myFlags, myBodyLength);
+        }
+        return null;
+    }
+
+    public Iterator<Map.Entry<String, RowFragment>> iterator(String aStartRow, String aEndRowExclusive) {
+        if (theRecordCount == 0
+                || (aStartRow != null && aStartRow.compareTo(theMaxKey) > 0)
+                || (aEndRowExclusive != null && aEndRowExclusive.compareTo(theIndexKeys[0]) <= 0)) {
+            return Collections.emptyIterator();
+        }
+
+        int myBlock = aStartRow == null ? 0 : floorIndex(aStartRow);
+        return new SegmentIterator(theData.duplicate().position(theIndexOffsets[myBlock]),
+                myBlock * INDEX_INTERVAL, aStartRow, aEndRowExclusive);
+    }
+
+    /**
+     * Removes the file. Readers that already hold this segment, or rows read from it, keep using the mapping;
+     * it is released once none of them is reachable.
+     */
+    public void delete() {
+        if (!theFile.delete()) {
+            LOGGER.warn("Failed to delete segment " + theFile);
+        }
+    }
+
+    private int floorIndex(String aKey) {
+        int myLow = 0;
+        int myHigh = theIndexKeys.length - 1;
+        while (myLow < myHigh) {
+            int myMid = (myLow + myHigh + 1) >>> 1;
+            if (theIndexKeys[myMid].compareTo(aKey) <= 0) {
+                myLow = myMid;
+            } else {
+                myHigh = myMid - 1;
+            }
+        }
+        return myLow;
+    }
+
+    private RowFragment readFragment(ByteBuffer aIn, String aKey, byte aFlags, int aBodyLength) throws IOException {
+        Row myRow = readRow(aIn, aKey, aBodyLength);
+        if ((aFlags & FLAG_OPERANDS) == 0) {
+            return new RowFragment(myRow, (aFlags & FLAG_COMPLETE) != 0);
+        }
+        ByteBuffer myOperands = ByteBuffer.wrap(RecordEncoding.readBytes(aIn));
+        return new RowFragment(myRow, false, RecordEncoding.readOperands(myOperands));
+    }
+
+    /**
+     * Moves past a record body and, since version 4, the merge operands that may follow it.
+     */
+    private static void skipRecord(ByteBuffer aIn, byte aFlags, int aBodyLength) {
+        aIn.position(aIn.position() + aBodyLength);
+        if ((aFlags & FLAG_OPERANDS) != 0) {
+            int myOperandsLength = aIn.getInt();
+            aIn.position(aIn.position() + myOperandsLength);
+        }
+    }
+
+    /**
+     * Decodes the record body at the buffer's position and moves past it. Version 1 bodies hold the columns
+     * in the record encoding and are copied; version 2 bodies are binary rows that keep referring to the
+     * mapping.
+     */
+    private Row readRow(ByteBuffer aIn, String aKey, int aBodyLength) throws IOException {
+        ByteBuffer myBody = aIn.slice(aIn.position(), aBodyLength);
+        aIn.position(aIn.position() + aBodyLength);
+        if (theVersion == 1) {
+            byte[] myBytes = new byte[aBodyLength];
+            myBody.get(myBytes);
+            return RecordEncoding.readColumns(new DataInputStream(new ByteArrayInputStream(myBytes)), aKey);
+        }
+
+        try {
+            return Row.readFrom(myBody);
+        } catch (Exception e) {
+            throw new IOException("Corrupt row " + aKey + " in segment " + theFile, e);
+        }
+    }
+
+    private class SegmentIterator implements Iterator<Map.Entry<String, RowFragment>> {
+        private final ByteBuffer theIn;
+        private final String theStartRow;
+        private final String theEndRowExclusive;
+        private int theRecordIndex;
+        private Map.Entry<String, RowFragment> theNext;
+
+        SegmentIterator(ByteBuffer aIn, int aRecordIndex, String aStartRow, String aEndRowExclusive) {
+            theIn = aIn;
+            theRecordIndex = aRecordIndex;
+            theStartRow = aStartRow;
+            theEndRowExclusive = aEndRowExclusive;
+            advance();
+        }
+
+        private void advance() {
+            theNext = null;
+            try {
+                while (theRecordIndex < theRecordCount) {
+                    theRecordIndex++;
+                    String myKey = RecordEncoding.readString(theIn);
+                    if (theEndRowExclusive != null && myKey.compareTo(theEndRowExclusive) >= 0) {
+                        theRecordIndex = theRecordCount;
+                        return;
+                    }
+                    byte myFlags = theIn.get();
+                    int myBodyLength = theIn.getInt();
+                    if (theStartRow != null && myKey.compareTo(theStartRow) < 0) {
+                        skipRecord(theIn, myFlags, myBodyLength);
+                        continue;
+                    }
+                    theNext = new AbstractMap.SimpleImmutableEntry<>(
+                            myKey, readFragment(theIn, myKey, myFlags, myBodyLength));
+                    return;
+                }
+            } catch (IOException e) {
+                LOGGER.error("Failed to read segment " + theFile, e);
+                theRecordIndex = theRecordCount;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return theNext != null;
+        }
+
+        @Override
+        public Map.Entry<String, RowFragment> next() {
+            if (theNext == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, RowFragment> myResult = theNext;
+            advance();
+            return myResult;
+        }
+    }
+}
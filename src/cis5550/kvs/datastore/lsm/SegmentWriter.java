@@ -0,0 +1,143 @@
+package cis5550.kvs.datastore.lsm;
+
+import cis5550.utils.BloomFilter;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Writes a segment: a header, records in ascending key order, a sparse index holding every
+ * {@link Segment#INDEX_INTERVAL}th key, a Bloom filter over all keys, and a fixed-size footer. Pending merge
+ * operands follow the row of their record; forcing rows complete applies them instead. Data goes to a temporary file that is only
+ * renamed into place once it is complete and synced, so a segment file on disk is always whole.
+ */
+public class SegmentWriter implements Closeable {
+    private final File theFile;
+    private final File theTemporaryFile;
+    private final FileOutputStream theFileStream;
+    private final DataOutputStream theOut;
+    private final List<String> theIndexKeys;
+    private final List<Long> theIndexOffsets;
+    private final BloomFilter theFilter;
+    private final Predicate<String> theCompressedColumns;
+
+    private long thePosition;
+    private int theRecordCount;
+    private String theLastKey;
+    private boolean theFinished;
+
+    public SegmentWriter(File aFile, long aExpectedKeys) throws IOException {
+        this(aFile, aExpectedKeys, BloomFilter.DEFAULT_FALSE_POSITIVE_RATE, aColumn -> false);
+    }
+
+    /**
+     * The Bloom filter is sized for the expected number of keys; writing more keys than that raises its
+     * false-positive rate above the requested one. Values of the given columns are stored compressed.
+     */
+    public SegmentWriter(File aFile, long aExpectedKeys, double aFalsePositiveRate,
+                         Predicate<String> aCompressedColumns) throws IOException {
+        theFile = aFile;
+        theTemporaryFile = new File(aFile.getPath() + Segment.TEMPORARY_SUFFIX);
+        theFileStream = new FileOutputStream(theTemporaryFile);
+        theOut = new DataOutputStream(new BufferedOutputStream(theFileStream, 1 << 16));
+        theIndexKeys = new ArrayList<>();
+        theIndexOffsets = new ArrayList<>();
+        theFilter = BloomFilter.create(aExpectedKeys, aFalsePositiveRate);
+        theCompressedColumns = aCompressedColumns;
+
+        theOut.writeInt(Segment.MAGIC);
+        theOut.writeInt(Segment.VERSION);
+        thePosition = 8;
+    }
+
+    public void add(String aKey, RowFragment aFragment) throws IOException {
+        if (theLastKey != null && aKey.compareTo(theLastKey) <= 0) {
+            throw new IllegalArgumentException("Segment keys must be strictly ascending: " + aKey + " after " + theLastKey);
+        }
+
+        if (theRecordCount % Segment.INDEX_INTERVAL == 0) {
+            theIndexKeys.add(aKey);
+            theIndexOffsets.add(thePosition);
+        }
+
+        ByteArrayOutputStream myRecord = new ByteArrayOutputStream();
+        DataOutputStream myRecordOut = new DataOutputStream(myRecord);
+        RecordEncoding.writeString(myRecordOut, aKey);
+        boolean myHasOperands = !aFragment.operands().isEmpty();
+        myRecordOut.writeByte((aFragment.complete() ? Segment.FLAG_COMPLETE : 0)
+                | (myHasOperands ? Segment.FLAG_OPERANDS : 0));
+        RecordEncoding.writeBytes(myRecordOut, aFragment.row().toBinaryByteArray(theCompressedColumns));
+        if (myHasOperands) {
+            ByteArrayOutputStream myOperands = new ByteArrayOutputStream();
+            RecordEncoding.writeOperands(new DataOutputStream(myOperands), aFragment.operands());
+            RecordEncoding.writeBytes(myRecordOut, myOperands.toByteArray());
+        }
+
+        theFilter.add(aKey);
+        myRecord.writeTo(theOut);
+        thePosition += myRecord.size();
+        theRecordCount++;
+        theLastKey = aKey;
+    }
+
+    /**
+     * Returns how many bytes of records have been written so far.
+     */
+    public long sizeInBytes() {
+        return thePosition;
+    }
+
+    public void finish() throws IOException {
+        long myIndexOffset = thePosition;
+        theOut.writeInt(theIndexKeys.size());
+        for (int i = 0; i < theIndexKeys.size(); i++) {
+            RecordEncoding.writeString(theOut, theIndexKeys.get(i));
+            theOut.writeLong(theIndexOffsets.get(i));
+        }
+        RecordEncoding.writeString(theOut, theLastKey == null ? "" : theLastKey);
+        theFilter.writeTo(theOut);
+
+        theOut.writeLong(myIndexOffset);
+        theOut.writeInt(theRecordCount);
+        theOut.writeInt(Segment.MAGIC);
+        theOut.flush();
+        theFileStream.getFD().sync();
+        theOut.close();
+
+        Files.move(theTemporaryFile.toPath(), theFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        theFinished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!theFinished) {
+            theOut.close();
+            theTemporaryFile.delete();
+        }
+    }
+
+    public static Segment write(File aFile, Iterator<Map.Entry<String, RowFragment>> aRows, boolean aForceComplete,
+                                long aExpectedKeys) throws IOException {
+        return write(aFile, aRows, aForceComplete, aExpectedKeys, aColumn -> false);
+    }
+
+    public static Segment write(File aFile, Iterator<Map.Entry<String, RowFragment>> aRows, boolean aForceComplete,
+                                long aExpectedKeys, Predicate<String> aCompressedColumns) throws IOException {
+        try (SegmentWriter myWriter = new SegmentWriter(
+                aFile, aExpectedKeys, BloomFilter.DEFAULT_FALSE_POSITIVE_RATE, aCompressedColumns)) {
+            while (aRows.hasNext()) {
+                Map.Entry<String, RowFragment> myEntry = aRows.next();
+                RowFragment myFragment = myEntry.getValue();
+                myWriter.add(myEntry.getKey(), aForceComplete ? new RowFragment(myFragment.resolve(), true) : myFragment);
+            }
+            myWriter.finish();
+        }
+        return Segment.open(aFile);
+    }
+}
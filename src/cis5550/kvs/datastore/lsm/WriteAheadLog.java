@@ -0,0 +1,283 @@
+package cis5550.kvs.datastore.lsm;
+
+import cis5550.kvs.MergeOperator;
+import cis5550.kvs.MergeOperators;
+import cis5550.kvs.Row;
+import cis5550.tools.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log with group commit. Appends only add the framed record to an in-memory buffer; the first
+ * writer to call {@link #commit} becomes the leader, waits out the commit window so that concurrent writers
+ * can join, and then writes the whole buffer with one sequential write and one fsync on their behalf.
+ */
+public class WriteAheadLog implements Closeable {
+    public static final Logger LOGGER = Logger.getLogger(WriteAheadLog.class);
+    public static final byte PUT_CELL = 1;
+    public static final byte PUT_ROW = 2;
+    public static final byte MERGE_CELL = 3;
+    public static final long DEFAULT_COMMIT_WINDOW_NANOS = 500_000;
+
+    public interface Visitor {
+        void onPut(String aTable, String aKey, String aColumn, byte[] aValue);
+        void onPutRow(String aTable, String aKey, Row aRow);
+        void onMerge(String aTable, String aKey, String aColumn, MergeOperator aOperator, byte[] aOperand);
+    }
+
+    private final File theFile;
+    private final FileChannel theChannel;
+    private final long theCommitWindowNanos;
+    private final ThreadLocal<Long> theLastAppended;
+
+    private ByteArrayOutputStream thePending;
+    private long theAppendedSequence;
+    private long theDurableSequence;
+    private boolean theCommitInProgress;
+    private boolean theClosed;
+    private IOException theFailure;
+
+    public WriteAheadLog(File aFile) throws IOException {
+        this(aFile, DEFAULT_COMMIT_WINDOW_NANOS);
+    }
+
+    public WriteAheadLog(File aFile, long aCommitWindowNanos) throws IOException {
+        theFile = aFile;
+        theChannel = FileChannel.open(
+                aFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        theCommitWindowNanos = aCommitWindowNanos;
+        theLastAppended = new ThreadLocal<>();
+        thePending = new ByteArrayOutputStream();
+    }
+
+    public File file() {
+        return theFile;
+    }
+
+    public long appendPut(String aTable, String aKey, String aColumn, byte[] aValue) throws IOException {
+        ByteArrayOutputStream myBytes = new ByteArrayOutputStream();
+        DataOutputStream myOut = new DataOutputStream(myBytes);
+        myOut.writeByte(PUT_CELL);
+        RecordEncoding.writeString(myOut, aTable);
+        RecordEncoding.writeString(myOut, aKey);
+        RecordEncoding.writeString(myOut, aColumn);
+        RecordEncoding.writeBytes(myOut, aValue);
+        return append(myBytes.toByteArray());
+    }
+
+    public long appendPutRow(String aTable, String aKey, Row aRow) throws IOException {
+        ByteArrayOutputStream myBytes = new ByteArrayOutputStream();
+        DataOutputStream myOut = new DataOutputStream(myBytes);
+        myOut.writeByte(PUT_ROW);
+        RecordEncoding.writeString(myOut, aTable);
+        RecordEncoding.writeString(myOut, aKey);
+        RecordEncoding.writeColumns(myOut, aRow);
+        return append(myBytes.toByteArray());
+    }
+
+    public long appendMerge(String aTable, String aKey, String aColumn, MergeOperator aOperator, byte[] aOperand) throws IOException {
+        ByteArrayOutputStream myBytes = new ByteArrayOutputStream();
+        DataOutputStream myOut = new DataOutputStream(myBytes);
+        myOut.writeByte(MERGE_CELL);
+        RecordEncoding.writeString(myOut, aTable);
+        RecordEncoding.writeString(myOut, aKey);
+        RecordEncoding.writeString(myOut, aColumn);
+        RecordEncoding.writeString(myOut, aOperator.spec());
+        RecordEncoding.writeBytes(myOut, aOperand);
+        return append(myBytes.toByteArray());
+    }
+
+    private synchronized long append(byte[] aPayload) throws IOException {
+        if (theClosed) {
+            throw new IOException("Write-ahead log " + theFile + " is closed");
+        }
+
+        CRC32 myChecksum = new CRC32();
+        myChecksum.update(aPayload);
+        DataOutputStream myOut = new DataOutputStream(thePending);
+        myOut.writeInt(aPayload.length);
+        myOut.writeInt((int) myChecksum.getValue());
+        myOut.write(aPayload);
+
+        theAppendedSequence++;
+        theLastAppended.set(theAppendedSequence);
+        return theAppendedSequence;
+    }
+
+    /**
+     * Blocks until every record the calling thread appended is on disk.
+     */
+    public void commitOwnWrites() throws IOException {
+        Long myLastAppended = theLastAppended.get();
+        if (myLastAppended != null) {
+            commit(myLastAppended);
+        }
+    }
+
+    /**
+     * Blocks until the record with the given sequence number, and everything before it, is on disk.
+     */
+    public void commit(long aSequence) throws IOException {
+        synchronized (this) {
+            while (true) {
+                if (theDurableSequence >= aSequence) {
+                    return;
+                }
+                if (theFailure != null) {
+                    throw new IOException("Write-ahead log " + theFile + " failed", theFailure);
+                }
+                if (!theCommitInProgress) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for commit", e);
+                }
+            }
+            theCommitInProgress = true;
+        }
+
+        if (theCommitWindowNanos > 0) {
+            LockSupport.parkNanos(theCommitWindowNanos);
+        }
+
+        // Appenders keep filling the next batch while this one is written and synced
+        byte[] myBatch;
+        long myBatchEnd;
+        synchronized (this) {
+            myBatch = thePending.toByteArray();
+            myBatchEnd = theAppendedSequence;
+            thePending = new ByteArrayOutputStream();
+        }
+
+        IOException myFailure = write(myBatch);
+
+        synchronized (this) {
+            if (myFailure == null) {
+                theDurableSequence = myBatchEnd;
+            } else {
+                theFailure = myFailure;
+            }
+            theCommitInProgress = false;
+            notifyAll();
+        }
+        if (myFailure != null) {
+            throw new IOException("Write-ahead log " + theFile + " failed", myFailure);
+        }
+    }
+
+    private IOException write(byte[] aBatch) {
+        try {
+            ByteBuffer myBuffer = ByteBuffer.wrap(aBatch);
+            while (myBuffer.hasRemaining()) {
+                theChannel.write(myBuffer);
+            }
+            theChannel.force(false);
+            return null;
+        } catch (IOException e) {
+            LOGGER.error("Failed to write to write-ahead log " + theFile, e);
+            return e;
+        }
+    }
+
+    /**
+     * Replays every intact record in the log. A torn or corrupt record ends the replay, since it can only be
+     * the tail of a write that never completed.
+     */
+    public static int replay(File aFile, Visitor aVisitor) {
+        int myRecords = 0;
+        try (DataInputStream myIn = new DataInputStream(new BufferedInputStream(new FileInputStream(aFile)))) {
+            while (true) {
+                int myLength;
+                try {
+                    myLength = myIn.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int myExpectedChecksum = myIn.readInt();
+                if (myLength < 0) {
+                    LOGGER.warn("Corrupt record length in " + aFile + ", stopping replay");
+                    break;
+                }
+                byte[] myPayload = new byte[myLength];
+                myIn.readFully(myPayload);
+
+                CRC32 myChecksum = new CRC32();
+                myChecksum.update(myPayload);
+                if ((int) myChecksum.getValue() != myExpectedChecksum) {
+                    LOGGER.warn("Checksum mismatch in " + aFile + ", stopping replay");
+                    break;
+                }
+
+                DataInputStream myRecord = new DataInputStream(new ByteArrayInputStream(myPayload));
+                byte myType = myRecord.readByte();
+                String myTable = RecordEncoding.readString(myRecord);
+                String myKey = RecordEncoding.readString(myRecord);
+                if (myType == PUT_CELL) {
+                    aVisitor.onPut(myTable, myKey, RecordEncoding.readString(myRecord),
+                            RecordEncoding.readBytes(myRecord));
+                } else if (myType == PUT_ROW) {
+                    aVisitor.onPutRow(myTable, myKey, RecordEncoding.readColumns(myRecord, myKey));
+                } else if (myType == MERGE_CELL) {
+                    String myColumn = RecordEncoding.readString(myRecord);
+                    String mySpec = RecordEncoding.readString(myRecord);
+                    MergeOperator myOperator;
+                    try {
+                        myOperator = MergeOperators.forSpec(mySpec);
+                    } catch (IllegalArgumentException e) {
+                        LOGGER.error("Unknown merge operator " + mySpec + " in " + aFile + ", stopping replay");
+                        break;
+                    }
+                    aVisitor.onMerge(myTable, myKey, myColumn, myOperator, RecordEncoding.readBytes(myRecord));
+                } else {
+                    LOGGER.warn("Unknown record type " + myType + " in " + aFile + ", stopping replay");
+                    break;
+                }
+                myRecords++;
+            }
+        } catch (EOFException e) {
+            LOGGER.warn("Truncated record at the end of " + aFile);
+        } catch (IOException e) {
+            LOGGER.error("Failed to replay write-ahead log " + aFile, e);
+        }
+        return myRecords;
+    }
+
+    /**
+     * Writes out and syncs whatever is still buffered, then closes the file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (theClosed) {
+            return;
+        }
+        while (theCommitInProgress) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        theClosed = true;
+        IOException myFailure = theFailure == null ? write(thePending.toByteArray()) : theFailure;
+        if (myFailure == null) {
+            theDurableSequence = theAppendedSequence;
+        } else {
+            theFailure = myFailure;
+        }
+        thePending = new ByteArrayOutputStream();
+        notifyAll();
+        theChannel.close();
+        if (myFailure != null) {
+            throw new IOException("Write-ahead log " + theFile + " failed", myFailure);
+        }
+    }
+}
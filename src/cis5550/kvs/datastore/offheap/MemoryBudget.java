@@ -0,0 +1,44 @@
+package cis5550.kvs.datastore.offheap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed number of bytes of off-heap memory shared by the tables of a datastore.
+ */
+public class MemoryBudget {
+    private final long theLimit;
+    private final AtomicLong theUsed;
+
+    public MemoryBudget(long aLimit) {
+        theLimit = aLimit;
+        theUsed = new AtomicLong();
+    }
+
+    /**
+     * Takes the given number of bytes out of the budget, or returns false without taking anything if that would
+     * exceed it.
+     */
+    public boolean tryReserve(long aBytes) {
+        while (true) {
+            long myUsed = theUsed.get();
+            if (myUsed + aBytes > theLimit) {
+                return false;
+            }
+            if (theUsed.compareAndSet(myUsed, myUsed + aBytes)) {
+                return true;
+            }
+        }
+    }
+
+    public void release(long aBytes) {
+        theUsed.addAndGet(-aBytes);
+    }
+
+    public long used() {
+        return theUsed.get();
+    }
+
+    public long limit() {
+        return theLimit;
+    }
+}
@@ -0,0 +1,433 @@
+package cis5550.kvs.datastore.offheap;
+
+import cis5550.kvs.Row;
+import cis5550.tools.Logger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+
+/**
+ * The rows of one table, kept in their binary encoding in direct buffers outside the Java heap.
+ * <p>
+ * Each row is a record of an int length followed by the encoded row, appended to the current chunk. An
+ * open-addressing hash index maps keys to the address of their latest record, as a long of chunk number and
+ * offset, so a table holds no per-row objects on the heap. Records are never modified: an update appends a new
+ * record, and once most of the chunks are stale the live records are copied into fresh ones. Rows handed out
+ * read their values straight from the chunks, which stay valid for as long as such a row is referenced.
+ */
+public class OffHeapTable {
+    public static final Logger LOGGER = Logger.getLogger(OffHeapTable.class);
+    public static final int CHUNK_SIZE = 4 << 20;
+
+    private static final int INITIAL_SLOTS = 1024;
+    private static final int RECORD_HEADER_LENGTH = Integer.BYTES;
+
+    private final MemoryBudget theBudget;
+    private final ReentrantReadWriteLock theLock;
+    private ArrayList<ByteBuffer> theChunks;
+    private long[] theSlots;
+    private int[] theHashes;
+    private int theSize;
+    private long theReservedBytes;
+    private long theLiveBytes;
+    private long theGarbageBytes;
+    private volatile SortedView theSortedView;
+
+    /**
+     * The record addresses of the table in key order, as of the last change to it.
+     */
+    private record SortedView(List<ByteBuffer> chunks, long[] addresses) {
+        /**
+         * Returns the index of the first row whose key is not less than the given one.
+         */
+        int seek(String aKey) {
+            int myLow = 0;
+            int myHigh = addresses.length;
+            while (myLow < myHigh) {
+                int myMiddle = (myLow + myHigh) >>> 1;
+                if (readKey(chunks, addresses[myMiddle]).compareTo(aKey) < 0) {
+                    myLow = myMiddle + 1;
+                } else {
+                    myHigh = myMiddle;
+                }
+            }
+            return myLow;
+        }
+    }
+
+    public OffHeapTable(MemoryBudget aBudget) {
+        theBudget = aBudget;
+        theLock = new ReentrantReadWriteLock();
+        theChunks = new ArrayList<>();
+        theSlots = new long[INITIAL_SLOTS];
+        theHashes = new int[INITIAL_SLOTS];
+    }
+
+    public Row get(String aKey) {
+        byte[] myKey = aKey.getBytes(StandardCharsets.UTF_8);
+        theLock.readLock().lock();
+        try {
+            int mySlot = find(myKey, hash(aKey));
+            return mySlot < 0 ? null : decode(theChunks, theSlots[mySlot] - 1);
+        } finally {
+            theLock.readLock().unlock();
+        }
+    }
+
+    public boolean put(Row aRow) {
+        return update(aRow.key(), aPrevious -> aRow);
+    }
+
+    /**
+     * Replaces the row with the given key by the result of the update, which is passed the current row or null
+     * and runs while no other thread can change the table. An update that returns null leaves the row as it
+     * was. Returns false, leaving the row as it was, if the memory budget has no room for the new row.
+     */
+    public boolean update(String aKey, UnaryOperator<Row> aUpdate) {
+        byte[] myKey = aKey.getBytes(StandardCharsets.UTF_8);
+        int myHash = hash(aKey);
+        theLock.writeLock().lock();
+        try {
+            int mySlot = find(myKey, myHash);
+            Row myPrevious = mySlot < 0 ? null : decode(theChunks, theSlots[mySlot] - 1);
+            Row myUpdated = aUpdate.apply(myPrevious);
+            if (myUpdated == null) {
+                return true;
+            }
+            byte[] myRecord = myUpdated.toBinaryByteArray();
+            long myAddress = append(ByteBuffer.wrap(myRecord));
+            if (myAddress < 0) {
+                return false;
+            }
+
+            if (mySlot >= 0) {
+                long myStaleLength = recordLength(theChunks, theSlots[mySlot] - 1);
+                theLiveBytes -= myStaleLength;
+                theGarbageBytes += myStaleLength;
+                theSlots[mySlot] = myAddress + 1;
+            } else {
+                mySlot = -mySlot - 1;
+                theSlots[mySlot] = myAddress + 1;
+                theHashes[mySlot] = myHash;
+                theSize++;
+                if (theSize * 2 > theSlots.length) {
+                    resize();
+                }
+            }
+            theLiveBytes += RECORD_HEADER_LENGTH + myRecord.length;
+            theSortedView = null;
+
+            if (theGarbageBytes > CHUNK_SIZE && theGarbageBytes > theLiveBytes) {
+                compact();
+            }
+            return true;
+        } finally {
+            theLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the rows with keys from the start row up to the end row, either of which may be null, and returns
+     * how many there were. Their records become garbage like those of overwritten rows.
+     */
+    public int removeRange(String aStartRow, String aEndRowExclusive) {
+        theLock.writeLock().lock();
+        try {
+            long[] myOldSlots = theSlots;
+            int[] myOldHashes = theHashes;
+            theSlots = new long[myOldSlots.length];
+            theHashes = new int[myOldHashes.length];
+            int myMask = theSlots.length - 1;
+            int myRemoved = 0;
+            for (int i = 0; i < myOldSlots.length; i++) {
+                if (myOldSlots[i] == 0) {
+                    continue;
+                }
+                String myKey = readKey(theChunks, myOldSlots[i] - 1);
+                if ((aStartRow == null || myKey.compareTo(aStartRow) >= 0)
+                        && (aEndRowExclusive == null || myKey.compareTo(aEndRowExclusive) < 0)) {
+                    long myStaleLength = recordLength(theChunks, myOldSlots[i] - 1);
+                    theLiveBytes -= myStaleLength;
+                    theGarbageBytes += myStaleLength;
+                    myRemoved++;
+                    continue;
+                }
+                int j = myOldHashes[i] & myMask;
+                while (theSlots[j] != 0) {
+                    j = (j + 1) & myMask;
+                }
+                theSlots[j] = myOldSlots[i];
+                theHashes[j] = myOldHashes[i];
+            }
+            theSize -= myRemoved;
+            theSortedView = null;
+
+            if (theGarbageBytes > CHUNK_SIZE && theGarbageBytes > theLiveBytes) {
+                compact();
+            }
+            return myRemoved;
+        } finally {
+            theLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the rows of the table as of the call with keys from the start row up to the end row, in key order.
+     * Either bound may be null. The order is sorted once after each change to the table and shared by the scans
+     * that follow, which suits tables that are written once and then scanned partition by partition.
+     */
+    public Iterator<Row> rows(String aStartRow, String aEndRowExclusive) {
+        SortedView myView = sortedView();
+        int myFrom = aStartRow == null ? 0 : myView.seek(aStartRow);
+        int myTo = aEndRowExclusive == null ? myView.addresses().length : myView.seek(aEndRowExclusive);
+
+        return new Iterator<>() {
+            private int theNext = myFrom;
+
+            @Override
+            public boolean hasNext() {
+                return theNext < myTo;
+            }
+
+            @Override
+            public Row next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return decode(myView.chunks(), myView.addresses()[theNext++]);
+            }
+        };
+    }
+
+    private SortedView sortedView() {
+        SortedView myView = theSortedView;
+        if (myView != null) {
+            return myView;
+        }
+
+        theLock.readLock().lock();
+        try {
+            synchronized (this) {
+                myView = theSortedView;
+                if (myView != null) {
+                    return myView;
+                }
+
+                List<ByteBuffer> myChunks = new ArrayList<>(theChunks);
+                long[] myAddresses = new long[theSize];
+                String[] myKeys = new String[theSize];
+                int myCount = 0;
+                for (long mySlot : theSlots) {
+                    if (mySlot != 0) {
+                        myAddresses[myCount] = mySlot - 1;
+                        myKeys[myCount] = readKey(myChunks, mySlot - 1);
+                        myCount++;
+                    }
+                }
+
+                Integer[] myOrder = new Integer[myCount];
+                Arrays.setAll(myOrder, i -> i);
+                Arrays.sort(myOrder, Comparator.comparing(i -> myKeys[i]));
+                long[] mySortedAddresses = new long[myCount];
+                for (int i = 0; i < myCount; i++) {
+                    mySortedAddresses[i] = myAddresses[myOrder[i]];
+                }
+
+                myView = new SortedView(myChunks, mySortedAddresses);
+                theSortedView = myView;
+                return myView;
+            }
+        } finally {
+            theLock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        theLock.readLock().lock();
+        try {
+            return theSize;
+        } finally {
+            theLock.readLock().unlock();
+        }
+    }
+
+    public long reservedBytes() {
+        theLock.readLock().lock();
+        try {
+            return theReservedBytes;
+        } finally {
+            theLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Empties the table and gives its memory back to the budget.
+     */
+    public void free() {
+        theLock.writeLock().lock();
+        try {
+            theBudget.release(theReservedBytes);
+            theChunks = new ArrayList<>();
+            theSlots = new long[INITIAL_SLOTS];
+            theHashes = new int[INITIAL_SLOTS];
+            theSize = 0;
+            theReservedBytes = 0;
+            theLiveBytes = 0;
+            theGarbageBytes = 0;
+            theSortedView = null;
+        } finally {
+            theLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the slot holding the key, or -(slot + 1) for the empty slot where it would be inserted.
+     */
+    private int find(byte[] aKey, int aHash) {
+        int myMask = theSlots.length - 1;
+        for (int i = aHash & myMask; ; i = (i + 1) & myMask) {
+            if (theSlots[i] == 0) {
+                return -i - 1;
+            }
+            if (theHashes[i] == aHash && keyEquals(theSlots[i] - 1, aKey)) {
+                return i;
+            }
+        }
+    }
+
+    private void resize() {
+        long[] myOldSlots = theSlots;
+        int[] myOldHashes = theHashes;
+        theSlots = new long[myOldSlots.length * 2];
+        theHashes = new int[myOldSlots.length * 2];
+        int myMask = theSlots.length - 1;
+        for (int i = 0; i < myOldSlots.length; i++) {
+            if (myOldSlots[i] == 0) {
+                continue;
+            }
+            int j = myOldHashes[i] & myMask;
+            while (theSlots[j] != 0) {
+                j = (j + 1) & myMask;
+            }
+            theSlots[j] = myOldSlots[i];
+            theHashes[j] = myOldHashes[i];
+        }
+    }
+
+    /**
+     * Copies the live records into new chunks and releases the old ones. Gives up, leaving the table as it was,
+     * if the budget cannot hold both at once.
+     */
+    private void compact() {
+        ArrayList<ByteBuffer> myOldChunks = theChunks;
+        long myOldReservedBytes = theReservedBytes;
+        long[] myNewSlots = new long[theSlots.length];
+        theChunks = new ArrayList<>();
+        theReservedBytes = 0;
+
+        for (int i = 0; i < theSlots.length; i++) {
+            if (theSlots[i] == 0) {
+                continue;
+            }
+            long myAddress = append(record(myOldChunks, theSlots[i] - 1));
+            if (myAddress < 0) {
+                LOGGER.debug("Not enough memory to compact table of " + theSize + " rows");
+                theBudget.release(theReservedBytes);
+                theChunks = myOldChunks;
+                theReservedBytes = myOldReservedBytes;
+                return;
+            }
+            myNewSlots[i] = myAddress + 1;
+        }
+
+        theBudget.release(myOldReservedBytes);
+        theSlots = myNewSlots;
+        theSortedView = null;
+        theGarbageBytes = 0;
+    }
+
+    /**
+     * Appends a record holding the given bytes and returns its address, or -1 if the budget has no room for a
+     * new chunk.
+     */
+    private long append(ByteBuffer aBytes) {
+        int myLength = RECORD_HEADER_LENGTH + aBytes.remaining();
+        ByteBuffer myChunk = theChunks.isEmpty() ? null : theChunks.get(theChunks.size() - 1);
+        if (myChunk == null || myChunk.remaining() < myLength) {
+            int myChunkSize = Math.max(CHUNK_SIZE, myLength);
+            if (!theBudget.tryReserve(myChunkSize)) {
+                return -1;
+            }
+            myChunk = ByteBuffer.allocateDirect(myChunkSize);
+            theChunks.add(myChunk);
+            theReservedBytes += myChunkSize;
+        }
+
+        long myAddress = ((long) (theChunks.size() - 1) << 32) | myChunk.position();
+        myChunk.putInt(aBytes.remaining());
+        myChunk.put(aBytes);
+        return myAddress;
+    }
+
+    private static ByteBuffer record(List<ByteBuffer> aChunks, long aAddress) {
+        ByteBuffer myChunk = aChunks.get((int) (aAddress >>> 32));
+        int myOffset = (int) aAddress;
+        return myChunk.slice(myOffset + RECORD_HEADER_LENGTH, myChunk.getInt(myOffset));
+    }
+
+    private static long recordLength(List<ByteBuffer> aChunks, long aAddress) {
+        return RECORD_HEADER_LENGTH + aChunks.get((int) (aAddress >>> 32)).getInt((int) aAddress);
+    }
+
+    private static Row decode(List<ByteBuffer> aChunks, long aAddress) {
+        try {
+            return Row.readFrom(record(aChunks, aAddress));
+        } catch (Exception e) {
+            throw new IllegalStateException("Corrupt off-heap record at " + aAddress, e);
+        }
+    }
+
+    private boolean keyEquals(long aAddress, byte[] aKey) {
+        return key(theChunks, aAddress).equals(ByteBuffer.wrap(aKey));
+    }
+
+    private static String readKey(List<ByteBuffer> aChunks, long aAddress) {
+        return StandardCharsets.UTF_8.decode(key(aChunks, aAddress)).toString();
+    }
+
+    /**
+     * Returns the key bytes of a record without decoding the row. A binary row starts with the magic and version
+     * bytes and the varint body length, followed by the key as a varint length and its bytes.
+     */
+    private static ByteBuffer key(List<ByteBuffer> aChunks, long aAddress) {
+        ByteBuffer myRecord = aChunks.get((int) (aAddress >>> 32)).duplicate();
+        myRecord.position((int) aAddress + RECORD_HEADER_LENGTH + 2);
+        readVarint(myRecord);
+        int myLength = readVarint(myRecord);
+        return myRecord.slice(myRecord.position(), myLength);
+    }
+
+    private static int readVarint(ByteBuffer aBuffer) {
+        int myValue = 0;
+        for (int myShift = 0; ; myShift += 7) {
+            byte myByte = aBuffer.get();
+            myValue |= (myByte & 0x7f) << myShift;
+            if ((myByte & 0x80) == 0) {
+                return myValue;
+            }
+        }
+    }
+
+    private static int hash(String aKey) {
+        int myHash = aKey.hashCode();
+        return myHash ^ (myHash >>> 16);
+    }
+}
@@ -0,0 +1,358 @@
+package cis5550.test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.io.*;
+import cis5550.kvs.*;
+import cis5550.kvs.datastore.lsm.*;
+
+/* Checks the storage layer in-process, without a coordinator or workers: the row formats, the write-ahead
+   log, and how a log-structured table recovers after a crash. A crash is simulated by opening a table again
+   without closing the old instance, so that whatever the old one left on disk is all the new one gets. */
+
+public class StorageTest extends GenericTest {
+
+  File dir;
+
+  void runSetup() throws IOException {
+    dir = Files.createTempDirectory("storage-test").toFile();
+  }
+
+  void cleanup() {
+    deleteRecursively(dir);
+  }
+
+  void deleteRecursively(File f) {
+    File[] children = f.listFiles();
+    if (children != null)
+      for (File c : children)
+        deleteRecursively(c);
+    f.delete();
+  }
+
+  String describe(Row r) {
+    return (r == null) ? "(no row)" : r.toString();
+  }
+
+  boolean sameRow(Row a, Row b) {
+    if ((a == null) || (b == null) || !a.key().equals(b.key()) || !a.columns().equals(b.columns()))
+      return false;
+    for (String c : a.columns())
+      if (!Arrays.equals(a.getBytes(c), b.getBytes(c)))
+        return false;
+    return true;
+  }
+
+  Row sampleRow(String key) {
+    Row r = new Row(key);
+    r.put("title", "Hello, World!");
+    String page = "";
+    for (int i=0; i<200; i++)
+      page = page + "<p>paragraph "+i+"</p>";
+    r.put("page", page);
+    r.put("empty", new byte[0]);
+    byte[] bin = new byte[256];
+    for (int i=0; i<bin.length; i++)
+      bin[i] = (byte) i;
+    r.put("binary", bin);
+    return r;
+  }
+
+  class Tables {
+    ExecutorService flushExecutor = Executors.newSingleThreadExecutor();
+    ExecutorService compactionExecutor = Executors.newSingleThreadExecutor();
+
+    LogStructuredTable open(File tableDir) throws IOException {
+      return LogStructuredTable.open(tableDir, column -> column.equals("page"), flushExecutor, compactionExecutor);
+    }
+
+    /* Waits until the flushes and compactions scheduled so far have finished */
+    void drain() throws Exception {
+      flushExecutor.submit(() -> {}).get();
+      compactionExecutor.submit(() -> {}).get();
+    }
+
+    /* Leaves the tables opened with these executors as a crash would, without closing them */
+    void crash() throws Exception {
+      drain();
+      flushExecutor.shutdownNow();
+      compactionExecutor.shutdownNow();
+    }
+  }
+
+  String value(LogStructuredTable t, String key, String column) throws IOException {
+    Row r = t.get(key);
+    return (r == null) ? null : r.get(column);
+  }
+
+  void checkValue(LogStructuredTable t, String key, String column, String expected, String when) throws Exception {
+    String actual = value(t, key, column);
+    if (!Objects.equals(expected, actual))
+      testFailed("After "+when+", we expected column '"+column+"' of row '"+key+"' to be "+(expected == null ? "missing" : "'"+expected+"'")+", but we got "+(actual == null ? "nothing" : "'"+actual+"'")+". The row is: "+describe(t.get(key)));
+  }
+
+  void checkCount(LogStructuredTable t, int expected, String when) throws Exception {
+    if (t.count() != expected)
+      testFailed("After "+when+", we expected the table to have "+expected+" rows, but count() returned "+t.count());
+  }
+
+  void runTests(Set<String> tests) throws Exception {
+
+    System.out.printf("\n%-10s%-40sResult\n", "Test", "Description");
+    System.out.println("--------------------------------------------------------");
+
+    if (tests.contains("row")) try {
+      startTest("row", "Row text and binary round trips", 5);
+      Row r = sampleRow("row1");
+
+      Row fromText = Row.readFrom(new ByteArrayInputStream(r.toByteArray()));
+      if (!sameRow(r, fromText))
+        testFailed("We wrote a row with toByteArray() and read it back with readFrom(), but got a different row:\n\nWrote: "+describe(r)+"\nRead:  "+describe(fromText));
+
+      byte[] raw = r.toBinaryByteArray();
+      Row fromBinary = Row.readFrom(ByteBuffer.wrap(raw));
+      if (!sameRow(r, fromBinary))
+        testFailed("We wrote a row with toBinaryByteArray() and read it back with readFrom(ByteBuffer), but got a different row:\n\nWrote: "+describe(r)+"\nRead:  "+describe(fromBinary));
+
+      byte[] compressed = r.toBinaryByteArray(column -> column.equals("page"));
+      if (compressed.length >= raw.length)
+        testFailed("We compressed the 'page' column of a row, but the encoding did not get smaller ("+compressed.length+" bytes compressed, "+raw.length+" bytes raw)");
+      Row fromCompressed = Row.readFrom(ByteBuffer.wrap(compressed));
+      byte[] reencoded = fromCompressed.toBinaryByteArray();
+      if (!Arrays.equals(compressed, reencoded))
+        testFailed("We read a row with a compressed column and encoded it again without reading the column, but the value was not copied as it was ("+reencoded.length+" bytes instead of "+compressed.length+")");
+      if (!sameRow(r, fromCompressed) || !sameRow(r, Row.readFrom(ByteBuffer.wrap(reencoded))))
+        testFailed("We read back a row with a compressed column, but got a different row:\n\nWrote: "+describe(r)+"\nRead:  "+describe(fromCompressed));
+
+      /* A stream can mix both formats, and ends at the end of the data */
+      ByteArrayOutputStream stream = new ByteArrayOutputStream();
+      Row second = sampleRow("row2");
+      stream.write(compressed);
+      stream.write(second.toByteArray());
+      stream.write('\n');
+      InputStream in = new ByteArrayInputStream(stream.toByteArray());
+      Row first = Row.readFrom(in);
+      Row next = Row.readFrom(in);
+      Row end = Row.readFrom(in);
+      if (!sameRow(r, first) || !sameRow(second, next) || (end != null))
+        testFailed("We wrote a binary row and a text row to one stream, but reading it gave us:\n\n"+describe(first)+"\n"+describe(next)+"\n"+describe(end));
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("wal")) try {
+      startTest("wal", "Write-ahead log replay", 5);
+      File logFile = new File(dir, "replay.wal");
+      WriteAheadLog log = new WriteAheadLog(logFile);
+      Row r = sampleRow("k2");
+      log.appendPut("t", "k1", "c", "v1".getBytes());
+      log.appendPutRow("t", "k2", r);
+      log.appendMerge("t", "k3", "n", MergeOperators.add(), "5".getBytes());
+      log.commitOwnWrites();
+      log.close();
+
+      /* A write that was cut short by a crash leaves a torn record at the end */
+      try (DataOutputStream out = new DataOutputStream(new FileOutputStream(logFile, true))) {
+        out.writeInt(100);
+        out.writeInt(12345);
+        out.write(new byte[10]);
+      }
+
+      List<String> replayed = new ArrayList<String>();
+      int records = WriteAheadLog.replay(logFile, new WriteAheadLog.Visitor() {
+        public void onPut(String table, String key, String column, byte[] value) {
+          replayed.add("put "+table+" "+key+" "+column+" "+new String(value));
+        }
+        public void onPutRow(String table, String key, Row row) {
+          replayed.add("putRow "+table+" "+key+" "+(sameRow(r, row) ? "same" : describe(row)));
+        }
+        public void onMerge(String table, String key, String column, MergeOperator operator, byte[] operand) {
+          replayed.add("merge "+table+" "+key+" "+column+" "+operator.spec()+" "+new String(operand));
+        }
+      });
+      List<String> expected = List.of("put t k1 c v1", "putRow t k2 same", "merge t k3 n add 5");
+      if ((records != 3) || !replayed.equals(expected))
+        testFailed("We logged three writes and then a torn record, and expected the replay to return the three writes "+expected+", but it returned "+records+" records: "+replayed);
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("replay")) try {
+      startTest("replay", "Table recovers unflushed writes", 5);
+      File tableDir = new File(dir, "replay");
+      Tables before = new Tables();
+      LogStructuredTable t = before.open(tableDir);
+      t.put("a", "v", "1".getBytes());
+      t.putRow("b", sampleRow("b"));
+      for (int i=0; i<10; i++)
+        t.merge("cnt", "n", MergeOperators.add(), "1".getBytes());
+      t.put("a", "v", "2".getBytes());
+      t.sync();
+      before.crash();
+
+      /* Recovering twice must not apply the merges twice */
+      for (int i=1; i<=2; i++) {
+        Tables after = new Tables();
+        t = after.open(tableDir);
+        String when = "reopening the table "+(i == 1 ? "once" : "twice");
+        checkValue(t, "a", "v", "2", when);
+        checkValue(t, "cnt", "n", "10", when);
+        if (!sameRow(sampleRow("b"), t.get("b")))
+          testFailed("After "+when+", row 'b' was "+describe(t.get("b")));
+        checkCount(t, 3, when);
+        after.crash();
+      }
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("compact")) try {
+      startTest("compact", "Table recovers after compaction", 5);
+      File tableDir = new File(dir, "compact");
+      Tables before = new Tables();
+      LogStructuredTable t = before.open(tableDir);
+
+      /* Each import seals the writes before it into a segment of their own, so compaction has work to do */
+      int expectedCount = 1;
+      for (int round=0; round<4; round++) {
+        for (int i=0; i<20; i++) {
+          t.put(String.format("w%02d", i), "round", (""+round).getBytes());
+          t.merge("cnt", "n", MergeOperators.add(), "1".getBytes());
+        }
+        TreeMap<String, RowFragment> rows = new TreeMap<String, RowFragment>();
+        for (int i=0; i<10; i++) {
+          Row r = sampleRow(String.format("i%d-%02d", round, i));
+          rows.put(r.key(), new RowFragment(r, true));
+        }
+        t.importSorted(rows.entrySet().iterator(), rows.size());
+        expectedCount += rows.size();
+      }
+      expectedCount += 20;
+      t.deleteRange("w10", "w20");
+      expectedCount -= 10;
+      t.put("w05", "round", "last".getBytes());
+      t.merge("cnt", "n", MergeOperators.add(), "1".getBytes());
+      t.sync();
+      before.drain();
+
+      long segments = Files.list(tableDir.toPath()).filter(p -> p.toString().endsWith(Segment.SUFFIX)).count();
+      if (segments >= 8)
+        testFailed("We imported four batches of rows, each after a flush, and waited for compaction, but the table still has all of the "+segments+" segments");
+      checkValue(t, "w05", "round", "last", "compaction");
+      checkValue(t, "cnt", "n", "81", "compaction");
+      checkCount(t, expectedCount, "compaction");
+      before.crash();
+
+      for (int i=1; i<=2; i++) {
+        Tables after = new Tables();
+        t = after.open(tableDir);
+        String when = "compaction and reopening the table "+(i == 1 ? "once" : "twice");
+        checkValue(t, "w05", "round", "last", when);
+        checkValue(t, "w00", "round", "3", when);
+        checkValue(t, "w15", "round", null, when);
+        checkValue(t, "cnt", "n", "81", when);
+        if (!sameRow(sampleRow("i0-00"), t.get("i0-00")))
+          testFailed("After "+when+", the imported row 'i0-00' was "+describe(t.get("i0-00")));
+        checkCount(t, expectedCount, when);
+        after.crash();
+      }
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("attach")) try {
+      startTest("attach", "Table recovers after attaching segments", 5);
+      File tableDir = new File(dir, "attach");
+      Tables before = new Tables();
+      LogStructuredTable t = before.open(tableDir);
+      for (int i=0; i<100; i++) {
+        t.put(String.format("b%03d", i), "v", "written".getBytes());
+        t.merge("cnt", "n", MergeOperators.add(), "1".getBytes());
+      }
+      t.sync();
+
+      /* The attached rows are newer than the writes before the attach, and older than the writes after it */
+      File staging = new File(dir, "staging");
+      staging.mkdirs();
+      TreeMap<String, RowFragment> rows = new TreeMap<String, RowFragment>();
+      for (int i=0; i<50; i++) {
+        Row r = new Row(String.format("b%03d", i));
+        r.put("v", "attached");
+        rows.put(r.key(), new RowFragment(r, true));
+      }
+      SegmentWriter.write(new File(staging, Segment.fileName(1, 1)), rows.entrySet().iterator(), false, rows.size());
+      t.attach(staging);
+
+      for (int i=40; i<60; i++)
+        t.put(String.format("b%03d", i), "v", "rewritten".getBytes());
+      for (int i=0; i<100; i++)
+        t.merge("cnt", "n", MergeOperators.add(), "1".getBytes());
+      t.sync();
+      before.crash();
+
+      for (int i=1; i<=2; i++) {
+        Tables after = new Tables();
+        t = after.open(tableDir);
+        String when = "attaching segments and reopening the table "+(i == 1 ? "once" : "twice");
+        checkValue(t, "b000", "v", "attached", when);
+        checkValue(t, "b045", "v", "rewritten", when);
+        checkValue(t, "b055", "v", "rewritten", when);
+        checkValue(t, "b099", "v", "written", when);
+        checkValue(t, "cnt", "n", "200", when);
+        checkCount(t, 101, when);
+        after.drain();
+
+        /* Compacting the attached segment with the rest must not change anything either */
+        t.importSorted(Collections.emptyIterator(), 0);
+        after.drain();
+        checkValue(t, "b000", "v", "attached", when+" and compacting it");
+        checkValue(t, "b045", "v", "rewritten", when+" and compacting it");
+        checkValue(t, "cnt", "n", "200", when+" and compacting it");
+        after.crash();
+      }
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    System.out.println("--------------------------------------------------------\n");
+    if (numTestsFailed == 0)
+      System.out.println("Looks like your solution passed all of the selected tests. Congratulations!");
+    else
+      System.out.println(numTestsFailed+" test(s) failed.");
+    closeOutputFile();
+  }
+
+  public static void main(String args[]) throws Exception {
+
+    /* Make a set of enabled tests. If no command-line arguments were specified, run all tests. */
+
+    Set<String> tests = new TreeSet<String>();
+    boolean outputToFile = false, exitUponFailure = true;
+
+    if ((args.length > 0) && args[0].equals("auto")) {
+      outputToFile = true;
+      exitUponFailure = false;
+    }
+
+    if ((args.length == 0) || args[0].equals("all") || args[0].equals("auto")) {
+      tests.add("row");
+      tests.add("wal");
+      tests.add("replay");
+      tests.add("compact");
+      tests.add("attach");
+    }
+
+    for (int i=0; i<args.length; i++)
+      if (!args[i].equals("all") && !args[i].equals("auto"))
+        tests.add(args[i]);
+
+    StorageTest t = new StorageTest();
+    t.setExitUponFailure(exitUponFailure);
+    t.setTimeoutMillis(30000);
+    if (outputToFile)
+      t.outputToFile();
+    t.runSetup();
+    try {
+      t.runTests(tests);
+    } finally {
+      t.cleanup();
+    }
+  }
+}
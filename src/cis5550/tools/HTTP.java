@@ -105,8 +105,8 @@ public class HTTP {
         throw new IOException("Cannot connect to server "+host+":"+port);
 
       try {
-        if (timeoutMillis > 0)
-          sock.setSoTimeout(timeoutMillis);
+        // Cached sockets keep the timeout of their last request, so requests without one must clear it
+        sock.setSoTimeout(Math.max(timeoutMillis, 0));
 
         OutputStream out = sock.getOutputStream();
         String request = method+" "+path+" HTTP/1.1\r\nHost: "+host+"\r\n";
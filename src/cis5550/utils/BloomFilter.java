@@ -0,0 +1,100 @@
+package cis5550.utils;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A Bloom filter over string keys. Keys are hashed once into two 64-bit values that are combined into the
+ * probe positions (double hashing), so a lookup does not allocate.
+ */
+public class BloomFilter {
+    public static final String FALSE_POSITIVE_RATE_PROPERTY = "kvs.bloom.falsePositiveRate";
+    public static final double DEFAULT_FALSE_POSITIVE_RATE =
+            Double.parseDouble(System.getProperty(FALSE_POSITIVE_RATE_PROPERTY, "0.01"));
+
+    private static final int MAX_HASHES = 30;
+
+    private final long[] theWords;
+    private final int theHashes;
+    private final long theBits;
+
+    private BloomFilter(long[] aWords, int aHashes) {
+        theWords = aWords;
+        theHashes = aHashes;
+        theBits = (long) aWords.length * Long.SIZE;
+    }
+
+    /**
+     * Sizes a filter so that it has the given false-positive rate once it holds the expected number of keys.
+     */
+    public static BloomFilter create(long aExpectedKeys, double aFalsePositiveRate) {
+        long myKeys = Math.max(1, aExpectedKeys);
+        double myRate = Math.min(0.5, Math.max(1e-9, aFalsePositiveRate));
+        long myBits = (long) Math.ceil(-myKeys * Math.log(myRate) / (Math.log(2) * Math.log(2)));
+        int myWords = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (myBits + Long.SIZE - 1) / Long.SIZE));
+        int myHashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round((double) myWords * Long.SIZE / myKeys * Math.log(2))));
+        return new BloomFilter(new long[myWords], myHashes);
+    }
+
+    public static BloomFilter create(long aExpectedKeys) {
+        return create(aExpectedKeys, DEFAULT_FALSE_POSITIVE_RATE);
+    }
+
+    public void add(String aKey) {
+        long myHash1 = hash(aKey, 0x9e3779b97f4a7c15L);
+        long myHash2 = hash(aKey, 0xc2b2ae3d27d4eb4fL) | 1;
+        for (int i = 0; i < theHashes; i++) {
+            long myBit = Math.floorMod(myHash1 + i * myHash2, theBits);
+            theWords[(int) (myBit >>> 6)] |= 1L << myBit;
+        }
+    }
+
+    /**
+     * Returns false only if the key was never added.
+     */
+    public boolean mightContain(String aKey) {
+        long myHash1 = hash(aKey, 0x9e3779b97f4a7c15L);
+        long myHash2 = hash(aKey, 0xc2b2ae3d27d4eb4fL) | 1;
+        for (int i = 0; i < theHashes; i++) {
+            long myBit = Math.floorMod(myHash1 + i * myHash2, theBits);
+            if ((theWords[(int) (myBit >>> 6)] & (1L << myBit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long sizeInBytes() {
+        return (long) theWords.length * Long.BYTES;
+    }
+
+    public void writeTo(DataOutput aOut) throws IOException {
+        aOut.writeInt(theHashes);
+        aOut.writeInt(theWords.length);
+        for (long myWord : theWords) {
+            aOut.writeLong(myWord);
+        }
+    }
+
+    public static BloomFilter readFrom(ByteBuffer aIn) {
+        int myHashes = aIn.getInt();
+        long[] myWords = new long[aIn.getInt()];
+        aIn.asLongBuffer().get(myWords);
+        aIn.position(aIn.position() + myWords.length * Long.BYTES);
+        return new BloomFilter(myWords, myHashes);
+    }
+
+    private static long hash(String aKey, long aSeed) {
+        long myHash = aSeed ^ aKey.length();
+        for (int i = 0; i < aKey.length(); i++) {
+            myHash = (myHash ^ aKey.charAt(i)) * 0x100000001b3L;
+        }
+        myHash ^= myHash >>> 33;
+        myHash *= 0xff51afd7ed558ccdL;
+        myHash ^= myHash >>> 33;
+        myHash *= 0xc4ceb9fe1a85ec53L;
+        myHash ^= myHash >>> 33;
+        return myHash;
+    }
+}
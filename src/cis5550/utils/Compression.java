@@ -0,0 +1,101 @@
+package cis5550.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of stored values, primed with a dictionary of common HTML so that even small pages
+ * compress well. The dictionary is part of the stored format and must never change.
+ */
+public class Compression {
+    public static final int MIN_COMPRESSED_LENGTH = 256;
+
+    private static final byte[] HTML_DICTIONARY = (
+            "<!DOCTYPE html><html lang=\"en\"><head><meta charset=\"utf-8\">"
+                    + "<meta name=\"viewport\" content=\"width=device-width, initial-scale=1\">"
+                    + "<meta name=\"description\" content=\"<meta property=\"og:title\" content=\""
+                    + "<link rel=\"stylesheet\" href=\"<link rel=\"icon\" href=\"<link rel=\"canonical\" href=\"https://"
+                    + "<script type=\"text/javascript\" src=\"<script async src=\"https://www."
+                    + "</script><style type=\"text/css\"></style><title></title></head><body class=\""
+                    + "<header><nav><ul><li><a href=\"/\" title=\"</a></li></ul></nav></header>"
+                    + "<main><article><section><h1></h1><h2></h2><h3></h3><p></p><br /><hr />"
+                    + "<img src=\"\" alt=\"\" width=\"\" height=\"\" loading=\"lazy\" />"
+                    + "<form action=\"\" method=\"post\"><input type=\"hidden\" name=\"\" value=\"\" />"
+                    + "<button type=\"submit\"></button></form><table><tr><td></td></tr></table>"
+                    + "<span class=\"</span><div class=\"container\"><div class=\"row\"><div id=\""
+                    + "</div></div></div></section></article></main><footer></footer>"
+                    + "<a href=\"https://www.<a href=\"http://www.<a class=\"\" href=\"/\">"
+                    + " style=\"display:none\" target=\"_blank\" rel=\"noopener noreferrer\""
+                    + "</p><p></a></li><li></span><span></div><div></body></html>"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Compresses a value. The result is a varint holding the uncompressed length followed by the deflate
+     * stream.
+     */
+    public static byte[] deflate(byte[] aValue) {
+        Deflater myDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            myDeflater.setDictionary(HTML_DICTIONARY);
+            myDeflater.setInput(aValue);
+            myDeflater.finish();
+
+            ByteArrayOutputStream myOut = new ByteArrayOutputStream(aValue.length / 3 + 16);
+            int myLength = aValue.length;
+            while ((myLength & ~0x7f) != 0) {
+                myOut.write((myLength & 0x7f) | 0x80);
+                myLength >>>= 7;
+            }
+            myOut.write(myLength);
+
+            byte[] myBuffer = new byte[8192];
+            while (!myDeflater.finished()) {
+                int myCount = myDeflater.deflate(myBuffer);
+                myOut.write(myBuffer, 0, myCount);
+            }
+            return myOut.toByteArray();
+        } finally {
+            myDeflater.end();
+        }
+    }
+
+    /**
+     * Decompresses a value written by {@link #deflate}, reading from the buffer's position without moving it.
+     */
+    public static byte[] inflate(ByteBuffer aCompressed) throws DataFormatException {
+        ByteBuffer myIn = aCompressed.duplicate();
+        int myLength = 0;
+        for (int myShift = 0; ; myShift += 7) {
+            if (myShift >= 32) {
+                throw new DataFormatException("Varint too long");
+            }
+            byte myByte = myIn.get();
+            myLength |= (myByte & 0x7f) << myShift;
+            if ((myByte & 0x80) == 0) {
+                break;
+            }
+        }
+
+        Inflater myInflater = new Inflater(true);
+        try {
+            myInflater.setDictionary(HTML_DICTIONARY);
+            myInflater.setInput(myIn);
+            byte[] myValue = new byte[myLength];
+            int myRead = 0;
+            while (myRead < myLength) {
+                int myCount = myInflater.inflate(myValue, myRead, myLength - myRead);
+                if (myCount == 0 && (myInflater.finished() || myInflater.needsInput())) {
+                    throw new DataFormatException("Compressed value ends after " + myRead + " of " + myLength + " bytes");
+                }
+                myRead += myCount;
+            }
+            return myValue;
+        } finally {
+            myInflater.end();
+        }
+    }
+}
@@ -4,17 +4,27 @@ import cis5550.kvs.Row;
 import cis5550.tools.Logger;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 public class FileIOUtils {
     public static final Logger LOGGER = Logger.getLogger(FileIOUtils.class);
     public static final ConcurrentMap<String, ReentrantLock> theFileLocks = new ConcurrentHashMap<>();
+    // Row file names are encoded keys, which never contain a dot
+    public static final String TEMPORARY_SUFFIX = ".tmp";
 
     public static Row readRowFromFile(String aFilePath) {
         addLockIfNotAdded(aFilePath);
@@ -39,6 +49,10 @@ public class FileIOUtils {
     }
 
     public static boolean writeRowToFile(String aFilePath, Row aRow) {
+        return writeRowToFile(aFilePath, aRow, aColumn -> false);
+    }
+
+    public static boolean writeRowToFile(String aFilePath, Row aRow, Predicate<String> aCompressColumn) {
         addLockIfNotAdded(aFilePath);
 
         theFileLocks.get(aFilePath).lock();
@@ -52,7 +66,7 @@ public class FileIOUtils {
             LOGGER.info("Time to obtain lock: " + (myLockAfter - myLockBefore) + " ns");
 
             long myWriteBefore = System.nanoTime();
-            ByteBuffer myBuffer = ByteBuffer.wrap(aRow.toByteArray());
+            ByteBuffer myBuffer = ByteBuffer.wrap(aRow.toBinaryByteArray(aCompressColumn));
             int myBytesWritten = 0;
             while (myBuffer.hasRemaining()) {
                 myBytesWritten = myChannel.write(myBuffer);
@@ -61,6 +75,8 @@ public class FileIOUtils {
                     break;
                 }
             }
+            // A shorter row must not leave the tail of the previous one behind
+            myChannel.truncate(myChannel.position());
             long myWriteAfter = System.nanoTime();
             LOGGER.info("Time to write to file: " + (myWriteAfter - myWriteBefore) + " ns");
             myLock.release();
@@ -162,6 +178,44 @@ public class FileIOUtils {
         }
     }
 
+    /**
+     * Replaces an append-only row with a rewritten one, unless the file no longer has the given length because
+     * something was appended since the row was read. The rewritten row goes to a temporary file next to the row,
+     * which then takes the row's place in one step, so a crash leaves either the old row or the new one.
+     */
+    public static boolean rewriteAppendOnlyRow(String aFilePath, Row aRow, long aExpectedLength) {
+        addLockIfNotAdded(aFilePath);
+
+        theFileLocks.get(aFilePath).lock();
+        File myTemporaryFile = new File(aFilePath + TEMPORARY_SUFFIX);
+        try (RandomAccessFile myFile = new RandomAccessFile(aFilePath, "rw");
+             FileChannel myChannel = myFile.getChannel()) {
+            FileLock myLock = myChannel.lock(0L, Long.MAX_VALUE, false);
+            try {
+                if (myChannel.size() != aExpectedLength) {
+                    return false;
+                }
+                try (FileOutputStream myOut = new FileOutputStream(myTemporaryFile)) {
+                    if (!fullyWrite(myOut.getChannel(), ByteBuffer.wrap(aRow.toAppendOnlyByteArray()))) {
+                        return false;
+                    }
+                    myOut.getFD().sync();
+                }
+                Files.move(myTemporaryFile.toPath(), Path.of(aFilePath),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                return true;
+            } finally {
+                myLock.release();
+            }
+        } catch (Exception e) {
+            LOGGER.error("Error rewriting row in file: " + aFilePath, e);
+            return false;
+        } finally {
+            myTemporaryFile.delete();
+            theFileLocks.get(aFilePath).unlock();
+        }
+    }
+
     private static void addLockIfNotAdded(String aFilePath) {
         if (!theFileLocks.containsKey(aFilePath)) {
             theFileLocks.put(aFilePath, new ReentrantLock());
@@ -193,4 +247,23 @@ public class FileIOUtils {
             return false;
         }
     }
+
+    /**
+     * Makes what was written to the file so far survive a power loss.
+     */
+    public static void syncFile(File aFile) throws IOException {
+        try (FileChannel myChannel = FileChannel.open(aFile.toPath(), StandardOpenOption.WRITE)) {
+            myChannel.force(true);
+        }
+    }
+
+    /**
+     * Makes the files created, renamed or deleted in the directory so far survive a power loss; syncing a file
+     * only makes its contents durable, not its name.
+     */
+    public static void syncDirectory(File aDirectory) throws IOException {
+        try (FileChannel myChannel = FileChannel.open(aDirectory.toPath(), StandardOpenOption.READ)) {
+            myChannel.force(true);
+        }
+    }
 }
@@ -17,8 +17,10 @@ public enum HTTPStatus {
     CONFLICT(409, "Conflict"),
     PRECONDITION_FAILED(412, "Precondition Failed"),
     INVALID_RANGE(416, "Requested Range Not Satisfiable"),
+    MISDIRECTED_REQUEST(421, "Misdirected Request"),
     INTERNAL_SERVER_ERROR(500, "Internal Server Error"),
     NOT_IMPLEMENTED(501, "Not Implemented"),
+    GATEWAY_TIMEOUT(504, "Gateway Timeout"),
     VERSION_NOT_SUPPORTED(505, "HTTP Version Not Supported"),
     NULL(0, "Null")
     ;
@@ -53,8 +55,10 @@ public enum HTTPStatus {
             case 404 -> NOT_FOUND;
             case 405 -> NOT_ALLOWED;
             case 416 -> INVALID_RANGE;
+            case 421 -> MISDIRECTED_REQUEST;
             case 500 -> INTERNAL_SERVER_ERROR;
             case 501 -> NOT_IMPLEMENTED;
+            case 504 -> GATEWAY_TIMEOUT;
             case 505 -> VERSION_NOT_SUPPORTED;
             default -> NULL;
         };